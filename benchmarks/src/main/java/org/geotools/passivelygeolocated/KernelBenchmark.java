@@ -0,0 +1,43 @@
+package org.geotools.passivelygeolocated;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Building a splat with getFuzzyMatrix, for splats of different radii (in
+ *   pixels), with and without flattening it into a Kernel
+ * @author jonnyhuck
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class KernelBenchmark {
+
+    @Param({"1", "10", "50", "200"})
+    public int radius;
+
+    private final WeightedFuzzy wf = new WeightedFuzzy();
+
+    @Benchmark
+    public double[][] getFuzzyMatrix() {
+        return this.wf.getFuzzyMatrix(this.radius * SyntheticData.PIXEL_SIZE, SyntheticData.PIXEL_SIZE);
+    }
+
+    @Benchmark
+    public Kernel kernel() {
+        return new Kernel(this.wf.getFuzzyMatrix(this.radius * SyntheticData.PIXEL_SIZE, SyntheticData.PIXEL_SIZE),
+                this.wf.getPrecision());
+    }
+}
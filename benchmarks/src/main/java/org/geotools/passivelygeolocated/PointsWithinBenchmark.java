@@ -0,0 +1,114 @@
+package org.geotools.passivelygeolocated;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.data.simple.SimpleFeatureSource;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.opengis.feature.simple.SimpleFeature;
+
+/**
+ * Finding the points in a polygon, cycling through the polygons: a within
+ *   query on the point source per polygon (getPointsWithin), against looking
+ *   up the same points in a PointPolygonJoin (which is built once per run,
+ *   measured separately by buildJoin)
+ * @author jonnyhuck
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PointsWithinBenchmark {
+
+    @Param({SyntheticData.SMALL, SyntheticData.MEDIUM, SyntheticData.LARGE})
+    public String scale;
+
+    private SyntheticData data;
+    private WeightedFuzzy wf;
+    private SimpleFeatureSource pointSource;
+    private List<SimpleFeature> polygonFeatures;
+    private PointPolygonJoin join;
+
+    //the coordinates of the points in each polygon
+    private double[][] x;
+    private double[][] y;
+    private int next = 0;
+
+    @Setup
+    public void setUp() throws Exception {
+        this.data = SyntheticData.create(this.scale);
+        this.wf = new WeightedFuzzy();
+        this.pointSource = this.data.getPointSource();
+        this.polygonFeatures = new ArrayList<SimpleFeature>();
+        SimpleFeatureIterator iterator = this.data.getPolygonSource().getFeatures().features();
+        try {
+            while (iterator.hasNext()) {
+                this.polygonFeatures.add(iterator.next());
+            }
+        } finally {
+            iterator.close();
+        }
+        this.join = new PointPolygonJoin(this.data.polygons, this.data.geometryFactory);
+        List<PolygonJob> jobs = this.data.getPolygonJobs(this.wf, 0.01);
+        this.x = new double[jobs.size()][];
+        this.y = new double[jobs.size()][];
+        for (int p = 0; p < jobs.size(); p++) {
+            this.x[p] = jobs.get(p).x;
+            this.y[p] = jobs.get(p).y;
+        }
+    }
+
+    private int nextPolygon() {
+        final int p = this.next;
+        this.next = p + 1 == this.polygonFeatures.size() ? 0 : p + 1;
+        return p;
+    }
+
+    @Benchmark
+    public int getPointsWithin() throws Exception {
+        SimpleFeatureCollection within = this.wf.getPointsWithin(this.polygonFeatures.get(this.nextPolygon()),
+                this.pointSource);
+        int count = 0;
+        SimpleFeatureIterator iterator = within.features();
+        try {
+            while (iterator.hasNext()) {
+                iterator.next();
+                count++;
+            }
+        } finally {
+            iterator.close();
+        }
+        return count;
+    }
+
+    @Benchmark
+    public int join() {
+        final int p = this.nextPolygon();
+        int count = 0;
+        for (int i = 0; i < this.x[p].length; i++) {
+            if (this.join.find(this.x[p][i], this.y[p][i]) == p) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Benchmark
+    public PointPolygonJoin buildJoin() {
+        return new PointPolygonJoin(this.data.polygons, this.data.geometryFactory);
+    }
+}
@@ -0,0 +1,66 @@
+package org.geotools.passivelygeolocated;
+
+import com.vividsolutions.jts.geom.Point;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.geotools.coverage.grid.GridCoverage2D;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Looking up the weighting surface value at a point, by evaluating the
+ *   coverage (getValueFromRaster) and from the cached array (WeightingSampler)
+ * @author jonnyhuck
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RasterLookupBenchmark {
+
+    @Param({SyntheticData.SMALL, SyntheticData.MEDIUM, SyntheticData.LARGE})
+    public String scale;
+
+    private WeightedFuzzy wf;
+    private GridCoverage2D weightingSurface;
+    private WeightingSampler sampler;
+    private List<Point> points;
+    private int next = 0;
+
+    @Setup
+    public void setUp() throws Exception {
+        SyntheticData data = SyntheticData.create(this.scale);
+        this.wf = new WeightedFuzzy();
+        this.weightingSurface = data.weightingSurface;
+        this.sampler = new WeightingSampler(data.weightingSurface);
+        this.points = data.points;
+    }
+
+    private Point nextPoint() {
+        final int i = this.next;
+        this.next = i + 1 == this.points.size() ? 0 : i + 1;
+        return this.points.get(i);
+    }
+
+    @Benchmark
+    public double getValueFromRaster() throws Exception {
+        return this.wf.getValueFromRaster(this.nextPoint(), this.weightingSurface);
+    }
+
+    @Benchmark
+    public double sample() {
+        Point point = this.nextPoint();
+        return this.sampler.sample(point.getX(), point.getY());
+    }
+}
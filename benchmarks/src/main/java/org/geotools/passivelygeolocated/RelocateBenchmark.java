@@ -0,0 +1,71 @@
+package org.geotools.passivelygeolocated;
+
+import com.vividsolutions.jts.geom.Point;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Relocating a single point within its polygon (including deriving its
+ *   random stream), cycling through the points of the data set (candidate samplers and pixel tables are built during
+ *   warm up, as they are once per polygon in a real run)
+ * @author jonnyhuck
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RelocateBenchmark {
+
+    @Param({SyntheticData.SMALL, SyntheticData.MEDIUM, SyntheticData.LARGE})
+    public String scale;
+
+    @Param({"BEST_OF_N", "ALIAS"})
+    public RelocationMode mode;
+
+    @Param({"10", "100"})
+    public int iterations;
+
+    private WeightedFuzzy wf;
+    private WeightingSampler sampler;
+    private List<PolygonJob> jobs;
+    private List<Point> points;
+    private PolygonJob[] pointJobs;
+    private RandomStreams streams;
+    private int next = 0;
+
+    @Setup
+    public void setUp() throws Exception {
+        SyntheticData data = SyntheticData.create(this.scale);
+        this.wf = new WeightedFuzzy();
+        this.wf.setRelocationMode(this.mode);
+        this.sampler = new WeightingSampler(data.weightingSurface);
+        this.jobs = data.getPolygonJobs(this.wf, 0.01);
+        this.points = data.points;
+        this.pointJobs = new PolygonJob[this.points.size()];
+        for (int i = 0; i < this.pointJobs.length; i++) {
+            this.pointJobs[i] = this.jobs.get(data.pointPolygon[i]);
+        }
+        this.streams = new RandomStreams(42);
+    }
+
+    @Benchmark
+    public Point relocate() {
+        final int i = this.next;
+        this.next = i + 1 == this.pointJobs.length ? 0 : i + 1;
+        return this.wf.relocate(this.points.get(i), this.pointJobs[i], this.iterations, this.sampler,
+                this.streams.forPoint(this.pointJobs[i].index, i));
+    }
+}
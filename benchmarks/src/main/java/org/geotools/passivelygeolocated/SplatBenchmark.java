@@ -0,0 +1,113 @@
+package org.geotools.passivelygeolocated;
+
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferDouble;
+import java.awt.image.WritableRaster;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import javax.media.jai.RasterFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Adding the splats for every (already relocated) point to the output
+ *   surface: the original getPixels / add / setPixels loop, SplatTask and
+ *   CountGridRenderer
+ * @author jonnyhuck
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SplatBenchmark {
+
+    @Param({SyntheticData.SMALL, SyntheticData.MEDIUM, SyntheticData.LARGE})
+    public String scale;
+
+    @Param({"0.01", "0.1"})
+    public double fuzziness;
+
+    @Param({"1", "4"})
+    public int threads;
+
+    private List<PolygonJob> jobs;
+    private WritableRaster raster;
+    private ForkJoinPool pool;
+
+    @Setup
+    public void setUp() throws Exception {
+        SyntheticData data = SyntheticData.create(this.scale);
+        WeightedFuzzy wf = new WeightedFuzzy();
+        this.jobs = data.getPolygonJobs(wf, this.fuzziness);
+        this.raster = RasterFactory.createBandedRaster(DataBuffer.TYPE_DOUBLE, data.width, data.height, 1, null);
+        this.pool = new ForkJoinPool(this.threads);
+        this.pool.invoke(new RelocationTask(wf, this.jobs, new WeightingSampler(data.weightingSurface),
+                new RandomStreams(42), 10, SyntheticData.PIXEL_SIZE));
+    }
+
+    @Setup(Level.Invocation)
+    public void clear() {
+        Arrays.fill(((DataBufferDouble) this.raster.getDataBuffer()).getData(), 0);
+    }
+
+    @TearDown
+    public void tearDown() {
+        this.pool.shutdown();
+    }
+
+    /**
+     * The loop that WeightedFuzzy originally used: read the pixels under the
+     *   splat, add the splat and write them back (splats that overlap the edge
+     *   of the surface are dropped)
+     */
+    @Benchmark
+    public WritableRaster getPixelsSetPixels() {
+        for (PolygonJob job : this.jobs) {
+            final int span = job.kernel.span;
+            final int nCells = span * span;
+            for (int i = 0; i < job.size(); i++) {
+                try {
+                    double[] existingData = new double[nCells];
+                    this.raster.getPixels(job.patchX[i], job.patchY[i], span, span, existingData);
+                    double[] patch = new double[nCells];
+                    for (int c = 0; c < nCells; c++) {
+                        patch[c] = existingData[c] + job.kernel.values[c];
+                    }
+                    this.raster.setPixels(job.patchX[i], job.patchY[i], span, span, patch);
+                } catch (ArrayIndexOutOfBoundsException e) {
+                }
+            }
+        }
+        return this.raster;
+    }
+
+    @Benchmark
+    public WritableRaster splatTask() {
+        int stripeRows = this.raster.getHeight() / (this.threads * 4);
+        this.pool.invoke(new SplatTask(this.jobs, new RasterSurfaceBuffer(this.raster), 0, this.raster.getHeight(),
+                stripeRows));
+        return this.raster;
+    }
+
+    @Benchmark
+    public WritableRaster countGrid() {
+        int stripeRows = this.raster.getHeight() / (this.threads * 4);
+        new CountGridRenderer().render(this.jobs, new RasterSurfaceBuffer(this.raster), this.pool, stripeRows);
+        return this.raster;
+    }
+}
@@ -0,0 +1,63 @@
+package org.geotools.passivelygeolocated;
+
+import java.util.concurrent.TimeUnit;
+import org.geotools.coverage.grid.GridCoverage2D;
+import org.geotools.data.simple.SimpleFeatureSource;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The whole of getFuzzyRelocatedSurface, from in memory feature sources
+ * @author jonnyhuck
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SurfaceBenchmark {
+
+    @Param({SyntheticData.SMALL, SyntheticData.MEDIUM, SyntheticData.LARGE})
+    public String scale;
+
+    @Param({"BEST_OF_N", "ALIAS"})
+    public RelocationMode mode;
+
+    @Param({"SPLAT", "COUNT_GRID"})
+    public RenderMode render;
+
+    @Param({"1", "4"})
+    public int threads;
+
+    private WeightedFuzzy wf;
+    private SimpleFeatureSource points;
+    private SimpleFeatureSource polygons;
+    private GridCoverage2D weightingSurface;
+
+    @Setup
+    public void setUp() throws Exception {
+        SyntheticData data = SyntheticData.create(this.scale);
+        this.points = data.getPointSource();
+        this.polygons = data.getPolygonSource();
+        this.weightingSurface = data.weightingSurface;
+        this.wf = new WeightedFuzzy();
+        this.wf.setRelocationMode(this.mode);
+        this.wf.setRenderMode(this.render);
+        this.wf.setThreads(this.threads);
+    }
+
+    @Benchmark
+    public GridCoverage2D getFuzzyRelocatedSurface() throws Exception {
+        return this.wf.getFuzzyRelocatedSurface(this.points, this.polygons, this.weightingSurface, 10, 0.01);
+    }
+}
@@ -0,0 +1,247 @@
+package org.geotools.passivelygeolocated;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.Point;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.SplittableRandom;
+import org.geotools.coverage.grid.GridCoverage2D;
+import org.geotools.coverage.grid.GridCoverageFactory;
+import org.geotools.data.DataUtilities;
+import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureSource;
+import org.geotools.feature.FeatureCollections;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.geotools.geometry.jts.JTSFactoryFinder;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.referencing.CRS;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+
+/**
+ * Reproducible (seeded) polygons, points and weighting surfaces for the
+ *   benchmarks. The polygons are a jittered grid of quadrilaterals that tile
+ *   the weighting surface, the points are spread unevenly between them, and
+ *   the weighting surface is a sum of gaussian bumps.
+ * @author jonnyhuck
+ */
+class SyntheticData {
+
+    //the sizes of data set, as used by the scale parameter of the benchmarks
+    static final String SMALL = "small";
+    static final String MEDIUM = "medium";
+    static final String LARGE = "large";
+
+    //the pixel size (m) and the bottom left of the surface (British National Grid)
+    static final int PIXEL_SIZE = 10;
+    static final double MIN_X = 400000;
+    static final double MIN_Y = 300000;
+
+    final int width;
+    final int height;
+    final int polygonsX;
+    final int polygonsY;
+    final int pointCount;
+
+    final GeometryFactory geometryFactory = JTSFactoryFinder.getGeometryFactory(null);
+    final List<Geometry> polygons = new ArrayList<Geometry>();
+    final List<Point> points = new ArrayList<Point>();
+
+    //the index of the polygon that each point was placed in
+    final int[] pointPolygon;
+
+    final GridCoverage2D weightingSurface;
+
+    private SimpleFeatureSource polygonSource;
+    private SimpleFeatureSource pointSource;
+
+    /**
+     * @param scale SMALL, MEDIUM or LARGE
+     * @return the data set for a scale
+     * @throws Exception
+     */
+    static SyntheticData create(String scale) throws Exception {
+        if (SMALL.equals(scale)) {
+            return new SyntheticData(256, 4, 10000, 42);
+        } else if (MEDIUM.equals(scale)) {
+            return new SyntheticData(1024, 16, 100000, 42);
+        } else if (LARGE.equals(scale)) {
+            return new SyntheticData(4096, 64, 1000000, 42);
+        }
+        throw new IllegalArgumentException("unknown scale: " + scale);
+    }
+
+    /**
+     * Builds a square data set
+     * @param size the width and height of the weighting surface in pixels
+     * @param polygonsAcross the number of polygons across (and down) the surface
+     * @param pointCount
+     * @param seed
+     * @throws Exception
+     */
+    SyntheticData(int size, int polygonsAcross, int pointCount, long seed) throws Exception {
+        this.width = size;
+        this.height = size;
+        this.polygonsX = polygonsAcross;
+        this.polygonsY = polygonsAcross;
+        this.pointCount = pointCount;
+        this.pointPolygon = new int[pointCount];
+        Random rng = new Random(seed);
+        this.buildPolygons(rng);
+        this.buildPoints(rng);
+        this.weightingSurface = this.buildWeightingSurface(rng);
+    }
+
+    /**
+     * Jitters the inner corners of a regular grid, so that the polygons are
+     *   irregular but still tile the surface
+     */
+    private void buildPolygons(Random rng) {
+        final double cellWidth = (double) this.width * PIXEL_SIZE / this.polygonsX;
+        final double cellHeight = (double) this.height * PIXEL_SIZE / this.polygonsY;
+        Coordinate[][] corners = new Coordinate[this.polygonsY + 1][this.polygonsX + 1];
+        for (int j = 0; j <= this.polygonsY; j++) {
+            for (int i = 0; i <= this.polygonsX; i++) {
+                double x = MIN_X + i * cellWidth;
+                double y = MIN_Y + j * cellHeight;
+                if (i > 0 && i < this.polygonsX) {
+                    x += (rng.nextDouble() - 0.5) * 0.5 * cellWidth;
+                }
+                if (j > 0 && j < this.polygonsY) {
+                    y += (rng.nextDouble() - 0.5) * 0.5 * cellHeight;
+                }
+                corners[j][i] = new Coordinate(x, y);
+            }
+        }
+        for (int j = 0; j < this.polygonsY; j++) {
+            for (int i = 0; i < this.polygonsX; i++) {
+                Coordinate[] ring = {
+                    corners[j][i], corners[j][i + 1], corners[j + 1][i + 1], corners[j + 1][i], corners[j][i]
+                };
+                this.polygons.add(this.geometryFactory.createPolygon(
+                        this.geometryFactory.createLinearRing(ring), null));
+            }
+        }
+    }
+
+    /**
+     * Spreads the points unevenly between the polygons (some have many times
+     *   more than others), then places them uniformly within each one
+     */
+    private void buildPoints(Random rng) {
+        double[] shares = new double[this.polygons.size()];
+        double total = 0;
+        for (int p = 0; p < shares.length; p++) {
+            shares[p] = -Math.log(1 - rng.nextDouble());
+            total += shares[p];
+        }
+        SplittableRandom locations = new SplittableRandom(rng.nextLong());
+        double[] location = new double[2];
+        int n = 0;
+        double cumulative = 0;
+        for (int p = 0; p < shares.length; p++) {
+            cumulative += shares[p];
+            final int end = p == shares.length - 1 ? this.pointCount
+                    : (int) Math.round(this.pointCount * cumulative / total);
+            PolygonSampler sampler = new PolygonSampler(this.polygons.get(p), this.geometryFactory);
+            for (; n < end; n++) {
+                sampler.next(locations, location);
+                this.points.add(this.geometryFactory.createPoint(new Coordinate(location[0], location[1])));
+                this.pointPolygon[n] = p;
+            }
+        }
+    }
+
+    /**
+     * @return a weighting surface of gaussian bumps on a low background
+     */
+    private GridCoverage2D buildWeightingSurface(Random rng) throws Exception {
+        float[][] matrix = new float[this.height][this.width];
+        for (int b = 0; b < 32; b++) {
+            final double cx = rng.nextDouble() * this.width;
+            final double cy = rng.nextDouble() * this.height;
+            final double sigma = this.width * (0.01 + rng.nextDouble() * 0.1);
+            final double peak = 1 + rng.nextDouble() * 99;
+            final int r = (int) Math.ceil(sigma * 4);
+            for (int row = Math.max(0, (int) cy - r); row < Math.min(this.height, (int) cy + r); row++) {
+                for (int col = Math.max(0, (int) cx - r); col < Math.min(this.width, (int) cx + r); col++) {
+                    final double d2 = (col - cx) * (col - cx) + (row - cy) * (row - cy);
+                    matrix[row][col] += (float) (peak * Math.exp(-d2 / (2 * sigma * sigma)));
+                }
+            }
+        }
+        for (int row = 0; row < this.height; row++) {
+            for (int col = 0; col < this.width; col++) {
+                matrix[row][col] += 0.1f;
+            }
+        }
+        ReferencedEnvelope envelope = new ReferencedEnvelope(MIN_X, MIN_X + this.width * PIXEL_SIZE,
+                MIN_Y, MIN_Y + this.height * PIXEL_SIZE, CRS.decode("EPSG:27700"));
+        return new GridCoverageFactory().create("weights", matrix, envelope);
+    }
+
+    /**
+     * @return the polygons as an in memory feature source
+     * @throws Exception
+     */
+    SimpleFeatureSource getPolygonSource() throws Exception {
+        if (this.polygonSource == null) {
+            this.polygonSource = this.toFeatureSource("polygons", "the_geom:Polygon:srid=27700", this.polygons);
+        }
+        return this.polygonSource;
+    }
+
+    /**
+     * @return the points as an in memory feature source
+     * @throws Exception
+     */
+    SimpleFeatureSource getPointSource() throws Exception {
+        if (this.pointSource == null) {
+            this.pointSource = this.toFeatureSource("points", "the_geom:Point:srid=27700", this.points);
+        }
+        return this.pointSource;
+    }
+
+    private SimpleFeatureSource toFeatureSource(String name, String spec, List<? extends Geometry> geometries)
+            throws Exception {
+        SimpleFeatureType type = DataUtilities.createType(name, spec);
+        SimpleFeatureCollection collection = FeatureCollections.newCollection();
+        SimpleFeatureBuilder builder = new SimpleFeatureBuilder(type);
+        for (int i = 0; i < geometries.size(); i++) {
+            builder.add(geometries.get(i));
+            SimpleFeature feature = builder.buildFeature(name + "." + i);
+            collection.add(feature);
+        }
+        return DataUtilities.source(collection);
+    }
+
+    /**
+     * Builds the polygon jobs for the data, as the surface would
+     * @param wf
+     * @param fuzziness
+     * @return
+     */
+    List<PolygonJob> getPolygonJobs(WeightedFuzzy wf, double fuzziness) {
+        int[] counts = new int[this.polygons.size()];
+        for (int p : this.pointPolygon) {
+            counts[p]++;
+        }
+        List<PolygonJob> jobs = new ArrayList<PolygonJob>();
+        int n = 0;
+        for (int p = 0; p < counts.length; p++) {
+            Geometry polygon = this.polygons.get(p);
+            double[] x = new double[counts[p]];
+            double[] y = new double[counts[p]];
+            for (int i = 0; i < counts[p]; i++, n++) {
+                x[i] = this.points.get(n).getX();
+                y[i] = this.points.get(n).getY();
+            }
+            Kernel kernel = wf.getKernel(Math.sqrt((polygon.getArea() * fuzziness) / Math.PI), PIXEL_SIZE);
+            jobs.add(new PolygonJob(p, polygon, wf.getBoundingRadius(polygon), kernel, x, y));
+        }
+        return jobs;
+    }
+}
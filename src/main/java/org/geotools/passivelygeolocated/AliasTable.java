@@ -0,0 +1,90 @@
+package org.geotools.passivelygeolocated;
+
+import java.util.SplittableRandom;
+
+/**
+ * Draws indexes from a discrete distribution in constant time, using Vose's
+ *   alias method
+ * @author jonnyhuck
+ */
+public class AliasTable {
+
+    private final double[] probability;
+    private final int[] alias;
+
+    /**
+     * Builds the table
+     * @param weights the (non-negative) relative weight of each index, which
+     *   must not all be 0
+     */
+    public AliasTable(double[] weights) {
+        final int n = weights.length;
+        this.probability = new double[n];
+        this.alias = new int[n];
+
+        //scale the weights so that they average 1
+        double total = 0;
+        for (double w : weights) {
+            total += w;
+        }
+        if (!(total > 0)) {
+            throw new IllegalArgumentException("at least one weight must be greater than 0");
+        }
+        double[] scaled = new double[n];
+        for (int i = 0; i < n; i++) {
+            scaled[i] = weights[i] * n / total;
+        }
+
+        //split the indexes into those below and above average
+        int[] small = new int[n];
+        int[] large = new int[n];
+        int nSmall = 0;
+        int nLarge = 0;
+        for (int i = 0; i < n; i++) {
+            if (scaled[i] < 1) {
+                small[nSmall++] = i;
+            } else {
+                large[nLarge++] = i;
+            }
+        }
+
+        //pair each small index with a large one that tops it up to average
+        while (nSmall > 0 && nLarge > 0) {
+            int s = small[--nSmall];
+            int l = large[--nLarge];
+            this.probability[s] = scaled[s];
+            this.alias[s] = l;
+            scaled[l] = (scaled[l] + scaled[s]) - 1;
+            if (scaled[l] < 1) {
+                small[nSmall++] = l;
+            } else {
+                large[nLarge++] = l;
+            }
+        }
+
+        //whatever is left over is (within rounding error) exactly average
+        while (nLarge > 0) {
+            this.probability[large[--nLarge]] = 1;
+        }
+        while (nSmall > 0) {
+            this.probability[small[--nSmall]] = 1;
+        }
+    }
+
+    /**
+     * Draws an index
+     * @param rng
+     * @return an index, drawn in proportion to its weight
+     */
+    public int next(SplittableRandom rng) {
+        int i = rng.nextInt(this.probability.length);
+        return rng.nextDouble() < this.probability[i] ? i : this.alias[i];
+    }
+
+    /**
+     * @return the number of indexes in the table
+     */
+    public int size() {
+        return this.probability.length;
+    }
+}
@@ -0,0 +1,169 @@
+package org.geotools.passivelygeolocated;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Reads batches of points from a CSV file (or a point cache) on a thread of
+ *   its own, ahead of the thread that relocates them, so that reading and
+ *   parsing the file
+ *   (and reprojecting the points) overlaps relocation and rendering. At most
+ *   depth batches wait to be taken: the reader blocks when that many are
+ *   waiting, which caps the memory they use at depth + 2 batches (counting
+ *   the one being read and the one being relocated). With a depth of 0 each
+ *   batch is read when it is taken, on the thread that takes it.
+ *
+ * The point reader belongs to this until it is closed.
+ * @author jonnyhuck
+ */
+class BatchPrefetcher {
+
+    //put in the queue after the last batch (or a failure)
+    private static final PointColumns END = new PointColumns(1);
+
+    private final PointReader points;
+    private final int batchSize;
+    private final BlockingQueue<PointColumns> queue;
+    private final Thread reader;
+
+    //why the reader stopped early (null if it did not)
+    private volatile Throwable failure;
+    private boolean finished = false;
+
+    //what batches are read into when there is no reader thread
+    private double[] x;
+    private double[] y;
+    private long[] ids;
+
+    /**
+     * Starts reading
+     * @param points
+     * @param batchSize the number of points in each batch
+     * @param depth the number of batches that may wait to be taken
+     */
+    BatchPrefetcher(PointReader points, int batchSize, int depth) {
+        if (depth < 0) {
+            throw new IllegalArgumentException("depth must be at least 0");
+        }
+        this.points = points;
+        this.batchSize = batchSize;
+        if (depth == 0) {
+            this.queue = null;
+            this.reader = null;
+            return;
+        }
+        this.queue = new ArrayBlockingQueue<PointColumns>(depth);
+        this.reader = new Thread(new Runnable() {
+            public void run() {
+                BatchPrefetcher.this.readAll();
+            }
+        }, "point reader");
+        this.reader.setDaemon(true);
+        this.reader.start();
+    }
+
+    /**
+     * @return the next batch, or null once all have been taken
+     * @throws IOException if the file could not be read
+     */
+    PointColumns take() throws IOException {
+        if (this.finished) {
+            return null;
+        }
+        if (this.reader == null) {
+            if (this.x == null) {
+                this.x = new double[this.batchSize];
+                this.y = new double[this.batchSize];
+                this.ids = new long[this.batchSize];
+            }
+            PointColumns batch = this.read(this.x, this.y, this.ids);
+            this.finished = batch == null;
+            return batch;
+        }
+        PointColumns batch;
+        try {
+            batch = this.queue.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for points");
+        }
+        if (batch != END) {
+            return batch;
+        }
+        this.finished = true;
+        this.close();
+        if (this.failure instanceof IOException) {
+            throw (IOException) this.failure;
+        } else if (this.failure != null) {
+            throw new IOException("could not read the points: " + this.failure, this.failure);
+        }
+        return null;
+    }
+
+    /**
+     * Stops the reader if it is still running and waits for it to finish the
+     *   batch it is reading, after which the point reader can be used again
+     */
+    void close() {
+        if (this.reader == null) {
+            return;
+        }
+        this.reader.interrupt();
+        boolean interrupted = false;
+        while (this.reader.isAlive()) {
+            try {
+                this.reader.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void readAll() {
+        double[] x = new double[this.batchSize];
+        double[] y = new double[this.batchSize];
+        long[] ids = new long[this.batchSize];
+        boolean closed = false;
+        try {
+            PointColumns batch;
+            while ((batch = this.read(x, y, ids)) != null) {
+                this.queue.put(batch);
+            }
+        } catch (InterruptedException e) {
+            //closed before the end of the file
+            closed = true;
+        } catch (Throwable e) {
+            //(errors too, which are only recorded here, so that take is not left waiting for ever)
+            this.failure = e;
+        } finally {
+            if (!closed) {
+                try {
+                    this.queue.put(END);
+                } catch (InterruptedException e) {
+                    //closed
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the next batch from the file (null at the end)
+     * @throws IOException
+     */
+    private PointColumns read(double[] x, double[] y, long[] ids) throws IOException {
+        final int count = this.points.read(x, y, ids);
+        if (count == 0) {
+            return null;
+        }
+        PointColumns batch = new PointColumns(count);
+        for (int i = 0; i < count; i++) {
+            batch.add(x[i], y[i], ids[i], -1);
+        }
+        return batch;
+    }
+}
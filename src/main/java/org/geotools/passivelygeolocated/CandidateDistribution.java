@@ -0,0 +1,21 @@
+package org.geotools.passivelygeolocated;
+
+/**
+ * How the candidate locations of RelocationMode.BEST_OF_N are drawn within a
+ *   polygon
+ * @author jonnyhuck
+ */
+public enum CandidateDistribution {
+
+    /**
+     * At a distance drawn uniformly from 0 to the bounding radius of the
+     *   polygon and a uniform azimuth from the original point, so candidates
+     *   are denser nearer it (the original algorithm)
+     */
+    RADIAL,
+
+    /**
+     * Uniformly over the polygon
+     */
+    UNIFORM
+}
@@ -0,0 +1,81 @@
+package org.geotools.passivelygeolocated;
+
+/**
+ * Summarises the work done drawing candidate locations over a run, compared
+ *   with an estimate of what the old rejection loop (random offsets from the
+ *   original point, each tested with within()) would have needed
+ * @author jonnyhuck
+ */
+public class CandidateStats {
+
+    private long candidates;
+    private long geometryTests;
+    private long fallbacks;
+    private long exhausted;
+    private double legacyTests;
+
+    /**
+     * Adds the counts from a polygon's sampler
+     * @param sampler
+     * @param polygonArea
+     * @param maxOffsetDistance the radius that the old loop drew offsets within
+     */
+    void add(PolygonSampler sampler, double polygonArea, double maxOffsetDistance) {
+        long n = sampler.getCandidates();
+        this.candidates += n;
+        this.geometryTests += sampler.getGeometryTests();
+        this.fallbacks += sampler.getFallbacks();
+        this.exhausted += sampler.getExhausted();
+
+        //the old loop tested every draw, and roughly area / (pi * r^2) of them were accepted
+        if (polygonArea > 0) {
+            this.legacyTests += n * Math.max(1, Math.PI * maxOffsetDistance * maxOffsetDistance / polygonArea);
+        }
+    }
+
+    /**
+     * @return the number of candidates drawn
+     */
+    public long getCandidates() {
+        return this.candidates;
+    }
+
+    /**
+     * @return the number of point in polygon tests carried out
+     */
+    public long getGeometryTests() {
+        return this.geometryTests;
+    }
+
+    /**
+     * @return the number of radial candidates drawn uniformly over their
+     *   polygon, as none of the draws around the point were within it
+     */
+    public long getFallbacks() {
+        return this.fallbacks;
+    }
+
+    /**
+     * @return the number of candidates that could not be drawn, so that their
+     *   points were scored on fewer than n
+     */
+    public long getExhausted() {
+        return this.exhausted;
+    }
+
+    /**
+     * @return the estimated number of within() tests the old rejection loop
+     *   would have needed for the same number of candidates
+     */
+    public long getEstimatedLegacyTests() {
+        return Math.round(this.legacyTests);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d candidates, %d geometry tests (rejection loop: ~%d, saved ~%d), "
+                + "%d drawn uniformly when out of reach, %d not found",
+                this.candidates, this.geometryTests, this.getEstimatedLegacyTests(),
+                Math.max(0, this.getEstimatedLegacyTests() - this.geometryTests), this.fallbacks, this.exhausted);
+    }
+}
@@ -0,0 +1,267 @@
+package org.geotools.passivelygeolocated;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The progress of a long run, saved every so often so that the run can carry
+ *   on from it if it is stopped: the parameters and seed of the run (each
+ *   point is relocated with a stream derived from the seed, see
+ *   RandomStreams, so that is all the random state there is), the number of
+ *   batches of points (or the polygons) that had been added to the surface,
+ *   and the tiles of the surface that had been written to.
+ *
+ * The surface is copied while nothing is being added to it, and the copy is
+ *   then written on a thread of its own while the run carries on (a
+ *   checkpoint that falls due while the last one is still being written is
+ *   skipped). Each checkpoint is written to a scratch file that then
+ *   replaces the one before, so a run stopped while writing keeps the last.
+ * @author jonnyhuck
+ */
+class Checkpoint {
+
+    //identifies the file format
+    private static final int MAGIC = 0x57465243;
+    private static final int VERSION = 1;
+
+    private final File file;
+    private final long interval;
+
+    //the parameters (and seed) of the run
+    private final Properties parameters;
+
+    //what has been added to the surface: the number of batches of points (if they are streamed), or
+    //  the polygons whose points have all been added (if they are not)
+    private long batches = 0;
+    private final BitSet polygons = new BitSet();
+
+    //writes the checkpoints (started with the first), the one being written, and when the last was taken
+    private ExecutorService writer;
+    private Future<?> pending;
+    private long taken = System.nanoTime();
+
+    /**
+     * A checkpoint of a new run (nothing is written until the first interval has passed)
+     * @param file
+     * @param interval the seconds between checkpoints
+     * @param parameters the parameters and seed of the run
+     */
+    Checkpoint(File file, int interval, Properties parameters) {
+        this.file = file;
+        this.interval = TimeUnit.SECONDS.toNanos(interval);
+        this.parameters = parameters;
+    }
+
+    /**
+     * Reads the last checkpoint of a run, adding its tiles to an empty surface
+     * @param file
+     * @param interval the seconds between later checkpoints
+     * @param surface
+     * @return
+     * @throws IOException
+     */
+    static Checkpoint read(File file, int interval, SurfaceBuffer surface) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException(file + " is not a checkpoint");
+            }
+            Properties parameters = new Properties();
+            parameters.load(new StringReader(in.readUTF()));
+            Checkpoint checkpoint = new Checkpoint(file, interval, parameters);
+            checkpoint.batches = in.readLong();
+            long[] words = new long[in.readInt()];
+            for (int i = 0; i < words.length; i++) {
+                words[i] = in.readLong();
+            }
+            checkpoint.polygons.or(BitSet.valueOf(words));
+
+            //add the tiles (in the precision they were written in) to the surface
+            final int size = in.readInt();
+            final int bytes = in.readInt();
+            final int tiles = in.readInt();
+            byte[] tile = new byte[size * size * bytes];
+            double[] values = bytes == 8 ? new double[size * size] : null;
+            float[] floatValues = bytes == 8 ? null : new float[size * size];
+            for (int t = 0; t < tiles; t++) {
+                final int x = in.readInt() * size;
+                final int y = in.readInt() * size;
+                in.readFully(tile);
+                if (values != null) {
+                    ByteBuffer.wrap(tile).asDoubleBuffer().get(values);
+                    surface.add(values, size, size, x, y, 1, 0, surface.getHeight());
+                } else {
+                    ByteBuffer.wrap(tile).asFloatBuffer().get(floatValues);
+                    surface.add(floatValues, size, size, x, y, 1, 0, surface.getHeight());
+                }
+            }
+            return checkpoint;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * @return the parameters and seed of the run
+     */
+    Properties getParameters() {
+        return this.parameters;
+    }
+
+    /**
+     * @return the number of batches of points that have been added to the surface
+     */
+    long getBatches() {
+        return this.batches;
+    }
+
+    void setBatches(long batches) {
+        this.batches = batches;
+    }
+
+    /**
+     * @param polygon
+     * @return true if all the points of a polygon have been added to the surface
+     */
+    boolean isDone(int polygon) {
+        return this.polygons.get(polygon);
+    }
+
+    void setDone(int polygon) {
+        this.polygons.set(polygon);
+    }
+
+    /**
+     * Takes a checkpoint if one is due and the last one has been written: the
+     *   surface is copied now (nothing may be added to it while this runs),
+     *   and written on the writer thread
+     * @param surface
+     * @throws IOException if the last checkpoint could not be written
+     */
+    void save(SurfaceBuffer surface) throws IOException {
+        if (System.nanoTime() - this.taken < this.interval) {
+            return;
+        }
+        if (this.pending != null) {
+            if (!this.pending.isDone()) {
+                return;
+            }
+            this.checkWritten();
+        }
+        this.taken = System.nanoTime();
+
+        //copy the tiles that have been written to, and the progress
+        final int size = surface.getTileSize();
+        final int tilesX = (surface.getWidth() + size - 1) / size;
+        final int tilesY = (surface.getHeight() + size - 1) / size;
+        final List<int[]> positions = new ArrayList<int[]>();
+        final List<ByteBuffer> tiles = new ArrayList<ByteBuffer>();
+        for (int ty = 0; ty < tilesY; ty++) {
+            for (int tx = 0; tx < tilesX; tx++) {
+                ByteBuffer tile = surface.copyTile(tx, ty);
+                if (tile != null) {
+                    positions.add(new int[] { tx, ty });
+                    tiles.add(tile);
+                }
+            }
+        }
+        final long batches = this.batches;
+        final long[] polygons = this.polygons.toLongArray();
+        final int bytes = surface.getPrecision() == Precision.FLOAT ? 4 : 8;
+
+        if (this.writer == null) {
+            this.writer = Executors.newSingleThreadExecutor();
+        }
+        this.pending = this.writer.submit(new Callable<Void>() {
+            public Void call() throws IOException {
+                Checkpoint.this.write(batches, polygons, size, bytes, positions, tiles);
+                return null;
+            }
+        });
+    }
+
+    private void write(long batches, long[] polygons, int size, int bytes, List<int[]> positions,
+            List<ByteBuffer> tiles) throws IOException {
+        File scratch = new File(this.file.getPath() + ".tmp");
+        FileOutputStream file = new FileOutputStream(scratch);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file, 1 << 16));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            StringWriter text = new StringWriter();
+            this.parameters.store(text, null);
+            out.writeUTF(text.toString());
+            out.writeLong(batches);
+            out.writeInt(polygons.length);
+            for (long word : polygons) {
+                out.writeLong(word);
+            }
+            out.writeInt(size);
+            out.writeInt(bytes);
+            out.writeInt(tiles.size());
+            for (int t = 0; t < tiles.size(); t++) {
+                out.writeInt(positions.get(t)[0]);
+                out.writeInt(positions.get(t)[1]);
+                out.write(tiles.get(t).array());
+            }
+            out.flush();
+            file.getFD().sync();
+        } finally {
+            out.close();
+        }
+        Files.move(scratch.toPath(), this.file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * @throws IOException if the last checkpoint could not be written
+     */
+    private void checkWritten() throws IOException {
+        try {
+            this.pending.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while writing a checkpoint");
+        } catch (ExecutionException e) {
+            throw new IOException("could not write the checkpoint " + this.file + ": " + e.getCause().getMessage(),
+                    e.getCause());
+        } finally {
+            this.pending = null;
+        }
+    }
+
+    /**
+     * Waits for the checkpoint being written (if there is one) and stops the writer
+     * @throws IOException if it could not be written
+     */
+    void close() throws IOException {
+        if (this.writer == null) {
+            return;
+        }
+        this.writer.shutdown();
+        if (this.pending != null) {
+            this.checkWritten();
+        }
+    }
+}
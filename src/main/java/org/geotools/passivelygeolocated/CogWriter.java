@@ -0,0 +1,743 @@
+package org.geotools.passivelygeolocated;
+
+import java.awt.Rectangle;
+import java.awt.image.BandedSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.WritableRaster;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+import java.util.zip.Deflater;
+import org.geotools.coverage.grid.GridCoverage2D;
+import org.geotools.geometry.Envelope2D;
+import org.geotools.referencing.CRS;
+import org.opengis.referencing.FactoryException;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+import org.opengis.referencing.crs.GeographicCRS;
+
+/**
+ * Writes a single band, floating point coverage as a Cloud Optimized GeoTIFF:
+ *   tiled, with each tile compressed, and with internal overviews (each half
+ *   the size of the one before, by averaging, until it fits in one tile). The
+ *   image file directories all come first, followed by the tiles of the
+ *   smallest overview and so on up to the full resolution image, so that a
+ *   reader can fetch any part of any level with a few ranged reads.
+ *
+ * The tiles are read and compressed on a pool of threads, and each is written
+ *   as soon as it and the tiles before it are finished, with only a few tiles
+ *   per thread in flight. The overviews are built first and held in memory
+ *   (together, a third of the size of the surface). Files that could pass
+ *   4GB are written as BigTIFF.
+ * @author jonnyhuck
+ */
+class CogWriter {
+
+    private static final Logger LOGGER = Logger.getLogger(CogWriter.class.getName());
+
+    //the size of the tiles (TIFF needs a multiple of 16)
+    static final int TILE = 256;
+
+    //the number of tiles per thread that may be waiting to be written
+    private static final int IN_FLIGHT = 4;
+
+    //TIFF field types
+    private static final int ASCII = 2;
+    private static final int SHORT = 3;
+    private static final int LONG = 4;
+    private static final int DOUBLE = 12;
+    private static final int LONG8 = 16;
+
+    //LZW codes (TIFF 6.0, section 13)
+    private static final int LZW_CLEAR = 256;
+    private static final int LZW_EOI = 257;
+    private static final int LZW_FIRST = 258;
+    private static final int LZW_FULL = 4094;
+    private static final int LZW_HASH = 8192;
+
+    private final Compression compression;
+    private final int threads;
+    private boolean predictor = true;
+
+    /**
+     * @param compression how each tile is compressed
+     * @param threads the number of threads to compress tiles on
+     */
+    CogWriter(Compression compression, int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be at least 1");
+        }
+        this.compression = compression;
+        this.threads = threads;
+    }
+
+    /**
+     * Sets whether the floating point predictor (TIFF Technical Note 3) is
+     *   applied to compressed tiles, which it is by default as it makes them
+     *   much smaller. GDAL reads it, but some readers (such as the TIFF reader
+     *   in the JDK) do not
+     * @param predictor
+     */
+    void setPredictor(boolean predictor) {
+        this.predictor = predictor;
+    }
+
+    /**
+     * Writes a coverage, with the EPSG code of its CRS if it has one, or
+     *   else as a user-defined CRS with its WKT as the citation (which GDAL
+     *   reads back, although other readers may only see the model type)
+     * @param gc
+     * @param file
+     * @throws IOException
+     */
+    void write(GridCoverage2D gc, File file) throws IOException {
+        RenderedImage image = gc.getRenderedImage();
+        Envelope2D envelope = gc.getEnvelope2D();
+        CoordinateReferenceSystem crs = gc.getCoordinateReferenceSystem2D();
+        Integer epsg = null;
+        String citation = null;
+        if (crs != null) {
+            try {
+                epsg = CRS.lookupEpsgCode(crs, true);
+            } catch (FactoryException e) {
+                //described by its WKT below
+            }
+            if (epsg == null) {
+                citation = getCitation(crs);
+                LOGGER.warning("the CRS of " + file + " has no EPSG code, so it is written as a user-defined CRS"
+                        + " described only by its WKT, which some readers will not understand");
+            }
+        }
+        this.write(image, envelope.getMinimum(0), envelope.getMaximum(1), envelope.getSpan(0) / image.getWidth(),
+                envelope.getSpan(1) / image.getHeight(), epsg, citation, crs instanceof GeographicCRS, file);
+    }
+
+    /**
+     * @param crs
+     * @return the citation of a CRS that has no EPSG code: its WKT on one line
+     *   (prefixed as ESRI and GDAL write it, so that GDAL parses it), in ASCII
+     */
+    static String getCitation(CoordinateReferenceSystem crs) {
+        String wkt;
+        try {
+            wkt = crs.toWKT().replaceAll("\\s*[\\r\\n]+\\s*", "");
+        } catch (UnsupportedOperationException e) {
+            wkt = crs.getName().getCode();
+        }
+        return "ESRI PE String = " + wkt.replaceAll("[^\\x20-\\x7e]", "?");
+    }
+
+    /**
+     * Writes an image
+     * @param image a single band image of floats or doubles
+     * @param minX the x coordinate of the left edge of the image
+     * @param maxY the y coordinate of the top edge of the image
+     * @param pxWidth the width of a pixel in CRS units
+     * @param pxHeight the height of a pixel in CRS units
+     * @param epsg the EPSG code of the CRS (null if it has none)
+     * @param geographic true if the CRS is geographic rather than projected
+     * @param file
+     * @throws IOException
+     */
+    void write(RenderedImage image, double minX, double maxY, double pxWidth, double pxHeight, Integer epsg,
+            boolean geographic, File file) throws IOException {
+        this.write(image, minX, maxY, pxWidth, pxHeight, epsg, null, geographic, file);
+    }
+
+    /**
+     * Writes an image
+     * @param image a single band image of floats or doubles
+     * @param minX the x coordinate of the left edge of the image
+     * @param maxY the y coordinate of the top edge of the image
+     * @param pxWidth the width of a pixel in CRS units
+     * @param pxHeight the height of a pixel in CRS units
+     * @param epsg the EPSG code of the CRS (null if it has none)
+     * @param citation describes a CRS without an EPSG code (null if there is no CRS)
+     * @param geographic true if the CRS is geographic rather than projected
+     * @param file
+     * @throws IOException
+     */
+    void write(RenderedImage image, double minX, double maxY, double pxWidth, double pxHeight, Integer epsg,
+            String citation, boolean geographic, File file) throws IOException {
+        final int dataType = image.getSampleModel().getDataType();
+        if (dataType != DataBuffer.TYPE_FLOAT && dataType != DataBuffer.TYPE_DOUBLE) {
+            throw new IllegalArgumentException("only float or double surfaces can be written");
+        }
+        final int bytes = dataType == DataBuffer.TYPE_FLOAT ? 4 : 8;
+        ExecutorService pool = Executors.newFixedThreadPool(this.threads);
+        try {
+            //the full resolution image, then each overview
+            List<Level> levels = new ArrayList<Level>();
+            levels.add(new Level(image));
+            while (levels.get(levels.size() - 1).width > TILE || levels.get(levels.size() - 1).height > TILE) {
+                levels.add(this.getOverview(levels.get(levels.size() - 1), dataType, pool));
+            }
+
+            //LZW can make a tile up to half as large again, so allow for that before choosing 32 bit offsets
+            long size = 0;
+            for (Level level : levels) {
+                size += (long) level.offsets.length * TILE * TILE * bytes;
+            }
+            final boolean big = size / 2 * 3 > 0xFFFFFFFFL - (1 << 20);
+
+            RandomAccessFile out = new RandomAccessFile(file, "rw");
+            try {
+                out.setLength(0);
+                FileChannel channel = out.getChannel();
+
+                //the header and directories, with the tile offsets and sizes filled in at the end
+                ByteBuffer header = this.getHeader(levels, bytes, minX, maxY, pxWidth, pxHeight, epsg, citation,
+                        geographic, big);
+                channel.write(header);
+
+                //the tiles, smallest overview first
+                for (int l = levels.size() - 1; l >= 0; l--) {
+                    this.writeTiles(levels.get(l), bytes, pool, channel);
+                }
+                for (Level level : levels) {
+                    ByteBuffer values = ByteBuffer.allocate(level.offsets.length * (big ? 8 : 4))
+                            .order(ByteOrder.LITTLE_ENDIAN);
+                    writeValues(values, big ? LONG8 : LONG, level.offsets, null);
+                    values.flip();
+                    channel.write(values, level.offsetsPosition);
+                    values.clear();
+                    writeValues(values, big ? LONG8 : LONG, level.counts, null);
+                    values.flip();
+                    channel.write(values, level.countsPosition);
+                }
+            } finally {
+                out.close();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while writing " + file);
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Compresses the tiles of a level on the pool and writes them in order
+     * @param level
+     * @param bytes the size of a sample
+     * @param pool
+     * @param channel
+     * @throws IOException
+     * @throws InterruptedException
+     * @throws ExecutionException
+     */
+    private void writeTiles(Level level, int bytes, ExecutorService pool, FileChannel channel)
+            throws IOException, InterruptedException, ExecutionException {
+        ArrayDeque<Future<byte[]>> pending = new ArrayDeque<Future<byte[]>>();
+        int next = 0;
+        for (int t = 0; t < level.offsets.length; t++) {
+            while (next < level.offsets.length && pending.size() < IN_FLIGHT * this.threads) {
+                pending.add(pool.submit(this.getTileTask(level, next++, bytes)));
+            }
+            ByteBuffer tile = ByteBuffer.wrap(pending.remove().get());
+            level.offsets[t] = channel.position();
+            level.counts[t] = tile.remaining();
+            while (tile.hasRemaining()) {
+                channel.write(tile);
+            }
+        }
+    }
+
+    /**
+     * @param level
+     * @param t the index of a tile, row by row
+     * @param bytes the size of a sample
+     * @return a task that reads and compresses the tile
+     */
+    private Callable<byte[]> getTileTask(final Level level, final int t, final int bytes) {
+        return new Callable<byte[]>() {
+            public byte[] call() {
+                final int x = (t % level.tilesX) * TILE;
+                final int y = (t / level.tilesX) * TILE;
+                final int w = Math.min(TILE, level.width - x);
+                final int h = Math.min(TILE, level.height - y);
+                double[] values = level.getData(new Rectangle(x, y, w, h)).getSamples(x, y, w, h, 0,
+                        (double[]) null);
+                return CogWriter.this.encode(values, w, h, bytes);
+            }
+        };
+    }
+
+    /**
+     * Builds an overview half the size of a level, each pixel the mean of
+     *   (up to) four pixels of the level, in bands of rows on the pool
+     * @param level
+     * @param dataType
+     * @param pool
+     * @return
+     * @throws InterruptedException
+     * @throws ExecutionException
+     */
+    private Level getOverview(final Level level, int dataType, ExecutorService pool)
+            throws InterruptedException, ExecutionException {
+        final int width = (level.width + 1) / 2;
+        final int height = (level.height + 1) / 2;
+        final WritableRaster overview = Raster.createWritableRaster(
+                new BandedSampleModel(dataType, width, height, 1), null);
+        List<Future<?>> bands = new ArrayList<Future<?>>();
+        for (int y = 0; y < level.height; y += TILE) {
+            final int top = y;
+            bands.add(pool.submit(new Runnable() {
+                public void run() {
+                    final int rows = Math.min(TILE, level.height - top);
+                    double[] values = level.getData(new Rectangle(0, top, level.width, rows)).getSamples(0, top,
+                            level.width, rows, 0, (double[]) null);
+                    final int outRows = (rows + 1) / 2;
+                    double[] means = new double[width * outRows];
+                    for (int row = 0; row < outRows; row++) {
+                        for (int col = 0; col < width; col++) {
+                            double sum = 0;
+                            int n = 0;
+                            for (int r = 2 * row; r < Math.min(2 * row + 2, rows); r++) {
+                                for (int c = 2 * col; c < Math.min(2 * col + 2, level.width); c++) {
+                                    sum += values[r * level.width + c];
+                                    n++;
+                                }
+                            }
+                            means[row * width + col] = sum / n;
+                        }
+                    }
+
+                    //(each band writes its own rows)
+                    overview.setSamples(0, top / 2, width, outRows, 0, means);
+                }
+            }));
+        }
+        for (Future<?> band : bands) {
+            band.get();
+        }
+        return new Level(overview);
+    }
+
+    /**
+     * Lays out the header and the directory of each level, and records where
+     *   their tile offsets and sizes are to be written
+     * @param levels
+     * @param bytes the size of a sample
+     * @param minX
+     * @param maxY
+     * @param pxWidth
+     * @param pxHeight
+     * @param epsg
+     * @param citation
+     * @param geographic
+     * @param big true to write a BigTIFF
+     * @return the header and directories, ready to write at the start of the file
+     */
+    private ByteBuffer getHeader(List<Level> levels, int bytes, double minX, double maxY, double pxWidth,
+            double pxHeight, Integer epsg, String citation, boolean geographic, boolean big) {
+        final boolean predict = this.predictor && this.compression != Compression.NONE;
+        final int offsetType = big ? LONG8 : LONG;
+
+        //the fields of each directory, in tag order
+        List<List<Field>> directories = new ArrayList<List<Field>>();
+        for (int l = 0; l < levels.size(); l++) {
+            Level level = levels.get(l);
+            List<Field> fields = new ArrayList<Field>();
+            fields.add(new Field(254, LONG, l == 0 ? 0 : 1));
+            fields.add(new Field(256, LONG, level.width));
+            fields.add(new Field(257, LONG, level.height));
+            fields.add(new Field(258, SHORT, bytes * 8));
+            fields.add(new Field(259, SHORT, this.compression.code));
+            fields.add(new Field(262, SHORT, 1));
+            fields.add(new Field(277, SHORT, 1));
+            fields.add(new Field(284, SHORT, 1));
+            fields.add(new Field(317, SHORT, predict ? 3 : 1));
+            fields.add(new Field(322, SHORT, TILE));
+            fields.add(new Field(323, SHORT, TILE));
+            fields.add(new Field(324, offsetType, new long[level.offsets.length], null));
+            fields.add(new Field(325, offsetType, new long[level.counts.length], null));
+            fields.add(new Field(339, SHORT, 3));
+            if (l == 0) {
+                //the pixel size, the location of the top left corner and the CRS (GeoTIFF 1.0)
+                fields.add(new Field(33550, DOUBLE, null, new double[] { pxWidth, pxHeight, 0 }));
+                fields.add(new Field(33922, DOUBLE, null, new double[] { 0, 0, 0, minX, maxY, 0 }));
+                final boolean known = epsg != null && epsg > 0 && epsg < 32767;
+                long[] keys;
+                if (known) {
+                    keys = new long[] { 1, 1, 0, 3, 1024, 0, 1, geographic ? 2 : 1, 1025, 0, 1, 1,
+                        geographic ? 2048 : 3072, 0, 1, epsg };
+                } else if (citation != null) {
+                    //the model type, and the citation (ended by a pipe) in the ASCII parameters
+                    keys = new long[] { 1, 1, 0, 3, 1024, 0, 1, geographic ? 2 : 1, 1025, 0, 1, 1,
+                        1026, 34737, citation.length() + 1, 0 };
+                } else {
+                    keys = new long[] { 1, 1, 0, 1, 1025, 0, 1, 1 };
+                }
+                fields.add(new Field(34735, SHORT, keys, null));
+                if (!known && citation != null) {
+                    long[] ascii = new long[citation.length() + 2];
+                    for (int i = 0; i < citation.length(); i++) {
+                        ascii[i] = citation.charAt(i);
+                    }
+                    ascii[citation.length()] = '|';
+                    fields.add(new Field(34737, ASCII, ascii, null));
+                }
+            }
+            directories.add(fields);
+        }
+
+        //each directory is followed by the values that do not fit in its fields
+        final int headerSize = big ? 16 : 8;
+        final int inline = big ? 8 : 4;
+        long position = headerSize;
+        long[] starts = new long[directories.size()];
+        for (int d = 0; d < directories.size(); d++) {
+            List<Field> fields = directories.get(d);
+            starts[d] = position;
+            final long first = position + (big ? 8 : 2);
+            position = first + fields.size() * (big ? 20 : 12) + (big ? 8 : 4);
+            for (int f = 0; f < fields.size(); f++) {
+                Field field = fields.get(f);
+                if (field.getSize() > inline) {
+                    //(values start on a word boundary)
+                    field.position = position;
+                    position += (field.getSize() + 1) & ~1;
+                } else {
+                    field.position = first + f * (big ? 20 : 12) + (big ? 12 : 8);
+                }
+            }
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate((int) position).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.put((byte) 'I').put((byte) 'I');
+        if (big) {
+            buffer.putShort((short) 43).putShort((short) 8).putShort((short) 0).putLong(headerSize);
+        } else {
+            buffer.putShort((short) 42).putInt(headerSize);
+        }
+        for (int d = 0; d < directories.size(); d++) {
+            List<Field> fields = directories.get(d);
+            buffer.position((int) starts[d]);
+            if (big) {
+                buffer.putLong(fields.size());
+            } else {
+                buffer.putShort((short) fields.size());
+            }
+            for (Field field : fields) {
+                buffer.putShort((short) field.tag).putShort((short) field.type);
+                if (big) {
+                    buffer.putLong(field.getCount());
+                } else {
+                    buffer.putInt(field.getCount());
+                }
+                if (field.getSize() > inline) {
+                    if (big) {
+                        buffer.putLong(field.position);
+                    } else {
+                        buffer.putInt((int) field.position);
+                    }
+                } else {
+                    final int end = buffer.position() + inline;
+                    writeValues(buffer, field.type, field.longs, field.doubles);
+                    buffer.position(end);
+                }
+            }
+            final long next = d + 1 < directories.size() ? starts[d + 1] : 0;
+            if (big) {
+                buffer.putLong(next);
+            } else {
+                buffer.putInt((int) next);
+            }
+            for (Field field : fields) {
+                if (field.getSize() > inline) {
+                    buffer.position((int) field.position);
+                    writeValues(buffer, field.type, field.longs, field.doubles);
+                }
+            }
+        }
+
+        //remember where to write the tile offsets and sizes
+        for (int l = 0; l < levels.size(); l++) {
+            for (Field field : directories.get(l)) {
+                if (field.tag == 324) {
+                    levels.get(l).offsetsPosition = field.position;
+                } else if (field.tag == 325) {
+                    levels.get(l).countsPosition = field.position;
+                }
+            }
+        }
+        buffer.position(0);
+        return buffer;
+    }
+
+    private static void writeValues(ByteBuffer buffer, int type, long[] longs, double[] doubles) {
+        if (type == DOUBLE) {
+            for (double value : doubles) {
+                buffer.putDouble(value);
+            }
+            return;
+        }
+        for (long value : longs) {
+            if (type == ASCII) {
+                buffer.put((byte) value);
+            } else if (type == SHORT) {
+                buffer.putShort((short) value);
+            } else if (type == LONG) {
+                buffer.putInt((int) value);
+            } else {
+                buffer.putLong(value);
+            }
+        }
+    }
+
+    /**
+     * Encodes a tile (padded with zeros where it hangs off the edge of the image)
+     * @param values the values of the part of the tile within the image, row by row
+     * @param w the width of that part
+     * @param h the height of that part
+     * @param bytes the size of a sample
+     * @return
+     */
+    byte[] encode(double[] values, int w, int h, int bytes) {
+        final boolean predict = this.predictor && this.compression != Compression.NONE;
+
+        //the floating point predictor works on big endian values
+        ByteBuffer buffer = ByteBuffer.allocate(TILE * TILE * bytes)
+                .order(predict ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN);
+        for (int row = 0; row < TILE; row++) {
+            for (int col = 0; col < TILE; col++) {
+                final double value = row < h && col < w ? values[row * w + col] : 0;
+                if (bytes == 4) {
+                    buffer.putFloat((float) value);
+                } else {
+                    buffer.putDouble(value);
+                }
+            }
+        }
+        byte[] data = buffer.array();
+        if (predict) {
+            //each row becomes the first bytes of its values, then the second bytes and
+            //  so on, each of those stored as the difference from the byte before it
+            final int rowBytes = TILE * bytes;
+            byte[] row = new byte[rowBytes];
+            for (int start = 0; start < data.length; start += rowBytes) {
+                for (int i = 0; i < TILE; i++) {
+                    for (int b = 0; b < bytes; b++) {
+                        row[b * TILE + i] = data[start + i * bytes + b];
+                    }
+                }
+                for (int i = rowBytes - 1; i > 0; i--) {
+                    row[i] -= row[i - 1];
+                }
+                System.arraycopy(row, 0, data, start, rowBytes);
+            }
+        }
+        switch (this.compression) {
+            case DEFLATE:
+                return deflate(data);
+            case LZW:
+                return lzw(data);
+            default:
+                return data;
+        }
+    }
+
+    private static byte[] deflate(byte[] data) {
+        Deflater deflater = new Deflater();
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 4);
+            byte[] chunk = new byte[16384];
+            while (!deflater.finished()) {
+                out.write(chunk, 0, deflater.deflate(chunk));
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Compresses with TIFF LZW: codes of 9 to 12 bits, most significant bit
+     *   first, widened one code early (as TIFF readers expect)
+     * @param data
+     * @return
+     */
+    static byte[] lzw(byte[] data) {
+        BitWriter out = new BitWriter(data.length / 2);
+
+        //the table, from a code and the byte that follows it to the code for both
+        final int[] keys = new int[LZW_HASH];
+        final short[] codes = new short[LZW_HASH];
+        Arrays.fill(keys, -1);
+        int width = 9;
+        int next = LZW_FIRST;
+        out.write(LZW_CLEAR, width);
+        if (data.length == 0) {
+            out.write(LZW_EOI, width);
+            return out.toByteArray();
+        }
+        int prefix = data[0] & 0xff;
+        for (int i = 1; i < data.length; i++) {
+            final int c = data[i] & 0xff;
+            final int key = (prefix << 8) | c;
+            int slot = (key * 0x9E3779B1) >>> 19;
+            while (keys[slot] != -1 && keys[slot] != key) {
+                slot = (slot + 1) & (LZW_HASH - 1);
+            }
+            if (keys[slot] == key) {
+                prefix = codes[slot];
+                continue;
+            }
+            out.write(prefix, width);
+            keys[slot] = key;
+            codes[slot] = (short) next++;
+            if (next == LZW_FULL) {
+                out.write(LZW_CLEAR, width);
+                Arrays.fill(keys, -1);
+                next = LZW_FIRST;
+                width = 9;
+            } else if (next > (1 << width) - 1) {
+                width++;
+            }
+            prefix = c;
+        }
+        out.write(prefix, width);
+        next++;
+        if (next == LZW_FULL) {
+            out.write(LZW_CLEAR, width);
+            width = 9;
+        } else if (next > (1 << width) - 1) {
+            width++;
+        }
+        out.write(LZW_EOI, width);
+        return out.toByteArray();
+    }
+
+    /**
+     * Packs codes into bytes, most significant bit first
+     */
+    private static class BitWriter {
+
+        private final ByteArrayOutputStream out;
+        private int bits = 0;
+        private int count = 0;
+
+        BitWriter(int size) {
+            this.out = new ByteArrayOutputStream(size);
+        }
+
+        void write(int code, int width) {
+            this.bits = (this.bits << width) | code;
+            this.count += width;
+            while (this.count >= 8) {
+                this.out.write(this.bits >>> (this.count - 8));
+                this.count -= 8;
+            }
+            this.bits &= (1 << this.count) - 1;
+        }
+
+        byte[] toByteArray() {
+            if (this.count > 0) {
+                this.out.write(this.bits << (8 - this.count));
+                this.count = 0;
+            }
+            return this.out.toByteArray();
+        }
+    }
+
+    /**
+     * The full resolution image or an overview, with where its tiles went
+     */
+    private static class Level {
+
+        final RenderedImage image;
+        final Raster raster;
+        final int width;
+        final int height;
+        final int tilesX;
+        final long[] offsets;
+        final long[] counts;
+        long offsetsPosition;
+        long countsPosition;
+
+        Level(RenderedImage image) {
+            this(image, null, image.getWidth(), image.getHeight());
+        }
+
+        Level(Raster raster) {
+            this(null, raster, raster.getWidth(), raster.getHeight());
+        }
+
+        private Level(RenderedImage image, Raster raster, int width, int height) {
+            this.image = image;
+            this.raster = raster;
+            this.width = width;
+            this.height = height;
+            this.tilesX = (width + TILE - 1) / TILE;
+            final int tiles = this.tilesX * ((height + TILE - 1) / TILE);
+            this.offsets = new long[tiles];
+            this.counts = new long[tiles];
+        }
+
+        /**
+         * @param rect
+         * @return the pixels in rect (which is within the level)
+         */
+        Raster getData(Rectangle rect) {
+            if (this.image != null) {
+                return this.image.getData(rect);
+            }
+            return this.raster.createChild(rect.x, rect.y, rect.width, rect.height, rect.x, rect.y, null);
+        }
+    }
+
+    /**
+     * A field of a directory
+     */
+    private static class Field {
+
+        final int tag;
+        final int type;
+        final long[] longs;
+        final double[] doubles;
+
+        //where the values go in the file
+        long position;
+
+        Field(int tag, int type, long value) {
+            this(tag, type, new long[] { value }, null);
+        }
+
+        Field(int tag, int type, long[] longs, double[] doubles) {
+            this.tag = tag;
+            this.type = type;
+            this.longs = longs;
+            this.doubles = doubles;
+        }
+
+        int getCount() {
+            return this.doubles != null ? this.doubles.length : this.longs.length;
+        }
+
+        int getSize() {
+            final int size = this.type == ASCII ? 1 : this.type == SHORT ? 2 : this.type == LONG ? 4 : 8;
+            return size * this.getCount();
+        }
+    }
+}
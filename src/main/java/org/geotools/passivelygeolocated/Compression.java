@@ -0,0 +1,31 @@
+package org.geotools.passivelygeolocated;
+
+/**
+ * The ways in which the tiles of a Cloud Optimized GeoTIFF can be compressed
+ *   (see CogWriter)
+ * @author jonnyhuck
+ */
+public enum Compression {
+
+    /**
+     * Tiles are written as they are
+     */
+    NONE(1),
+
+    /**
+     * LZW, which is quick to decode and read by every TIFF reader
+     */
+    LZW(5),
+
+    /**
+     * DEFLATE (zlib), which usually gives smaller files than LZW
+     */
+    DEFLATE(8);
+
+    //the value of the TIFF Compression tag
+    final int code;
+
+    private Compression(int code) {
+        this.code = code;
+    }
+}
@@ -0,0 +1,163 @@
+package org.geotools.passivelygeolocated;
+
+/**
+ * 2D convolution using a radix-2 fast Fourier transform
+ * @author jonnyhuck
+ */
+class Convolution {
+
+    private Convolution() {
+    }
+
+    /**
+     * Returns the full 2D convolution of a grid with a kernel
+     * @param grid the grid, row by row
+     * @param gridWidth
+     * @param gridHeight
+     * @param kernel the kernel, row by row
+     * @param kernelWidth
+     * @param kernelHeight
+     * @return a grid of (gridWidth + kernelWidth - 1) by (gridHeight + kernelHeight - 1) values, row by row
+     */
+    static double[] convolve(double[] grid, int gridWidth, int gridHeight,
+            double[] kernel, int kernelWidth, int kernelHeight) {
+
+        //pad both to the same power of 2 sizes, big enough to avoid wrapping around
+        final int outWidth = gridWidth + kernelWidth - 1;
+        final int outHeight = gridHeight + kernelHeight - 1;
+        final int w = nextPowerOf2(outWidth);
+        final int h = nextPowerOf2(outHeight);
+        double[] aRe = new double[w * h];
+        double[] aIm = new double[w * h];
+        double[] bRe = new double[w * h];
+        double[] bIm = new double[w * h];
+        for (int y = 0; y < gridHeight; y++) {
+            System.arraycopy(grid, y * gridWidth, aRe, y * w, gridWidth);
+        }
+        for (int y = 0; y < kernelHeight; y++) {
+            System.arraycopy(kernel, y * kernelWidth, bRe, y * w, kernelWidth);
+        }
+
+        //multiply in the frequency domain
+        fft2D(aRe, aIm, w, h, false);
+        fft2D(bRe, bIm, w, h, false);
+        for (int i = 0; i < aRe.length; i++) {
+            final double re = aRe[i] * bRe[i] - aIm[i] * bIm[i];
+            final double im = aRe[i] * bIm[i] + aIm[i] * bRe[i];
+            aRe[i] = re;
+            aIm[i] = im;
+        }
+        fft2D(aRe, aIm, w, h, true);
+
+        //crop the result
+        double[] out = new double[outWidth * outHeight];
+        for (int y = 0; y < outHeight; y++) {
+            System.arraycopy(aRe, y * w, out, y * outWidth, outWidth);
+        }
+        return out;
+    }
+
+    /**
+     * @param n
+     * @return the smallest power of 2 that is at least n
+     */
+    static int nextPowerOf2(int n) {
+        int p = 1;
+        while (p < n) {
+            p <<= 1;
+        }
+        return p;
+    }
+
+    /**
+     * Transforms the rows then the columns of a grid in place
+     * @param re
+     * @param im
+     * @param w
+     * @param h
+     * @param inverse if true, the inverse transform (scaled by 1 / (w * h))
+     */
+    private static void fft2D(double[] re, double[] im, int w, int h, boolean inverse) {
+        double[][] rowTwiddles = twiddles(w, inverse);
+        double[][] colTwiddles = twiddles(h, inverse);
+        for (int y = 0; y < h; y++) {
+            fft(re, im, y * w, 1, w, rowTwiddles[0], rowTwiddles[1]);
+        }
+        for (int x = 0; x < w; x++) {
+            fft(re, im, x, w, h, colTwiddles[0], colTwiddles[1]);
+        }
+        if (inverse) {
+            final double scale = 1.0 / ((double) w * h);
+            for (int i = 0; i < re.length; i++) {
+                re[i] *= scale;
+                im[i] *= scale;
+            }
+        }
+    }
+
+    /**
+     * @param n
+     * @param inverse
+     * @return the cosines and sines of the twiddle factors for a transform of size n
+     */
+    private static double[][] twiddles(int n, boolean inverse) {
+        double[][] t = new double[2][n / 2];
+        for (int k = 0; k < n / 2; k++) {
+            final double angle = (inverse ? 2 : -2) * Math.PI * k / n;
+            t[0][k] = Math.cos(angle);
+            t[1][k] = Math.sin(angle);
+        }
+        return t;
+    }
+
+    /**
+     * In place (unscaled) iterative radix-2 FFT of n values starting at offset, stride apart
+     * @param re
+     * @param im
+     * @param offset
+     * @param stride
+     * @param n (a power of 2)
+     * @param cos
+     * @param sin
+     */
+    private static void fft(double[] re, double[] im, int offset, int stride, int n, double[] cos, double[] sin) {
+
+        //bit reversal permutation
+        for (int i = 1, j = 0; i < n; i++) {
+            int bit = n >> 1;
+            for (; (j & bit) != 0; bit >>= 1) {
+                j ^= bit;
+            }
+            j ^= bit;
+            if (i < j) {
+                final int a = offset + i * stride;
+                final int b = offset + j * stride;
+                double t = re[a];
+                re[a] = re[b];
+                re[b] = t;
+                t = im[a];
+                im[a] = im[b];
+                im[b] = t;
+            }
+        }
+
+        //butterflies (the smaller ones use every step'th twiddle factor)
+        for (int len = 2; len <= n; len <<= 1) {
+            final int step = n / len;
+            for (int i = 0; i < n; i += len) {
+                for (int j = 0; j < len / 2; j++) {
+                    final double uRe = cos[j * step];
+                    final double uIm = sin[j * step];
+                    final int a = offset + (i + j) * stride;
+                    final int b = offset + (i + j + len / 2) * stride;
+                    final double tRe = re[b] * uRe - im[b] * uIm;
+                    final double tIm = re[b] * uIm + im[b] * uRe;
+                    re[b] = re[a] - tRe;
+                    im[b] = im[a] - tIm;
+                    re[a] += tRe;
+                    im[a] += tIm;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,293 @@
+package org.geotools.passivelygeolocated;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Renders relocated points by first counting how many splats of each size
+ *   (i.e. each kernel) have their top left at each pixel, then applying each
+ *   kernel once per occupied pixel, scaled by the count. Where the counts are
+ *   dense enough, the count grid is instead convolved with the kernel using an
+ *   FFT. Either way, the surface is written in stripes owned by one worker each.
+ *
+ * This gives the same surface as adding a splat for every point (to within
+ *   rounding error), but is much faster when many points share a polygon.
+ * @author jonnyhuck
+ */
+class CountGridRenderer {
+
+    //relative cost of an FFT convolution per cell (per log2 of the number of cells)
+    static final int FFT_COST = 16;
+
+    //the largest (padded) grid that will be convolved with an FFT
+    static final int MAX_FFT_CELLS = 1 << 22;
+
+    //the largest count grid that will be built for a kernel (bigger ones are splatted point by point), which
+    //  is also kept to an eighth of the heap (see getMaxCountCells)
+    static final long MAX_COUNT_CELLS = 1L << 26;
+
+    //true or false to force FFT convolution on or off, null to choose for each kernel
+    private final Boolean useFft;
+
+    CountGridRenderer() {
+        this(null);
+    }
+
+    CountGridRenderer(Boolean useFft) {
+        this.useFft = useFft;
+    }
+
+    /**
+     * Adds the splats for all of the relocated points to the surface
+     * @param jobs
+     * @param surface
+     * @param pool
+     * @param stripeRows
+     */
+    void render(List<PolygonJob> jobs, SurfaceBuffer surface, ForkJoinPool pool, int stripeRows) {
+
+        //group the polygons by kernel (in the order that the kernels first appear)
+        Map<Kernel, List<PolygonJob>> classes = new LinkedHashMap<Kernel, List<PolygonJob>>();
+        for (PolygonJob job : jobs) {
+            List<PolygonJob> list = classes.get(job.kernel);
+            if (list == null) {
+                list = new ArrayList<PolygonJob>();
+                classes.put(job.kernel, list);
+            }
+            list.add(job);
+        }
+        for (Map.Entry<Kernel, List<PolygonJob>> entry : classes.entrySet()) {
+            this.render(entry.getKey(), entry.getValue(), surface, pool, stripeRows);
+        }
+    }
+
+    /**
+     * Adds the splats for the points of polygons that share a kernel
+     * @param kernel
+     * @param jobs
+     * @param surface
+     * @param pool
+     * @param stripeRows
+     */
+    private void render(Kernel kernel, List<PolygonJob> jobs, SurfaceBuffer surface, ForkJoinPool pool, int stripeRows) {
+
+        //get the extent of the splat origins that overlap the surface
+        final int span = kernel.span;
+        int minX = Integer.MAX_VALUE;
+        int minY = Integer.MAX_VALUE;
+        int maxX = Integer.MIN_VALUE;
+        int maxY = Integer.MIN_VALUE;
+        for (PolygonJob job : jobs) {
+            for (int i = 0; i < job.size(); i++) {
+                if (this.overlaps(job.patchX[i], job.patchY[i], span, surface)) {
+                    minX = Math.min(minX, job.patchX[i]);
+                    minY = Math.min(minY, job.patchY[i]);
+                    maxX = Math.max(maxX, job.patchX[i]);
+                    maxY = Math.max(maxY, job.patchY[i]);
+                }
+            }
+        }
+        if (minX > maxX) {
+            return;
+        }
+        final int w = maxX - minX + 1;
+        final int h = maxY - minY + 1;
+        if ((long) w * h > getMaxCountCells()) {
+            pool.invoke(new SplatTask(jobs, surface, 0, surface.getHeight(), stripeRows));
+            return;
+        }
+
+        //count the splats at each origin
+        int[] counts = new int[w * h];
+        int occupied = 0;
+        for (PolygonJob job : jobs) {
+            for (int i = 0; i < job.size(); i++) {
+                if (this.overlaps(job.patchX[i], job.patchY[i], span, surface)
+                        && counts[(job.patchY[i] - minY) * w + (job.patchX[i] - minX)]++ == 0) {
+                    occupied++;
+                }
+            }
+        }
+
+        if (this.isFftCheaper(occupied, span, w, h)) {
+
+            //convolve the whole count grid with the kernel, then add the result
+            double[] grid = new double[counts.length];
+            for (int i = 0; i < counts.length; i++) {
+                grid[i] = counts[i];
+            }
+            double[] result = Convolution.convolve(grid, w, h, kernel.getValues(), span, span);
+
+            //the true result is never negative, so clear the rounding noise where there are no splats
+            double max = 0;
+            for (double v : result) {
+                max = Math.max(max, v);
+            }
+            for (int i = 0; i < result.length; i++) {
+                if (result[i] < max * 1e-12) {
+                    result[i] = 0;
+                }
+            }
+            pool.invoke(new GridTask(surface, result, w + span - 1, h + span - 1, minX, minY,
+                    0, surface.getHeight(), stripeRows));
+        } else {
+
+            //apply the kernel once per occupied origin (these are in row order)
+            int[] cells = new int[occupied];
+            int n = 0;
+            for (int i = 0; i < counts.length; i++) {
+                if (counts[i] > 0) {
+                    cells[n++] = i;
+                }
+            }
+            pool.invoke(new CountTask(surface, kernel, cells, counts, w, minX, minY,
+                    0, surface.getHeight(), stripeRows));
+        }
+    }
+
+    /**
+     * @return the largest count grid that will be built: MAX_COUNT_CELLS, or
+     *   as many 4 byte counts as fit in an eighth of the largest heap, if fewer
+     */
+    static long getMaxCountCells() {
+        return Math.min(MAX_COUNT_CELLS, Runtime.getRuntime().maxMemory() / 8 / 4);
+    }
+
+    /**
+     * @return true if a splat with its top left at x, y would touch the surface
+     */
+    private boolean overlaps(int x, int y, int span, SurfaceBuffer surface) {
+        return x + span > 0 && y + span > 0 && x < surface.getWidth() && y < surface.getHeight();
+    }
+
+    /**
+     * Compares the cost of applying the kernel once per occupied origin with
+     *   the cost of an FFT convolution of the whole count grid
+     */
+    private boolean isFftCheaper(int occupied, int span, int w, int h) {
+        final long padded = (long) Convolution.nextPowerOf2(w + span - 1) * Convolution.nextPowerOf2(h + span - 1);
+        if (this.useFft != null) {
+            return this.useFft.booleanValue();
+        }
+        if (padded > MAX_FFT_CELLS) {
+            return false;
+        }
+        final double direct = (double) occupied * span * span;
+        final double fft = (double) padded * FFT_COST * (Math.log(padded) / Math.log(2));
+        return fft < direct;
+    }
+
+    /**
+     * Adds the kernel to a stripe of the surface once per occupied origin
+     */
+    private static class CountTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final SurfaceBuffer surface;
+        private final Kernel kernel;
+        private final int[] cells;
+        private final int[] counts;
+        private final int w;
+        private final int minX;
+        private final int minY;
+        private final int firstRow;
+        private final int lastRow;
+        private final int stripeRows;
+
+        CountTask(SurfaceBuffer surface, Kernel kernel, int[] cells, int[] counts, int w, int minX, int minY,
+                int firstRow, int lastRow, int stripeRows) {
+            this.surface = surface;
+            this.kernel = kernel;
+            this.cells = cells;
+            this.counts = counts;
+            this.w = w;
+            this.minX = minX;
+            this.minY = minY;
+            this.firstRow = firstRow;
+            this.lastRow = lastRow;
+            this.stripeRows = Math.max(1, stripeRows);
+        }
+
+        @Override
+        protected void compute() {
+
+            //split the stripe in half
+            if (this.lastRow - this.firstRow > this.stripeRows) {
+                int mid = (this.firstRow + this.lastRow) >>> 1;
+                invokeAll(new CountTask(this.surface, this.kernel, this.cells, this.counts, this.w, this.minX,
+                        this.minY, this.firstRow, mid, this.stripeRows),
+                        new CountTask(this.surface, this.kernel, this.cells, this.counts, this.w, this.minX,
+                        this.minY, mid, this.lastRow, this.stripeRows));
+                return;
+            }
+
+            //find the first origin whose splat reaches this stripe
+            final int span = this.kernel.span;
+            final int firstOriginRow = this.firstRow - span + 1 - this.minY;
+            int i = Arrays.binarySearch(this.cells, Math.max(0, firstOriginRow) * this.w);
+            if (i < 0) {
+                i = -i - 1;
+            }
+
+            //and add the splats until they start below it
+            for (; i < this.cells.length; i++) {
+                final int y = this.cells[i] / this.w + this.minY;
+                if (y >= this.lastRow) {
+                    break;
+                }
+                final int x = this.cells[i] % this.w + this.minX;
+                this.surface.add(this.kernel, x, y, this.counts[this.cells[i]], this.firstRow, this.lastRow);
+            }
+        }
+    }
+
+    /**
+     * Adds a convolved grid to a stripe of the surface
+     */
+    private static class GridTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final SurfaceBuffer surface;
+        private final double[] grid;
+        private final int w;
+        private final int h;
+        private final int x;
+        private final int y;
+        private final int firstRow;
+        private final int lastRow;
+        private final int stripeRows;
+
+        GridTask(SurfaceBuffer surface, double[] grid, int w, int h, int x, int y,
+                int firstRow, int lastRow, int stripeRows) {
+            this.surface = surface;
+            this.grid = grid;
+            this.w = w;
+            this.h = h;
+            this.x = x;
+            this.y = y;
+            this.firstRow = firstRow;
+            this.lastRow = lastRow;
+            this.stripeRows = Math.max(1, stripeRows);
+        }
+
+        @Override
+        protected void compute() {
+            if (this.lastRow - this.firstRow > this.stripeRows) {
+                int mid = (this.firstRow + this.lastRow) >>> 1;
+                invokeAll(new GridTask(this.surface, this.grid, this.w, this.h, this.x, this.y,
+                        this.firstRow, mid, this.stripeRows),
+                        new GridTask(this.surface, this.grid, this.w, this.h, this.x, this.y,
+                        mid, this.lastRow, this.stripeRows));
+                return;
+            }
+            this.surface.add(this.grid, this.w, this.h, this.x, this.y, 1, this.firstRow, this.lastRow);
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package org.geotools.passivelygeolocated;
+
+import com.csvreader.CsvReader;
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+
+/**
+ * Streams point coordinates from a CSV file (with a header row) in batches,
+ *   so that files of any size can be read without holding them in memory.
+ *   Rows without valid coordinates are skipped and counted.
+ * @author jonnyhuck
+ */
+public class CsvPointReader extends PointReader {
+
+    private final CsvReader reader;
+
+    //the columns holding the coordinates
+    private final int xIndex;
+    private final int yIndex;
+
+    //the column holding the ids of the points (-1 to use the row number)
+    private int idIndex = -1;
+
+    /**
+     * Opens a comma separated file and finds the coordinate columns in its header
+     * @param file
+     * @param xColumn the name of the column holding the x coordinates
+     * @param yColumn the name of the column holding the y coordinates
+     * @throws IOException
+     */
+    public CsvPointReader(File file, String xColumn, String yColumn) throws IOException {
+        this(file, xColumn, yColumn, ',');
+    }
+
+    /**
+     * Opens a delimited file and finds the coordinate columns in its header
+     * @param file
+     * @param xColumn the name of the column holding the x coordinates
+     * @param yColumn the name of the column holding the y coordinates
+     * @param delimiter
+     * @throws IOException
+     */
+    public CsvPointReader(File file, String xColumn, String yColumn, char delimiter) throws IOException {
+        this(new FileInputStream(file), xColumn, yColumn, delimiter, file.toString());
+    }
+
+    /**
+     * Reads comma separated points from a stream (e.g. the body of a request),
+     *   and finds the coordinate columns in its header
+     * @param in
+     * @param xColumn the name of the column holding the x coordinates
+     * @param yColumn the name of the column holding the y coordinates
+     * @throws IOException
+     */
+    public CsvPointReader(InputStream in, String xColumn, String yColumn) throws IOException {
+        this(in, xColumn, yColumn, ',', "the points");
+    }
+
+    private CsvPointReader(InputStream in, String xColumn, String yColumn, char delimiter, String name)
+            throws IOException {
+        this.reader = new CsvReader(new BufferedInputStream(in, 1 << 16), delimiter, Charset.forName("UTF-8"));
+        try {
+            if (!this.reader.readHeaders()) {
+                throw new IOException(name + " is empty");
+            }
+            this.xIndex = this.reader.getIndex(xColumn);
+            this.yIndex = this.reader.getIndex(yColumn);
+            if (this.xIndex < 0 || this.yIndex < 0) {
+                throw new IllegalArgumentException(name + " has no " + (this.xIndex < 0 ? xColumn : yColumn)
+                        + " column");
+            }
+        } catch (IOException e) {
+            this.reader.close();
+            throw e;
+        } catch (RuntimeException e) {
+            this.reader.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Takes the ids of the points from a column (which must hold whole
+     *   numbers), rather than from the row numbers
+     * @param idColumn
+     * @throws IOException
+     */
+    public void setIdColumn(String idColumn) throws IOException {
+        this.idIndex = this.reader.getIndex(idColumn);
+        if (this.idIndex < 0) {
+            throw new IllegalArgumentException("there is no " + idColumn + " column");
+        }
+    }
+
+    /**
+     * Reads the next rows, with the row that each came from (counting from 0,
+     *   and including skipped rows) as its id, or the value of the id column
+     *   if one was set
+     * @param x
+     * @param y
+     * @param ids (may be null)
+     * @param capacity
+     * @return the number of points read
+     * @throws IOException
+     */
+    @Override
+    protected int readPoints(double[] x, double[] y, long[] ids, int capacity) throws IOException {
+        int n = 0;
+        while (n < capacity && this.reader.readRecord()) {
+            this.rows++;
+            try {
+                x[n] = Double.parseDouble(this.reader.get(this.xIndex));
+                y[n] = Double.parseDouble(this.reader.get(this.yIndex));
+                if (ids != null) {
+                    ids[n] = this.idIndex < 0 ? this.rows - 1 : Long.parseLong(this.reader.get(this.idIndex).trim());
+                }
+            } catch (NumberFormatException e) {
+                this.skipped++;
+                continue;
+            }
+            if (Double.isNaN(x[n]) || Double.isNaN(y[n])) {
+                this.skipped++;
+                continue;
+            }
+            n++;
+        }
+        return n;
+    }
+
+    /**
+     * Closes the file (or stream)
+     */
+    @Override
+    public void close() {
+        this.reader.close();
+    }
+}
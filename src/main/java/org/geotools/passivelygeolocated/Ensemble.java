@@ -0,0 +1,78 @@
+package org.geotools.passivelygeolocated;
+
+import java.awt.Point;
+import java.awt.image.DataBufferDouble;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import org.geotools.coverage.grid.GridCoverage2D;
+import org.geotools.coverage.grid.GridCoverageFactory;
+import org.opengis.geometry.Envelope;
+
+/**
+ * The per pixel summary of an ensemble of weighted fuzzy relocation surfaces:
+ *   the mean, the variance and (if any were asked for) estimates of some
+ *   quantiles, built up one realisation at a time
+ * @author jonnyhuck
+ */
+public class Ensemble {
+
+    private final EnsembleAccumulator accumulator;
+    private final Envelope envelope;
+    private final int width;
+    private final int height;
+
+    /**
+     * @param accumulator
+     * @param width
+     * @param height
+     * @param envelope the extent of the surfaces
+     */
+    Ensemble(EnsembleAccumulator accumulator, int width, int height, Envelope envelope) {
+        this.accumulator = accumulator;
+        this.width = width;
+        this.height = height;
+        this.envelope = envelope;
+    }
+
+    /**
+     * @return the number of realisations
+     */
+    public int getRealisations() {
+        return this.accumulator.getCount();
+    }
+
+    /**
+     * @return the mean of the realisations
+     */
+    public GridCoverage2D getMean() {
+        return this.getCoverage("mean", this.accumulator.getMean());
+    }
+
+    /**
+     * @return the (sample) variance of the realisations
+     */
+    public GridCoverage2D getVariance() {
+        return this.getCoverage("variance", this.accumulator.getVariance());
+    }
+
+    /**
+     * @return the quantiles that were estimated
+     */
+    public double[] getQuantiles() {
+        return this.accumulator.getQuantiles();
+    }
+
+    /**
+     * @param index the index of the quantile in getQuantiles()
+     * @return the estimate of the quantile (see EnsembleAccumulator for how accurate this is)
+     */
+    public GridCoverage2D getQuantile(int index) {
+        return this.getCoverage("quantile", this.accumulator.getQuantile(index));
+    }
+
+    private GridCoverage2D getCoverage(String name, double[] values) {
+        WritableRaster raster = Raster.createBandedRaster(new DataBufferDouble(values, values.length),
+                this.width, this.height, this.width, new int[] { 0 }, new int[] { 0 }, new Point(0, 0));
+        return new GridCoverageFactory().create(name, raster, this.envelope);
+    }
+}
@@ -0,0 +1,268 @@
+package org.geotools.passivelygeolocated;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Folds realisations of a surface into a running mean and variance for each
+ *   pixel (Welford's method), and optionally a running estimate of some
+ *   quantiles (the P-square algorithm of Jain and Chlamtac, which keeps five
+ *   markers per quantile per pixel), so the realisations themselves do not
+ *   need to be kept.
+ * @author jonnyhuck
+ */
+class EnsembleAccumulator {
+
+    //the number of markers kept for each quantile estimate
+    static final int MARKERS = 5;
+
+    //the largest array that every JVM will allocate
+    static final int MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+
+    private final int width;
+    private final int height;
+
+    //the number of realisations added, and the running mean and sum of squared differences from it
+    private int count = 0;
+    private final double[] mean;
+    private final double[] m2;
+
+    //for each quantile, the height (float) and position of the markers of every pixel (the
+    //  first and last positions are always 1 and count, so only the middle three are kept)
+    private final double[] quantiles;
+    private final float[][] heights;
+    private final int[][] positions;
+
+    /**
+     * @param width
+     * @param height
+     * @param quantiles the quantiles to estimate, each between 0 and 1 (may be empty)
+     */
+    EnsembleAccumulator(int width, int height, double[] quantiles) {
+        for (double q : quantiles) {
+            if (!(q > 0 && q < 1)) {
+                throw new IllegalArgumentException("quantiles must be between 0 and 1");
+            }
+        }
+        //each array holds every pixel (and the markers hold several per pixel)
+        final long pixels = (long) width * height;
+        if (pixels > MAX_ARRAY_SIZE || (quantiles.length > 0 && pixels * MARKERS > MAX_ARRAY_SIZE)) {
+            throw new IllegalArgumentException(String.format("an ensemble of %d x %d pixels is too large "
+                    + "(at most %d pixels, or %d with quantiles)", width, height, MAX_ARRAY_SIZE,
+                    MAX_ARRAY_SIZE / MARKERS));
+        }
+        this.width = width;
+        this.height = height;
+        this.mean = new double[(int) pixels];
+        this.m2 = new double[(int) pixels];
+        this.quantiles = quantiles.clone();
+        this.heights = new float[quantiles.length][];
+        this.positions = new int[quantiles.length][];
+        for (int q = 0; q < quantiles.length; q++) {
+            this.heights[q] = new float[(int) (pixels * MARKERS)];
+            this.positions[q] = new int[(int) (pixels * (MARKERS - 2))];
+        }
+    }
+
+    /**
+     * Adds a realisation, one stripe of rows per worker
+     * @param surface
+     * @param pool
+     */
+    void add(RasterSurfaceBuffer surface, ForkJoinPool pool) {
+        if (surface.getWidth() != this.width || surface.getHeight() != this.height) {
+            throw new IllegalArgumentException("the realisation is not the size of the ensemble");
+        }
+        this.count++;
+        pool.invoke(new AddTask(surface, 0, this.height, Math.max(1, this.height / (pool.getParallelism() * 4))));
+    }
+
+    /**
+     * Adds the values of a row to the running statistics
+     * @param row
+     * @param values
+     */
+    private void addRow(int row, double[] values) {
+        final int n = this.count;
+        int i = row * this.width;
+        for (int col = 0; col < this.width; col++, i++) {
+            final double x = values[col];
+            final double delta = x - this.mean[i];
+            this.mean[i] += delta / n;
+            this.m2[i] += delta * (x - this.mean[i]);
+            for (int q = 0; q < this.quantiles.length; q++) {
+                this.addToSketch(q, i, x, n);
+            }
+        }
+    }
+
+    /**
+     * Adds a value to the quantile markers of a pixel
+     * @param q the index of the quantile
+     * @param pixel
+     * @param x
+     * @param n the number of values including this one
+     */
+    private void addToSketch(int q, int pixel, double x, int n) {
+        final float[] h = this.heights[q];
+        final int[] pos = this.positions[q];
+        final int hi = pixel * MARKERS;
+        final int pi = pixel * (MARKERS - 2);
+
+        //keep the first values as they are, then sort them into the initial markers
+        if (n <= MARKERS) {
+            h[hi + n - 1] = (float) x;
+            if (n == MARKERS) {
+                Arrays.sort(h, hi, hi + MARKERS);
+                for (int m = 0; m < MARKERS - 2; m++) {
+                    pos[pi + m] = m + 2;
+                }
+            }
+            return;
+        }
+
+        //find the cell that the value falls in, extending the extremes if needed
+        int k;
+        if (x < h[hi]) {
+            h[hi] = (float) x;
+            k = 0;
+        } else if (x >= h[hi + MARKERS - 1]) {
+            h[hi + MARKERS - 1] = (float) x;
+            k = MARKERS - 2;
+        } else {
+            k = 0;
+            while (x >= h[hi + k + 1]) {
+                k++;
+            }
+        }
+        for (int m = k + 1; m < MARKERS - 1; m++) {
+            pos[pi + m - 1]++;
+        }
+
+        //move the middle markers towards their desired positions
+        final double p = this.quantiles[q];
+        for (int m = 1; m < MARKERS - 1; m++) {
+            final double desired = 1 + (n - 1) * (m == 1 ? p / 2 : (m == 2 ? p : (1 + p) / 2));
+            final int nm = pos[pi + m - 1];
+            final int below = m == 1 ? 1 : pos[pi + m - 2];
+            final int above = m == MARKERS - 2 ? n : pos[pi + m];
+            final double d = desired - nm;
+            if ((d >= 1 && above - nm > 1) || (d <= -1 && below - nm < -1)) {
+                final int s = d > 0 ? 1 : -1;
+                final double qm = h[hi + m];
+                final double qBelow = h[hi + m - 1];
+                final double qAbove = h[hi + m + 1];
+
+                //piecewise parabolic prediction, or linear if that is not between the neighbours
+                double next = qm + (double) s / (above - below) * ((nm - below + s) * (qAbove - qm) / (above - nm)
+                        + (above - nm - s) * (qm - qBelow) / (nm - below));
+                if (next <= qBelow || next >= qAbove) {
+                    next = qm + s * (s > 0 ? (qAbove - qm) / (above - nm) : (qBelow - qm) / (below - nm));
+                }
+                h[hi + m] = (float) next;
+                pos[pi + m - 1] = nm + s;
+            }
+        }
+    }
+
+    /**
+     * @return the number of realisations added
+     */
+    int getCount() {
+        return this.count;
+    }
+
+    /**
+     * @return the mean of each pixel, by row
+     */
+    double[] getMean() {
+        return this.mean;
+    }
+
+    /**
+     * @return the (sample) variance of each pixel, by row (0 with fewer than 2 realisations)
+     */
+    double[] getVariance() {
+        double[] variance = new double[this.m2.length];
+        if (this.count > 1) {
+            for (int i = 0; i < variance.length; i++) {
+                variance[i] = this.m2[i] / (this.count - 1);
+            }
+        }
+        return variance;
+    }
+
+    /**
+     * @return the quantiles that are estimated
+     */
+    double[] getQuantiles() {
+        return this.quantiles.clone();
+    }
+
+    /**
+     * @param q the index of the quantile
+     * @return the estimate of the quantile for each pixel, by row (exact
+     *   with five realisations or fewer)
+     */
+    double[] getQuantile(int q) {
+        double[] estimate = new double[this.width * this.height];
+        final float[] h = this.heights[q];
+        if (this.count >= MARKERS) {
+            for (int i = 0; i < estimate.length; i++) {
+                estimate[i] = h[i * MARKERS + 2];
+            }
+            return estimate;
+        }
+        if (this.count == 0) {
+            return estimate;
+        }
+
+        //interpolate between the (sorted) values seen so far
+        float[] sorted = new float[this.count];
+        final double rank = this.quantiles[q] * (this.count - 1);
+        final int below = (int) Math.floor(rank);
+        final int above = Math.min(below + 1, this.count - 1);
+        for (int i = 0; i < estimate.length; i++) {
+            System.arraycopy(h, i * MARKERS, sorted, 0, this.count);
+            Arrays.sort(sorted);
+            estimate[i] = sorted[below] + (rank - below) * (sorted[above] - sorted[below]);
+        }
+        return estimate;
+    }
+
+    /**
+     * Adds the rows of a realisation within a stripe
+     */
+    private class AddTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final RasterSurfaceBuffer surface;
+        private final int firstRow;
+        private final int lastRow;
+        private final int stripeRows;
+
+        AddTask(RasterSurfaceBuffer surface, int firstRow, int lastRow, int stripeRows) {
+            this.surface = surface;
+            this.firstRow = firstRow;
+            this.lastRow = lastRow;
+            this.stripeRows = stripeRows;
+        }
+
+        @Override
+        protected void compute() {
+            if (this.lastRow - this.firstRow > this.stripeRows) {
+                int mid = (this.firstRow + this.lastRow) >>> 1;
+                invokeAll(new AddTask(this.surface, this.firstRow, mid, this.stripeRows),
+                        new AddTask(this.surface, mid, this.lastRow, this.stripeRows));
+                return;
+            }
+            double[] values = new double[EnsembleAccumulator.this.width];
+            for (int row = this.firstRow; row < this.lastRow; row++) {
+                this.surface.getRow(row, values);
+                EnsembleAccumulator.this.addRow(row, values);
+            }
+        }
+    }
+}
@@ -1,14 +1,31 @@
 package org.geotools.passivelygeolocated;
 
+import java.awt.Rectangle;
+import java.awt.image.RenderedImage;
 import java.io.File;
 import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import javax.imageio.ImageWriteParam;
 import org.geotools.coverage.grid.GridCoverage2D;
+import org.geotools.coverage.grid.GridEnvelope2D;
+import org.geotools.coverage.grid.GridGeometry2D;
+import org.geotools.coverage.grid.io.AbstractGridFormat;
+import org.geotools.coverage.grid.io.imageio.GeoToolsWriteParams;
 import org.geotools.data.FileDataStore;
 import org.geotools.data.FileDataStoreFinder;
 import org.geotools.data.simple.SimpleFeatureSource;
+import org.geotools.geometry.Envelope2D;
+import org.opengis.coverage.grid.GridEnvelope;
+import org.opengis.geometry.Envelope;
+import org.opengis.parameter.GeneralParameterValue;
+import org.opengis.parameter.ParameterValue;
 import org.opengis.referencing.FactoryException;
 import org.opengis.referencing.NoSuchAuthorityCodeException;
 import org.geotools.gce.geotiff.GeoTiffReader;
+import org.geotools.gce.geotiff.GeoTiffWriteParams;
 import org.geotools.gce.geotiff.GeoTiffWriter;
 
 /**
@@ -47,7 +64,36 @@ public class FileHandler {
     }
 
     /**
-     * Writes a coverage to a GeoTiff file
+     * Open part of a GeoTiff file into a coverage (only the tiles or strips
+     *   that overlap the window are read)
+     * @param file
+     * @param window the pixels to read
+     * @return 
+     */
+    public static GridCoverage2D openGeoTiffFile(File file, Rectangle window)
+            throws IllegalArgumentException, IOException, NoSuchAuthorityCodeException, FactoryException {
+
+        //the area of the window, at the resolution of the file
+        GeoTiffReader reader = new GeoTiffReader(file);
+        GridEnvelope range = reader.getOriginalGridRange();
+        Envelope envelope = reader.getOriginalEnvelope();
+        final double pxWidth = envelope.getSpan(0) / range.getSpan(0);
+        final double pxHeight = envelope.getSpan(1) / range.getSpan(1);
+        Envelope2D area = new Envelope2D(envelope.getCoordinateReferenceSystem(),
+                envelope.getMinimum(0) + window.x * pxWidth,
+                envelope.getMaximum(1) - (window.y + window.height) * pxHeight,
+                window.width * pxWidth, window.height * pxHeight);
+
+        //read just that area
+        ParameterValue<GridGeometry2D> value = AbstractGridFormat.READ_GRIDGEOMETRY2D.createValue();
+        value.setValue(new GridGeometry2D(new GridEnvelope2D(0, 0, window.width, window.height), area));
+        return (GridCoverage2D) reader.read(new GeneralParameterValue[] { value });
+    }
+
+    /**
+     * Writes a coverage to a GeoTiff file. If the coverage is tiled, the file
+     *   is written with the same tiles, so that they can be read from the
+     *   coverage one at a time
      * @param gc
      * @param path
      * @throws IOException 
@@ -58,11 +104,63 @@ public class FileHandler {
         File file = new File(path);
         GeoTiffWriter gw = new GeoTiffWriter(file);
         try {
+            //match the tiling of the coverage, if it has any
+            GeneralParameterValue[] params = null;
+            RenderedImage image = gc.getRenderedImage();
+            if (image.getNumXTiles() > 1 || image.getNumYTiles() > 1) {
+                GeoTiffWriteParams wp = new GeoTiffWriteParams();
+                wp.setTilingMode(ImageWriteParam.MODE_EXPLICIT);
+                wp.setTiling(image.getTileWidth(), image.getTileHeight());
+                ParameterValue<GeoToolsWriteParams> value = AbstractGridFormat.GEOTOOLS_WRITE_PARAMS.createValue();
+                value.setValue(wp);
+                params = new GeneralParameterValue[] { value };
+            }
+
             //write the file
-            gw.write(gc, null);
+            gw.write(gc, params);
         } finally {
             //destroy the writer
             gw.dispose();
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Writes a coverage to a GeoTiff file, or to a Cloud Optimized GeoTIFF
+     *   (tiled, compressed and with overviews) if a compression is given
+     * @param gc
+     * @param path
+     * @param compression how to compress the tiles (null to write as writeGeoTiffFile(gc, path))
+     * @param threads the number of threads to compress the tiles on
+     * @throws IOException 
+     */
+    public static void writeGeoTiffFile(GridCoverage2D gc, String path, Compression compression, int threads)
+            throws IOException {
+        if (compression == null) {
+            writeGeoTiffFile(gc, path);
+        } else {
+            new CogWriter(compression, threads).write(gc, new File(path));
+        }
+    }
+
+    /**
+     * Reads a list of point ids, one per line (blank lines are ignored)
+     * @param file
+     * @return
+     * @throws IOException 
+     */
+    public static long[] readIds(File file) throws IOException {
+        List<String> lines = Files.readAllLines(file.toPath(), Charset.forName("UTF-8"));
+        long[] ids = new long[lines.size()];
+        int n = 0;
+        for (String line : lines) {
+            if (!line.trim().isEmpty()) {
+                try {
+                    ids[n++] = Long.parseLong(line.trim());
+                } catch (NumberFormatException e) {
+                    throw new IOException(file + " has an invalid id: " + line);
+                }
+            }
+        }
+        return Arrays.copyOf(ids, n);
+    }
+}
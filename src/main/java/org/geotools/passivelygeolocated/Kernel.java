@@ -0,0 +1,52 @@
+package org.geotools.passivelygeolocated;
+
+/**
+ * A 'splat' flattened into a 1D array, row by row
+ * @author jonnyhuck
+ */
+class Kernel {
+
+    //the width (and height) of the kernel in pixels, and its values (only one of which is held, in the precision
+    //  of the run)
+    final int span;
+    final double[] values;
+    final float[] floatValues;
+
+    /**
+     * Flattens a square matrix
+     * @param matrix
+     * @param precision the precision in which the values are held
+     */
+    Kernel(double[][] matrix, Precision precision) {
+        this.span = matrix[0].length;
+        if (precision == Precision.FLOAT) {
+            this.values = null;
+            this.floatValues = new float[this.span * this.span];
+            for (int i = 0; i < this.span; i++) {
+                for (int j = 0; j < this.span; j++) {
+                    this.floatValues[i * this.span + j] = (float) matrix[i][j];
+                }
+            }
+        } else {
+            this.values = new double[this.span * this.span];
+            this.floatValues = null;
+            for (int i = 0; i < this.span; i++) {
+                System.arraycopy(matrix[i], 0, this.values, i * this.span, this.span);
+            }
+        }
+    }
+
+    /**
+     * @return the values in double precision (a copy, if they are held in single precision)
+     */
+    double[] getValues() {
+        if (this.values != null) {
+            return this.values;
+        }
+        double[] values = new double[this.floatValues.length];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = this.floatValues[i];
+        }
+        return values;
+    }
+}
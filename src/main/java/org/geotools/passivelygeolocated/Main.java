@@ -1,12 +1,17 @@
 package org.geotools.passivelygeolocated;
 
+import java.awt.image.RenderedImage;
 import java.io.File;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.Arrays;
 import org.geotools.coverage.grid.GridCoverage2D;
 import org.geotools.swing.data.JFileDataStoreChooser;
 import org.geotools.data.simple.SimpleFeatureSource;
 import org.geotools.factory.CommonFactoryFinder;
 import org.geotools.map.DefaultMapContext;
 import org.geotools.map.MapContext;
+import org.geotools.referencing.CRS;
 import org.geotools.styling.ChannelSelection;
 import org.geotools.styling.ContrastEnhancement;
 import org.geotools.styling.RasterSymbolizer;
@@ -16,6 +21,8 @@ import org.geotools.styling.Style;
 import org.geotools.styling.StyleFactory;
 import org.geotools.swing.JMapFrame;
 import org.opengis.filter.FilterFactory2;
+import org.opengis.referencing.FactoryException;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
 import org.opengis.style.ContrastMethod;
 
 
@@ -38,19 +45,60 @@ public class Main {
             System.out.println("java -jar WFR.jar n f [weighting surface path].tif [output path].tif");            
             System.out.println("e.g.:");            
             System.out.println("     java -jar WFR.jar 10 0.1 /Users/wfr/weighting_surface.tif /Users/wfr/output_filename.tif");
+            System.out.println("or, to keep the inputs in memory and build surfaces on request (see README):");
+            System.out.println("     java -jar WFR.jar -serve port [-directory d] [-threads t] [-precision p]");
+            System.out.println("n and f may be comma separated lists, to write a surface for every combination");
+            System.out.println("     (e.g. 10,50,100 0.05,0.1 gives output_filename_n10_f0.05.tif and so on)");
+            System.out.println("options (after the 4 arguments):");
+            System.out.println("     -threads t    number of worker threads (default: one per core)");
+            System.out.println("     -mode m       best (best of n candidates, default) or alias (weight-proportional)");
+            System.out.println("     -candidates c radial (around the point, default) or uniform (over the polygon), for -mode best");
+            System.out.println("     -sharpness k  exponent applied to the weighting surface by -mode alias (default: n)");
+            System.out.println("     -render r     splat (one splat per point, default) or grid (count then convolve)");
+            System.out.println("     -precision p  double (default) or float (half the memory, see README for the error)");
+            System.out.println("     -points file  read the points from a shapefile or CSV file rather than asking for them");
+            System.out.println("     -xy x,y       the coordinate columns of a CSV points file (default: x,y)");
+            System.out.println("     -id column    the column of a CSV points file holding their ids (default: the row number)");
+            System.out.println("     -crs code     the CRS of a CSV points file, e.g. EPSG:4326 (default: that of the weighting surface)");
+            System.out.println("     -cache dir    keep the points in a binary cache in dir, read instead of the points file");
+            System.out.println("                   on later runs (until the points file changes)");
+            System.out.println("     -prefetch b   batches of CSV points to read ahead of relocation (default: 2)");
+            System.out.println("     -tiles dir    keep the output surface in memory mapped tiles in dir (default: on the heap)");
+            System.out.println("     -seed s       seed the relocation so that runs can be repeated exactly (default: a new seed)");
+            System.out.println("     -ensemble k   build k surfaces and write their mean (and _variance.tif) (default: 1)");
+            System.out.println("     -quantiles q  comma separated quantiles of an ensemble to estimate, e.g. 0.05,0.95");
+            System.out.println("     -ledger file  add only new points to the output (listed in file, which is created if needed)");
+            System.out.println("     -retract file subtract the points with the ids in file (one per line) from a -ledger output");
+            System.out.println("     -shards cxr   build the surface in c by r shards, each in a separate worker process");
+            System.out.println("     -workers w    number of shard worker processes to run at a time (default: one per core)");
+            System.out.println("     -cog c        write a tiled Cloud Optimized GeoTIFF with overviews, compressed with c:");
+            System.out.println("                   deflate, lzw or none (default: a plain GeoTIFF)");
+            System.out.println("     -checkpoint file save the progress of the run to file every so often");
+            System.out.println("     -resume file  as -checkpoint, but carry on from the progress saved in file (if it exists)");
+            System.out.println("     -interval m   minutes between checkpoints (default: 10)");
+            System.out.println("     -metrics file write the stage timings and counters of the run to a JSON file");
             return;
-        } else if (args.length != 4){
+        } else if (args[0].equals("-serve")) {
+            SurfaceServer.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        } else if (args.length < 4 || args.length % 2 != 0){
             System.out.println("you need 4 arguments!");
             System.out.println("please try again.");
             return;
         }
         
-        //make sure f and n are numbers!
-        int n = 0;
-        double f = 0;
+        //make sure f and n are numbers! (comma separated lists of them are swept over)
+        String[] nValues = args[0].split(",");
+        String[] fValues = args[1].split(",");
+        final int[] nSweep = new int[nValues.length];
+        final double[] fSweep = new double[fValues.length];
         try {
-            n = Integer.parseInt(args[0]);
-            f = Double.parseDouble(args[1]);
+            for (int i = 0; i < nValues.length; i++) {
+                nSweep[i] = Integer.parseInt(nValues[i]);
+            }
+            for (int i = 0; i < fValues.length; i++) {
+                fSweep[i] = Double.parseDouble(fValues[i]);
+            }
         } catch (NumberFormatException e) {
             System.out.println("number of iterations (n) and fuzziness (f) need to be numbers!");
             System.out.println("n should be a positive whole number");
@@ -58,15 +106,175 @@ public class Main {
             System.out.println("please try again.");
             return;
         }
+        final boolean sweep = nSweep.length > 1 || fSweep.length > 1;
+        final int n = nSweep[0];
+        final double f = fSweep[0];
         
-        // display a data store file chooser dialog for shapefiles
-        System.out.println("select point data...");
-        File points = JFileDataStoreChooser.showOpenFile("shp", null);
-        if (points == null) {
+        //read any options that follow the arguments
+        final WeightedFuzzy wf = new WeightedFuzzy();
+        File points = null;
+        File metrics = null;
+        File ledgerFile = null;
+        File retractFile = null;
+        int realisations = 0;
+        double[] quantiles = new double[0];
+        String[] xy = { "x", "y" };
+        String idColumn = null;
+        CoordinateReferenceSystem crs = null;
+        int shardColumns = 0;
+        int shardRows = 0;
+        int workers = Runtime.getRuntime().availableProcessors();
+        Compression compression = null;
+        File cacheDirectory = null;
+        try {
+            for (int i = 4; i < args.length; i += 2) {
+                if (args[i].equals("-threads")) {
+                    wf.setThreads(Integer.parseInt(args[i + 1]));
+                } else if (args[i].equals("-mode")) {
+                    if (args[i + 1].equals("best")) {
+                        wf.setRelocationMode(RelocationMode.BEST_OF_N);
+                    } else if (args[i + 1].equals("alias")) {
+                        wf.setRelocationMode(RelocationMode.ALIAS);
+                    } else {
+                        throw new IllegalArgumentException("mode should be best or alias");
+                    }
+                } else if (args[i].equals("-candidates")) {
+                    if (args[i + 1].equals("radial")) {
+                        wf.setCandidateDistribution(CandidateDistribution.RADIAL);
+                    } else if (args[i + 1].equals("uniform")) {
+                        wf.setCandidateDistribution(CandidateDistribution.UNIFORM);
+                    } else {
+                        throw new IllegalArgumentException("candidates should be radial or uniform");
+                    }
+                } else if (args[i].equals("-sharpness")) {
+                    wf.setSharpness(Double.parseDouble(args[i + 1]));
+                } else if (args[i].equals("-render")) {
+                    if (args[i + 1].equals("splat")) {
+                        wf.setRenderMode(RenderMode.SPLAT);
+                    } else if (args[i + 1].equals("grid")) {
+                        wf.setRenderMode(RenderMode.COUNT_GRID);
+                    } else {
+                        throw new IllegalArgumentException("render should be splat or grid");
+                    }
+                } else if (args[i].equals("-precision")) {
+                    if (args[i + 1].equals("double")) {
+                        wf.setPrecision(Precision.DOUBLE);
+                    } else if (args[i + 1].equals("float")) {
+                        wf.setPrecision(Precision.FLOAT);
+                    } else {
+                        throw new IllegalArgumentException("precision should be double or float");
+                    }
+                } else if (args[i].equals("-points")) {
+                    points = new File(args[i + 1]);
+                } else if (args[i].equals("-xy")) {
+                    xy = args[i + 1].split(",");
+                    if (xy.length != 2) {
+                        throw new IllegalArgumentException("xy should be two column names separated by a comma");
+                    }
+                } else if (args[i].equals("-id")) {
+                    idColumn = args[i + 1];
+                } else if (args[i].equals("-crs")) {
+                    try {
+                        //(longitude first, as the columns are x and y)
+                        crs = CRS.decode(args[i + 1], true);
+                    } catch (FactoryException e) {
+                        throw new IllegalArgumentException("unknown crs " + args[i + 1]);
+                    }
+                } else if (args[i].equals("-cache")) {
+                    cacheDirectory = new File(args[i + 1]);
+                    if (!cacheDirectory.isDirectory()) {
+                        throw new IllegalArgumentException(cacheDirectory + " is not a directory");
+                    }
+                } else if (args[i].equals("-prefetch")) {
+                    wf.setPrefetch(Integer.parseInt(args[i + 1]));
+                } else if (args[i].equals("-tiles")) {
+                    wf.setTileDirectory(new File(args[i + 1]));
+                } else if (args[i].equals("-seed")) {
+                    wf.setSeed(Long.valueOf(args[i + 1]));
+                } else if (args[i].equals("-ensemble")) {
+                    realisations = Integer.parseInt(args[i + 1]);
+                    if (realisations < 1) {
+                        throw new IllegalArgumentException("ensemble should be at least 1");
+                    }
+                } else if (args[i].equals("-quantiles")) {
+                    String[] values = args[i + 1].split(",");
+                    quantiles = new double[values.length];
+                    for (int q = 0; q < values.length; q++) {
+                        quantiles[q] = Double.parseDouble(values[q]);
+                        if (!(quantiles[q] > 0 && quantiles[q] < 1)) {
+                            throw new IllegalArgumentException("quantiles should be between 0 and 1");
+                        }
+                    }
+                } else if (args[i].equals("-ledger")) {
+                    ledgerFile = new File(args[i + 1]);
+                } else if (args[i].equals("-retract")) {
+                    retractFile = new File(args[i + 1]);
+                } else if (args[i].equals("-shards")) {
+                    String[] grid = args[i + 1].split("x");
+                    if (grid.length != 2) {
+                        throw new IllegalArgumentException("shards should be columns x rows, e.g. 2x2");
+                    }
+                    shardColumns = Integer.parseInt(grid[0]);
+                    shardRows = Integer.parseInt(grid[1]);
+                    if (shardColumns < 1 || shardRows < 1) {
+                        throw new IllegalArgumentException("there must be at least 1 shard");
+                    }
+                } else if (args[i].equals("-workers")) {
+                    workers = Integer.parseInt(args[i + 1]);
+                    if (workers < 1) {
+                        throw new IllegalArgumentException("workers should be at least 1");
+                    }
+                } else if (args[i].equals("-cog")) {
+                    if (args[i + 1].equals("deflate")) {
+                        compression = Compression.DEFLATE;
+                    } else if (args[i + 1].equals("lzw")) {
+                        compression = Compression.LZW;
+                    } else if (args[i + 1].equals("none")) {
+                        compression = Compression.NONE;
+                    } else {
+                        throw new IllegalArgumentException("cog should be deflate, lzw or none");
+                    }
+                } else if (args[i].equals("-checkpoint")) {
+                    wf.setCheckpoint(new File(args[i + 1]));
+                    wf.setResume(false);
+                } else if (args[i].equals("-resume")) {
+                    wf.setCheckpoint(new File(args[i + 1]));
+                    wf.setResume(true);
+                } else if (args[i].equals("-interval")) {
+                    final int minutes = Integer.parseInt(args[i + 1]);
+                    if (minutes < 0) {
+                        throw new IllegalArgumentException("interval should be at least 0");
+                    }
+                    wf.setCheckpointInterval(minutes * 60);
+                } else if (args[i].equals("-metrics")) {
+                    metrics = new File(args[i + 1]);
+                } else {
+                    System.out.println("unknown option: " + args[i]);
+                    System.out.println("please try again.");
+                    return;
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            System.out.println("invalid option value: " + e.getMessage());
+            System.out.println("please try again.");
             return;
         }
-        SimpleFeatureSource pointSource = FileHandler.openShapefile(points);
         
+        // display a data store file chooser dialog for shapefiles (unless a points file was given)
+        if (points == null) {
+            System.out.println("select point data...");
+            points = JFileDataStoreChooser.showOpenFile("shp", null);
+            if (points == null) {
+                return;
+            }
+        }
+        
+
+        //read the points from their cache (written first if it is missing or out of date)
+        if (cacheDirectory != null) {
+            System.out.println("checking the point cache...");
+            points = PointCache.update(cacheDirectory, points, xy, idColumn, crs);
+        }
 
         // display a data store file chooser dialog for shapefiles
         System.out.println("select polygon data...");
@@ -79,16 +287,189 @@ public class Main {
         // display a data store file chooser dialog for geotiff files
         File file = new File(args[2]);
         GridCoverage2D weightingSurface = FileHandler.openGeoTiffFile(file);
+
+        //(recorded with each checkpoint, so that a run only carries on from one of the same files)
+        wf.setCheckpointInputs(points, polygons, file);
         
-        //get the output surface
+        //(before the sweep, which returns once it is done)
+        if (retractFile != null && ledgerFile == null) {
+            System.out.println("-retract needs a -ledger");
+            return;
+        }
+        if (ledgerFile != null && (sweep || realisations > 0 || quantiles.length > 0)) {
+            System.out.println("a ledger can not be combined with an ensemble or a sweep");
+            return;
+        }
+        if (ledgerFile != null && compression != null) {
+            //(the previous output is read back by GeoTools, which may not read the floating point predictor)
+            System.out.println("a ledger can not be combined with -cog");
+            return;
+        }
+        if (shardColumns > 0 && (sweep || realisations > 0 || quantiles.length > 0 || ledgerFile != null)) {
+            System.out.println("shards can not be combined with an ensemble, a sweep or a ledger");
+            return;
+        }
+
+        //get the output surface (streaming the points from CSV files)
+        if (sweep) {
+            if (realisations > 0 || quantiles.length > 0) {
+                System.out.println("an ensemble can not be combined with a sweep over n or f");
+                return;
+            }
+            if (wf.getCheckpoint() != null) {
+                System.out.println("a checkpoint can not be combined with a sweep over n or f");
+                return;
+            }
+            System.out.println("calculating " + nSweep.length * fSweep.length + " WFR surfaces...");
+            final String base = args[3].replaceFirst("(?i)\\.tiff?$", "");
+            final Compression cog = compression;
+            SweepListener writer = new SweepListener() {
+                public void surface(int iterations, double fuzziness, GridCoverage2D surface) throws IOException {
+                    String path = base + "_n" + iterations + "_f"
+                            + BigDecimal.valueOf(fuzziness).stripTrailingZeros().toPlainString() + ".tif";
+                    System.out.println("writing " + path + "...");
+                    StageEvent write = wf.getMetrics().start(RunMetrics.Stage.WRITE);
+                    FileHandler.writeGeoTiffFile(surface, path, cog, wf.getThreads());
+                    RenderedImage image = surface.getRenderedImage();
+                    wf.getMetrics().stop(write, (long) image.getWidth() * image.getHeight());
+                }
+            };
+            if (isStreamed(points)) {
+                PointReader pointReader = openPoints(points, xy, idColumn, crs);
+                try {
+                    wf.getSweep(pointReader, polygonSource, weightingSurface, nSweep, fSweep, writer);
+                } finally {
+                    pointReader.close();
+                }
+            } else {
+                wf.getSweep(FileHandler.openShapefile(points), polygonSource, weightingSurface, nSweep, fSweep,
+                        writer);
+            }
+            System.out.println("seed: " + wf.getLastSeed());
+            System.out.println("metrics: " + wf.getMetrics());
+            if (metrics != null) {
+                wf.getMetrics().writeJson(metrics);
+            }
+            System.out.println("done.");
+            return;
+        }
+
+        if (wf.getCheckpoint() != null
+                && (realisations > 0 || quantiles.length > 0 || ledgerFile != null || shardColumns > 0)) {
+            System.out.println("a checkpoint can not be combined with an ensemble, a ledger or shards");
+            return;
+        }
+        if (wf.isResume() && wf.getCheckpoint().exists()) {
+            System.out.println("resuming from " + wf.getCheckpoint() + "...");
+        }
+
         System.out.println("calculating WFR surface...");
-        WeightedFuzzy wf = new WeightedFuzzy();
-        GridCoverage2D gcOut = wf.getFuzzyRelocatedSurface(pointSource, polygonSource,
-                weightingSurface, n, f);
+        GridCoverage2D gcOut;
+        Ensemble ensemble = null;
+        SurfaceLedger ledger = null;
+        if (shardColumns > 0) {
+            System.out.println("running " + shardColumns * shardRows + " shards, " + workers + " at a time...");
+            gcOut = wf.getShardedSurface(points, xy, idColumn, crs, polygons, file, n, f, shardColumns, shardRows,
+                    workers);
+        } else if (ledgerFile != null) {
+
+            //add to the previous output, if there is one
+            GridCoverage2D previous = null;
+            if (ledgerFile.exists()) {
+                ledger = SurfaceLedger.read(ledgerFile);
+                ledger.recover(new File(args[3]));
+                previous = FileHandler.openGeoTiffFile(new File(args[3]));
+                System.out.println("adding to a surface of " + ledger.getSplats() + " points...");
+            } else {
+                ledger = new SurfaceLedger();
+            }
+            long[] retractions = retractFile == null ? new long[0] : FileHandler.readIds(retractFile);
+            if (isStreamed(points)) {
+                PointReader pointReader = openPoints(points, xy, idColumn, crs);
+                try {
+                    gcOut = wf.updateSurface(previous, ledger, pointReader, polygonSource, weightingSurface, n, f,
+                            retractions);
+                } finally {
+                    pointReader.close();
+                }
+            } else {
+                gcOut = wf.updateSurface(previous, ledger, FileHandler.openShapefile(points), polygonSource,
+                        weightingSurface, n, f, retractions);
+            }
+            System.out.println("added " + wf.getMetrics().getPoints() + " new points, retracted "
+                    + wf.getRetracted());
+        } else if (realisations > 0 || quantiles.length > 0) {
+            realisations = Math.max(1, realisations);
+            if (isStreamed(points)) {
+                PointReader pointReader = openPoints(points, xy, idColumn, crs);
+                try {
+                    ensemble = wf.getEnsemble(pointReader, polygonSource, weightingSurface, n, f, realisations,
+                            quantiles);
+                } finally {
+                    pointReader.close();
+                }
+            } else {
+                ensemble = wf.getEnsemble(FileHandler.openShapefile(points), polygonSource, weightingSurface, n, f,
+                        realisations, quantiles);
+            }
+            gcOut = ensemble.getMean();
+        } else if (isStreamed(points)) {
+            PointReader pointReader = openPoints(points, xy, idColumn, crs);
+            try {
+                gcOut = wf.getFuzzyRelocatedSurface(pointReader, polygonSource, weightingSurface, n, f);
+            } finally {
+                pointReader.close();
+            }
+            System.out.println("read " + pointReader.getRows() + " rows (" + pointReader.getSkipped()
+                    + " without valid coordinates)");
+        } else {
+            SimpleFeatureSource pointSource = FileHandler.openShapefile(points);
+            gcOut = wf.getFuzzyRelocatedSurface(pointSource, polygonSource, weightingSurface, n, f);
+        }
+        
+        if (wf.getCandidateStats() != null) {
+            System.out.println("candidate sampling: " + wf.getCandidateStats());
+        }
+        System.out.println("seed: " + wf.getLastSeed());
         
         //write the file
         System.out.println("writing output...");
-        FileHandler.writeGeoTiffFile(gcOut, args[3]);
+        StageEvent write = wf.getMetrics().start(RunMetrics.Stage.WRITE);
+        if (ledger != null) {
+
+            //the surface replaces the last one only once the ledger that goes with it has been written
+            FileHandler.writeGeoTiffFile(gcOut, ledger.startSurface(new File(args[3])).getPath(), compression,
+                    wf.getThreads());
+            ledger.commit(ledgerFile, new File(args[3]));
+        } else {
+            FileHandler.writeGeoTiffFile(gcOut, args[3], compression, wf.getThreads());
+        }
+        RenderedImage image = gcOut.getRenderedImage();
+        long pixels = (long) image.getWidth() * image.getHeight();
+        if (ensemble != null) {
+
+            //the other summaries go alongside the mean
+            String base = args[3].replaceFirst("(?i)\\.tiff?$", "");
+            FileHandler.writeGeoTiffFile(ensemble.getVariance(), base + "_variance.tif", compression,
+                    wf.getThreads());
+            pixels *= 2;
+            for (int q = 0; q < quantiles.length; q++) {
+                FileHandler.writeGeoTiffFile(ensemble.getQuantile(q),
+                        base + "_q" + BigDecimal.valueOf(quantiles[q] * 100).stripTrailingZeros().toPlainString()
+                        + ".tif", compression, wf.getThreads());
+                pixels += (long) image.getWidth() * image.getHeight();
+            }
+        }
+        //the tiles (if the surface was built in them) and the checkpoint are not needed once the output is written
+        wf.dispose(gcOut);
+        if (wf.getCheckpoint() != null) {
+            wf.getCheckpoint().delete();
+        }
+        wf.getMetrics().stop(write, pixels);
+        System.out.println("metrics: " + wf.getMetrics());
+        if (metrics != null) {
+            wf.getMetrics().writeJson(metrics);
+        }
         
         //create greyscale style
         StyleFactory sf = CommonFactoryFinder.getStyleFactory(null);
@@ -109,4 +490,54 @@ public class Main {
         JMapFrame.showMap(map);
         System.out.println("done.");
     }
+
+    /**
+     * @param points
+     * @return true if the points are read in batches by openPoints (rather than from a shapefile)
+     */
+    static boolean isStreamed(File points) {
+        final String name = points.getName().toLowerCase();
+        return name.endsWith(".csv") || name.endsWith(PointCache.EXTENSION);
+    }
+
+    /**
+     * Opens a CSV points file or a point cache
+     * @param points
+     * @param xy the names of the coordinate columns of a CSV file
+     * @param idColumn the name of the id column of a CSV file (null to use the row numbers)
+     * @param crs the CRS of a CSV file (null if it is that of the weighting surface)
+     * @return
+     * @throws IOException 
+     */
+    static PointReader openPoints(File points, String[] xy, String idColumn, CoordinateReferenceSystem crs)
+            throws IOException {
+        if (points.getName().toLowerCase().endsWith(PointCache.EXTENSION)) {
+            return new PointCache(points);
+        }
+        return openCsv(points, xy, idColumn, crs);
+    }
+
+    /**
+     * Opens a CSV points file
+     * @param points
+     * @param xy the names of the coordinate columns
+     * @param idColumn the name of the id column (null to use the row numbers)
+     * @param crs the CRS of the coordinates (null if it is that of the weighting surface)
+     * @return
+     * @throws IOException 
+     */
+    static CsvPointReader openCsv(File points, String[] xy, String idColumn, CoordinateReferenceSystem crs)
+            throws IOException {
+        CsvPointReader reader = new CsvPointReader(points, xy[0], xy[1]);
+        reader.setCoordinateReferenceSystem(crs);
+        if (idColumn != null) {
+            try {
+                reader.setIdColumn(idColumn);
+            } catch (IllegalArgumentException e) {
+                reader.close();
+                throw e;
+            }
+        }
+        return reader;
+    }
 }   //class
\ No newline at end of file
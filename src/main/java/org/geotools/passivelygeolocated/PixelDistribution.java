@@ -0,0 +1,197 @@
+package org.geotools.passivelygeolocated;
+
+import com.vividsolutions.jts.geom.CoordinateSequence;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.Polygon;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+/**
+ * A discrete distribution over the weighting surface pixels whose centres
+ *   are inside a polygon, in which each pixel is drawn in proportion to
+ *   (value / max value) ^ sharpness. This is an alternative to taking the
+ *   best of n random candidates: a sharpness of 0 places points uniformly, and
+ *   the higher the sharpness the more they are drawn to the highest values.
+ * @author jonnyhuck
+ */
+public class PixelDistribution {
+
+    private final WeightingSampler sampler;
+    private final double sharpness;
+
+    //the pixels (row * width + col) and the table used to draw them
+    private final int[] pixels;
+    private final AliasTable table;
+
+    /**
+     * Finds the pixels within the polygon and builds the table
+     * @param polygon
+     * @param sampler
+     * @param sharpness
+     */
+    public PixelDistribution(Geometry polygon, WeightingSampler sampler, double sharpness) {
+        this.sampler = sampler;
+        this.sharpness = sharpness;
+
+        //find the pixels, with their weighting surface values
+        int[] found = this.getPixelsWithin(polygon);
+        double[] weights = new double[found.length];
+        double max = 0;
+        for (int i = 0; i < found.length; i++) {
+            double value = sampler.getValue(found[i] % sampler.getWidth(), found[i] / sampler.getWidth());
+            weights[i] = value > 0 ? value : 0;
+            max = Math.max(max, weights[i]);
+        }
+
+        //keep only the pixels that can be drawn
+        int n = 0;
+        for (int i = 0; i < found.length; i++) {
+            if (weights[i] > 0) {
+                found[n] = found[i];
+                weights[n++] = Math.pow(weights[i] / max, sharpness);
+            }
+        }
+        this.pixels = Arrays.copyOf(found, n);
+        weights = Arrays.copyOf(weights, n);
+
+        //(value / max) ^ sharpness can underflow for very sharp distributions
+        double total = 0;
+        for (double w : weights) {
+            total += w;
+        }
+        this.table = total > 0 ? new AliasTable(weights) : null;
+    }
+
+    /**
+     * Returns the pixels whose centres are inside the polygon, using the
+     *   even-odd rule along the middle of each row of pixels
+     * @param polygon
+     * @return
+     */
+    private int[] getPixelsWithin(Geometry polygon) {
+
+        //get the rows covered by the polygon (in grid space)
+        final int width = this.sampler.getWidth();
+        final int height = this.sampler.getHeight();
+        double minRow = Double.POSITIVE_INFINITY;
+        double maxRow = Double.NEGATIVE_INFINITY;
+        for (CoordinateSequence ring : this.getRings(polygon)) {
+            for (int i = 0; i < ring.size(); i++) {
+                double row = this.sampler.toRow(ring.getX(i), ring.getY(i));
+                minRow = Math.min(minRow, row);
+                maxRow = Math.max(maxRow, row);
+            }
+        }
+        final int firstRow = Math.max(0, (int) Math.floor(minRow));
+        final int lastRow = Math.min(height - 1, (int) Math.floor(maxRow));
+        if (firstRow > lastRow) {
+            return new int[0];
+        }
+
+        //find where each segment crosses the middle of each row
+        final int rows = lastRow - firstRow + 1;
+        double[][] crossings = new double[rows][4];
+        int[] crossingCount = new int[rows];
+        for (CoordinateSequence ring : this.getRings(polygon)) {
+            double col0 = this.sampler.toCol(ring.getX(0), ring.getY(0));
+            double row0 = this.sampler.toRow(ring.getX(0), ring.getY(0));
+            for (int i = 1; i < ring.size(); i++) {
+                final double col1 = this.sampler.toCol(ring.getX(i), ring.getY(i));
+                final double row1 = this.sampler.toRow(ring.getX(i), ring.getY(i));
+                final int a = Math.max(firstRow, (int) Math.floor(Math.min(row0, row1) - 0.5));
+                final int b = Math.min(lastRow, (int) Math.ceil(Math.max(row0, row1)));
+                for (int row = a; row <= b; row++) {
+                    final double middle = row + 0.5;
+                    if ((row0 <= middle) != (row1 <= middle)) {
+                        final int r = row - firstRow;
+                        if (crossingCount[r] == crossings[r].length) {
+                            crossings[r] = Arrays.copyOf(crossings[r], crossings[r].length * 2);
+                        }
+                        crossings[r][crossingCount[r]++] = col0 + (middle - row0) * (col1 - col0) / (row1 - row0);
+                    }
+                }
+                col0 = col1;
+                row0 = row1;
+            }
+        }
+
+        //pixels whose centres are between pairs of crossings are inside
+        int[] pixelsWithin = new int[16];
+        int n = 0;
+        for (int r = 0; r < rows; r++) {
+            double[] xs = crossings[r];
+            Arrays.sort(xs, 0, crossingCount[r]);
+            for (int k = 0; k + 1 < crossingCount[r]; k += 2) {
+                final int firstCol = Math.max(0, (int) Math.ceil(xs[k] - 0.5));
+                final int lastCol = Math.min(width, (int) Math.ceil(xs[k + 1] - 0.5));
+                for (int col = firstCol; col < lastCol; col++) {
+                    if (n == pixelsWithin.length) {
+                        pixelsWithin = Arrays.copyOf(pixelsWithin, n * 2);
+                    }
+                    pixelsWithin[n++] = (firstRow + r) * width + col;
+                }
+            }
+        }
+        return Arrays.copyOf(pixelsWithin, n);
+    }
+
+    /**
+     * @param polygon
+     * @return the exterior and interior rings of every part of the polygon
+     */
+    private CoordinateSequence[] getRings(Geometry polygon) {
+        int n = 0;
+        for (int g = 0; g < polygon.getNumGeometries(); g++) {
+            if (polygon.getGeometryN(g) instanceof Polygon) {
+                n += 1 + ((Polygon) polygon.getGeometryN(g)).getNumInteriorRing();
+            }
+        }
+        CoordinateSequence[] rings = new CoordinateSequence[n];
+        n = 0;
+        for (int g = 0; g < polygon.getNumGeometries(); g++) {
+            if (polygon.getGeometryN(g) instanceof Polygon) {
+                Polygon part = (Polygon) polygon.getGeometryN(g);
+                rings[n++] = part.getExteriorRing().getCoordinateSequence();
+                for (int h = 0; h < part.getNumInteriorRing(); h++) {
+                    rings[n++] = part.getInteriorRingN(h).getCoordinateSequence();
+                }
+            }
+        }
+        return rings;
+    }
+
+    /**
+     * @return the sharpness the table was built with
+     */
+    public double getSharpness() {
+        return this.sharpness;
+    }
+
+    /**
+     * @return false if there are no pixels to draw from (the polygon is
+     *   smaller than a pixel, or has no weight within it)
+     */
+    public boolean isEmpty() {
+        return this.table == null;
+    }
+
+    /**
+     * Draws a pixel and returns the world coordinates of its centre
+     * @param rng
+     * @param out receives the x and y of the centre of the pixel
+     */
+    public void next(SplittableRandom rng, double[] out) {
+        final int pixel = this.pixels[this.table.next(rng)];
+        final double col = pixel % this.sampler.getWidth() + 0.5;
+        final double row = pixel / this.sampler.getWidth() + 0.5;
+        out[0] = this.sampler.toX(col, row);
+        out[1] = this.sampler.toY(col, row);
+    }
+
+    /**
+     * @return the number of pixels that can be drawn
+     */
+    public int size() {
+        return this.pixels.length;
+    }
+}
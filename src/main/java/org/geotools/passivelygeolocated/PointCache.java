@@ -0,0 +1,416 @@
+package org.geotools.passivelygeolocated;
+
+import com.vividsolutions.jts.geom.Point;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.UUID;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.data.simple.SimpleFeatureSource;
+import org.geotools.referencing.CRS;
+import org.opengis.referencing.FactoryException;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+
+/**
+ * A binary cache of the points read from a shapefile or CSV file, so that
+ *   later runs can skip parsing it. The points are held in blocks of up to
+ *   WeightedFuzzy.POINT_BATCH, each block holding its x coordinates, then its
+ *   y coordinates, then its ids (24 bytes a point), and each block is memory
+ *   mapped as it is read. The coordinates are those of the points file (the
+ *   CRS is kept with them), and the cache records the size and modification
+ *   time of the points file (and of the other files of a shapefile), and how
+ *   it was read, so that it is written again if either changes. It also
+ *   records the number of rows that were skipped, which are counted (in
+ *   getRows and getSkipped) once the last point has been read.
+ *
+ * Layout (little endian): MAGIC, VERSION, the number of points, the number
+ *   of rows skipped, how the points file was read, the size and modification
+ *   time of each of its files, and the WKT of its CRS (each as modified
+ *   UTF-8), padding to a multiple of 8 bytes, then for each block the number
+ *   of points in it followed by the three columns.
+ * @author jonnyhuck
+ */
+public class PointCache extends PointReader {
+
+    //the extension of cache files
+    static final String EXTENSION = ".wfrp";
+
+    static final int MAGIC = 0x57465250;
+    static final int VERSION = 2;
+
+    //where the number of points and of skipped rows are in the header
+    private static final int COUNT = 8;
+    private static final int SKIPPED = 16;
+
+    //the files of a shapefile that change what is read from it (a CSV file is just itself)
+    private static final String[] SHAPEFILE = { ".shp", ".shx", ".dbf", ".prj", ".cpg", ".qix", ".fix" };
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final long size;
+    private final long sourceSkipped;
+    private final String key;
+    private final String state;
+
+    //the block being read: where its columns start, the number of points in it and the number
+    //  read, and where the next block starts
+    private long columns;
+    private int blockSize = 0;
+    private int blockRead = 0;
+    private long next;
+    private boolean ended = false;
+
+    /**
+     * Opens a cache
+     * @param file
+     * @throws IOException if it is not a cache file (or can not be read)
+     */
+    public PointCache(File file) throws IOException {
+        this.file = new RandomAccessFile(file, "r");
+        try {
+            this.channel = this.file.getChannel();
+            DataInputStream in = new DataInputStream(Channels.newInputStream(this.channel));
+            ByteBuffer header = ByteBuffer.allocate(24).order(ByteOrder.LITTLE_ENDIAN);
+            in.readFully(header.array());
+            if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+                throw new IOException(file + " is not a point cache (or is from another version)");
+            }
+            this.size = header.getLong(COUNT);
+            this.sourceSkipped = header.getLong(SKIPPED);
+            this.key = in.readUTF();
+            this.state = in.readUTF();
+            String wkt = in.readUTF();
+            if (!wkt.isEmpty()) {
+                try {
+                    this.setCoordinateReferenceSystem(CRS.parseWKT(wkt));
+                } catch (FactoryException e) {
+                    throw new IOException("could not read the CRS of " + file + ": " + e.getMessage(), e);
+                }
+            }
+            this.next = (this.channel.position() + 7) / 8 * 8;
+        } catch (IOException e) {
+            this.file.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return the number of points in the cache
+     */
+    public long size() {
+        return this.size;
+    }
+
+    /**
+     * Reads the next points, mapping each column of the block they are in
+     * @param x
+     * @param y
+     * @param ids (may be null)
+     * @param capacity
+     * @return the number of points read
+     * @throws IOException
+     */
+    @Override
+    protected int readPoints(double[] x, double[] y, long[] ids, int capacity) throws IOException {
+        int n = 0;
+        while (n < capacity) {
+            if (this.blockRead == this.blockSize) {
+                //move on to the next block (counting the rows skipped when the points file was read at the end)
+                if (this.next >= this.channel.size()) {
+                    if (!this.ended) {
+                        this.ended = true;
+                        this.rows += this.sourceSkipped;
+                        this.skipped += this.sourceSkipped;
+                    }
+                    break;
+                }
+                this.blockSize = (int) this.map(this.next, 8).getLong(0);
+                this.blockRead = 0;
+                this.columns = this.next + 8;
+                this.next = this.columns + 24L * this.blockSize;
+            }
+            final int count = Math.min(capacity - n, this.blockSize - this.blockRead);
+            final long start = this.columns + 8L * this.blockRead;
+            this.map(start, 8 * count).asDoubleBuffer().get(x, n, count);
+            this.map(start + 8L * this.blockSize, 8 * count).asDoubleBuffer().get(y, n, count);
+            if (ids != null) {
+                this.map(start + 16L * this.blockSize, 8 * count).asLongBuffer().get(ids, n, count);
+            }
+            this.blockRead += count;
+            n += count;
+        }
+        this.rows += n;
+        return n;
+    }
+
+    private ByteBuffer map(long position, int length) throws IOException {
+        return this.channel.map(FileChannel.MapMode.READ_ONLY, position, length).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Closes the file
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        this.file.close();
+    }
+
+    /**
+     * Gets the cache of a points file, writing it first if there is none or
+     *   it was written from another version of the file (or read it in
+     *   another way). The cache is named after the points file and a hash of
+     *   its canonical path, so that points files of the same name in other
+     *   directories have caches of their own
+     * @param directory where the cache is kept
+     * @param points a shapefile or CSV file
+     * @param xy the coordinate columns of a CSV file
+     * @param idColumn the id column of a CSV file (null to use the row numbers)
+     * @param crs the CRS of a CSV file (null if it is that of the weighting surface)
+     * @return the cache file
+     * @throws Exception
+     */
+    public static File update(File directory, File points, String[] xy, String idColumn,
+            CoordinateReferenceSystem crs) throws Exception {
+        final boolean csv = points.getName().toLowerCase().endsWith(".csv");
+        final String key = points.getCanonicalPath() + (csv ? "|" + xy[0] + "," + xy[1] + "|"
+                + (idColumn == null ? "" : idColumn) + "|" + (crs == null ? "" : crs.toWKT()) : "");
+        File cache = getCache(directory, points);
+        if (isCurrent(cache, points, key)) {
+            return cache;
+        }
+        if (csv) {
+            CsvPointReader reader = Main.openCsv(points, xy, idColumn, crs);
+            try {
+                write(cache, points, key, reader);
+            } finally {
+                reader.close();
+            }
+        } else {
+            write(cache, points, key, FileHandler.openShapefile(points));
+        }
+        return cache;
+    }
+
+    /**
+     * @param directory
+     * @param points
+     * @return the cache of a points file in a directory
+     * @throws IOException
+     */
+    static File getCache(File directory, File points) throws IOException {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(points.getCanonicalPath().getBytes(UTF8));
+            StringBuilder name = new StringBuilder(points.getName()).append('.');
+            for (int i = 0; i < 8; i++) {
+                name.append(String.format("%02x", hash[i] & 0xff));
+            }
+            return new File(directory, name.append(EXTENSION).toString());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("no SHA-256", e);
+        }
+    }
+
+    /**
+     * @param points
+     * @return the size and modification time of each file of a points file
+     *   (those of a shapefile that are missing included, as adding one
+     *   changes what is read)
+     */
+    static String getState(File points) {
+        StringBuilder state = new StringBuilder();
+        final String name = points.getName();
+        final int dot = name.lastIndexOf('.');
+        if (dot >= 0 && name.substring(dot).equalsIgnoreCase(".shp")) {
+            for (String extension : SHAPEFILE) {
+                File file = new File(points.getParentFile(), name.substring(0, dot) + extension);
+                File upper = new File(points.getParentFile(), name.substring(0, dot) + extension.toUpperCase());
+                state.append(getFileState(!file.isFile() && upper.isFile() ? upper : file));
+            }
+        } else {
+            state.append(getFileState(points));
+        }
+        return state.toString();
+    }
+
+    private static String getFileState(File file) {
+        return file.getName() + (file.isFile() ? ":" + file.length() + ":" + file.lastModified() : ":-") + "|";
+    }
+
+    /**
+     * @param cache
+     * @param points
+     * @param key how the points file was read
+     * @return true if the cache exists and was written from the points file as it is now, read in the same way
+     */
+    static boolean isCurrent(File cache, File points, String key) {
+        if (!cache.isFile()) {
+            return false;
+        }
+        try {
+            PointCache reader = new PointCache(cache);
+            try {
+                return reader.key.equals(key) && reader.state.equals(getState(points));
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Writes the points from a reader to a cache
+     * @param cache
+     * @param points the file they are read from
+     * @param key how the points file was read
+     * @param reader
+     * @return the number of points written
+     * @throws IOException
+     */
+    static long write(File cache, File points, String key, PointReader reader) throws IOException {
+        Writer writer = new Writer(cache, points, key, reader.getCoordinateReferenceSystem());
+        try {
+            double[] x = new double[WeightedFuzzy.POINT_BATCH];
+            double[] y = new double[WeightedFuzzy.POINT_BATCH];
+            long[] ids = new long[WeightedFuzzy.POINT_BATCH];
+            int count;
+            while ((count = reader.read(x, y, ids)) > 0) {
+                writer.writeBlock(x, y, ids, count);
+            }
+            return writer.finish(reader.getSkipped());
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Writes the points of a shapefile to a cache, using the position of each
+     *   feature as its id
+     * @param cache
+     * @param points the file they are read from
+     * @param key how the points file was read
+     * @param source
+     * @return the number of points written
+     * @throws IOException
+     */
+    static long write(File cache, File points, String key, SimpleFeatureSource source) throws IOException {
+        Writer writer = new Writer(cache, points, key, source.getSchema().getCoordinateReferenceSystem());
+        try {
+            double[] x = new double[WeightedFuzzy.POINT_BATCH];
+            double[] y = new double[WeightedFuzzy.POINT_BATCH];
+            long[] ids = new long[WeightedFuzzy.POINT_BATCH];
+            int count = 0;
+            long skipped = 0;
+            SimpleFeatureIterator features = source.getFeatures().features();
+            try {
+                for (long id = 0; features.hasNext(); id++) {
+                    Point point = (Point) features.next().getDefaultGeometry();
+                    if (point != null) {
+                        x[count] = point.getX();
+                        y[count] = point.getY();
+                        ids[count] = id;
+                        if (++count == x.length) {
+                            writer.writeBlock(x, y, ids, count);
+                            count = 0;
+                        }
+                    } else {
+                        skipped++;
+                    }
+                }
+            } finally {
+                features.close();
+            }
+            if (count > 0) {
+                writer.writeBlock(x, y, ids, count);
+            }
+            return writer.finish(skipped);
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Writes a cache to a scratch file of its own beside it, which replaces
+     *   it when it is finished (so that a cache that was not finished is
+     *   never read, and runs writing the same cache at once do not write to
+     *   the same file)
+     */
+    private static class Writer {
+
+        private final File cache;
+        private final File scratch;
+        private final RandomAccessFile file;
+        private final FileChannel channel;
+        private long size = 0;
+
+        Writer(File cache, File points, String key, CoordinateReferenceSystem crs) throws IOException {
+            this.cache = cache;
+            this.scratch = new File(cache.getPath() + "." + UUID.randomUUID() + ".tmp");
+            this.file = new RandomAccessFile(this.scratch, "rw");
+            this.file.setLength(0);
+            this.channel = this.file.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(24).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC).putInt(VERSION).putLong(0).putLong(0);
+            this.file.write(header.array());
+            this.file.writeUTF(key);
+            this.file.writeUTF(getState(points));
+            this.file.writeUTF(crs == null ? "" : crs.toWKT());
+            this.file.setLength((this.file.getFilePointer() + 7) / 8 * 8);
+            this.file.seek(this.file.length());
+        }
+
+        void writeBlock(double[] x, double[] y, long[] ids, int count) throws IOException {
+            ByteBuffer block = ByteBuffer.allocate(8 + 24 * count).order(ByteOrder.LITTLE_ENDIAN);
+            block.putLong(count);
+            block.asDoubleBuffer().put(x, 0, count);
+            block.position(8 + 8 * count);
+            block.asDoubleBuffer().put(y, 0, count);
+            block.position(8 + 16 * count);
+            block.asLongBuffer().put(ids, 0, count);
+            block.position(0);
+            while (block.hasRemaining()) {
+                this.channel.write(block);
+            }
+            this.size += count;
+        }
+
+        /**
+         * Records the number of points and of skipped rows, and moves the cache into place
+         * @param skipped
+         * @return the number of points
+         * @throws IOException
+         */
+        long finish(long skipped) throws IOException {
+            ByteBuffer counts = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN);
+            counts.putLong(0, this.size).putLong(8, skipped);
+            this.channel.write(counts, COUNT);
+            this.channel.force(false);
+            this.file.close();
+            Files.move(this.scratch.toPath(), this.cache.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            return this.size;
+        }
+
+        /**
+         * Closes the scratch file, and deletes it if the cache was not finished
+         * @throws IOException
+         */
+        void close() throws IOException {
+            this.file.close();
+            this.scratch.delete();
+        }
+    }
+}
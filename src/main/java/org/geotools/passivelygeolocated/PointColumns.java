@@ -0,0 +1,115 @@
+package org.geotools.passivelygeolocated;
+
+import java.util.Arrays;
+import org.opengis.referencing.operation.TransformException;
+
+/**
+ * A growable list of points held as primitive columns, with the id of each
+ *   point (its position in the input) and the index of the polygon it belongs to
+ * @author jonnyhuck
+ */
+class PointColumns {
+
+    private double[] x;
+    private double[] y;
+    private long[] id;
+    private int[] polygon;
+    private int size;
+
+    PointColumns() {
+        this(1024);
+    }
+
+    PointColumns(int capacity) {
+        this.x = new double[Math.max(1, capacity)];
+        this.y = new double[this.x.length];
+        this.id = new long[this.x.length];
+        this.polygon = new int[this.x.length];
+    }
+
+    /**
+     * Adds a point
+     * @param x
+     * @param y
+     * @param id the position of the point in the input
+     * @param polygon the index of the polygon containing the point
+     */
+    void add(double x, double y, long id, int polygon) {
+        if (this.size == this.x.length) {
+            int capacity = this.x.length * 2;
+            this.x = Arrays.copyOf(this.x, capacity);
+            this.y = Arrays.copyOf(this.y, capacity);
+            this.id = Arrays.copyOf(this.id, capacity);
+            this.polygon = Arrays.copyOf(this.polygon, capacity);
+        }
+        this.x[this.size] = x;
+        this.y[this.size] = y;
+        this.id[this.size] = id;
+        this.polygon[this.size] = polygon;
+        this.size++;
+    }
+
+    int size() {
+        return this.size;
+    }
+
+    /**
+     * Moves every point into another CRS
+     * @param reprojection
+     * @throws TransformException
+     */
+    void transform(Reprojection reprojection) throws TransformException {
+        reprojection.transform(this.x, this.y, this.size);
+    }
+
+    double getX(int i) {
+        return this.x[i];
+    }
+
+    double getY(int i) {
+        return this.y[i];
+    }
+
+    long getId(int i) {
+        return this.id[i];
+    }
+
+    int getPolygon(int i) {
+        return this.polygon[i];
+    }
+
+    void setPolygon(int i, int polygon) {
+        this.polygon[i] = polygon;
+    }
+
+    /**
+     * Groups the points by polygon (keeping the order they were added in),
+     *   dropping any that are not in a polygon
+     * @param polygonCount
+     * @return for each polygon, an array of the indexes of its points
+     */
+    int[][] groupByPolygon(int polygonCount) {
+
+        //count the points in each polygon
+        int[] counts = new int[polygonCount];
+        for (int i = 0; i < this.size; i++) {
+            if (this.polygon[i] >= 0) {
+                counts[this.polygon[i]]++;
+            }
+        }
+
+        //then fill in the indexes
+        int[][] groups = new int[polygonCount][];
+        for (int p = 0; p < polygonCount; p++) {
+            groups[p] = new int[counts[p]];
+            counts[p] = 0;
+        }
+        for (int i = 0; i < this.size; i++) {
+            int p = this.polygon[i];
+            if (p >= 0) {
+                groups[p][counts[p]++] = i;
+            }
+        }
+        return groups;
+    }
+}
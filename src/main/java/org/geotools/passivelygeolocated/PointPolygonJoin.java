@@ -0,0 +1,100 @@
+package org.geotools.passivelygeolocated;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.Point;
+import com.vividsolutions.jts.geom.prep.PreparedGeometry;
+import com.vividsolutions.jts.geom.prep.PreparedGeometryFactory;
+import com.vividsolutions.jts.index.ItemVisitor;
+import com.vividsolutions.jts.index.strtree.STRtree;
+import java.util.List;
+
+/**
+ * Assigns points to polygons using an STR-tree over the polygon envelopes.
+ *
+ * Each point is assigned to exactly one polygon: the first polygon (in the
+ *   order they were given) that covers it. A point inside a single polygon
+ *   goes to that polygon, and a point on a boundary shared by two or more
+ *   polygons (or inside overlapping polygons) goes to the earliest of them, so
+ *   that it is neither dropped nor counted twice.
+ *
+ * Not thread safe, as prepared geometries build their indexes lazily.
+ * @author jonnyhuck
+ */
+public class PointPolygonJoin {
+
+    private final STRtree index = new STRtree();
+    private final PreparedGeometry[] polygons;
+    private final GeometryFactory geometryFactory;
+
+    //reused for every query
+    private final Envelope queryEnvelope = new Envelope();
+    private final Coordinate queryCoordinate = new Coordinate();
+    private final CoveringPolygonVisitor visitor = new CoveringPolygonVisitor();
+
+    /**
+     * Builds the index
+     * @param polygons
+     * @param geometryFactory
+     */
+    public PointPolygonJoin(List<Geometry> polygons, GeometryFactory geometryFactory) {
+        this.geometryFactory = geometryFactory;
+        this.polygons = new PreparedGeometry[polygons.size()];
+        for (int i = 0; i < this.polygons.length; i++) {
+            Geometry polygon = polygons.get(i);
+            if (polygon == null || polygon.isEmpty()) {
+                continue;
+            }
+            this.polygons[i] = PreparedGeometryFactory.prepare(polygon);
+            this.index.insert(polygon.getEnvelopeInternal(), Integer.valueOf(i));
+        }
+        this.index.build();
+    }
+
+    /**
+     * Finds the polygon that a point belongs to
+     * @param x
+     * @param y
+     * @return the index of the polygon, or -1 if the point is not in any of them
+     */
+    public int find(double x, double y) {
+        this.queryEnvelope.init(x, x, y, y);
+        this.queryCoordinate.x = x;
+        this.queryCoordinate.y = y;
+        this.visitor.point = null;
+        this.visitor.found = -1;
+        this.index.query(this.queryEnvelope, this.visitor);
+        return this.visitor.found;
+    }
+
+    /**
+     * @return the number of polygons in the join
+     */
+    public int size() {
+        return this.polygons.length;
+    }
+
+    /**
+     * Keeps the lowest numbered polygon that covers the query point
+     */
+    private class CoveringPolygonVisitor implements ItemVisitor {
+
+        Point point;
+        int found;
+
+        public void visitItem(Object item) {
+            int i = ((Integer) item).intValue();
+            if (this.found >= 0 && i > this.found) {
+                return;
+            }
+            if (this.point == null) {
+                this.point = PointPolygonJoin.this.geometryFactory.createPoint(PointPolygonJoin.this.queryCoordinate);
+            }
+            if (PointPolygonJoin.this.polygons[i].covers(this.point)) {
+                this.found = i;
+            }
+        }
+    }
+}
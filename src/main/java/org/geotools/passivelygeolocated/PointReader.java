@@ -0,0 +1,110 @@
+package org.geotools.passivelygeolocated;
+
+import java.io.IOException;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+import org.opengis.referencing.operation.TransformException;
+
+/**
+ * Streams point coordinates (and ids) in batches, so that any number of
+ *   points can be read without holding them all in memory, moving each batch
+ *   into the CRS of the weighting surface as it is read
+ * @author jonnyhuck
+ */
+public abstract class PointReader {
+
+    //the CRS of the coordinates (null if unknown), and how they are moved into that of the weighting surface
+    private CoordinateReferenceSystem crs;
+    private Reprojection reprojection = Reprojection.IDENTITY;
+
+    //the number of rows read, and of those that had no valid coordinates
+    protected long rows = 0;
+    protected long skipped = 0;
+
+    /**
+     * Sets the CRS of the coordinates (by default they are taken to be in
+     *   that of the weighting surface)
+     * @param crs
+     */
+    public void setCoordinateReferenceSystem(CoordinateReferenceSystem crs) {
+        this.crs = crs;
+    }
+
+    /**
+     * @return the CRS of the coordinates, or null if it was not set
+     */
+    public CoordinateReferenceSystem getCoordinateReferenceSystem() {
+        return this.crs;
+    }
+
+    /**
+     * Sets how the points are moved into the CRS of the weighting surface as
+     *   each batch is read
+     * @param reprojection
+     */
+    void setReprojection(Reprojection reprojection) {
+        this.reprojection = reprojection;
+    }
+
+    /**
+     * Reads the next batch of points into the arrays
+     * @param x receives the x coordinates
+     * @param y receives the y coordinates
+     * @return the number of points read (less than the length of the arrays
+     *   only at the end of the file, and 0 once it has all been read)
+     * @throws IOException
+     */
+    public int read(double[] x, double[] y) throws IOException {
+        return this.read(x, y, null);
+    }
+
+    /**
+     * Reads the next batch of points into the arrays, with their ids
+     * @param x receives the x coordinates
+     * @param y receives the y coordinates
+     * @param ids receives the ids (may be null)
+     * @return the number of points read
+     * @throws IOException
+     */
+    public int read(double[] x, double[] y, long[] ids) throws IOException {
+        final int capacity = ids == null ? Math.min(x.length, y.length)
+                : Math.min(Math.min(x.length, y.length), ids.length);
+        final int n = this.readPoints(x, y, ids, capacity);
+        try {
+            this.reprojection.transform(x, y, n);
+        } catch (TransformException e) {
+            throw new IOException("could not reproject the points: " + e.getMessage(), e);
+        }
+        return n;
+    }
+
+    /**
+     * Reads up to capacity points, in the CRS they are held in
+     * @param x
+     * @param y
+     * @param ids (may be null)
+     * @param capacity
+     * @return the number of points read
+     * @throws IOException
+     */
+    protected abstract int readPoints(double[] x, double[] y, long[] ids, int capacity) throws IOException;
+
+    /**
+     * @return the number of rows read so far (not including any header)
+     */
+    public long getRows() {
+        return this.rows;
+    }
+
+    /**
+     * @return the number of rows that were skipped because they had no valid coordinates (or id)
+     */
+    public long getSkipped() {
+        return this.skipped;
+    }
+
+    /**
+     * Closes the file (or stream)
+     * @throws IOException
+     */
+    public abstract void close() throws IOException;
+}
@@ -0,0 +1,157 @@
+package org.geotools.passivelygeolocated;
+
+import com.vividsolutions.jts.geom.Geometry;
+
+/**
+ * A polygon, the points that fall within it and everything needed to
+ *   relocate and splat them, read up front so that the work can be shared
+ *   between threads. What does not depend on the points (the samplers and
+ *   counters) is held by the state of the polygon, which every batch of its
+ *   points shares
+ * @author jonnyhuck
+ */
+class PolygonJob {
+
+    //the index of the polygon in the order it was read, the polygon and the distance that points may be offset within it
+    final int index;
+    final Geometry polygon;
+    final double maxOffsetDistance;
+
+    //the splat for this polygon
+    final Kernel kernel;
+
+    //the coordinates of the original points, and their ids (null if they are numbered from 0)
+    final double[] x;
+    final double[] y;
+    private final long[] ids;
+
+    //the grid position of the top left of each relocated splat
+    final int[] patchX;
+    final int[] patchY;
+
+    //the relocated coordinates of each point, for each number of iterations of a sweep (null unless sweeping)
+    double[][] sweepX;
+    double[][] sweepY;
+
+    //the samplers and counters of the polygon
+    private final PolygonState state;
+
+    /**
+     * A job whose points are numbered from 0
+     * @param index
+     * @param polygon
+     * @param maxOffsetDistance
+     * @param kernel
+     * @param x
+     * @param y
+     */
+    PolygonJob(int index, Geometry polygon, double maxOffsetDistance, Kernel kernel, double[] x, double[] y) {
+        this(index, polygon, maxOffsetDistance, kernel, x, y, null);
+    }
+
+    /**
+     * A job with a state of its own
+     * @param index
+     * @param polygon
+     * @param maxOffsetDistance
+     * @param kernel
+     * @param x
+     * @param y
+     * @param ids the id of each point (its position in the input), which seeds its random stream
+     */
+    PolygonJob(int index, Geometry polygon, double maxOffsetDistance, Kernel kernel, double[] x, double[] y,
+            long[] ids) {
+        this(new PolygonState(index, polygon, maxOffsetDistance, kernel), x, y, ids);
+    }
+
+    /**
+     * A batch of points in a polygon, sharing its kernel and samplers (so
+     *   they are only built once per polygon)
+     * @param state
+     * @param x
+     * @param y
+     * @param ids the id of each point (its position in the input), which seeds its random stream
+     */
+    PolygonJob(PolygonState state, double[] x, double[] y, long[] ids) {
+        this.index = state.index;
+        this.polygon = state.polygon;
+        this.maxOffsetDistance = state.maxOffsetDistance;
+        this.kernel = state.kernel;
+        this.x = x;
+        this.y = y;
+        this.ids = ids;
+        this.patchX = new int[x.length];
+        this.patchY = new int[x.length];
+        this.state = state;
+    }
+
+    /**
+     * The same points as another job (and their relocated coordinates in a
+     *   sweep), with a different splat
+     * @param job
+     * @param kernel
+     */
+    PolygonJob(PolygonJob job, Kernel kernel) {
+        this.index = job.index;
+        this.polygon = job.polygon;
+        this.maxOffsetDistance = job.maxOffsetDistance;
+        this.kernel = kernel;
+        this.x = job.x;
+        this.y = job.y;
+        this.ids = job.ids;
+        this.patchX = new int[this.x.length];
+        this.patchY = new int[this.x.length];
+        this.sweepX = job.sweepX;
+        this.sweepY = job.sweepY;
+        this.state = job.state;
+    }
+
+    /**
+     * @param i
+     * @return the id of a point
+     */
+    long getId(int i) {
+        return this.ids == null ? i : this.ids[i];
+    }
+
+    /**
+     * @return the sampler used to draw candidate locations within the polygon
+     */
+    PolygonSampler getCandidates() {
+        return this.state.getCandidates();
+    }
+
+    /**
+     * @param sampler
+     * @param sharpness
+     * @return the distribution of weighting surface pixels within the polygon
+     */
+    PixelDistribution getPixels(WeightingSampler sampler, double sharpness) {
+        return this.state.getPixels(sampler, sharpness);
+    }
+
+    /**
+     * Records the relocation of some of the points (shared between all of the
+     *   batches of points in the polygon)
+     * @param points
+     * @param clippedSplats the number of those points whose splats overlap the edge of the surface
+     * @param nanos
+     */
+    void addRelocation(int points, int clippedSplats, long nanos) {
+        this.state.addRelocation(points, clippedSplats, nanos);
+    }
+
+    /**
+     * @return the number of points in the polygon relocated so far (in all batches)
+     */
+    long getRelocated() {
+        return this.state.getRelocated();
+    }
+
+    /**
+     * @return the number of points within the polygon
+     */
+    int size() {
+        return this.x.length;
+    }
+}
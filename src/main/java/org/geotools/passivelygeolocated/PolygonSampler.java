@@ -0,0 +1,374 @@
+package org.geotools.passivelygeolocated;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.CoordinateSequence;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.Polygon;
+import com.vividsolutions.jts.geom.prep.PreparedGeometry;
+import com.vividsolutions.jts.geom.prep.PreparedGeometryFactory;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Draws random locations within a polygon, either around a point (at a
+ *   uniform distance up to a maximum and a uniform azimuth, as the original
+ *   rejection loop did) or uniformly over the polygon.
+ *
+ * The polygon is rasterised once into a mask of square cells, each of which
+ *   is either inside the polygon, outside it, or crossed by its boundary.
+ *   Locations in inside cells are accepted without any geometry test, those
+ *   in outside cells are rejected without one, and only those in boundary
+ *   cells are tested against the (prepared) polygon. Uniform locations are
+ *   drawn by picking a random inside or boundary cell and then a random
+ *   position within it, so they are never in outside cells.
+ * @author jonnyhuck
+ */
+public class PolygonSampler {
+
+    //the approximate number of cells that the area of the polygon is split into
+    static final int TARGET_CELLS = 256;
+
+    //the most cells allowed across the whole envelope of the polygon
+    static final int MAX_MASK_CELLS = 1 << 16;
+
+    //the number of rejected draws after which a candidate is given up on (or, for a radial one, drawn uniformly)
+    static final int MAX_ATTEMPTS = 1000;
+
+    private final PreparedGeometry polygon;
+    private final GeometryFactory geometryFactory;
+
+    //the mask: origin, cell size and number of columns and rows, what each cell is, plus the cells to draw from
+    private final double minX;
+    private final double minY;
+    private final double cellSize;
+    private final int cols;
+    private final int rows;
+    private final byte[] cells;
+    private final int[] inside;
+    private final int[] boundary;
+
+    //what a cell of the mask is
+    private static final byte OUTSIDE = 0;
+    private static final byte INSIDE = 1;
+    private static final byte BOUNDARY = 2;
+
+    //how much work the sampler has done
+    private final LongAdder candidates = new LongAdder();
+    private final LongAdder geometryTests = new LongAdder();
+    private final LongAdder rejections = new LongAdder();
+    private final LongAdder fallbacks = new LongAdder();
+    private final LongAdder exhausted = new LongAdder();
+
+    /**
+     * Builds the mask for a polygon
+     * @param polygon
+     * @param geometryFactory
+     */
+    public PolygonSampler(Geometry polygon, GeometryFactory geometryFactory) {
+        this.geometryFactory = geometryFactory;
+        this.polygon = PreparedGeometryFactory.prepare(polygon);
+
+        //size the cells from the area, then make sure the mask doesn't get too big
+        Envelope envelope = polygon.getEnvelopeInternal();
+        double area = polygon.getArea();
+        double size = Math.sqrt(area / TARGET_CELLS);
+        if (!(size > 0) || envelope.getWidth() <= 0 || envelope.getHeight() <= 0) {
+            //nothing to draw from (e.g. a polygon with no area)
+            this.minX = envelope.getMinX();
+            this.minY = envelope.getMinY();
+            this.cellSize = 0;
+            this.cols = 0;
+            this.rows = 0;
+            this.cells = new byte[0];
+            this.inside = new int[0];
+            this.boundary = new int[0];
+            return;
+        }
+        double cells = Math.ceil(envelope.getWidth() / size) * Math.ceil(envelope.getHeight() / size);
+        if (cells > MAX_MASK_CELLS) {
+            size *= Math.sqrt(cells / MAX_MASK_CELLS);
+        }
+        this.minX = envelope.getMinX();
+        this.minY = envelope.getMinY();
+        this.cellSize = size;
+        this.cols = Math.max(1, (int) Math.ceil(envelope.getWidth() / size));
+        final int rows = Math.max(1, (int) Math.ceil(envelope.getHeight() / size));
+        this.rows = rows;
+
+        //mark the cells crossed by the boundary, and find where it crosses the middle of each row
+        boolean[] onBoundary = new boolean[this.cols * rows];
+        double[][] crossings = new double[rows][4];
+        int[] crossingCount = new int[rows];
+        for (int g = 0; g < polygon.getNumGeometries(); g++) {
+            if (!(polygon.getGeometryN(g) instanceof Polygon)) {
+                continue;
+            }
+            Polygon part = (Polygon) polygon.getGeometryN(g);
+            this.rasteriseRing(part.getExteriorRing().getCoordinateSequence(), rows, onBoundary, crossings, crossingCount);
+            for (int h = 0; h < part.getNumInteriorRing(); h++) {
+                this.rasteriseRing(part.getInteriorRingN(h).getCoordinateSequence(), rows, onBoundary, crossings, crossingCount);
+            }
+        }
+
+        //any other cell is inside if its centre is between a pair of crossings (even-odd rule)
+        this.cells = new byte[onBoundary.length];
+        int[] insideCells = new int[onBoundary.length];
+        int[] boundaryCells = new int[onBoundary.length];
+        int nInside = 0;
+        int nBoundary = 0;
+        for (int row = 0; row < rows; row++) {
+            double[] xs = crossings[row];
+            Arrays.sort(xs, 0, crossingCount[row]);
+            int next = 0;
+            for (int col = 0; col < this.cols; col++) {
+                int cell = row * this.cols + col;
+                if (onBoundary[cell]) {
+                    this.cells[cell] = BOUNDARY;
+                    boundaryCells[nBoundary++] = cell;
+                    continue;
+                }
+                double centre = this.minX + (col + 0.5) * this.cellSize;
+                while (next < crossingCount[row] && xs[next] <= centre) {
+                    next++;
+                }
+                if (next % 2 == 1) {
+                    this.cells[cell] = INSIDE;
+                    insideCells[nInside++] = cell;
+                }
+            }
+        }
+        this.inside = Arrays.copyOf(insideCells, nInside);
+        this.boundary = Arrays.copyOf(boundaryCells, nBoundary);
+
+        //prepared geometries build their indexes on first use, so do that now rather than on a worker
+        this.polygon.covers(polygon.getInteriorPoint());
+    }
+
+    /**
+     * Marks the cells crossed by the segments of a ring, and records where the
+     *   segments cross the middle of each row
+     * @param ring
+     * @param rows
+     * @param onBoundary
+     * @param crossings
+     * @param crossingCount
+     */
+    private void rasteriseRing(CoordinateSequence ring, int rows, boolean[] onBoundary,
+            double[][] crossings, int[] crossingCount) {
+
+        for (int i = 1; i < ring.size(); i++) {
+            final double x0 = ring.getX(i - 1);
+            final double y0 = ring.getY(i - 1);
+            final double x1 = ring.getX(i);
+            final double y1 = ring.getY(i);
+            final int firstRow = this.clamp((int) Math.floor((Math.min(y0, y1) - this.minY) / this.cellSize), rows);
+            final int lastRow = this.clamp((int) Math.floor((Math.max(y0, y1) - this.minY) / this.cellSize), rows);
+
+            for (int row = firstRow; row <= lastRow; row++) {
+
+                //the part of the segment within this row
+                final double bottom = this.minY + row * this.cellSize;
+                final double top = bottom + this.cellSize;
+                double xa = Math.min(x0, x1);
+                double xb = Math.max(x0, x1);
+                if (y0 != y1) {
+                    final double ya = Math.max(bottom, Math.min(y0, y1));
+                    final double yb = Math.min(top, Math.max(y0, y1));
+                    final double xAtA = x0 + (ya - y0) * (x1 - x0) / (y1 - y0);
+                    final double xAtB = x0 + (yb - y0) * (x1 - x0) / (y1 - y0);
+                    xa = Math.min(xAtA, xAtB);
+                    xb = Math.max(xAtA, xAtB);
+                }
+                final int firstCol = this.clamp((int) Math.floor((xa - this.minX) / this.cellSize), this.cols);
+                final int lastCol = this.clamp((int) Math.floor((xb - this.minX) / this.cellSize), this.cols);
+                for (int col = firstCol; col <= lastCol; col++) {
+                    onBoundary[row * this.cols + col] = true;
+                }
+
+                //where the segment crosses the middle of the row (half open, so vertices aren't counted twice)
+                final double middle = bottom + this.cellSize / 2;
+                if ((y0 <= middle) != (y1 <= middle)) {
+                    if (crossingCount[row] == crossings[row].length) {
+                        crossings[row] = Arrays.copyOf(crossings[row], crossings[row].length * 2);
+                    }
+                    crossings[row][crossingCount[row]++] = x0 + (middle - y0) * (x1 - x0) / (y1 - y0);
+                }
+            }
+        }
+    }
+
+    private int clamp(int i, int n) {
+        return i < 0 ? 0 : (i >= n ? n - 1 : i);
+    }
+
+    /**
+     * Draws a random location uniformly distributed within the polygon
+     * @param rng
+     * @param out receives the x and y of the location
+     * @return false if no location could be found (e.g. the polygon has no area)
+     */
+    public boolean next(SplittableRandom rng, double[] out) {
+        final int total = this.inside.length + this.boundary.length;
+        if (total == 0) {
+            this.exhausted.increment();
+            return false;
+        }
+        int tests = 0;
+        int rejected = 0;
+        try {
+            for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+
+                //pick a cell, then a position within it
+                final int k = rng.nextInt(total);
+                final int cell = k < this.inside.length ? this.inside[k] : this.boundary[k - this.inside.length];
+                final double x = this.minX + (cell % this.cols + rng.nextDouble()) * this.cellSize;
+                final double y = this.minY + (cell / this.cols + rng.nextDouble()) * this.cellSize;
+
+                //only locations in boundary cells need testing
+                if (k >= this.inside.length) {
+                    tests++;
+                    if (!this.polygon.covers(this.geometryFactory.createPoint(new Coordinate(x, y)))) {
+                        rejected++;
+                        continue;
+                    }
+                }
+                out[0] = x;
+                out[1] = y;
+                this.candidates.increment();
+                return true;
+            }
+            this.exhausted.increment();
+            return false;
+        } finally {
+            if (tests > 0) {
+                this.geometryTests.add(tests);
+                this.rejections.add(rejected);
+            }
+        }
+    }
+
+    /**
+     * Draws a random location within the polygon at a distance drawn uniformly
+     *   from [0, maxDistance) and an azimuth drawn uniformly from a point, as
+     *   the original rejection loop did (so locations are denser nearer the
+     *   point). Locations outside the polygon are drawn again, and if none of
+     *   MAX_ATTEMPTS of them is within it (e.g. a thin polygon far from the
+     *   point) the location is drawn uniformly over the polygon instead, so
+     *   that the point is still scored on as many candidates.
+     * @param rng
+     * @param x the x of the point
+     * @param y the y of the point
+     * @param maxDistance
+     * @param out receives the x and y of the location
+     * @return false if no location could be found (e.g. the polygon has no area)
+     */
+    public boolean next(SplittableRandom rng, double x, double y, double maxDistance, double[] out) {
+        if (this.inside.length + this.boundary.length == 0) {
+            this.exhausted.increment();
+            return false;
+        }
+        int tests = 0;
+        int rejected = 0;
+        try {
+            for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+
+                //offset the point
+                final double distance = rng.nextDouble() * maxDistance;
+                final double azimuth = rng.nextDouble() * 2 * Math.PI;
+                final double cx = x + Math.sin(azimuth) * distance;
+                final double cy = y + Math.cos(azimuth) * distance;
+
+                //only locations in boundary cells need testing
+                final byte cell = this.getCell(cx, cy);
+                if (cell == BOUNDARY) {
+                    tests++;
+                    if (!this.polygon.covers(this.geometryFactory.createPoint(new Coordinate(cx, cy)))) {
+                        rejected++;
+                        continue;
+                    }
+                } else if (cell == OUTSIDE) {
+                    rejected++;
+                    continue;
+                }
+                out[0] = cx;
+                out[1] = cy;
+                this.candidates.increment();
+                return true;
+            }
+        } finally {
+            if (tests > 0 || rejected > 0) {
+                this.geometryTests.add(tests);
+                this.rejections.add(rejected);
+            }
+        }
+
+        //out of reach
+        this.fallbacks.increment();
+        return this.next(rng, out);
+    }
+
+    /**
+     * @param x
+     * @param y
+     * @return what the cell of the mask containing a location is (OUTSIDE if it is beyond the mask)
+     */
+    private byte getCell(double x, double y) {
+        final double col = Math.floor((x - this.minX) / this.cellSize);
+        final double row = Math.floor((y - this.minY) / this.cellSize);
+        if (!(col >= 0 && col < this.cols && row >= 0 && row < this.rows)) {
+            return OUTSIDE;
+        }
+        return this.cells[(int) row * this.cols + (int) col];
+    }
+
+    /**
+     * @return the proportion of the mask (inside plus boundary cells) that
+     *   candidates are accepted from without a geometry test
+     */
+    public double getInsideFraction() {
+        final int total = this.inside.length + this.boundary.length;
+        return total == 0 ? 0 : (double) this.inside.length / total;
+    }
+
+    /**
+     * @return the number of candidates drawn so far
+     */
+    public long getCandidates() {
+        return this.candidates.sum();
+    }
+
+    /**
+     * @return the number of geometry tests carried out so far
+     */
+    public long getGeometryTests() {
+        return this.geometryTests.sum();
+    }
+
+    /**
+     * @return the number of locations drawn so far that turned out to be
+     *   outside the polygon (so were drawn again)
+     */
+    public long getRejections() {
+        return this.rejections.sum();
+    }
+
+    /**
+     * @return the number of radial candidates that were drawn uniformly over
+     *   the polygon instead, as none of MAX_ATTEMPTS draws around the point
+     *   were within it
+     */
+    public long getFallbacks() {
+        return this.fallbacks.sum();
+    }
+
+    /**
+     * @return the number of candidates that could not be drawn at all (so
+     *   their point was scored on fewer than n)
+     */
+    public long getExhausted() {
+        return this.exhausted.sum();
+    }
+}
@@ -0,0 +1,127 @@
+package org.geotools.passivelygeolocated;
+
+import com.vividsolutions.jts.geom.Geometry;
+import java.util.concurrent.atomic.AtomicLong;
+import org.geotools.geometry.jts.JTSFactoryFinder;
+
+/**
+ * What the jobs of a polygon share over a run: the polygon, its splat, the
+ *   samplers that are built for it and its counters. It holds no points, so
+ *   keeping one for every polygon while the points are streamed through in
+ *   batches does not keep any of the batches
+ * @author jonnyhuck
+ */
+class PolygonState {
+
+    //the index of the polygon in the order it was read, the polygon and the distance that points may be offset within it
+    final int index;
+    final Geometry polygon;
+    final double maxOffsetDistance;
+
+    //the splat for this polygon
+    final Kernel kernel;
+
+    //draws candidate locations within the polygon (built on first use)
+    private volatile PolygonSampler candidates;
+
+    //draws weighting surface pixels within the polygon (built on first use, and again if the sharpness changes)
+    private volatile PixelDistribution pixels;
+
+    //the points relocated so far, how long that took, and how many of their splats overlap the edge of the surface
+    private final AtomicLong relocated = new AtomicLong();
+    private final AtomicLong relocationNanos = new AtomicLong();
+    private final AtomicLong clipped = new AtomicLong();
+
+    /**
+     *
+     * @param index
+     * @param polygon
+     * @param maxOffsetDistance
+     * @param kernel
+     */
+    PolygonState(int index, Geometry polygon, double maxOffsetDistance, Kernel kernel) {
+        this.index = index;
+        this.polygon = polygon;
+        this.maxOffsetDistance = maxOffsetDistance;
+        this.kernel = kernel;
+
+        //make sure the lazily cached envelope is built before the polygon is shared
+        polygon.getEnvelopeInternal();
+    }
+
+    /**
+     * @return the sampler used to draw candidate locations within the polygon
+     */
+    PolygonSampler getCandidates() {
+        PolygonSampler sampler = this.candidates;
+        if (sampler == null) {
+            synchronized (this) {
+                sampler = this.candidates;
+                if (sampler == null) {
+                    sampler = new PolygonSampler(this.polygon, JTSFactoryFinder.getGeometryFactory(null));
+                    this.candidates = sampler;
+                }
+            }
+        }
+        return sampler;
+    }
+
+    /**
+     * @param sampler
+     * @param sharpness
+     * @return the distribution of weighting surface pixels within the polygon
+     */
+    PixelDistribution getPixels(WeightingSampler sampler, double sharpness) {
+        PixelDistribution distribution = this.pixels;
+        if (distribution == null || distribution.getSharpness() != sharpness) {
+            synchronized (this) {
+                distribution = this.pixels;
+                if (distribution == null || distribution.getSharpness() != sharpness) {
+                    distribution = new PixelDistribution(this.polygon, sampler, sharpness);
+                    this.pixels = distribution;
+                }
+            }
+        }
+        return distribution;
+    }
+
+    /**
+     * @return the sampler, or null if no candidates have been drawn
+     */
+    PolygonSampler getCandidatesIfBuilt() {
+        return this.candidates;
+    }
+
+    /**
+     * Records the relocation of some of the points
+     * @param points
+     * @param clippedSplats the number of those points whose splats overlap the edge of the surface
+     * @param nanos
+     */
+    void addRelocation(int points, int clippedSplats, long nanos) {
+        this.relocated.addAndGet(points);
+        this.clipped.addAndGet(clippedSplats);
+        this.relocationNanos.addAndGet(nanos);
+    }
+
+    /**
+     * @return the number of points in the polygon relocated so far (in all batches)
+     */
+    long getRelocated() {
+        return this.relocated.get();
+    }
+
+    /**
+     * @return the time spent relocating points in the polygon so far (in all batches)
+     */
+    long getRelocationNanos() {
+        return this.relocationNanos.get();
+    }
+
+    /**
+     * @return the number of splats in the polygon so far that overlap the edge of the surface
+     */
+    long getClipped() {
+        return this.clipped.get();
+    }
+}
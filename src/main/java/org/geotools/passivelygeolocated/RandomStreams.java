@@ -0,0 +1,66 @@
+package org.geotools.passivelygeolocated;
+
+import java.util.SplittableRandom;
+
+/**
+ * Derives a random stream for each point from a master seed, the index of
+ *   its polygon and the id of the point (its position in the input), so the
+ *   locations a point is relocated to do not depend on which thread handles
+ *   it, or when. The same seed therefore gives the same surface whatever the
+ *   number of threads.
+ * @author jonnyhuck
+ */
+class RandomStreams {
+
+    //the odd constant used by SplittableRandom to step between seeds
+    private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+
+    private final long seed;
+
+    /**
+     * @param seed the master seed
+     */
+    RandomStreams(long seed) {
+        this.seed = seed;
+    }
+
+    /**
+     * @return the master seed
+     */
+    long getSeed() {
+        return this.seed;
+    }
+
+    /**
+     * @param realisation the index of a realisation of an ensemble
+     * @return the streams for a realisation (the first uses these streams,
+     *   so that it matches a single run with the same seed)
+     */
+    RandomStreams forRealisation(int realisation) {
+        if (realisation == 0) {
+            return this;
+        }
+        return new RandomStreams(mix(this.seed - GOLDEN_GAMMA * realisation));
+    }
+
+    /**
+     * @param polygon the index of the polygon containing the point
+     * @param point the id of the point
+     * @return the stream for a point (the same for the same arguments)
+     */
+    SplittableRandom forPoint(int polygon, long point) {
+        final long polygonSeed = mix(this.seed + GOLDEN_GAMMA * (polygon + 1L));
+        return new SplittableRandom(mix(polygonSeed + GOLDEN_GAMMA * (point + 1)));
+    }
+
+    /**
+     * The SplitMix64 finaliser, which spreads nearby values over all 64 bits
+     * @param z
+     * @return
+     */
+    static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+}
@@ -0,0 +1,170 @@
+package org.geotools.passivelygeolocated;
+
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferDouble;
+import java.awt.image.DataBufferFloat;
+import java.awt.image.WritableRaster;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+
+/**
+ * Adds splats straight into the data array behind a (double or float)
+ *   writable raster
+ * @author jonnyhuck
+ */
+class RasterSurfaceBuffer extends SurfaceBuffer {
+
+    private final WritableRaster raster;
+
+    //one of these is used, depending on the type of the raster
+    private final double[] data;
+    private final float[] floatData;
+
+    private final int offset;
+    private final int scanlineStride;
+    private final int pixelStride;
+
+    /**
+     * Wraps the first band of a raster
+     * @param raster a raster with a DataBufferDouble or DataBufferFloat and a component sample model
+     */
+    RasterSurfaceBuffer(WritableRaster raster) {
+        super(raster.getWidth(), raster.getHeight(),
+                raster.getDataBuffer().getDataType() == DataBuffer.TYPE_FLOAT ? Precision.FLOAT : Precision.DOUBLE);
+        this.raster = raster;
+        ComponentSampleModel sm = (ComponentSampleModel) raster.getSampleModel();
+        DataBuffer db = raster.getDataBuffer();
+        int bank = sm.getBankIndices()[0];
+        if (this.precision == Precision.FLOAT) {
+            this.data = null;
+            this.floatData = ((DataBufferFloat) db).getData(bank);
+        } else {
+            this.data = ((DataBufferDouble) db).getData(bank);
+            this.floatData = null;
+        }
+        this.scanlineStride = sm.getScanlineStride();
+        this.pixelStride = sm.getPixelStride();
+        this.offset = db.getOffsets()[bank] + sm.getBandOffsets()[0]
+                + (raster.getMinY() - raster.getSampleModelTranslateY()) * this.scanlineStride
+                + (raster.getMinX() - raster.getSampleModelTranslateX()) * this.pixelStride;
+    }
+
+    @Override
+    protected void addRow(double[] values, int k, int row, int left, int right, double scale) {
+        int d = this.offset + row * this.scanlineStride + left * this.pixelStride;
+        if (this.floatData != null) {
+            for (int col = left; col < right; col++) {
+                this.floatData[d] += (float) (values[k++] * scale);
+                d += this.pixelStride;
+            }
+        } else if (scale == 1) {
+            for (int col = left; col < right; col++) {
+                this.data[d] += values[k++];
+                d += this.pixelStride;
+            }
+        } else {
+            for (int col = left; col < right; col++) {
+                this.data[d] += values[k++] * scale;
+                d += this.pixelStride;
+            }
+        }
+    }
+
+    @Override
+    protected void addRow(float[] values, int k, int row, int left, int right, float scale) {
+        int d = this.offset + row * this.scanlineStride + left * this.pixelStride;
+        if (this.floatData == null) {
+            for (int col = left; col < right; col++) {
+                this.data[d] += values[k++] * scale;
+                d += this.pixelStride;
+            }
+        } else if (scale == 1) {
+            for (int col = left; col < right; col++) {
+                this.floatData[d] += values[k++];
+                d += this.pixelStride;
+            }
+        } else {
+            for (int col = left; col < right; col++) {
+                this.floatData[d] += values[k++] * scale;
+                d += this.pixelStride;
+            }
+        }
+    }
+
+    @Override
+    void getRow(int row, double[] values) {
+        int d = this.offset + row * this.scanlineStride;
+        if (this.floatData != null) {
+            for (int col = 0; col < this.width; col++) {
+                values[col] = this.floatData[d];
+                d += this.pixelStride;
+            }
+        } else {
+            for (int col = 0; col < this.width; col++) {
+                values[col] = this.data[d];
+                d += this.pixelStride;
+            }
+        }
+    }
+
+    @Override
+    ByteBuffer copyTile(int tx, int ty) {
+        final int size = this.getTileSize();
+        final int left = tx * size;
+        final int right = Math.min(left + size, this.width);
+        final int top = ty * size;
+        final int bottom = Math.min(top + size, this.height);
+        ByteBuffer tile = ByteBuffer.allocate(size * size * (this.floatData != null ? 4 : 8));
+
+        //(a tile that is all 0 is left out, as reading it back would add nothing)
+        boolean empty = true;
+        if (this.floatData != null) {
+            FloatBuffer values = tile.asFloatBuffer();
+            for (int row = top; row < bottom; row++) {
+                int d = this.offset + row * this.scanlineStride + left * this.pixelStride;
+                values.position((row - top) * size);
+                for (int col = left; col < right; col++) {
+                    values.put(this.floatData[d]);
+                    empty &= Float.floatToRawIntBits(this.floatData[d]) == 0;
+                    d += this.pixelStride;
+                }
+            }
+        } else {
+            DoubleBuffer values = tile.asDoubleBuffer();
+            for (int row = top; row < bottom; row++) {
+                int d = this.offset + row * this.scanlineStride + left * this.pixelStride;
+                values.position((row - top) * size);
+                for (int col = left; col < right; col++) {
+                    values.put(this.data[d]);
+                    empty &= Double.doubleToRawLongBits(this.data[d]) == 0;
+                    d += this.pixelStride;
+                }
+            }
+        }
+        return empty ? null : tile;
+    }
+
+    @Override
+    void clear() {
+        for (int row = 0; row < this.height; row++) {
+            int d = this.offset + row * this.scanlineStride;
+            for (int col = 0; col < this.width; col++) {
+                if (this.floatData != null) {
+                    this.floatData[d] = 0;
+                } else {
+                    this.data[d] = 0;
+                }
+                d += this.pixelStride;
+            }
+        }
+    }
+
+    /**
+     * @return the raster that the splats are added to
+     */
+    WritableRaster getRaster() {
+        return this.raster;
+    }
+}
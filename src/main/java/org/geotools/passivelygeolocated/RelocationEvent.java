@@ -0,0 +1,29 @@
+package org.geotools.passivelygeolocated;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * JFR event for the relocation of a chunk of the points in a polygon (up to
+ *   RelocationTask.POINT_CHUNK of them), so that slow polygons stand out
+ * @author jonnyhuck
+ */
+@Name("org.geotools.passivelygeolocated.Relocation")
+@Label("WFR Relocation")
+@Category("Weighted Fuzzy Relocation")
+@Description("Relocation of some of the points in a polygon")
+class RelocationEvent extends jdk.jfr.Event {
+
+    @Label("Polygon")
+    @Description("The index of the polygon, in the order the polygons were read")
+    int polygon;
+
+    @Label("Points")
+    int points;
+
+    @Label("Clipped Splats")
+    @Description("The number of the relocated splats that overlap the edge of the surface")
+    int clipped;
+}
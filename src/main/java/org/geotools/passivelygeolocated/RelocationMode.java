@@ -0,0 +1,20 @@
+package org.geotools.passivelygeolocated;
+
+/**
+ * The ways in which a point can be relocated within its polygon
+ * @author jonnyhuck
+ */
+public enum RelocationMode {
+
+    /**
+     * Draw n random candidate locations and keep the one with the highest
+     *   weighting surface value (the original algorithm)
+     */
+    BEST_OF_N,
+
+    /**
+     * Draw a single weighting surface pixel from the polygon, in proportion to
+     *   its value raised to the power of the sharpness (see PixelDistribution)
+     */
+    ALIAS
+}
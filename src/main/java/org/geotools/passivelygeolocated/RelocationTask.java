@@ -0,0 +1,169 @@
+package org.geotools.passivelygeolocated;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.Point;
+import java.util.List;
+import java.util.concurrent.RecursiveAction;
+import org.geotools.geometry.jts.JTSFactoryFinder;
+
+/**
+ * Fork-join task that relocates the points of a range of polygons. Ranges are
+ *   split in half until a single polygon remains, and polygons with a lot of
+ *   points are split again into chunks of points, so that idle workers can
+ *   steal the remaining work however unevenly the points are spread
+ * @author jonnyhuck
+ */
+class RelocationTask extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+
+    //the largest number of points relocated by a single task
+    static final int POINT_CHUNK = 256;
+
+    private final WeightedFuzzy wf;
+    private final List<PolygonJob> jobs;
+    private final WeightingSampler sampler;
+    private final RandomStreams streams;
+    private final int relocationIterations;
+    private final int pxSize;
+
+    //in a sweep, the numbers of iterations to relocate the points with, and the first level of the sweep they are
+    //  stored at (null if the patch origins are found instead)
+    private final int[] sweep;
+    private final int firstLevel;
+
+    //the range of polygons (and points within the first polygon) to process
+    private final int firstJob;
+    private final int lastJob;
+    private final int firstPoint;
+    private final int lastPoint;
+
+    /**
+     * Relocate every point in every polygon in the list
+     * @param wf
+     * @param jobs
+     * @param sampler
+     * @param streams the random stream of each point
+     * @param relocationIterations
+     * @param pxSize
+     */
+    RelocationTask(WeightedFuzzy wf, List<PolygonJob> jobs, WeightingSampler sampler, RandomStreams streams,
+            int relocationIterations, int pxSize) {
+        this(wf, jobs, sampler, streams, relocationIterations, pxSize, null, 0, 0, jobs.size(), 0, -1);
+    }
+
+    /**
+     * Relocate every point in every polygon in the list once for each of a
+     *   number of iterations, keeping the relocated coordinates in the sweep
+     *   arrays of the jobs
+     * @param wf
+     * @param jobs
+     * @param sampler
+     * @param streams
+     * @param sweep the numbers of iterations, in ascending order
+     * @param firstLevel the level of the sweep arrays that the first is stored at
+     */
+    RelocationTask(WeightedFuzzy wf, List<PolygonJob> jobs, WeightingSampler sampler, RandomStreams streams,
+            int[] sweep, int firstLevel) {
+        this(wf, jobs, sampler, streams, 0, 0, sweep, firstLevel, 0, jobs.size(), 0, -1);
+    }
+
+    private RelocationTask(WeightedFuzzy wf, List<PolygonJob> jobs, WeightingSampler sampler, RandomStreams streams,
+            int relocationIterations, int pxSize, int[] sweep, int firstLevel, int firstJob, int lastJob,
+            int firstPoint, int lastPoint) {
+        this.wf = wf;
+        this.jobs = jobs;
+        this.sampler = sampler;
+        this.streams = streams;
+        this.relocationIterations = relocationIterations;
+        this.pxSize = pxSize;
+        this.sweep = sweep;
+        this.firstLevel = firstLevel;
+        this.firstJob = firstJob;
+        this.lastJob = lastJob;
+        this.firstPoint = firstPoint;
+        this.lastPoint = lastPoint;
+    }
+
+    @Override
+    protected void compute() {
+
+        //split the polygons in half
+        if (this.lastJob - this.firstJob > 1) {
+            int mid = (this.firstJob + this.lastJob) >>> 1;
+            invokeAll(this.subTask(this.firstJob, mid, 0, -1), this.subTask(mid, this.lastJob, 0, -1));
+            return;
+        }
+        if (this.firstJob == this.lastJob) {
+            return;
+        }
+
+        //split the points of a single polygon in half
+        PolygonJob job = this.jobs.get(this.firstJob);
+        int last = this.lastPoint < 0 ? job.size() : this.lastPoint;
+        if (last - this.firstPoint > POINT_CHUNK) {
+            int mid = (this.firstPoint + last) >>> 1;
+            invokeAll(this.subTask(this.firstJob, this.lastJob, this.firstPoint, mid),
+                    this.subTask(this.firstJob, this.lastJob, mid, last));
+            return;
+        }
+
+        //relocate the points
+        RelocationEvent event = new RelocationEvent();
+        event.begin();
+        final long start = System.nanoTime();
+        if (this.sweep != null) {
+            double[] outX = new double[this.sweep.length];
+            double[] outY = new double[this.sweep.length];
+            for (int i = this.firstPoint; i < last; i++) {
+                this.wf.relocate(job, i, this.sweep, this.sampler, this.streams, outX, outY);
+                for (int l = 0; l < this.sweep.length; l++) {
+                    job.sweepX[this.firstLevel + l][i] = outX[l];
+                    job.sweepY[this.firstLevel + l][i] = outY[l];
+                }
+            }
+            job.addRelocation(last - this.firstPoint, 0, System.nanoTime() - start);
+            event.end();
+            if (event.shouldCommit()) {
+                event.polygon = job.index;
+                event.points = last - this.firstPoint;
+                event.commit();
+            }
+            return;
+        }
+        GeometryFactory geometryFactory = JTSFactoryFinder.getGeometryFactory(null);
+        int[] topLeft = new int[2];
+        int clipped = 0;
+        for (int i = this.firstPoint; i < last; i++) {
+
+            //offset the point, then get the position of the top left of the patch
+            Point point = geometryFactory.createPoint(new Coordinate(job.x[i], job.y[i]));
+            Point offsetPoint = this.wf.relocate(point, job, this.relocationIterations, this.sampler,
+                    this.streams.forPoint(job.index, job.getId(i)));
+            this.wf.getPatchOrigin(offsetPoint.getX(), offsetPoint.getY(), job.kernel.span, this.pxSize,
+                    this.sampler, topLeft);
+            job.patchX[i] = topLeft[0];
+            job.patchY[i] = topLeft[1];
+
+            //count the splats that overlap the edge of the surface (these used to be dropped)
+            if (topLeft[0] < 0 || topLeft[1] < 0 || topLeft[0] + job.kernel.span > this.sampler.getWidth()
+                    || topLeft[1] + job.kernel.span > this.sampler.getHeight()) {
+                clipped++;
+            }
+        }
+        job.addRelocation(last - this.firstPoint, clipped, System.nanoTime() - start);
+        event.end();
+        if (event.shouldCommit()) {
+            event.polygon = job.index;
+            event.points = last - this.firstPoint;
+            event.clipped = clipped;
+            event.commit();
+        }
+    }
+
+    private RelocationTask subTask(int firstJob, int lastJob, int firstPoint, int lastPoint) {
+        return new RelocationTask(this.wf, this.jobs, this.sampler, this.streams, this.relocationIterations,
+                this.pxSize, this.sweep, this.firstLevel, firstJob, lastJob, firstPoint, lastPoint);
+    }
+}
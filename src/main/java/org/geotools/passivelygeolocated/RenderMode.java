@@ -0,0 +1,20 @@
+package org.geotools.passivelygeolocated;
+
+/**
+ * The ways in which the relocated points can be rendered onto the surface
+ * @author jonnyhuck
+ */
+public enum RenderMode {
+
+    /**
+     * Add a splat to the surface for every point
+     */
+    SPLAT,
+
+    /**
+     * Count the points at each location for each size of splat, then apply
+     *   each splat once per location (or convolve the counts with it) - see
+     *   CountGridRenderer
+     */
+    COUNT_GRID
+}
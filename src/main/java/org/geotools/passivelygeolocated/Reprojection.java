@@ -0,0 +1,109 @@
+package org.geotools.passivelygeolocated;
+
+import com.vividsolutions.jts.geom.Geometry;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import org.geotools.geometry.jts.JTS;
+import org.geotools.referencing.CRS;
+import org.opengis.referencing.FactoryException;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+import org.opengis.referencing.operation.MathTransform;
+import org.opengis.referencing.operation.TransformException;
+
+/**
+ * Moves points and polygons from the CRS they were read in to that of the
+ *   weighting surface. This is done once, as they are read, so that nothing
+ *   after that (and none of the loops over points and candidates) needs the
+ *   referencing subsystem.
+ * @author jonnyhuck
+ */
+class Reprojection {
+
+    //for inputs that are already in the CRS of the weighting surface (or have no CRS)
+    static final Reprojection IDENTITY = new Reprojection(null);
+
+    //the number of points transformed at a time
+    private static final int CHUNK = 4096;
+
+    //the reprojections found so far, by source and target CRS
+    private static final ConcurrentMap<List<CoordinateReferenceSystem>, Reprojection> CACHE
+            = new ConcurrentHashMap<List<CoordinateReferenceSystem>, Reprojection>();
+
+    private final MathTransform transform;
+
+    private Reprojection(MathTransform transform) {
+        this.transform = transform;
+    }
+
+    /**
+     * Gets the reprojection between two CRSs, which is the identity if either
+     *   is unknown or they are the same
+     * @param source the CRS of the input (null if unknown)
+     * @param target the CRS of the weighting surface (null if unknown)
+     * @return
+     * @throws FactoryException if there is no transform between them
+     */
+    static Reprojection get(CoordinateReferenceSystem source, CoordinateReferenceSystem target)
+            throws FactoryException {
+        if (source == null || target == null || CRS.equalsIgnoreMetadata(source, target)) {
+            return IDENTITY;
+        }
+        List<CoordinateReferenceSystem> key = Arrays.asList(source, target);
+        Reprojection reprojection = CACHE.get(key);
+        if (reprojection == null) {
+
+            //(lenient, so that a missing datum shift gives an approximate transform rather than none)
+            MathTransform transform = CRS.findMathTransform(source, target, true);
+            reprojection = transform.isIdentity() ? IDENTITY : new Reprojection(transform);
+            CACHE.putIfAbsent(key, reprojection);
+        }
+        return reprojection;
+    }
+
+    /**
+     * @return true if nothing is moved
+     */
+    boolean isIdentity() {
+        return this.transform == null;
+    }
+
+    /**
+     * @param geometry
+     * @return the geometry in the target CRS
+     * @throws TransformException
+     */
+    Geometry transform(Geometry geometry) throws TransformException {
+        if (this.transform == null || geometry == null) {
+            return geometry;
+        }
+        return JTS.transform(geometry, this.transform);
+    }
+
+    /**
+     * Transforms the first count points of a pair of coordinate arrays in place
+     * @param x
+     * @param y
+     * @param count
+     * @throws TransformException
+     */
+    void transform(double[] x, double[] y, int count) throws TransformException {
+        if (this.transform == null) {
+            return;
+        }
+        double[] buffer = new double[2 * Math.min(count, CHUNK)];
+        for (int start = 0; start < count; start += CHUNK) {
+            final int n = Math.min(CHUNK, count - start);
+            for (int i = 0; i < n; i++) {
+                buffer[2 * i] = x[start + i];
+                buffer[2 * i + 1] = y[start + i];
+            }
+            this.transform.transform(buffer, 0, buffer, 0, n);
+            for (int i = 0; i < n; i++) {
+                x[start + i] = buffer[2 * i];
+                y[start + i] = buffer[2 * i + 1];
+            }
+        }
+    }
+}
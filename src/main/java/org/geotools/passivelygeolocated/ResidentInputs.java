@@ -0,0 +1,119 @@
+package org.geotools.passivelygeolocated;
+
+import com.vividsolutions.jts.geom.Geometry;
+import java.io.File;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import org.geotools.coverage.grid.GridCoverage2D;
+import org.geotools.geometry.jts.JTSFactoryFinder;
+
+/**
+ * A weighting surface and a set of polygons that are kept in memory between
+ *   runs (by SurfaceServer): the surface loaded for fast lookups, the index
+ *   of the polygons, and for each fuzziness the state of the polygons that
+ *   points have been relocated in, whose candidate samplers and pixel
+ *   distributions are reused by later runs (the states hold no points, and
+ *   only those of the most recently used fuzziness values are kept).
+ *
+ * Not thread safe (the index and the states are built as they are needed).
+ * @author jonnyhuck
+ */
+class ResidentInputs {
+
+    //the number of fuzziness values whose polygon states are kept
+    static final int FUZZINESS = 4;
+
+    private final File weightingFile;
+    private final File polygonFile;
+
+    //when the files were last modified, so that changed files are read again
+    private final long weightingModified;
+    private final long polygonsModified;
+
+    private final GridCoverage2D weightingSurface;
+    private final WeightingSampler sampler;
+    private final int pxSize;
+    private final List<Geometry> polygonList;
+    private final PointPolygonJoin join;
+
+    //the state of each polygon, by fuzziness (which sets their splats), least recently used first
+    private final LinkedHashMap<Double, PolygonState[]> states = new LinkedHashMap<Double, PolygonState[]>(16,
+            0.75f, true);
+
+    /**
+     * Reads the inputs
+     * @param weightingFile a GeoTiff file
+     * @param polygonFile a shapefile
+     * @param wf sets the precision in which the weighting surface is held
+     * @throws Exception
+     */
+    ResidentInputs(File weightingFile, File polygonFile, WeightedFuzzy wf) throws Exception {
+        this.weightingFile = weightingFile;
+        this.polygonFile = polygonFile;
+        this.weightingModified = weightingFile.lastModified();
+        this.polygonsModified = polygonFile.lastModified();
+        this.weightingSurface = FileHandler.openGeoTiffFile(weightingFile);
+        this.sampler = new WeightingSampler(this.weightingSurface, wf.getPrecision());
+        final int pxWidth = this.weightingSurface.getGridGeometry().getGridRange2D().getSpan(0);
+        final int mWidth = (int) this.weightingSurface.getEnvelope2D().getSpan(0);
+        this.pxSize = mWidth / pxWidth;
+        this.polygonList = wf.getPolygons(FileHandler.openShapefile(polygonFile), this.weightingSurface);
+        this.join = new PointPolygonJoin(this.polygonList, JTSFactoryFinder.getGeometryFactory(null));
+    }
+
+    /**
+     * @return false if either file has changed since it was read
+     */
+    boolean isCurrent() {
+        return this.weightingFile.lastModified() == this.weightingModified
+                && this.polygonFile.lastModified() == this.polygonsModified;
+    }
+
+    GridCoverage2D getWeightingSurface() {
+        return this.weightingSurface;
+    }
+
+    WeightingSampler getSampler() {
+        return this.sampler;
+    }
+
+    int getPixelSize() {
+        return this.pxSize;
+    }
+
+    List<Geometry> getPolygons() {
+        return this.polygonList;
+    }
+
+    PointPolygonJoin getJoin() {
+        return this.join;
+    }
+
+    /**
+     * @param fuzziness
+     * @return the state of each polygon with this fuzziness (null for
+     *   polygons that have had no points yet), dropping those of the least
+     *   recently used fuzziness if there are too many
+     */
+    PolygonState[] getStates(double fuzziness) {
+        PolygonState[] states = this.states.get(fuzziness);
+        if (states == null) {
+            states = new PolygonState[this.polygonList.size()];
+            this.states.put(fuzziness, states);
+            Iterator<Double> oldest = this.states.keySet().iterator();
+            while (this.states.size() > FUZZINESS) {
+                oldest.next();
+                oldest.remove();
+            }
+        }
+        return states;
+    }
+
+    @Override
+    public String toString() {
+        return this.weightingFile + " (" + this.sampler.getWidth() + " x " + this.sampler.getHeight() + "), "
+                + this.polygonFile + " (" + this.polygonList.size() + " polygons, " + this.states.size()
+                + " fuzziness values)";
+    }
+}
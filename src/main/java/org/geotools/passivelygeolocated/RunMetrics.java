@@ -0,0 +1,324 @@
+package org.geotools.passivelygeolocated;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.PriorityQueue;
+
+/**
+ * Timings and counters for a run: the time spent in each stage, how many
+ *   candidate locations were drawn and rejected, how many lookups missed the
+ *   weighting surface, how many splats overlapped its edge, and the polygons
+ *   that took longest to relocate. Stages are also recorded as JFR events
+ *   (see StageEvent and RelocationEvent).
+ * @author jonnyhuck
+ */
+public class RunMetrics {
+
+    //the number of slowest polygons that are kept
+    static final int OUTLIERS = 10;
+
+    /**
+     * The stages of a run
+     */
+    public enum Stage {
+
+        //reading the polygons, points and weighting surface
+        INGEST,
+
+        //assigning the points to polygons
+        JOIN,
+
+        //relocating the points
+        RELOCATE,
+
+        //adding the splats to the surface
+        RENDER,
+
+        //writing the output
+        WRITE
+    }
+
+    //the time spent in each stage, and the number of items (points, or pixels for writing) it handled
+    private final long[] stageNanos = new long[Stage.values().length];
+    private final long[] stageItems = new long[Stage.values().length];
+
+    private long points;
+    private long unassignedPoints;
+    private long polygons;
+
+    //candidate locations
+    private long candidatesAccepted;
+    private long candidatesRejected;
+    private long geometryTests;
+    private long candidatesFallback;
+    private long candidatesExhausted;
+
+    private long rasterMisses;
+    private long clippedSplats;
+
+    //the polygons that took longest to relocate (fastest first)
+    private final PriorityQueue<PolygonRecord> slowest = new PriorityQueue<PolygonRecord>(OUTLIERS + 1,
+            new Comparator<PolygonRecord>() {
+                public int compare(PolygonRecord a, PolygonRecord b) {
+                    return a.nanos < b.nanos ? -1 : (a.nanos > b.nanos ? 1 : 0);
+                }
+            });
+
+    /**
+     * Starts timing a stage
+     * @param stage
+     * @return the event to pass to stop
+     */
+    StageEvent start(Stage stage) {
+        StageEvent event = new StageEvent(stage);
+        event.begin();
+        return event;
+    }
+
+    /**
+     * Stops timing a stage, adding the time to any it has already taken
+     * @param event
+     * @param items the number of points (or pixels) handled
+     */
+    synchronized void stop(StageEvent event, long items) {
+        event.end();
+        this.stageNanos[event.getStage().ordinal()] += System.nanoTime() - event.getStartNanos();
+        this.stageItems[event.getStage().ordinal()] += items;
+        if (event.shouldCommit()) {
+            event.items = items;
+            event.commit();
+        }
+    }
+
+    /**
+     * Adds the points read
+     * @param points
+     * @param unassigned the number of them that were not in any polygon
+     */
+    synchronized void addPoints(long points, long unassigned) {
+        this.points += points;
+        this.unassignedPoints += unassigned;
+    }
+
+    /**
+     * Adds the counters of a polygon once all of its points have been
+     *   relocated (once per polygon, not per batch of points)
+     * @param polygon
+     */
+    synchronized void addPolygon(PolygonState polygon) {
+        this.polygons++;
+        this.clippedSplats += polygon.getClipped();
+        PolygonSampler sampler = polygon.getCandidatesIfBuilt();
+        if (sampler != null) {
+            this.candidatesAccepted += sampler.getCandidates();
+            this.candidatesRejected += sampler.getRejections();
+            this.geometryTests += sampler.getGeometryTests();
+            this.candidatesFallback += sampler.getFallbacks();
+            this.candidatesExhausted += sampler.getExhausted();
+        }
+        this.slowest.add(new PolygonRecord(polygon.index, polygon.getRelocated(), polygon.getRelocationNanos(),
+                sampler == null ? 0 : sampler.getCandidates(), polygon.getClipped()));
+        if (this.slowest.size() > OUTLIERS) {
+            this.slowest.poll();
+        }
+    }
+
+    /**
+     * @param misses the number of lookups that fell outside of the weighting surface
+     */
+    synchronized void setRasterMisses(long misses) {
+        this.rasterMisses = misses;
+    }
+
+    /**
+     * @param stage
+     * @return the time spent in a stage (ns)
+     */
+    public synchronized long getNanos(Stage stage) {
+        return this.stageNanos[stage.ordinal()];
+    }
+
+    /**
+     * @return the number of points read
+     */
+    public synchronized long getPoints() {
+        return this.points;
+    }
+
+    /**
+     * @return the number of candidate locations drawn (accepted or not)
+     */
+    public synchronized long getCandidatesDrawn() {
+        return this.candidatesAccepted + this.candidatesRejected;
+    }
+
+    /**
+     * @return the number of candidate locations that were within their polygon
+     */
+    public synchronized long getCandidatesAccepted() {
+        return this.candidatesAccepted;
+    }
+
+    /**
+     * @return the number of radial candidates drawn uniformly over their
+     *   polygon, as none of the draws around the point were within it
+     */
+    public synchronized long getCandidatesFallback() {
+        return this.candidatesFallback;
+    }
+
+    /**
+     * @return the number of candidates that could not be drawn at all (so
+     *   their points were scored on fewer than n)
+     */
+    public synchronized long getCandidatesExhausted() {
+        return this.candidatesExhausted;
+    }
+
+    /**
+     * @return the number of weighting surface lookups that fell outside of it
+     */
+    public synchronized long getRasterMisses() {
+        return this.rasterMisses;
+    }
+
+    /**
+     * @return the number of splats that overlapped the edge of the surface
+     *   (these are clipped, where they used to be dropped)
+     */
+    public synchronized long getClippedSplats() {
+        return this.clippedSplats;
+    }
+
+    /**
+     * @param stage
+     * @return the items per second handled by a stage (0 if it has not run)
+     */
+    public synchronized double getThroughput(Stage stage) {
+        final long nanos = this.stageNanos[stage.ordinal()];
+        return nanos == 0 ? 0 : this.stageItems[stage.ordinal()] * 1e9 / nanos;
+    }
+
+    /**
+     * @return the points per second over all of the stages up to and including rendering
+     */
+    public synchronized double getOverallThroughput() {
+        long nanos = 0;
+        for (Stage stage : Stage.values()) {
+            if (stage != Stage.WRITE) {
+                nanos += this.stageNanos[stage.ordinal()];
+            }
+        }
+        return nanos == 0 ? 0 : this.points * 1e9 / nanos;
+    }
+
+    /**
+     * @return the polygons that took longest to relocate, slowest first
+     */
+    synchronized List<PolygonRecord> getSlowestPolygons() {
+        List<PolygonRecord> list = new ArrayList<PolygonRecord>(this.slowest);
+        Collections.sort(list, Collections.reverseOrder(this.slowest.comparator()));
+        return list;
+    }
+
+    /**
+     * @return the report as JSON
+     */
+    public synchronized String toJson() {
+        StringBuilder json = new StringBuilder();
+        json.append("{\n  \"stages\": {");
+        for (Stage stage : Stage.values()) {
+            json.append(stage.ordinal() == 0 ? "\n" : ",\n");
+            json.append(String.format(Locale.ROOT, "    \"%s\": {\"seconds\": %.3f, \"items\": %d, \"perSecond\": %.1f}",
+                    stage.name().toLowerCase(Locale.ROOT), this.stageNanos[stage.ordinal()] / 1e9,
+                    this.stageItems[stage.ordinal()], this.getThroughput(stage)));
+        }
+        json.append("\n  },\n");
+        json.append(String.format(Locale.ROOT, "  \"points\": %d,\n  \"unassignedPoints\": %d,\n  \"polygons\": %d,\n",
+                this.points, this.unassignedPoints, this.polygons));
+        json.append(String.format(Locale.ROOT, "  \"pointsPerSecond\": %.1f,\n", this.getOverallThroughput()));
+        json.append(String.format(Locale.ROOT,
+                "  \"candidates\": {\"drawn\": %d, \"accepted\": %d, \"rejected\": %d, \"geometryTests\": %d, "
+                + "\"fallback\": %d, \"exhausted\": %d},\n",
+                this.getCandidatesDrawn(), this.candidatesAccepted, this.candidatesRejected, this.geometryTests,
+                this.candidatesFallback, this.candidatesExhausted));
+        json.append(String.format(Locale.ROOT, "  \"rasterMisses\": %d,\n  \"clippedSplats\": %d,\n",
+                this.rasterMisses, this.clippedSplats));
+
+        //compare the slowest polygons with the average time per point
+        final double meanNanosPerPoint = this.points == 0 ? 0
+                : (double) this.stageNanos[Stage.RELOCATE.ordinal()] / this.points;
+        json.append("  \"slowestPolygons\": [");
+        List<PolygonRecord> records = this.getSlowestPolygons();
+        for (int i = 0; i < records.size(); i++) {
+            PolygonRecord r = records.get(i);
+            final double nanosPerPoint = r.points == 0 ? 0 : (double) r.nanos / r.points;
+            json.append(i == 0 ? "\n" : ",\n");
+            json.append(String.format(Locale.ROOT,
+                    "    {\"polygon\": %d, \"points\": %d, \"seconds\": %.3f, \"microsPerPoint\": %.2f, "
+                    + "\"timesMean\": %.1f, \"candidates\": %d, \"clippedSplats\": %d}",
+                    r.polygon, r.points, r.nanos / 1e9, nanosPerPoint / 1e3,
+                    meanNanosPerPoint == 0 ? 0 : nanosPerPoint / meanNanosPerPoint, r.candidates, r.clipped));
+        }
+        json.append(records.isEmpty() ? "]\n}\n" : "\n  ]\n}\n");
+        return json.toString();
+    }
+
+    /**
+     * Writes the report to a JSON file
+     * @param file
+     * @throws IOException
+     */
+    public void writeJson(File file) throws IOException {
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            writer.write(this.toJson());
+        } finally {
+            writer.close();
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder s = new StringBuilder();
+        for (Stage stage : Stage.values()) {
+            s.append(String.format(Locale.ROOT, "%s %.1fs, ", stage.name().toLowerCase(Locale.ROOT),
+                    this.stageNanos[stage.ordinal()] / 1e9));
+        }
+        s.append(String.format(Locale.ROOT, "%.0f points/s, %d raster misses, %d clipped splats",
+                this.getOverallThroughput(), this.rasterMisses, this.clippedSplats));
+        if (this.candidatesFallback > 0 || this.candidatesExhausted > 0) {
+            s.append(String.format(Locale.ROOT, ", %d candidates drawn uniformly when out of reach, %d not found",
+                    this.candidatesFallback, this.candidatesExhausted));
+        }
+        return s.toString();
+    }
+
+    /**
+     * The relocation work done for a polygon
+     */
+    static class PolygonRecord {
+
+        final int polygon;
+        final long points;
+        final long nanos;
+        final long candidates;
+        final long clipped;
+
+        PolygonRecord(int polygon, long points, long nanos, long candidates, long clipped) {
+            this.polygon = polygon;
+            this.points = points;
+            this.nanos = nanos;
+            this.candidates = candidates;
+            this.clipped = clipped;
+        }
+    }
+}
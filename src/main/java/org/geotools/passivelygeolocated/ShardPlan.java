@@ -0,0 +1,130 @@
+package org.geotools.passivelygeolocated;
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import java.awt.Rectangle;
+import java.util.List;
+
+/**
+ * Splits the output surface into a grid of shards that can be built by
+ *   separate processes. Each polygon belongs to the shard whose tile contains
+ *   the centre of its envelope, so every point is relocated by exactly one
+ *   shard. The window of a shard is the area its splats can reach: the
+ *   envelopes of its polygons, grown by their splat radius (the halo). The
+ *   windows of neighbouring shards overlap, and their overlaps are summed
+ *   when the shards are merged.
+ *
+ * The plan depends only on its arguments, so a worker can work out the same
+ *   plan as the process that launched it.
+ * @author jonnyhuck
+ */
+class ShardPlan {
+
+    private final int columns;
+    private final int rows;
+
+    //the shard of each polygon (-1 for empty polygons), and the window of each shard (null if it has no polygons)
+    private final int[] shards;
+    private final Rectangle[] windows;
+
+    //the largest splat radius of any polygon (pixels)
+    private int halo = 0;
+
+    /**
+     * Plans the shards
+     * @param polygonList
+     * @param minX the left edge of the surface
+     * @param maxY the top edge of the surface
+     * @param width of the surface (pixels)
+     * @param height of the surface (pixels)
+     * @param pxSize
+     * @param columns the number of tiles across
+     * @param rows the number of tiles down
+     * @param fuzziness
+     */
+    ShardPlan(List<Geometry> polygonList, double minX, double maxY, int width, int height, int pxSize,
+            int columns, int rows, double fuzziness) {
+        if (columns < 1 || rows < 1) {
+            throw new IllegalArgumentException("there must be at least 1 shard");
+        }
+        this.columns = columns;
+        this.rows = rows;
+        this.shards = new int[polygonList.size()];
+        this.windows = new Rectangle[columns * rows];
+        final int tileWidth = (width + columns - 1) / columns;
+        final int tileHeight = (height + rows - 1) / rows;
+        Rectangle surface = new Rectangle(0, 0, width, height);
+        for (int p = 0; p < this.shards.length; p++) {
+            Geometry polygon = polygonList.get(p);
+            if (polygon == null || polygon.isEmpty()) {
+                this.shards[p] = -1;
+                continue;
+            }
+
+            //the tile containing the centre of the polygon (polygons off the edge go to the nearest tile)
+            Envelope e = polygon.getEnvelopeInternal();
+            final double col = ((e.getMinX() + e.getMaxX()) / 2 - minX) / pxSize;
+            final double row = (maxY - (e.getMinY() + e.getMaxY()) / 2) / pxSize;
+            final int tileX = Math.min(Math.max((int) Math.floor(col / tileWidth), 0), columns - 1);
+            final int tileY = Math.min(Math.max((int) Math.floor(row / tileHeight), 0), rows - 1);
+            final int shard = tileY * columns + tileX;
+            this.shards[p] = shard;
+
+            //the pixels its splats can reach (the radius is rounded as the kernel's is, plus a pixel either way)
+            final double splatRadius = Math.sqrt((polygon.getArea() * fuzziness) / Math.PI);
+            final int radPx = (splatRadius / pxSize) < 1 ? 1 : (int) (splatRadius / pxSize);
+            this.halo = Math.max(this.halo, radPx);
+            final int left = (int) Math.floor((e.getMinX() - minX) / pxSize) - radPx - 1;
+            final int right = (int) Math.ceil((e.getMaxX() - minX) / pxSize) + radPx + 1;
+            final int top = (int) Math.floor((maxY - e.getMaxY()) / pxSize) - radPx - 1;
+            final int bottom = (int) Math.ceil((maxY - e.getMinY()) / pxSize) + radPx + 1;
+            Rectangle reach = new Rectangle(left, top, right - left, bottom - top).intersection(surface);
+            if (reach.isEmpty()) {
+                continue;
+            }
+            this.windows[shard] = this.windows[shard] == null ? reach : this.windows[shard].union(reach);
+        }
+    }
+
+    /**
+     * @return the number of shards (including empty ones)
+     */
+    int getShardCount() {
+        return this.columns * this.rows;
+    }
+
+    /**
+     * @param polygon
+     * @return the shard the polygon belongs to, or -1 if it is empty
+     */
+    int getShard(int polygon) {
+        return this.shards[polygon];
+    }
+
+    /**
+     * @param shard
+     * @return true for each polygon that belongs to the shard
+     */
+    boolean[] getPolygons(int shard) {
+        boolean[] include = new boolean[this.shards.length];
+        for (int p = 0; p < this.shards.length; p++) {
+            include[p] = this.shards[p] == shard;
+        }
+        return include;
+    }
+
+    /**
+     * @param shard
+     * @return the pixels of the surface the shard covers, or null if it has nothing to add to the surface
+     */
+    Rectangle getWindow(int shard) {
+        return this.windows[shard];
+    }
+
+    /**
+     * @return the largest splat radius of any polygon (pixels)
+     */
+    int getHalo() {
+        return this.halo;
+    }
+}
@@ -0,0 +1,248 @@
+package org.geotools.passivelygeolocated;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the shards of a ShardPlan in separate worker processes (JVMs on this
+ *   host, started with the same classpath), a few at a time, then sums the
+ *   windows they write into the output surface.
+ *
+ * Each worker is run as: java -cp [classpath] [worker class] [job file] [shard] [shard file],
+ *   and writes its window to the shard file (see writeShard) before exiting
+ *   with 0. Its output goes to a .log file next to the shard file.
+ * @author jonnyhuck
+ */
+class ShardRunner {
+
+    //identifies the shard file format
+    private static final int MAGIC = 0x57465253;
+
+    //the size of the header of a shard file: magic, precision, column, row, width, height, points
+    private static final int HEADER = 6 * 4 + 8;
+
+    private final File directory;
+    private final int workers;
+    private String workerClass = ShardWorker.class.getName();
+
+    /**
+     * @param directory where the shard files and logs are written
+     * @param workers the number of worker processes to run at a time
+     */
+    ShardRunner(File directory, int workers) {
+        if (workers < 1) {
+            throw new IllegalArgumentException("there must be at least 1 worker");
+        }
+        this.directory = directory;
+        this.workers = workers;
+    }
+
+    /**
+     * Sets the class whose main method each worker runs (ShardWorker by default)
+     * @param workerClass
+     */
+    void setWorkerClass(String workerClass) {
+        this.workerClass = workerClass;
+    }
+
+    /**
+     * @param shard
+     * @return the file a shard is written to
+     */
+    File getShardFile(int shard) {
+        return new File(this.directory, "shard_" + shard + ".bin");
+    }
+
+    /**
+     * Runs a worker process for each shard, and waits for them all to finish
+     * @param job the job file passed to every worker
+     * @param shards
+     * @return the number of points the workers relocated
+     * @throws IOException if a worker could not be started or did not exit with 0
+     */
+    long run(final File job, int[] shards) throws IOException {
+        ExecutorService pool = Executors.newFixedThreadPool(this.workers);
+        try {
+            List<Future<Integer>> exits = new ArrayList<Future<Integer>>();
+            for (final int shard : shards) {
+                exits.add(pool.submit(new Callable<Integer>() {
+                    public Integer call() throws IOException, InterruptedException {
+                        return ShardRunner.this.runWorker(job, shard);
+                    }
+                }));
+            }
+            for (int s = 0; s < shards.length; s++) {
+                final int exit = exits.get(s).get();
+                if (exit != 0) {
+                    throw new IOException("shard worker " + shards[s] + " exited with " + exit + " (see "
+                            + this.getLogFile(shards[s]) + ")");
+                }
+            }
+            long points = 0;
+            for (int shard : shards) {
+                points += this.map(shard).getLong(HEADER - 8);
+            }
+            return points;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for the shard workers");
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        } finally {
+            //stop any workers that are still running (if one of them failed)
+            pool.shutdownNow();
+            try {
+                pool.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Runs one worker process and waits for it (stopping it if interrupted)
+     * @param job
+     * @param shard
+     * @return its exit code
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    private int runWorker(File job, int shard) throws IOException, InterruptedException {
+        String java = new File(new File(System.getProperty("java.home"), "bin"), "java").getPath();
+        ProcessBuilder builder = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                this.workerClass, job.getPath(), Integer.toString(shard), this.getShardFile(shard).getPath());
+        builder.redirectErrorStream(true);
+        builder.redirectOutput(this.getLogFile(shard));
+        Process process = builder.start();
+        try {
+            return process.waitFor();
+        } catch (InterruptedException e) {
+            process.destroy();
+            throw e;
+        }
+    }
+
+    private File getLogFile(int shard) {
+        return new File(this.directory, "shard_" + shard + ".log");
+    }
+
+    /**
+     * Adds the windows written by the workers to the output surface (where
+     *   windows overlap, their values are summed)
+     * @param surface
+     * @param shards
+     * @throws IOException
+     */
+    void merge(SurfaceBuffer surface, int[] shards) throws IOException {
+        for (int shard : shards) {
+            ByteBuffer buffer = this.map(shard);
+            final Precision precision = Precision.values()[buffer.getInt()];
+            final int col = buffer.getInt();
+            final int row = buffer.getInt();
+            final int width = buffer.getInt();
+            final int height = buffer.getInt();
+            buffer.position(HEADER);
+
+            //add the window one row at a time (as a grid one row high, which clips it to the surface)
+            double[] values = new double[width];
+            if (precision == Precision.FLOAT) {
+                FloatBuffer floats = buffer.asFloatBuffer();
+                for (int y = 0; y < height; y++) {
+                    for (int x = 0; x < width; x++) {
+                        values[x] = floats.get();
+                    }
+                    surface.add(values, width, 1, col, row + y, 1, 0, surface.getHeight());
+                }
+            } else {
+                DoubleBuffer doubles = buffer.asDoubleBuffer();
+                for (int y = 0; y < height; y++) {
+                    doubles.get(values);
+                    surface.add(values, width, 1, col, row + y, 1, 0, surface.getHeight());
+                }
+            }
+        }
+    }
+
+    /**
+     * Maps a shard file
+     * @param shard
+     * @return the contents of the file, positioned after the magic number
+     * @throws IOException
+     */
+    private ByteBuffer map(int shard) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(this.getShardFile(shard), "r");
+        try {
+            MappedByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+            buffer.order(ByteOrder.nativeOrder());
+            if (file.length() < HEADER || buffer.getInt() != MAGIC) {
+                throw new IOException(this.getShardFile(shard) + " is not a shard file");
+            }
+            return buffer;
+        } finally {
+            //(the mapping stays valid once the file is closed)
+            file.close();
+        }
+    }
+
+    /**
+     * Writes the window built by a worker
+     * @param file
+     * @param surface the window
+     * @param col the column of the output surface at which the window starts
+     * @param row the row of the output surface at which the window starts
+     * @param points the number of points that were relocated into the window
+     * @throws IOException
+     */
+    static void writeShard(File file, SurfaceBuffer surface, int col, int row, long points)
+            throws IOException {
+        final int width = surface.getWidth();
+        final boolean floats = surface.getPrecision() == Precision.FLOAT;
+        ByteBuffer buffer = ByteBuffer.allocate(Math.max(HEADER, width * (floats ? 4 : 8)));
+        buffer.order(ByteOrder.nativeOrder());
+        RandomAccessFile out = new RandomAccessFile(file, "rw");
+        try {
+            out.setLength(0);
+            FileChannel channel = out.getChannel();
+            buffer.putInt(MAGIC).putInt(surface.getPrecision().ordinal()).putInt(col).putInt(row)
+                    .putInt(width).putInt(surface.getHeight()).putLong(points);
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            double[] values = new double[width];
+            for (int y = 0; y < surface.getHeight(); y++) {
+                surface.getRow(y, values);
+                buffer.clear();
+                for (int x = 0; x < width; x++) {
+                    if (floats) {
+                        buffer.putFloat((float) values[x]);
+                    } else {
+                        buffer.putDouble(values[x]);
+                    }
+                }
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package org.geotools.passivelygeolocated;
+
+import com.vividsolutions.jts.geom.Geometry;
+import java.awt.Rectangle;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Properties;
+import org.geotools.coverage.grid.GridCoverage2D;
+import org.geotools.referencing.CRS;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+
+/**
+ * The main class of a worker process started by ShardRunner: builds the
+ *   surface of one shard of a job, in the window of the weighting surface
+ *   the shard covers, and writes it to a shard file
+ * @author jonnyhuck
+ */
+public class ShardWorker {
+
+    /**
+     * Main
+     * @param args the job file, the shard, and the shard file to write
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length != 3) {
+            System.out.println("java -cp WFR.jar " + ShardWorker.class.getName() + " [job].properties shard [shard file]");
+            System.exit(2);
+        }
+        Properties job = new Properties();
+        InputStream in = new FileInputStream(args[0]);
+        try {
+            job.load(in);
+        } finally {
+            in.close();
+        }
+        final int shard = Integer.parseInt(args[1]);
+
+        //set up as the process that started this one was
+        WeightedFuzzy wf = new WeightedFuzzy();
+        wf.setThreads(Integer.parseInt(job.getProperty("threads")));
+        wf.setRelocationMode(RelocationMode.valueOf(job.getProperty("mode")));
+        wf.setCandidateDistribution(CandidateDistribution.valueOf(job.getProperty("candidates")));
+        wf.setSharpness(Double.parseDouble(job.getProperty("sharpness")));
+        wf.setRenderMode(RenderMode.valueOf(job.getProperty("render")));
+        wf.setPrecision(Precision.valueOf(job.getProperty("precision")));
+        wf.setSeed(Long.valueOf(job.getProperty("seed")));
+        wf.setPrefetch(Integer.parseInt(job.getProperty("prefetch")));
+        final int n = Integer.parseInt(job.getProperty("n"));
+        final double f = Double.parseDouble(job.getProperty("f"));
+
+        //work out the same plan, then read the window of the weighting surface this shard covers
+        File weighting = new File(job.getProperty("weighting"));
+        GridCoverage2D weightingSurface = FileHandler.openGeoTiffFile(weighting);
+        List<Geometry> polygonList = wf.getPolygons(FileHandler.openShapefile(new File(job.getProperty("polygons"))),
+                weightingSurface);
+        ShardPlan plan = wf.getShardPlan(polygonList, weightingSurface, Integer.parseInt(job.getProperty("columns")),
+                Integer.parseInt(job.getProperty("rows")), f);
+        Rectangle window = plan.getWindow(shard);
+        GridCoverage2D subset = FileHandler.openGeoTiffFile(weighting, window);
+
+        //build the surface of the window (on the heap, as it is only a part of the output)
+        SurfaceBuffer surface;
+        File points = new File(job.getProperty("points"));
+        if (Main.isStreamed(points)) {
+            String[] xy = { job.getProperty("x"), job.getProperty("y") };
+            CoordinateReferenceSystem crs = job.containsKey("crs") ? CRS.parseWKT(job.getProperty("crs")) : null;
+            PointReader pointReader = Main.openPoints(points, xy, job.getProperty("id"), crs);
+            try {
+                surface = wf.getSurface(pointReader, polygonList, plan.getPolygons(shard),
+                        subset, n, f);
+            } finally {
+                pointReader.close();
+            }
+        } else {
+            surface = wf.getSurface(FileHandler.openShapefile(points), polygonList,
+                    plan.getPolygons(shard), subset, n, f);
+        }
+
+        //where the window is in the output surface (from what the reader returned, rather than what was asked for)
+        final double pxSize = weightingSurface.getEnvelope2D().getSpan(0)
+                / weightingSurface.getGridGeometry().getGridRange2D().getSpan(0);
+        final int col = (int) Math.round((subset.getEnvelope2D().getMinX()
+                - weightingSurface.getEnvelope2D().getMinX()) / pxSize);
+        final int row = (int) Math.round((weightingSurface.getEnvelope2D().getMaxY()
+                - subset.getEnvelope2D().getMaxY()) / pxSize);
+        ShardRunner.writeShard(new File(args[2]), surface, col, row, wf.getMetrics().getPoints());
+        System.out.println("shard " + shard + " " + window + ": " + wf.getMetrics());
+    }
+
+    /**
+     * Describes a job for the workers (every worker is given the same job)
+     * @param wf the settings to use
+     * @param points a shapefile or CSV file
+     * @param xy the coordinate columns of a CSV file
+     * @param idColumn the id column of a CSV file (null to use the row numbers)
+     * @param crs the CRS of a CSV file (null if it is that of the weighting surface)
+     * @param polygons
+     * @param weightingSurface
+     * @param relocationIterations
+     * @param fuzziness
+     * @param columns the number of shards across
+     * @param rows the number of shards down
+     * @param seed
+     * @param threads the number of threads each worker uses
+     * @return
+     */
+    static Properties getJob(WeightedFuzzy wf, File points, String[] xy, String idColumn,
+            CoordinateReferenceSystem crs, File polygons,
+            File weightingSurface, int relocationIterations, double fuzziness, int columns, int rows, long seed,
+            int threads) {
+        Properties job = new Properties();
+        job.setProperty("points", points.getAbsolutePath());
+        job.setProperty("x", xy[0]);
+        job.setProperty("y", xy[1]);
+        if (idColumn != null) {
+            job.setProperty("id", idColumn);
+        }
+        if (crs != null) {
+            job.setProperty("crs", crs.toWKT());
+        }
+        job.setProperty("polygons", polygons.getAbsolutePath());
+        job.setProperty("weighting", weightingSurface.getAbsolutePath());
+        job.setProperty("n", Integer.toString(relocationIterations));
+        job.setProperty("f", Double.toString(fuzziness));
+        job.setProperty("mode", wf.getRelocationMode().name());
+        job.setProperty("candidates", wf.getCandidateDistribution().name());
+        job.setProperty("sharpness", Double.toString(wf.getSharpness()));
+        job.setProperty("render", wf.getRenderMode().name());
+        job.setProperty("precision", wf.getPrecision().name());
+        job.setProperty("seed", Long.toString(seed));
+        job.setProperty("prefetch", Integer.toString(wf.getPrefetch()));
+        job.setProperty("threads", Integer.toString(threads));
+        job.setProperty("columns", Integer.toString(columns));
+        job.setProperty("rows", Integer.toString(rows));
+        return job;
+    }
+}
@@ -0,0 +1,135 @@
+package org.geotools.passivelygeolocated;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Fork-join task that adds the relocated splats to the output surface. The
+ *   surface is split into horizontal stripes that each belong to a single
+ *   worker, and every stripe applies the splats in the same order as a single
+ *   thread would, so there is no locking and the output does not depend on
+ *   the number of threads. The splats are sorted into the stripes they reach
+ *   once, before the stripes start, so each stripe only visits its own
+ * @author jonnyhuck
+ */
+class SplatTask extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+
+    private final List<PolygonJob> jobs;
+    private final SurfaceBuffer outputSurface;
+
+    //the rows covered by this stripe, and the height below which it is not split
+    private final int firstRow;
+    private final int lastRow;
+    private final int stripeRows;
+
+    //the splats of a stripe, as pairs of job and point indices in the order they are applied (null for the
+    //  task that sorts them into the stripes)
+    private final int[] splats;
+    private final int size;
+
+    /**
+     *
+     * @param jobs
+     * @param outputSurface
+     * @param firstRow
+     * @param lastRow
+     * @param stripeRows
+     */
+    SplatTask(List<PolygonJob> jobs, SurfaceBuffer outputSurface, int firstRow, int lastRow, int stripeRows) {
+        this(jobs, outputSurface, firstRow, lastRow, stripeRows, null, 0);
+    }
+
+    private SplatTask(List<PolygonJob> jobs, SurfaceBuffer outputSurface, int firstRow, int lastRow, int stripeRows,
+            int[] splats, int size) {
+        this.jobs = jobs;
+        this.outputSurface = outputSurface;
+        this.firstRow = firstRow;
+        this.lastRow = lastRow;
+        this.stripeRows = Math.max(1, stripeRows);
+        this.splats = splats;
+        this.size = size;
+    }
+
+    @Override
+    protected void compute() {
+        if (this.splats == null) {
+            invokeAll(this.getStripes());
+            return;
+        }
+
+        //add the rows of each splat that fall within this stripe (clipped to the surface)
+        for (int s = 0; s < this.size; s += 2) {
+            final PolygonJob job = this.jobs.get(this.splats[s]);
+            final int i = this.splats[s + 1];
+            this.outputSurface.add(job.kernel, job.patchX[i], job.patchY[i], this.firstRow, this.lastRow);
+        }
+    }
+
+    /**
+     * Splits the rows in half until they are no taller than stripeRows, and
+     *   sorts the splats into the stripes they reach (a splat taller than a
+     *   stripe goes into each of them)
+     * @return a task for each stripe
+     */
+    private List<SplatTask> getStripes() {
+
+        //the first row of each stripe, then the last row of the last one
+        List<Integer> rows = new ArrayList<Integer>();
+        this.addStripes(this.firstRow, this.lastRow, rows);
+        rows.add(this.lastRow);
+        final int stripes = rows.size() - 1;
+        int[] starts = new int[rows.size()];
+        for (int s = 0; s < starts.length; s++) {
+            starts[s] = rows.get(s);
+        }
+
+        //job by job and point by point, so each stripe has them in the order a single thread would apply them
+        int[][] splats = new int[stripes][16];
+        int[] sizes = new int[stripes];
+        for (int j = 0; j < this.jobs.size(); j++) {
+            final PolygonJob job = this.jobs.get(j);
+            for (int i = 0; i < job.size(); i++) {
+                final int y = job.patchY[i];
+                final int bottom = y + job.kernel.span;
+                if (y >= this.lastRow || bottom <= this.firstRow) {
+                    continue;
+                }
+                int s = Arrays.binarySearch(starts, 0, stripes, Math.max(y, this.firstRow));
+                if (s < 0) {
+                    s = -s - 2;
+                }
+                for (; s < stripes && starts[s] < bottom; s++) {
+                    if (sizes[s] == splats[s].length) {
+                        splats[s] = Arrays.copyOf(splats[s], splats[s].length * 2);
+                    }
+                    splats[s][sizes[s]++] = j;
+                    splats[s][sizes[s]++] = i;
+                }
+            }
+        }
+        List<SplatTask> tasks = new ArrayList<SplatTask>(stripes);
+        for (int s = 0; s < stripes; s++) {
+            tasks.add(new SplatTask(this.jobs, this.outputSurface, starts[s], starts[s + 1], this.stripeRows,
+                    splats[s], sizes[s]));
+        }
+        return tasks;
+    }
+
+    /**
+     * Adds the first rows of the stripes between two rows, halving them as
+     *   the stripes always have been
+     */
+    private void addStripes(int firstRow, int lastRow, List<Integer> rows) {
+        if (lastRow - firstRow > this.stripeRows) {
+            int mid = (firstRow + lastRow) >>> 1;
+            this.addStripes(firstRow, mid, rows);
+            this.addStripes(mid, lastRow, rows);
+        } else {
+            rows.add(firstRow);
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package org.geotools.passivelygeolocated;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * JFR event for a stage of a run (see RunMetrics.Stage)
+ * @author jonnyhuck
+ */
+@Name("org.geotools.passivelygeolocated.Stage")
+@Label("WFR Stage")
+@Category("Weighted Fuzzy Relocation")
+@Description("A stage of building a weighted fuzzy relocation surface")
+class StageEvent extends jdk.jfr.Event {
+
+    @Label("Stage")
+    String stage;
+
+    @Label("Items")
+    @Description("The number of points (or pixels, for writing) handled")
+    long items;
+
+    //not recorded: the stage itself, and when it started (for RunMetrics)
+    private final transient RunMetrics.Stage stageValue;
+    private final transient long startNanos;
+
+    StageEvent(RunMetrics.Stage stage) {
+        this.stage = stage.name();
+        this.stageValue = stage;
+        this.startNanos = System.nanoTime();
+    }
+
+    RunMetrics.Stage getStage() {
+        return this.stageValue;
+    }
+
+    long getStartNanos() {
+        return this.startNanos;
+    }
+}
@@ -0,0 +1,155 @@
+package org.geotools.passivelygeolocated;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A surface that splats can be added to, clipping them to its bounds. Rows
+ *   may be written by different threads at the same time, as long as no two
+ *   threads write the same row.
+ * @author jonnyhuck
+ */
+abstract class SurfaceBuffer {
+
+    protected final int width;
+    protected final int height;
+
+    //the precision in which values are held (and kernels are added)
+    protected final Precision precision;
+
+    protected SurfaceBuffer(int width, int height, Precision precision) {
+        this.width = width;
+        this.height = height;
+        this.precision = precision;
+    }
+
+    /**
+     * Adds the rows of a kernel that fall between firstRow and lastRow
+     * @param kernel
+     * @param x the column of the top left of the kernel
+     * @param y the row of the top left of the kernel
+     * @param firstRow
+     * @param lastRow (exclusive)
+     * @return false if the kernel had to be clipped to the bounds of the surface
+     */
+    boolean add(Kernel kernel, int x, int y, int firstRow, int lastRow) {
+        return this.add(kernel, x, y, 1, firstRow, lastRow);
+    }
+
+    /**
+     * Adds the rows of a kernel (multiplied by a scale factor) that fall
+     *   between firstRow and lastRow, in the precision the kernel holds its
+     *   values in (that of the run, which is the precision of its surface)
+     * @param kernel
+     * @param x the column of the top left of the kernel
+     * @param y the row of the top left of the kernel
+     * @param scale
+     * @param firstRow
+     * @param lastRow (exclusive)
+     * @return false if the kernel had to be clipped to the bounds of the surface
+     */
+    boolean add(Kernel kernel, int x, int y, double scale, int firstRow, int lastRow) {
+        if (kernel.floatValues != null) {
+            return this.add(kernel.floatValues, kernel.span, kernel.span, x, y, (float) scale, firstRow, lastRow);
+        }
+        return this.add(kernel.values, kernel.span, kernel.span, x, y, scale, firstRow, lastRow);
+    }
+
+    /**
+     * Adds the rows of a grid of values (multiplied by a scale factor) that
+     *   fall between firstRow and lastRow
+     * @param values the grid, row by row
+     * @param w the width of the grid
+     * @param h the height of the grid
+     * @param x the column of the top left of the grid
+     * @param y the row of the top left of the grid
+     * @param scale
+     * @param firstRow
+     * @param lastRow (exclusive)
+     * @return false if the grid had to be clipped to the bounds of the surface
+     */
+    boolean add(double[] values, int w, int h, int x, int y, double scale, int firstRow, int lastRow) {
+        final int top = Math.max(Math.max(y, firstRow), 0);
+        final int bottom = Math.min(Math.min(y + h, lastRow), this.height);
+        final int left = Math.max(x, 0);
+        final int right = Math.min(x + w, this.width);
+        if (left < right) {
+            for (int row = top; row < bottom; row++) {
+                this.addRow(values, (row - y) * w + (left - x), row, left, right, scale);
+            }
+        }
+        return x >= 0 && y >= 0 && x + w <= this.width && y + h <= this.height;
+    }
+
+    /**
+     * As add(double[], ...) for a single precision grid
+     */
+    boolean add(float[] values, int w, int h, int x, int y, float scale, int firstRow, int lastRow) {
+        final int top = Math.max(Math.max(y, firstRow), 0);
+        final int bottom = Math.min(Math.min(y + h, lastRow), this.height);
+        final int left = Math.max(x, 0);
+        final int right = Math.min(x + w, this.width);
+        if (left < right) {
+            for (int row = top; row < bottom; row++) {
+                this.addRow(values, (row - y) * w + (left - x), row, left, right, scale);
+            }
+        }
+        return x >= 0 && y >= 0 && x + w <= this.width && y + h <= this.height;
+    }
+
+    /**
+     * Adds a run of values to part of a row of the surface
+     * @param values
+     * @param k the index in values of the first value to add
+     * @param row
+     * @param left the first column to add to
+     * @param right the column after the last one to add to
+     * @param scale
+     */
+    protected abstract void addRow(double[] values, int k, int row, int left, int right, double scale);
+
+    /**
+     * As addRow(double[], ...) for single precision values
+     */
+    protected abstract void addRow(float[] values, int k, int row, int left, int right, float scale);
+
+    /**
+     * Copies out the values of a row
+     * @param row
+     * @param values receives the values
+     */
+    abstract void getRow(int row, double[] values);
+
+    /**
+     * Sets every value back to 0
+     */
+    abstract void clear();
+
+    /**
+     * @return the width and height of the tiles that copyTile copies
+     */
+    int getTileSize() {
+        return TiledSurface.TILE_SIZE;
+    }
+
+    /**
+     * Copies out a tile (see getTileSize), row by row, in the precision of
+     *   the surface (big endian). Parts of the tile beyond the edge of the
+     *   surface are 0. Nothing may be added to the surface while this runs
+     * @param tx
+     * @param ty
+     * @return the values, or null if nothing has been added to the tile
+     */
+    abstract ByteBuffer copyTile(int tx, int ty);
+
+    int getWidth() {
+        return this.width;
+    }
+
+    int getHeight() {
+        return this.height;
+    }
+
+    Precision getPrecision() {
+        return this.precision;
+    }
+}
@@ -0,0 +1,366 @@
+package org.geotools.passivelygeolocated;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.UUID;
+
+/**
+ * The sidecar of a surface that is built up incrementally: the parameters it
+ *   was built with, and for every point that has been seen, its id and where
+ *   its splat went (so that the splat can be subtracted again if the point is
+ *   retracted). Points that were outside every polygon, and points that have
+ *   been retracted, are recorded too (with no splat), so that they are
+ *   skipped by later runs. Records are kept sorted by id.
+ *
+ * The ledger and its surface are replaced together (see commit): the new
+ *   surface is written to a scratch file named after a token recorded in the
+ *   new ledger, and only moved over the old surface once the ledger has
+ *   been replaced, so a run stopped at any point leaves either the old pair
+ *   or a new ledger whose surface is finished by recover.
+ * @author jonnyhuck
+ */
+public class SurfaceLedger {
+
+    //identifies the file format
+    private static final int MAGIC = 0x5746524c;
+    private static final int VERSION = 2;
+
+    //the polygon recorded for points that were outside every polygon, and for points that were retracted
+    static final int UNASSIGNED = -1;
+    static final int RETRACTED = -2;
+
+    //the parameters the surface was built with (empty until the first points are added)
+    private Properties parameters = new Properties();
+
+    //names the scratch file of the surface that goes with the ledger (null until one is started)
+    private String token;
+
+    //one record per point: its id, the index of its polygon (or UNASSIGNED or RETRACTED), the span of its
+    //  splat and where it went
+    private long[] ids = new long[0];
+    private int[] polygons = new int[0];
+    private int[] spans = new int[0];
+    private int[] patchX = new int[0];
+    private int[] patchY = new int[0];
+    private int size = 0;
+
+    /**
+     * An empty ledger, for a new surface
+     */
+    public SurfaceLedger() {
+    }
+
+    /**
+     * Reads a ledger
+     * @param file
+     * @return
+     * @throws IOException
+     */
+    public static SurfaceLedger read(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+        try {
+            final int version = in.readInt() == MAGIC ? in.readInt() : -1;
+            if (version != 1 && version != VERSION) {
+                throw new IOException(file + " is not a surface ledger");
+            }
+            SurfaceLedger ledger = new SurfaceLedger();
+            ledger.parameters.load(new StringReader(in.readUTF()));
+            if (version > 1 && in.readBoolean()) {
+                ledger.token = in.readUTF();
+            }
+            final int count = in.readInt();
+            ledger.ensureCapacity(count);
+            for (int i = 0; i < count; i++) {
+                ledger.ids[i] = in.readLong();
+                ledger.polygons[i] = in.readInt();
+                ledger.spans[i] = in.readInt();
+                ledger.patchX[i] = in.readInt();
+                ledger.patchY[i] = in.readInt();
+            }
+            ledger.size = count;
+            return ledger;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Writes the ledger (to a temporary file that then replaces the file, so
+     *   that a failed write does not lose the previous ledger)
+     * @param file
+     * @throws IOException
+     */
+    public void write(File file) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        FileOutputStream stream = new FileOutputStream(temp);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream, 1 << 16));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            StringWriter text = new StringWriter();
+            this.parameters.store(text, null);
+            out.writeUTF(text.toString());
+            out.writeBoolean(this.token != null);
+            if (this.token != null) {
+                out.writeUTF(this.token);
+            }
+            out.writeInt(this.size);
+            for (int i = 0; i < this.size; i++) {
+                out.writeLong(this.ids[i]);
+                out.writeInt(this.polygons[i]);
+                out.writeInt(this.spans[i]);
+                out.writeInt(this.patchX[i]);
+                out.writeInt(this.patchY[i]);
+            }
+            out.flush();
+            stream.getFD().sync();
+        } finally {
+            out.close();
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Starts a new surface to go with the ledger
+     * @param surface the surface that the new one will replace
+     * @return the scratch file to write the new surface to (then call commit)
+     */
+    public File startSurface(File surface) {
+        this.token = UUID.randomUUID().toString();
+        return this.getScratchSurface(surface);
+    }
+
+    /**
+     * Replaces the ledger, then the surface with the one written to the file
+     *   returned by startSurface (once the ledger has been replaced, recover
+     *   finishes the job if this is stopped)
+     * @param file the ledger
+     * @param surface
+     * @throws IOException
+     */
+    public void commit(File file, File surface) throws IOException {
+        FileChannel channel = FileChannel.open(this.getScratchSurface(surface).toPath(), StandardOpenOption.WRITE);
+        try {
+            channel.force(true);
+        } finally {
+            channel.close();
+        }
+        this.write(file);
+        this.recover(surface);
+    }
+
+    /**
+     * Finishes replacing the surface, if a run was stopped after its ledger
+     *   was written but before its surface was moved into place (call this
+     *   after reading the ledger, before reading the surface)
+     * @param surface
+     * @throws IOException
+     */
+    public void recover(File surface) throws IOException {
+        if (this.token == null) {
+            return;
+        }
+        File scratch = this.getScratchSurface(surface);
+        if (scratch.exists()) {
+            Files.move(scratch.toPath(), surface.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    private File getScratchSurface(File surface) {
+        return new File(surface.getPath() + "." + this.token + ".tmp");
+    }
+
+    /**
+     * @return the number of points recorded (including those with no splat)
+     */
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * @return the number of points whose splats are in the surface
+     */
+    public int getSplats() {
+        int splats = 0;
+        for (int i = 0; i < this.size; i++) {
+            if (this.polygons[i] >= 0) {
+                splats++;
+            }
+        }
+        return splats;
+    }
+
+    /**
+     * @param id
+     * @return true if the point has been seen (whether or not its splat is in the surface)
+     */
+    public boolean contains(long id) {
+        return this.indexOf(id) >= 0;
+    }
+
+    /**
+     * @return the parameters the surface was built with
+     */
+    Properties getParameters() {
+        return this.parameters;
+    }
+
+    /**
+     * @param parameters
+     */
+    void setParameters(Properties parameters) {
+        this.parameters = parameters;
+    }
+
+    /**
+     * @param id
+     * @return the index of the first record of a point (points may share an
+     *   id), or a negative number if it has not been seen
+     */
+    int indexOf(long id) {
+        int i = Arrays.binarySearch(this.ids, 0, this.size, id);
+        while (i > 0 && this.ids[i - 1] == id) {
+            i--;
+        }
+        return i;
+    }
+
+    long getId(int i) {
+        return this.ids[i];
+    }
+
+    /**
+     * @param i
+     * @return true if the splat of a record is in the surface
+     */
+    boolean hasSplat(int i) {
+        return this.polygons[i] >= 0;
+    }
+
+    int getSpan(int i) {
+        return this.spans[i];
+    }
+
+    int getPatchX(int i) {
+        return this.patchX[i];
+    }
+
+    int getPatchY(int i) {
+        return this.patchY[i];
+    }
+
+    /**
+     * Adds the records of a job's points (call sort once they have all been added)
+     * @param job
+     */
+    void add(PolygonJob job) {
+        this.ensureCapacity(this.size + job.size());
+        for (int i = 0; i < job.size(); i++) {
+            this.ids[this.size] = job.getId(i);
+            this.polygons[this.size] = job.index;
+            this.spans[this.size] = job.kernel.span;
+            this.patchX[this.size] = job.patchX[i];
+            this.patchY[this.size] = job.patchY[i];
+            this.size++;
+        }
+    }
+
+    /**
+     * Records a point with no splat (call sort once they have all been added)
+     * @param id
+     * @param polygon UNASSIGNED or RETRACTED
+     */
+    void add(long id, int polygon) {
+        this.ensureCapacity(this.size + 1);
+        this.ids[this.size] = id;
+        this.polygons[this.size] = polygon;
+        this.spans[this.size] = 0;
+        this.patchX[this.size] = 0;
+        this.patchY[this.size] = 0;
+        this.size++;
+    }
+
+    /**
+     * Marks a record as retracted (its splat should have been subtracted)
+     * @param i
+     */
+    void retract(int i) {
+        this.polygons[i] = RETRACTED;
+        this.spans[i] = 0;
+        this.patchX[i] = 0;
+        this.patchY[i] = 0;
+    }
+
+    /**
+     * Sorts the records by id (a stable merge sort of their indexes)
+     */
+    void sort() {
+        int[] order = new int[this.size];
+        int[] buffer = new int[this.size];
+        for (int i = 0; i < this.size; i++) {
+            order[i] = i;
+        }
+        for (int width = 1; width < this.size; width *= 2) {
+            for (int lo = 0; lo < this.size; lo += 2 * width) {
+                final int mid = Math.min(lo + width, this.size);
+                final int hi = Math.min(lo + 2 * width, this.size);
+                int a = lo;
+                int b = mid;
+                for (int k = lo; k < hi; k++) {
+                    buffer[k] = b >= hi || (a < mid && this.ids[order[a]] <= this.ids[order[b]]) ? order[a++]
+                            : order[b++];
+                }
+            }
+            int[] swap = order;
+            order = buffer;
+            buffer = swap;
+        }
+        this.ids = this.permute(this.ids, order);
+        this.polygons = this.permute(this.polygons, order);
+        this.spans = this.permute(this.spans, order);
+        this.patchX = this.permute(this.patchX, order);
+        this.patchY = this.permute(this.patchY, order);
+    }
+
+    private long[] permute(long[] values, int[] order) {
+        long[] sorted = new long[values.length];
+        for (int i = 0; i < order.length; i++) {
+            sorted[i] = values[order[i]];
+        }
+        return sorted;
+    }
+
+    private int[] permute(int[] values, int[] order) {
+        int[] sorted = new int[values.length];
+        for (int i = 0; i < order.length; i++) {
+            sorted[i] = values[order[i]];
+        }
+        return sorted;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > this.ids.length) {
+            capacity = Math.max(capacity, this.ids.length + (this.ids.length >> 1));
+            this.ids = Arrays.copyOf(this.ids, capacity);
+            this.polygons = Arrays.copyOf(this.polygons, capacity);
+            this.spans = Arrays.copyOf(this.spans, capacity);
+            this.patchX = Arrays.copyOf(this.patchX, capacity);
+            this.patchY = Arrays.copyOf(this.patchY, capacity);
+        }
+    }
+}
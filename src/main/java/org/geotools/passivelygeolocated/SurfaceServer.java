@@ -0,0 +1,525 @@
+package org.geotools.passivelygeolocated;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import org.geotools.coverage.grid.GridCoverage2D;
+import org.geotools.referencing.CRS;
+import org.opengis.referencing.FactoryException;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+
+/**
+ * A headless server that keeps weighting surfaces, polygons (and their
+ *   index, samplers and splats) in memory between requests, so that small
+ *   jobs do not pay for starting the JVM and reading the inputs each time.
+ *   It listens on the loopback interface only, as requests name files on
+ *   this host, and those files must be in the directory it was started
+ *   with. Every request must carry the token printed at startup in the
+ *   X-Token header, and requests with an Origin header or a Host other than
+ *   the loopback interface (as a web page would send) are refused. Requests
+ *   are handled one at a time, each using every thread of one pool.
+ *
+ * POST /surface?weighting=[file].tif&amp;polygons=[file].shp&amp;n=10&amp;f=0.1
+ *   relocates the points in the body of the request (CSV with a header row)
+ *   and returns the surface as a GeoTIFF. Optional parameters: x and y (the
+ *   coordinate columns, default x,y), id, crs (of the coordinates, default
+ *   that of the weighting surface), seed, mode (best or alias), candidates
+ *   (radial or uniform), sharpness, render (splat or grid), cog (deflate, lzw or none, to write a
+ *   Cloud Optimized GeoTIFF), and output (a file to write the surface to, in
+ *   which case a JSON summary of the run is returned instead).
+ *
+ * GET /status lists the resident inputs, and POST /shutdown stops the server.
+ * @author jonnyhuck
+ */
+public class SurfaceServer {
+
+    //the number of weighting surface and polygon pairs kept in memory
+    static final int RESIDENT = 4;
+
+    //the header that carries the token
+    static final String TOKEN_HEADER = "X-Token";
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    //the directory the files requests name must be in, and the token requests must carry
+    private final File directory;
+    private final String token;
+
+    //the settings every request starts from
+    private final WeightedFuzzy wf;
+    private final RelocationMode relocationMode;
+    private final CandidateDistribution candidateDistribution;
+    private final double sharpness;
+    private final RenderMode renderMode;
+
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private final CountDownLatch stopped = new CountDownLatch(1);
+    private final ForkJoinPool pool;
+
+    //the resident inputs, least recently used first
+    private final LinkedHashMap<String, ResidentInputs> inputs = new LinkedHashMap<String, ResidentInputs>(16,
+            0.75f, true);
+    private long requests = 0;
+
+    /**
+     * Creates a server on the loopback interface (call start to start it)
+     * @param wf the settings to use (each request may change the mode, candidates, sharpness and render mode)
+     * @param port (0 to choose a free port)
+     * @param directory the directory the files requests name must be in
+     * @throws IOException
+     */
+    public SurfaceServer(WeightedFuzzy wf, int port, File directory) throws IOException {
+        if (!directory.isDirectory()) {
+            throw new IllegalArgumentException(directory + " is not a directory");
+        }
+        this.directory = directory.getCanonicalFile();
+        byte[] token = new byte[16];
+        new SecureRandom().nextBytes(token);
+        StringBuilder hex = new StringBuilder();
+        for (byte b : token) {
+            hex.append(String.format("%02x", b & 0xff));
+        }
+        this.token = hex.toString();
+        this.wf = wf;
+        this.pool = new ForkJoinPool(wf.getThreads());
+        wf.setPool(this.pool);
+        this.relocationMode = wf.getRelocationMode();
+        this.candidateDistribution = wf.getCandidateDistribution();
+        this.sharpness = wf.getSharpness();
+        this.renderMode = wf.getRenderMode();
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        this.server.setExecutor(this.executor);
+        this.server.createContext("/surface", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                if (SurfaceServer.this.isAllowed(exchange)) {
+                    SurfaceServer.this.handleSurface(exchange);
+                }
+            }
+        });
+        this.server.createContext("/status", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                if (SurfaceServer.this.isAllowed(exchange)) {
+                    SurfaceServer.this.send(exchange, 200, SurfaceServer.this.getStatus());
+                }
+            }
+        });
+        this.server.createContext("/shutdown", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                if (!SurfaceServer.this.isAllowed(exchange)) {
+                    return;
+                }
+                if (!exchange.getRequestMethod().equals("POST")) {
+                    SurfaceServer.this.send(exchange, 405, "use POST");
+                    return;
+                }
+                SurfaceServer.this.send(exchange, 200, "stopping");
+                SurfaceServer.this.stopped.countDown();
+            }
+        });
+    }
+
+    /**
+     * Starts listening
+     */
+    public void start() {
+        this.server.start();
+    }
+
+    /**
+     * @return the port the server is listening on
+     */
+    public int getPort() {
+        return this.server.getAddress().getPort();
+    }
+
+    /**
+     * @return the token requests must carry in the X-Token header
+     */
+    public String getToken() {
+        return this.token;
+    }
+
+    /**
+     * Waits until a shutdown request is received, then stops the server
+     * @throws InterruptedException
+     */
+    public void awaitShutdown() throws InterruptedException {
+        this.stopped.await();
+        this.stop();
+    }
+
+    /**
+     * Stops the server, letting the request being handled (if any) finish
+     */
+    public void stop() {
+        this.server.stop(1);
+        this.executor.shutdown();
+        this.pool.shutdown();
+    }
+
+    /**
+     * Main (see Main -serve)
+     * @param args port, followed by -directory d, -threads t and -precision p options
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length % 2 != 1) {
+            System.out.println("java -jar WFR.jar -serve port [-directory d] [-threads t] [-precision double|float]");
+            return;
+        }
+        System.setProperty("java.awt.headless", "true");
+        WeightedFuzzy wf = new WeightedFuzzy();
+        File directory = new File(".");
+        try {
+            for (int i = 1; i < args.length; i += 2) {
+                if (args[i].equals("-directory")) {
+                    directory = new File(args[i + 1]);
+                    if (!directory.isDirectory()) {
+                        throw new IllegalArgumentException(directory + " is not a directory");
+                    }
+                } else if (args[i].equals("-threads")) {
+                    wf.setThreads(Integer.parseInt(args[i + 1]));
+                } else if (args[i].equals("-precision")) {
+                    if (args[i + 1].equals("double")) {
+                        wf.setPrecision(Precision.DOUBLE);
+                    } else if (args[i + 1].equals("float")) {
+                        wf.setPrecision(Precision.FLOAT);
+                    } else {
+                        throw new IllegalArgumentException("precision should be double or float");
+                    }
+                } else {
+                    System.out.println("unknown option: " + args[i]);
+                    return;
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            System.out.println("invalid option value: " + e.getMessage());
+            return;
+        }
+        SurfaceServer server = new SurfaceServer(wf, Integer.parseInt(args[0]), directory);
+        server.start();
+        System.out.println("listening on http://localhost:" + server.getPort() + "/surface for files in "
+                + server.directory);
+        System.out.println("token (send it in the " + TOKEN_HEADER + " header): " + server.getToken());
+        server.awaitShutdown();
+        System.out.println("done.");
+    }
+
+    private void handleSurface(HttpExchange exchange) throws IOException {
+        if (!exchange.getRequestMethod().equals("POST")) {
+            this.send(exchange, 405, "use POST");
+            return;
+        }
+        try {
+            Map<String, String> parameters = getParameters(exchange.getRequestURI().getRawQuery());
+            File output = parameters.containsKey("output") ? this.getFile(parameters.get("output")) : null;
+            ResidentInputs resident = this.getInputs(this.getInputFile(parameters, "weighting"),
+                    this.getInputFile(parameters, "polygons"));
+            final int n = Integer.parseInt(getParameter(parameters, "n"));
+            final double f = Double.parseDouble(getParameter(parameters, "f"));
+            this.configure(parameters);
+            Compression compression = getCompression(parameters);
+
+            //relocate the points in the body
+            CsvPointReader points = new CsvPointReader(exchange.getRequestBody(), getParameter(parameters, "x", "x"),
+                    getParameter(parameters, "y", "y"));
+            GridCoverage2D surface;
+            try {
+                if (parameters.containsKey("id")) {
+                    points.setIdColumn(parameters.get("id"));
+                }
+                if (parameters.containsKey("crs")) {
+                    points.setCoordinateReferenceSystem(getCrs(parameters.get("crs")));
+                }
+                surface = this.wf.getFuzzyRelocatedSurface(points, resident, n, f);
+            } finally {
+                points.close();
+            }
+            this.requests++;
+
+            //write the surface where asked, or send it back (deleting its tiles once it is written, if it has any)
+            if (output != null) {
+                StageEvent write = this.wf.getMetrics().start(RunMetrics.Stage.WRITE);
+                try {
+                    FileHandler.writeGeoTiffFile(surface, output.getPath(), compression,
+                            this.wf.getThreads());
+                } finally {
+                    this.wf.dispose(surface);
+                }
+                this.wf.getMetrics().stop(write, 0);
+                this.send(exchange, 200, "{\"seed\": " + this.wf.getLastSeed() + ", \"metrics\": "
+                        + this.wf.getMetrics().toJson() + "}");
+                return;
+            }
+            File file = File.createTempFile("wfr", ".tif");
+            try {
+                try {
+                    FileHandler.writeGeoTiffFile(surface, file.getPath(), compression, this.wf.getThreads());
+                } finally {
+                    this.wf.dispose(surface);
+                }
+                exchange.getResponseHeaders().set("Content-Type", "image/tiff");
+                exchange.getResponseHeaders().set("X-Seed", Long.toString(this.wf.getLastSeed()));
+                exchange.sendResponseHeaders(200, file.length());
+                OutputStream out = exchange.getResponseBody();
+                try {
+                    Files.copy(file.toPath(), out);
+                } finally {
+                    out.close();
+                }
+            } finally {
+                file.delete();
+            }
+        } catch (IllegalArgumentException e) {
+            this.send(exchange, 400, "invalid request: " + e.getMessage());
+        } catch (Exception e) {
+            this.send(exchange, 500, "failed: " + e);
+        }
+    }
+
+    /**
+     * Gets the resident inputs for a pair of files, reading them if they
+     *   are not resident or have changed (and dropping the least recently
+     *   used inputs if there are too many)
+     * @param weighting
+     * @param polygons
+     * @return
+     * @throws Exception
+     */
+    private ResidentInputs getInputs(File weighting, File polygons) throws Exception {
+        final String key = weighting.getCanonicalPath() + "|" + polygons.getCanonicalPath() + "|"
+                + this.wf.getPrecision();
+        ResidentInputs resident = this.inputs.get(key);
+        if (resident == null || !resident.isCurrent()) {
+            this.inputs.remove(key);
+            resident = new ResidentInputs(weighting, polygons, this.wf);
+            this.inputs.put(key, resident);
+            Iterator<String> oldest = this.inputs.keySet().iterator();
+            while (this.inputs.size() > RESIDENT) {
+                oldest.next();
+                oldest.remove();
+            }
+        }
+        return resident;
+    }
+
+    /**
+     * Applies the settings of a request on top of those the server started with
+     * @param parameters
+     */
+    private void configure(Map<String, String> parameters) {
+        this.wf.setSeed(parameters.containsKey("seed") ? Long.valueOf(parameters.get("seed")) : null);
+        if (parameters.containsKey("mode")) {
+            if (parameters.get("mode").equals("best")) {
+                this.wf.setRelocationMode(RelocationMode.BEST_OF_N);
+            } else if (parameters.get("mode").equals("alias")) {
+                this.wf.setRelocationMode(RelocationMode.ALIAS);
+            } else {
+                throw new IllegalArgumentException("mode should be best or alias");
+            }
+        } else {
+            this.wf.setRelocationMode(this.relocationMode);
+        }
+        if (parameters.containsKey("candidates")) {
+            if (parameters.get("candidates").equals("radial")) {
+                this.wf.setCandidateDistribution(CandidateDistribution.RADIAL);
+            } else if (parameters.get("candidates").equals("uniform")) {
+                this.wf.setCandidateDistribution(CandidateDistribution.UNIFORM);
+            } else {
+                throw new IllegalArgumentException("candidates should be radial or uniform");
+            }
+        } else {
+            this.wf.setCandidateDistribution(this.candidateDistribution);
+        }
+        this.wf.setSharpness(parameters.containsKey("sharpness") ? Double.parseDouble(parameters.get("sharpness"))
+                : this.sharpness);
+        if (parameters.containsKey("render")) {
+            if (parameters.get("render").equals("splat")) {
+                this.wf.setRenderMode(RenderMode.SPLAT);
+            } else if (parameters.get("render").equals("grid")) {
+                this.wf.setRenderMode(RenderMode.COUNT_GRID);
+            } else {
+                throw new IllegalArgumentException("render should be splat or grid");
+            }
+        } else {
+            this.wf.setRenderMode(this.renderMode);
+        }
+    }
+
+    /**
+     * Refuses requests that a web page could have sent (a browser adds an
+     *   Origin header to them, and a page on a host name rebound to this one
+     *   sends that name as the Host) and those without the token
+     * @param exchange
+     * @return true if the request may be handled (if not, it has been answered)
+     * @throws IOException
+     */
+    private boolean isAllowed(HttpExchange exchange) throws IOException {
+        Headers headers = exchange.getRequestHeaders();
+        if (headers.containsKey("Origin") || !isLoopback(headers.getFirst("Host"))) {
+            this.send(exchange, 403, "requests must come from this host");
+            return false;
+        }
+        String token = headers.getFirst(TOKEN_HEADER);
+        if (token == null || !MessageDigest.isEqual(token.getBytes(UTF8), this.token.getBytes(UTF8))) {
+            this.send(exchange, 401, "the " + TOKEN_HEADER + " header should hold the token printed at startup");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @param host the Host header of a request
+     * @return true if it names the loopback interface (with or without a port)
+     */
+    static boolean isLoopback(String host) {
+        if (host == null) {
+            return false;
+        }
+        String name = host;
+        if (name.startsWith("[")) {
+            final int end = name.indexOf(']');
+            if (end < 0) {
+                return false;
+            }
+            name = name.substring(0, end + 1);
+        } else if (name.indexOf(':') >= 0) {
+            name = name.substring(0, name.indexOf(':'));
+        }
+        return name.equalsIgnoreCase("localhost") || name.equals("127.0.0.1") || name.equals("[::1]");
+    }
+
+    private String getStatus() {
+        StringBuilder status = new StringBuilder();
+        status.append("requests: ").append(this.requests).append('\n');
+        for (ResidentInputs resident : this.inputs.values()) {
+            status.append("resident: ").append(resident).append('\n');
+        }
+        return status.toString();
+    }
+
+    private void send(HttpExchange exchange, int code, String body) throws IOException {
+        byte[] bytes = body.getBytes(UTF8);
+        exchange.getResponseHeaders().set("Content-Type", body.startsWith("{") ? "application/json"
+                : "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(code, bytes.length);
+        OutputStream out = exchange.getResponseBody();
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Parses a query string
+     * @param query
+     * @return
+     * @throws UnsupportedEncodingException
+     */
+    static Map<String, String> getParameters(String query) throws UnsupportedEncodingException {
+        Map<String, String> parameters = new HashMap<String, String>();
+        if (query == null) {
+            return parameters;
+        }
+        for (String pair : query.split("&")) {
+            if (pair.isEmpty()) {
+                continue;
+            }
+            final int equals = pair.indexOf('=');
+            if (equals < 0) {
+                parameters.put(URLDecoder.decode(pair, "UTF-8"), "");
+            } else {
+                parameters.put(URLDecoder.decode(pair.substring(0, equals), "UTF-8"),
+                        URLDecoder.decode(pair.substring(equals + 1), "UTF-8"));
+            }
+        }
+        return parameters;
+    }
+
+    private static String getParameter(Map<String, String> parameters, String name) {
+        String value = parameters.get(name);
+        if (value == null) {
+            throw new IllegalArgumentException(name + " is missing");
+        }
+        return value;
+    }
+
+    private static String getParameter(Map<String, String> parameters, String name, String defaultValue) {
+        return parameters.containsKey(name) ? parameters.get(name) : defaultValue;
+    }
+
+    /**
+     * @param parameters
+     * @return how to compress the tiles of a Cloud Optimized GeoTIFF (null for a plain GeoTIFF)
+     */
+    private static Compression getCompression(Map<String, String> parameters) {
+        if (!parameters.containsKey("cog")) {
+            return null;
+        } else if (parameters.get("cog").equals("deflate")) {
+            return Compression.DEFLATE;
+        } else if (parameters.get("cog").equals("lzw")) {
+            return Compression.LZW;
+        } else if (parameters.get("cog").equals("none")) {
+            return Compression.NONE;
+        }
+        throw new IllegalArgumentException("cog should be deflate, lzw or none");
+    }
+
+    private static CoordinateReferenceSystem getCrs(String code) {
+        try {
+            return CRS.decode(code, true);
+        } catch (FactoryException e) {
+            throw new IllegalArgumentException("unknown crs " + code);
+        }
+    }
+
+    /**
+     * Resolves a file named by a request against the directory the server
+     *   was started with, refusing any (after following links and ..) that
+     *   is not in it
+     * @param path
+     * @return
+     * @throws IOException
+     */
+    File getFile(String path) throws IOException {
+        File file = new File(path);
+        if (!file.isAbsolute()) {
+            file = new File(this.directory, path);
+        }
+        file = file.getCanonicalFile();
+        if (file.equals(this.directory) || !file.toPath().startsWith(this.directory.toPath())) {
+            throw new IllegalArgumentException(path + " is not in " + this.directory);
+        }
+        return file;
+    }
+
+    private File getInputFile(Map<String, String> parameters, String name) throws IOException {
+        File file = this.getFile(getParameter(parameters, name));
+        if (!file.isFile()) {
+            throw new IllegalArgumentException(file + " does not exist");
+        }
+        return file;
+    }
+}
@@ -0,0 +1,22 @@
+package org.geotools.passivelygeolocated;
+
+import java.io.IOException;
+import org.geotools.coverage.grid.GridCoverage2D;
+
+/**
+ * Receives the surfaces of a parameter sweep as they are built
+ * @author jonnyhuck
+ */
+public interface SweepListener {
+
+    /**
+     * Called once for each combination of parameters. The surface is reused
+     *   for the next combination, so it must be written (or copied) before
+     *   this returns
+     * @param relocationIterations
+     * @param fuzziness
+     * @param surface
+     * @throws IOException
+     */
+    void surface(int relocationIterations, double fuzziness, GridCoverage2D surface) throws IOException;
+}
@@ -0,0 +1,407 @@
+package org.geotools.passivelygeolocated;
+
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.color.ColorSpace;
+import java.awt.image.BandedSampleModel;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferDouble;
+import java.awt.image.DataBufferFloat;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.SampleModel;
+import java.awt.image.WritableRaster;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Vector;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * An output surface that is split into square tiles, each of which is held in
+ *   a memory mapped region of a scratch file rather than on the heap (as
+ *   doubles or floats, depending on the precision). Tiles are only created
+ *   when a splat first touches them, so areas with no points cost neither
+ *   memory nor disk. The surface can be read back as a tiled
+ *   RenderedImage, so that a writer can pull one tile at a time.
+ * @author jonnyhuck
+ */
+class TiledSurface extends SurfaceBuffer {
+
+    //the width and height of a tile, in pixels
+    static final int TILE_SIZE = 1024;
+
+    private final int tileSize;
+    private final int tilesX;
+    private final int tilesY;
+
+    //the scratch file, and the tiles that have been mapped from it (null until first written)
+    private final File file;
+    private final RandomAccessFile store;
+    private final FileChannel channel;
+    private final AtomicReferenceArray<Buffer> tiles;
+    private int tilesCreated = 0;
+
+    /**
+     * Creates an empty surface backed by a scratch file
+     * @param width
+     * @param height
+     * @param precision
+     * @param directory where to put the scratch file (null for the default temporary directory)
+     * @throws IOException
+     */
+    TiledSurface(int width, int height, Precision precision, File directory) throws IOException {
+        this(width, height, TILE_SIZE, precision, directory);
+    }
+
+    /**
+     * Creates an empty surface backed by a scratch file
+     * @param width
+     * @param height
+     * @param tileSize
+     * @param precision
+     * @param directory where to put the scratch file (null for the default temporary directory)
+     * @throws IOException
+     */
+    TiledSurface(int width, int height, int tileSize, Precision precision, File directory) throws IOException {
+        super(width, height, precision);
+        this.tileSize = tileSize;
+        this.tilesX = (width + tileSize - 1) / tileSize;
+        this.tilesY = (height + tileSize - 1) / tileSize;
+        this.tiles = new AtomicReferenceArray<Buffer>(this.tilesX * this.tilesY);
+        this.file = File.createTempFile("wfr", ".tiles", directory);
+        this.file.deleteOnExit();
+        this.store = new RandomAccessFile(this.file, "rw");
+        this.channel = this.store.getChannel();
+    }
+
+    @Override
+    protected void addRow(double[] values, int k, int row, int left, int right, double scale) {
+
+        //split the run at tile boundaries
+        final int ty = row / this.tileSize;
+        final int r = (row - ty * this.tileSize) * this.tileSize;
+        int col = left;
+        while (col < right) {
+            final int tx = col / this.tileSize;
+            final int end = Math.min(right, (tx + 1) * this.tileSize);
+            int d = r + col - tx * this.tileSize;
+            if (this.precision == Precision.FLOAT) {
+                final FloatBuffer tile = (FloatBuffer) this.getTile(tx, ty);
+                for (; col < end; col++) {
+                    tile.put(d, tile.get(d) + (float) (values[k++] * scale));
+                    d++;
+                }
+                continue;
+            }
+            final DoubleBuffer tile = (DoubleBuffer) this.getTile(tx, ty);
+            if (scale == 1) {
+                for (; col < end; col++) {
+                    tile.put(d, tile.get(d) + values[k++]);
+                    d++;
+                }
+            } else {
+                for (; col < end; col++) {
+                    tile.put(d, tile.get(d) + values[k++] * scale);
+                    d++;
+                }
+            }
+        }
+    }
+
+    @Override
+    protected void addRow(float[] values, int k, int row, int left, int right, float scale) {
+
+        //split the run at tile boundaries
+        final int ty = row / this.tileSize;
+        final int r = (row - ty * this.tileSize) * this.tileSize;
+        int col = left;
+        while (col < right) {
+            final int tx = col / this.tileSize;
+            final int end = Math.min(right, (tx + 1) * this.tileSize);
+            int d = r + col - tx * this.tileSize;
+            if (this.precision == Precision.DOUBLE) {
+                final DoubleBuffer tile = (DoubleBuffer) this.getTile(tx, ty);
+                for (; col < end; col++) {
+                    tile.put(d, tile.get(d) + values[k++] * scale);
+                    d++;
+                }
+                continue;
+            }
+            final FloatBuffer tile = (FloatBuffer) this.getTile(tx, ty);
+            if (scale == 1) {
+                for (; col < end; col++) {
+                    tile.put(d, tile.get(d) + values[k++]);
+                    d++;
+                }
+            } else {
+                for (; col < end; col++) {
+                    tile.put(d, tile.get(d) + values[k++] * scale);
+                    d++;
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns a tile, mapping a new (zero filled) region of the scratch file
+     *   for it if it has not been written to yet
+     * @param tx
+     * @param ty
+     * @return
+     */
+    private Buffer getTile(int tx, int ty) {
+        final int index = ty * this.tilesX + tx;
+        Buffer tile = this.tiles.get(index);
+        if (tile == null) {
+            tile = this.createTile(index);
+        }
+        return tile;
+    }
+
+    private synchronized Buffer createTile(int index) {
+        Buffer tile = this.tiles.get(index);
+        if (tile == null) {
+
+            //tiles are laid out in the file in the order that they are created
+            final long bytes = (long) this.tileSize * this.tileSize * (this.precision == Precision.FLOAT ? 4 : 8);
+            try {
+                ByteBuffer region = this.channel.map(FileChannel.MapMode.READ_WRITE, this.tilesCreated * bytes, bytes)
+                        .order(ByteOrder.nativeOrder());
+                if (this.precision == Precision.FLOAT) {
+                    tile = region.asFloatBuffer();
+                } else {
+                    tile = region.asDoubleBuffer();
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException("could not map a tile of the output surface", e);
+            }
+            this.tilesCreated++;
+            this.tiles.set(index, tile);
+        }
+        return tile;
+    }
+
+    /**
+     * @return the number of tiles that have been written to
+     */
+    synchronized int getTilesCreated() {
+        return this.tilesCreated;
+    }
+
+    /**
+     * @return the value of a pixel
+     */
+    double getValue(int col, int row) {
+        final int tx = col / this.tileSize;
+        final int ty = row / this.tileSize;
+        final Buffer tile = this.tiles.get(ty * this.tilesX + tx);
+        if (tile == null) {
+            return 0;
+        }
+        final int d = (row - ty * this.tileSize) * this.tileSize + col - tx * this.tileSize;
+        if (this.precision == Precision.FLOAT) {
+            return ((FloatBuffer) tile).get(d);
+        }
+        return ((DoubleBuffer) tile).get(d);
+    }
+
+    @Override
+    int getTileSize() {
+        return this.tileSize;
+    }
+
+    @Override
+    ByteBuffer copyTile(int tx, int ty) {
+        final Buffer tile = this.tiles.get(ty * this.tilesX + tx);
+        if (tile == null) {
+            return null;
+        }
+        if (this.precision == Precision.FLOAT) {
+            ByteBuffer copy = ByteBuffer.allocate(this.tileSize * this.tileSize * 4);
+            copy.asFloatBuffer().put(((FloatBuffer) tile).duplicate());
+            return copy;
+        }
+        ByteBuffer copy = ByteBuffer.allocate(this.tileSize * this.tileSize * 8);
+        copy.asDoubleBuffer().put(((DoubleBuffer) tile).duplicate());
+        return copy;
+    }
+
+    @Override
+    void clear() {
+
+        //(the tiles that have been created are kept, as they are likely to be written to again)
+        final int length = this.tileSize * this.tileSize;
+        float[] floatZeros = this.precision == Precision.FLOAT ? new float[length] : null;
+        double[] zeros = this.precision == Precision.FLOAT ? null : new double[length];
+        for (int i = 0; i < this.tiles.length(); i++) {
+            final Buffer tile = this.tiles.get(i);
+            if (tile instanceof FloatBuffer) {
+                FloatBuffer values = ((FloatBuffer) tile).duplicate();
+                values.clear();
+                values.put(floatZeros);
+            } else if (tile != null) {
+                DoubleBuffer values = ((DoubleBuffer) tile).duplicate();
+                values.clear();
+                values.put(zeros);
+            }
+        }
+    }
+
+    @Override
+    void getRow(int row, double[] values) {
+        for (int col = 0; col < this.width; col++) {
+            values[col] = this.getValue(col, row);
+        }
+    }
+
+    /**
+     * @return a view of the surface as a tiled image (tiles are copied from
+     *   the scratch file as they are requested)
+     */
+    RenderedImage getImage() {
+        return new TileImage();
+    }
+
+    /**
+     * Closes and deletes the scratch file (the surface and its image can not
+     *   be used after this)
+     * @throws IOException
+     */
+    void dispose() throws IOException {
+        this.store.close();
+        this.file.delete();
+    }
+
+    /**
+     * A read only, single band image over the tiles
+     */
+    private class TileImage implements RenderedImage {
+
+        private final int dataType = TiledSurface.this.precision == Precision.FLOAT
+                ? DataBuffer.TYPE_FLOAT : DataBuffer.TYPE_DOUBLE;
+        private final SampleModel sampleModel = new BandedSampleModel(this.dataType,
+                TiledSurface.this.tileSize, TiledSurface.this.tileSize, 1);
+        private final ColorModel colorModel = new ComponentColorModel(ColorSpace.getInstance(ColorSpace.CS_GRAY),
+                false, false, ColorModel.OPAQUE, this.dataType);
+
+        public Raster getTile(int tx, int ty) {
+            final int size = TiledSurface.this.tileSize;
+            final Point origin = new Point(tx * size, ty * size);
+            final Buffer tile = TiledSurface.this.tiles.get(ty * TiledSurface.this.tilesX + tx);
+            if (this.dataType == DataBuffer.TYPE_FLOAT) {
+                float[] data = new float[size * size];
+                if (tile != null) {
+                    ((FloatBuffer) tile).duplicate().get(data);
+                }
+                return Raster.createWritableRaster(this.sampleModel, new DataBufferFloat(data, data.length), origin);
+            }
+            double[] data = new double[size * size];
+            if (tile != null) {
+                ((DoubleBuffer) tile).duplicate().get(data);
+            }
+            return Raster.createWritableRaster(this.sampleModel, new DataBufferDouble(data, data.length), origin);
+        }
+
+        public Raster getData() {
+            return this.getData(new Rectangle(0, 0, TiledSurface.this.width, TiledSurface.this.height));
+        }
+
+        public Raster getData(Rectangle rect) {
+            WritableRaster raster = Raster.createWritableRaster(
+                    new BandedSampleModel(this.dataType, rect.width, rect.height, 1),
+                    new Point(rect.x, rect.y));
+            return this.copyData(raster);
+        }
+
+        public WritableRaster copyData(WritableRaster raster) {
+            if (raster == null) {
+                return (WritableRaster) this.getData();
+            }
+            final Rectangle bounds = raster.getBounds().intersection(
+                    new Rectangle(0, 0, TiledSurface.this.width, TiledSurface.this.height));
+            for (int row = bounds.y; row < bounds.y + bounds.height; row++) {
+                for (int col = bounds.x; col < bounds.x + bounds.width; col++) {
+                    raster.setSample(col, row, 0, TiledSurface.this.getValue(col, row));
+                }
+            }
+            return raster;
+        }
+
+        public Vector<RenderedImage> getSources() {
+            return null;
+        }
+
+        public Object getProperty(String name) {
+            return java.awt.Image.UndefinedProperty;
+        }
+
+        public String[] getPropertyNames() {
+            return null;
+        }
+
+        public ColorModel getColorModel() {
+            return this.colorModel;
+        }
+
+        public SampleModel getSampleModel() {
+            return this.sampleModel;
+        }
+
+        public int getWidth() {
+            return TiledSurface.this.width;
+        }
+
+        public int getHeight() {
+            return TiledSurface.this.height;
+        }
+
+        public int getMinX() {
+            return 0;
+        }
+
+        public int getMinY() {
+            return 0;
+        }
+
+        public int getNumXTiles() {
+            return TiledSurface.this.tilesX;
+        }
+
+        public int getNumYTiles() {
+            return TiledSurface.this.tilesY;
+        }
+
+        public int getMinTileX() {
+            return 0;
+        }
+
+        public int getMinTileY() {
+            return 0;
+        }
+
+        public int getTileWidth() {
+            return TiledSurface.this.tileSize;
+        }
+
+        public int getTileHeight() {
+            return TiledSurface.this.tileSize;
+        }
+
+        public int getTileGridXOffset() {
+            return 0;
+        }
+
+        public int getTileGridYOffset() {
+            return 0;
+        }
+    }
+}
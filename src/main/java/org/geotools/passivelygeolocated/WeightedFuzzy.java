@@ -4,12 +4,25 @@ import com.vividsolutions.jts.geom.Coordinate;
 import com.vividsolutions.jts.geom.Geometry;
 import com.vividsolutions.jts.geom.GeometryFactory;
 import com.vividsolutions.jts.geom.Point;
-import java.util.Random;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.SplittableRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ForkJoinPool;
 import java.awt.image.DataBuffer;
 import java.awt.image.WritableRaster;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
 import javax.media.jai.RasterFactory;
-import org.geotools.coverage.grid.GridCoordinates2D;
 import org.geotools.coverage.grid.GridCoverage2D;
 import org.geotools.coverage.grid.GridCoverageFactory;
 import org.geotools.coverage.grid.GridEnvelope2D;
@@ -20,7 +33,6 @@ import org.geotools.data.simple.SimpleFeatureSource;
 import org.geotools.factory.CommonFactoryFinder;
 import org.geotools.geometry.DirectPosition2D;
 import org.geotools.geometry.jts.JTSFactoryFinder;
-import org.geotools.referencing.CRS;
 import org.opengis.coverage.PointOutsideCoverageException;
 import org.opengis.feature.simple.SimpleFeature;
 import org.opengis.feature.type.FeatureType;
@@ -38,157 +50,1742 @@ import org.opengis.referencing.operation.TransformException;
  */
 public class WeightedFuzzy {
 
+    //the number of points read from a CSV file (or point cache) at a time
+    static final int POINT_BATCH = 1 << 20;
+
+    //the number of worker threads used to build the surface
+    private int threads = Runtime.getRuntime().availableProcessors();
+
+    //the pool runs use (null to start one for each run)
+    private ForkJoinPool pool;
+
+    //how points are relocated, and the sharpness used by RelocationMode.ALIAS (NaN to use n)
+    private RelocationMode relocationMode = RelocationMode.BEST_OF_N;
+    private double sharpness = Double.NaN;
+
+    //how the candidates of RelocationMode.BEST_OF_N are drawn
+    private CandidateDistribution candidateDistribution = CandidateDistribution.RADIAL;
+
+    //how the relocated points are added to the surface
+    private RenderMode renderMode = RenderMode.SPLAT;
+
+    //the precision of the output surface, the cached weighting surface and the splats
+    private Precision precision = Precision.DOUBLE;
+
+    //where to keep the output surface as memory mapped tiles (null to keep it on the heap)
+    private File tileDirectory;
+
+    //the number of batches of CSV points read ahead of the batch being relocated
+    private int prefetch = 2;
+
+    //where the progress of a run is saved (null not to save it), the seconds between saves, and whether a
+    //  run carries on from the progress saved there
+    private File checkpoint;
+    private int checkpointInterval = 600;
+    private boolean resume = false;
+
+    //the input files recorded in a checkpoint, which must not have changed when a run carries on from it
+    private File[] checkpointInputs;
+
+    //the number of points in each batch of a streamed run (and in each group of polygons of a checkpointed one)
+    private int pointBatch = POINT_BATCH;
+
+    //the work done drawing candidates in the last run
+    private CandidateStats candidateStats;
+
+    //the master seed of the random streams (null to choose a new one for each run), and that of the last run
+    private Long seed;
+    private long lastSeed;
+
+    //the number of points retracted by the last incremental update
+    private int retracted;
+
+    //the timings and counters of the last run
+    private RunMetrics metrics = new RunMetrics();
+
+    //the tiled surfaces behind the coverages that have been returned, whose scratch files dispose deletes
+    private final Map<GridCoverage2D, TiledSurface> tiledCoverages = Collections.synchronizedMap(
+            new IdentityHashMap<GridCoverage2D, TiledSurface>());
+
+    //splats, by their radius in pixels (many polygons share the same one), in double and single precision
+    private final ConcurrentMap<Integer, Kernel> kernels = new ConcurrentHashMap<Integer, Kernel>();
+    private final ConcurrentMap<Integer, Kernel> floatKernels = new ConcurrentHashMap<Integer, Kernel>();
+
+    /**
+     * Sets the number of worker threads used to build the surface
+     * @param threads 
+     */
+    public void setThreads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be at least 1");
+        }
+        this.threads = threads;
+    }
+
+    /**
+     * @return the number of worker threads used to build the surface
+     */
+    public int getThreads() {
+        return this.threads;
+    }
+
+    /**
+     * Sets a pool for runs to use instead of starting and stopping one of
+     *   their own, as the server does so that its requests share one (the
+     *   pool should have as many threads as the runs are to use, and is not
+     *   shut down)
+     * @param pool (null to start one for each run)
+     */
+    void setPool(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    private ForkJoinPool openPool() {
+        return this.pool != null ? this.pool : new ForkJoinPool(this.threads);
+    }
+
+    private void closePool(ForkJoinPool pool) {
+        if (pool != this.pool) {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Sets how points are relocated within their polygons
+     * @param relocationMode 
+     */
+    public void setRelocationMode(RelocationMode relocationMode) {
+        this.relocationMode = relocationMode;
+    }
+
+    /**
+     * @return how points are relocated within their polygons
+     */
+    public RelocationMode getRelocationMode() {
+        return this.relocationMode;
+    }
+
+    /**
+     * Sets how the candidate locations of RelocationMode.BEST_OF_N are drawn
+     * @param candidateDistribution 
+     */
+    public void setCandidateDistribution(CandidateDistribution candidateDistribution) {
+        this.candidateDistribution = candidateDistribution;
+    }
+
+    /**
+     * @return how the candidate locations of RelocationMode.BEST_OF_N are drawn
+     */
+    public CandidateDistribution getCandidateDistribution() {
+        return this.candidateDistribution;
+    }
+
+    /**
+     * Sets the exponent applied to the weighting surface in RelocationMode.ALIAS,
+     *   which plays the role of the number of iterations (NaN to use n)
+     * @param sharpness 
+     */
+    public void setSharpness(double sharpness) {
+        if (sharpness < 0) {
+            throw new IllegalArgumentException("sharpness must not be negative");
+        }
+        this.sharpness = sharpness;
+    }
+
+    /**
+     * @return the sharpness, or NaN if the number of iterations is used
+     */
+    public double getSharpness() {
+        return this.sharpness;
+    }
+
+    /**
+     * Sets how the relocated points are added to the surface
+     * @param renderMode 
+     */
+    public void setRenderMode(RenderMode renderMode) {
+        this.renderMode = renderMode;
+    }
+
+    /**
+     * @return how the relocated points are added to the surface
+     */
+    public RenderMode getRenderMode() {
+        return this.renderMode;
+    }
+
+    /**
+     * Sets the precision in which the output surface is accumulated and
+     *   written, and in which the weighting surface and splats are held (see
+     *   Precision.FLOAT for how much this changes the output)
+     * @param precision 
+     */
+    public void setPrecision(Precision precision) {
+        this.precision = precision;
+    }
+
+    /**
+     * @return the precision of the output surface
+     */
+    public Precision getPrecision() {
+        return this.precision;
+    }
+
+    /**
+     * Sets how many batches of points are read from CSV files (on a thread of
+     *   their own) ahead of the batch being relocated, so that reading the
+     *   file overlaps relocation and rendering. Each batch holds up to
+     *   POINT_BATCH points (24MB), and the reader waits when this many are
+     *   ready, which caps the memory used
+     * @param prefetch (0 to read each batch only when it is needed)
+     */
+    public void setPrefetch(int prefetch) {
+        if (prefetch < 0) {
+            throw new IllegalArgumentException("prefetch must be at least 0");
+        }
+        this.prefetch = prefetch;
+    }
+
+    /**
+     * @return the number of batches of CSV points read ahead
+     */
+    public int getPrefetch() {
+        return this.prefetch;
+    }
+
+    /**
+     * Keeps the output surface in memory mapped tiles in a scratch file in the
+     *   given directory, rather than in one raster on the heap (null to use the heap)
+     * @param tileDirectory 
+     */
+    public void setTileDirectory(File tileDirectory) {
+        if (tileDirectory != null && !tileDirectory.isDirectory()) {
+            throw new IllegalArgumentException(tileDirectory + " is not a directory");
+        }
+        this.tileDirectory = tileDirectory;
+    }
+
+    /**
+     * @return where the output surface tiles are kept, or null if it is kept on the heap
+     */
+    public File getTileDirectory() {
+        return this.tileDirectory;
+    }
+
+    /**
+     * Saves the progress of getFuzzyRelocatedSurface to a file every so often
+     *   (see setCheckpointInterval), so that a run that is stopped can carry
+     *   on from it (see setResume) rather than start again. Checkpoints are
+     *   taken between batches of points (or groups of polygons), which are
+     *   the same whenever they are taken, so a resumed run gives the same
+     *   surface as one that was not stopped
+     * @param checkpoint (null not to save progress)
+     */
+    public void setCheckpoint(File checkpoint) {
+        this.checkpoint = checkpoint;
+    }
+
+    /**
+     * @return where progress is saved, or null if it is not
+     */
+    public File getCheckpoint() {
+        return this.checkpoint;
+    }
+
+    /**
+     * Sets how often progress is saved (a checkpoint that falls due while the
+     *   last one is still being written is skipped)
+     * @param seconds (0 to save after every batch or group)
+     */
+    public void setCheckpointInterval(int seconds) {
+        if (seconds < 0) {
+            throw new IllegalArgumentException("the checkpoint interval must be at least 0");
+        }
+        this.checkpointInterval = seconds;
+    }
+
+    /**
+     * @return the seconds between checkpoints
+     */
+    public int getCheckpointInterval() {
+        return this.checkpointInterval;
+    }
+
+    /**
+     * Sets whether a run carries on from the checkpoint file (if it exists),
+     *   with the seed and surface saved there, rather than replacing it
+     * @param resume
+     */
+    public void setResume(boolean resume) {
+        this.resume = resume;
+    }
+
+    /**
+     * @return true if runs carry on from the checkpoint file
+     */
+    public boolean isResume() {
+        return this.resume;
+    }
+
+    /**
+     * Sets the input files of the runs that are checkpointed. Their paths,
+     *   sizes and modification times (with those of the other files of a
+     *   shapefile) are saved with each checkpoint, and a run will not carry
+     *   on from a checkpoint of files that have since changed
+     * @param points
+     * @param polygons
+     * @param weighting
+     */
+    public void setCheckpointInputs(File points, File polygons, File weighting) {
+        this.checkpointInputs = new File[] { points, polygons, weighting };
+    }
+
+    /**
+     * Sets the number of points in each batch read from a CSV file (or a
+     *   point cache), and in each group of polygons between checkpoints
+     *   (POINT_BATCH unless a test needs a run of many small batches)
+     * @param pointBatch
+     */
+    void setPointBatch(int pointBatch) {
+        if (pointBatch < 1) {
+            throw new IllegalArgumentException("a batch must hold at least 1 point");
+        }
+        this.pointBatch = pointBatch;
+    }
+
+    /**
+     * Seeds the random streams from which the points are relocated, so that
+     *   the same seed gives the same surface whatever the number of threads
+     *   (null to choose a new seed for each run)
+     * @param seed 
+     */
+    public void setSeed(Long seed) {
+        this.seed = seed;
+    }
+
+    /**
+     * @return the master seed, or null if a new one is chosen for each run
+     */
+    public Long getSeed() {
+        return this.seed;
+    }
+
+    /**
+     * @return the master seed used by the last run (pass it to setSeed to repeat the run)
+     */
+    public long getLastSeed() {
+        return this.lastSeed;
+    }
+
+    /**
+     * @return the random streams for a new run
+     */
+    private RandomStreams getStreams() {
+        this.lastSeed = this.seed != null ? this.seed.longValue() : new SplittableRandom().nextLong();
+        return new RandomStreams(this.lastSeed);
+    }
+
+    /**
+     * 
+     * @param points
+     * @param polygons
+     * @param weightingSurface
+     * @param relocationIterations
+     * @param fuzziness
+     * @return
+     * @throws IOException
+     * @throws NoSuchAuthorityCodeException
+     * @throws FactoryException
+     * @throws InvalidGridGeometryException
+     * @throws TransformException 
+     */
+    public GridCoverage2D getFuzzyRelocatedSurface(SimpleFeatureSource points, SimpleFeatureSource polygons,
+            GridCoverage2D weightingSurface, int relocationIterations, double fuzziness) throws IOException,
+            NoSuchAuthorityCodeException, FactoryException, InvalidGridGeometryException, TransformException {
+        this.metrics = new RunMetrics();
+        StageEvent ingest = this.metrics.start(RunMetrics.Stage.INGEST);
+        List<Geometry> polygonList = this.getPolygons(polygons, weightingSurface);
+        this.metrics.stop(ingest, 0);
+        return this.getCoverage(this.getSurface(points, polygonList, null, weightingSurface, relocationIterations,
+                fuzziness), weightingSurface);
+    }
+
+    /**
+     * Builds the surface of the points in some of the polygons
+     * @param points
+     * @param polygonList
+     * @param include true for each polygon whose points are relocated (null for all of them)
+     * @param weightingSurface
+     * @param relocationIterations
+     * @param fuzziness
+     * @return
+     * @throws IOException 
+     */
+    SurfaceBuffer getSurface(SimpleFeatureSource points, List<Geometry> polygonList, boolean[] include,
+            GridCoverage2D weightingSurface, int relocationIterations, double fuzziness) throws IOException {
+
+        //read the points on this thread (feature iterators are not thread safe)
+        StageEvent ingest = this.metrics.start(RunMetrics.Stage.INGEST);
+        PointColumns columns = this.getPoints(points, weightingSurface);
+        this.metrics.stop(ingest, columns.size());
+        return this.getSurface(columns, polygonList, include, weightingSurface, relocationIterations, fuzziness);
+    }
+
+    /**
+     * Builds the surface of points that have been read, in some of the polygons
+     * @param columns the points, in the CRS of the weighting surface
+     * @param polygonList
+     * @param include true for each polygon whose points are relocated (null for all of them)
+     * @param weightingSurface
+     * @param relocationIterations
+     * @param fuzziness
+     * @return
+     * @throws IOException 
+     */
+    SurfaceBuffer getSurface(PointColumns columns, List<Geometry> polygonList, boolean[] include,
+            GridCoverage2D weightingSurface, int relocationIterations, double fuzziness) throws IOException {
+
+        //get pixel size
+        final int pxWidth = weightingSurface.getGridGeometry().getGridRange2D().getSpan(0);
+        final int mWidth = (int) weightingSurface.getEnvelope2D().getSpan(0);
+        final int pxSize = mWidth / pxWidth;
+
+        //load the weighting surface into memory for fast lookups
+        RandomStreams streams = this.getStreams();
+        StageEvent ingest = this.metrics.start(RunMetrics.Stage.INGEST);
+        WeightingSampler sampler = new WeightingSampler(weightingSurface, this.precision);
+        this.metrics.stop(ingest, 0);
+
+        //carry on from the last checkpoint (with its seed) if resuming
+        SurfaceBuffer outputSurface = this.getOutputSurface(weightingSurface);
+        Checkpoint checkpoint = this.openCheckpoint(outputSurface, relocationIterations, fuzziness, sampler,
+                pxSize, polygonList.size());
+        if (checkpoint != null) {
+            streams = new RandomStreams(this.lastSeed);
+        }
+
+        //assign each point to a polygon (see PointPolygonJoin for how boundaries are handled)
+        PointPolygonJoin join = new PointPolygonJoin(polygonList, JTSFactoryFinder.getGeometryFactory(null));
+        PolygonState[] states = new PolygonState[polygonList.size()];
+        List<PolygonJob> jobs = this.joinPoints(join, polygonList, include, columns, fuzziness, pxSize,
+                states);
+
+        ForkJoinPool pool = this.openPool();
+        try {
+            if (checkpoint == null) {
+                this.relocateAndRender(jobs, sampler, streams, outputSurface, pool, relocationIterations, pxSize);
+            } else {
+                this.relocateAndRender(jobs, sampler, streams, outputSurface, pool, relocationIterations, pxSize,
+                        checkpoint);
+            }
+        } finally {
+            this.closePool(pool);
+            if (checkpoint != null) {
+                checkpoint.close();
+            }
+        }
+        this.finishRun(states, sampler);
+        return outputSurface;
+    }
+
+    /**
+     * As getFuzzyRelocatedSurface, but streams the points from a CSV file (or
+     *   a PointCache) in batches of POINT_BATCH. Each batch is assigned to
+     *   polygons, relocated and added to the surface while the next few are
+     *   read (see setPrefetch), so the memory used does not depend on the
+     *   number of points
+     * @param points
+     * @param polygons
+     * @param weightingSurface
+     * @param relocationIterations
+     * @param fuzziness
+     * @return
+     * @throws IOException 
+     */
+    public GridCoverage2D getFuzzyRelocatedSurface(PointReader points, SimpleFeatureSource polygons,
+            GridCoverage2D weightingSurface, int relocationIterations, double fuzziness) throws IOException {
+        this.metrics = new RunMetrics();
+        StageEvent ingest = this.metrics.start(RunMetrics.Stage.INGEST);
+        List<Geometry> polygonList = this.getPolygons(polygons, weightingSurface);
+        this.metrics.stop(ingest, 0);
+        return this.getCoverage(this.getSurface(points, polygonList, null, weightingSurface, relocationIterations,
+                fuzziness), weightingSurface);
+    }
+
+    /**
+     * As getSurface, but streams the points from a CSV file (or a PointCache) in batches
+     * @param points
+     * @param polygonList
+     * @param include true for each polygon whose points are relocated (null for all of them)
+     * @param weightingSurface
+     * @param relocationIterations
+     * @param fuzziness
+     * @return
+     * @throws IOException 
+     */
+    SurfaceBuffer getSurface(PointReader points, List<Geometry> polygonList, boolean[] include,
+            GridCoverage2D weightingSurface, int relocationIterations, double fuzziness) throws IOException {
+
+        //get pixel size
+        final int pxWidth = weightingSurface.getGridGeometry().getGridRange2D().getSpan(0);
+        final int mWidth = (int) weightingSurface.getEnvelope2D().getSpan(0);
+        final int pxSize = mWidth / pxWidth;
+
+        //index the polygons, and load the weighting surface into memory for fast lookups
+        RandomStreams streams = this.getStreams();
+        StageEvent ingest = this.metrics.start(RunMetrics.Stage.INGEST);
+        this.reproject(points, weightingSurface);
+        PointPolygonJoin join = new PointPolygonJoin(polygonList, JTSFactoryFinder.getGeometryFactory(null));
+        WeightingSampler sampler = new WeightingSampler(weightingSurface, this.precision);
+        this.metrics.stop(ingest, 0);
+
+        //carry on from the last checkpoint (with its seed) if resuming
+        SurfaceBuffer outputSurface = this.getOutputSurface(weightingSurface);
+        Checkpoint checkpoint = this.openCheckpoint(outputSurface, relocationIterations, fuzziness, sampler,
+                pxSize, polygonList.size());
+        if (checkpoint != null) {
+            streams = new RandomStreams(this.lastSeed);
+        }
+
+        //the first job for each polygon, which later batches share their samplers with
+        PolygonState[] states = new PolygonState[polygonList.size()];
+        try {
+            this.addPoints(points, join, polygonList, include, states, sampler, streams, outputSurface,
+                    relocationIterations, fuzziness, pxSize, checkpoint);
+        } finally {
+            if (checkpoint != null) {
+                checkpoint.close();
+            }
+        }
+        this.finishRun(states, sampler);
+        return outputSurface;
+    }
+
+    /**
+     * As getFuzzyRelocatedSurface, but with a weighting surface and polygons
+     *   that were read before, and are kept for later runs (see SurfaceServer).
+     *   The counters of the polygons are not recorded, as their jobs are shared
+     *   with earlier runs
+     * @param points
+     * @param inputs
+     * @param relocationIterations
+     * @param fuzziness
+     * @return
+     * @throws IOException 
+     */
+    GridCoverage2D getFuzzyRelocatedSurface(PointReader points, ResidentInputs inputs, int relocationIterations,
+            double fuzziness) throws IOException {
+        this.metrics = new RunMetrics();
+        this.candidateStats = null;
+        RandomStreams streams = this.getStreams();
+        this.reproject(points, inputs.getWeightingSurface());
+        SurfaceBuffer outputSurface = this.getOutputSurface(inputs.getWeightingSurface());
+        this.addPoints(points, inputs.getJoin(), inputs.getPolygons(), null, inputs.getStates(fuzziness),
+                inputs.getSampler(), streams, outputSurface, relocationIterations, fuzziness,
+                inputs.getPixelSize(), null);
+        return this.getCoverage(outputSurface, inputs.getWeightingSurface());
+    }
+
+    /**
+     * Streams the points from a CSV file (or a PointCache) in batches, each
+     *   of which is assigned to polygons, relocated and added to the surface
+     *   while the next few are read
+     * @param points
+     * @param join
+     * @param polygonList
+     * @param include true for each polygon whose points are relocated (null for all of them)
+     * @param states the state of each polygon (null until it has points), which every batch shares
+     * @param sampler
+     * @param streams
+     * @param outputSurface
+     * @param relocationIterations
+     * @param fuzziness
+     * @param pxSize
+     * @param checkpoint saved after each batch (null if progress is not saved)
+     * @throws IOException 
+     */
+    private void addPoints(PointReader points, PointPolygonJoin join, List<Geometry> polygonList,
+            boolean[] include, PolygonState[] states, WeightingSampler sampler, RandomStreams streams,
+            SurfaceBuffer outputSurface, int relocationIterations, double fuzziness, int pxSize,
+            Checkpoint checkpoint) throws IOException {
+        ForkJoinPool pool = this.openPool();
+        BatchPrefetcher batches = new BatchPrefetcher(points, this.pointBatch, this.prefetch);
+        long batch = 0;
+        try {
+            while (true) {
+                //(with prefetching, this only times waiting for the reader)
+                StageEvent ingest = this.metrics.start(RunMetrics.Stage.INGEST);
+                PointColumns columns = batches.take();
+                this.metrics.stop(ingest, columns == null ? 0 : columns.size());
+                if (columns == null) {
+                    break;
+                }
+
+                //skip the batches that were added before the checkpoint the run carries on from
+                if (checkpoint != null && batch < checkpoint.getBatches()) {
+                    batch++;
+                    continue;
+                }
+
+                //assign the batch to polygons, then relocate and splat it
+                List<PolygonJob> jobs = this.joinPoints(join, polygonList, include, columns, fuzziness, pxSize,
+                        states);
+                this.relocateAndRender(jobs, sampler, streams, outputSurface, pool, relocationIterations, pxSize);
+                batch++;
+                if (checkpoint != null) {
+                    checkpoint.setBatches(batch);
+                    checkpoint.save(outputSurface);
+                }
+            }
+        } finally {
+            batches.close();
+            this.closePool(pool);
+        }
+    }
+
+    /**
+     * As getFuzzyRelocatedSurface, but split into a grid of shards (see
+     *   ShardPlan) that are built by separate worker processes on this host,
+     *   a few at a time. Each worker reads only the window of the weighting
+     *   surface that the splats of its polygons can reach and builds that
+     *   window, and the windows are then summed into the output surface. The
+     *   points are relocated from the same random streams as they are in one
+     *   process, so a seeded surface is the same as getFuzzyRelocatedSurface
+     *   gives (up to rounding where windows overlap). If a worker fails, its
+     *   scratch directory (with the log of each worker) is kept
+     * @param points a shapefile or CSV file of points
+     * @param xy the coordinate columns of a CSV file
+     * @param idColumn the id column of a CSV file (null to use the row numbers)
+     * @param crs the CRS of a CSV file (null if it is that of the weighting surface)
+     * @param polygons a shapefile of polygons
+     * @param weightingSurface a GeoTiff file
+     * @param relocationIterations
+     * @param fuzziness
+     * @param columns the number of shards across
+     * @param rows the number of shards down
+     * @param workers the number of worker processes to run at a time (the
+     *   threads are shared between them)
+     * @return
+     * @throws Exception 
+     */
+    public GridCoverage2D getShardedSurface(File points, String[] xy, String idColumn,
+            CoordinateReferenceSystem crs, File polygons, File weightingSurface, int relocationIterations,
+            double fuzziness, int columns, int rows, int workers)
+            throws Exception {
+        this.metrics = new RunMetrics();
+        this.candidateStats = null;
+        StageEvent ingest = this.metrics.start(RunMetrics.Stage.INGEST);
+        GridCoverage2D coverage = FileHandler.openGeoTiffFile(weightingSurface);
+        List<Geometry> polygonList = this.getPolygons(FileHandler.openShapefile(polygons), coverage);
+        ShardPlan plan = this.getShardPlan(polygonList, coverage, columns, rows, fuzziness);
+        this.metrics.stop(ingest, 0);
+
+        //only the shards with something to add to the surface are run
+        int[] shards = new int[plan.getShardCount()];
+        int count = 0;
+        for (int shard = 0; shard < shards.length; shard++) {
+            if (plan.getWindow(shard) != null) {
+                shards[count++] = shard;
+            }
+        }
+        shards = Arrays.copyOf(shards, count);
+
+        //every worker is given the same job, with the same seed
+        final int threads = Math.max(1, this.threads / Math.max(1, Math.min(workers, count)));
+        Properties job = ShardWorker.getJob(this, points, xy, idColumn, crs, polygons, weightingSurface,
+                relocationIterations, fuzziness, columns, rows, this.getStreams().getSeed(), threads);
+        File directory = Files.createTempDirectory(this.tileDirectory == null
+                ? new File(System.getProperty("java.io.tmpdir")).toPath() : this.tileDirectory.toPath(),
+                "wfr-shards").toFile();
+        boolean done = false;
+        try {
+            File jobFile = new File(directory, "job.properties");
+            OutputStream out = new FileOutputStream(jobFile);
+            try {
+                job.store(out, null);
+            } finally {
+                out.close();
+            }
+
+            //build the shards, then sum them into the output surface
+            ShardRunner runner = new ShardRunner(directory, workers);
+            StageEvent stage = this.metrics.start(RunMetrics.Stage.RELOCATE);
+            final long relocated = runner.run(jobFile, shards);
+            this.metrics.addPoints(relocated, 0);
+            this.metrics.stop(stage, relocated);
+            stage = this.metrics.start(RunMetrics.Stage.RENDER);
+            SurfaceBuffer outputSurface = this.getOutputSurface(coverage);
+            runner.merge(outputSurface, shards);
+            this.metrics.stop(stage, relocated);
+            GridCoverage2D surface = this.getCoverage(outputSurface, coverage);
+            done = true;
+            return surface;
+        } catch (IOException e) {
+            //(the logs of the workers are what tells what went wrong, so they are kept)
+            throw new IOException(e.getMessage() + "; the shard files and logs are kept in " + directory, e);
+        } finally {
+            if (done) {
+                File[] files = directory.listFiles();
+                for (int i = 0; files != null && i < files.length; i++) {
+                    files[i].delete();
+                }
+                directory.delete();
+            }
+        }
+    }
+
+    /**
+     * Plans the shards of a weighting surface
+     * @param polygonList
+     * @param weightingSurface
+     * @param columns
+     * @param rows
+     * @param fuzziness
+     * @return 
+     */
+    ShardPlan getShardPlan(List<Geometry> polygonList, GridCoverage2D weightingSurface, int columns, int rows,
+            double fuzziness) {
+        final GridEnvelope2D range = weightingSurface.getGridGeometry().getGridRange2D();
+        final int pxWidth = range.getSpan(0);
+        final int mWidth = (int) weightingSurface.getEnvelope2D().getSpan(0);
+        final int pxSize = mWidth / pxWidth;
+        return new ShardPlan(polygonList, weightingSurface.getEnvelope2D().getMinX(),
+                weightingSurface.getEnvelope2D().getMaxY(), pxWidth, range.getSpan(1), pxSize, columns, rows,
+                fuzziness);
+    }
+
+    /**
+     * Assigns each point to a polygon, then builds the jobs for them
+     * @param join
+     * @param polygonList
+     * @param include true for each polygon whose points are kept (null for all of them)
+     * @param columns the points, not yet assigned to polygons
+     * @param fuzziness
+     * @param pxSize
+     * @param states the state of each polygon (null until it has points)
+     * @return a job for each polygon that contains points
+     */
+    private List<PolygonJob> joinPoints(PointPolygonJoin join, List<Geometry> polygonList, boolean[] include,
+            PointColumns columns, double fuzziness, int pxSize, PolygonState[] states) {
+        StageEvent stage = this.metrics.start(RunMetrics.Stage.JOIN);
+        int unassigned = 0;
+        int excluded = 0;
+        for (int i = 0; i < columns.size(); i++) {
+            int polygon = join.find(columns.getX(i), columns.getY(i));
+            if (polygon < 0) {
+                unassigned++;
+            } else if (include != null && !include[polygon]) {
+                //(points in polygons that are left out are not counted at all)
+                polygon = -1;
+                excluded++;
+            }
+            columns.setPolygon(i, polygon);
+        }
+        List<PolygonJob> jobs = this.getPolygonJobs(polygonList, columns, fuzziness, pxSize, states);
+        this.metrics.addPoints(columns.size() - excluded, unassigned);
+        this.metrics.stop(stage, columns.size());
+        return jobs;
+    }
+
+    /**
+     * Records how much work drawing candidates took, and the counters of each polygon
+     * @param states the state of each polygon (null until it has points)
+     * @param sampler
+     */
+    private void finishRun(PolygonState[] states, WeightingSampler sampler) {
+        this.candidateStats = new CandidateStats();
+        for (PolygonState state : states) {
+            if (state == null) {
+                continue;
+            }
+            if (state.getCandidatesIfBuilt() != null) {
+                this.candidateStats.add(state.getCandidatesIfBuilt(), state.polygon.getArea(),
+                        state.maxOffsetDistance);
+            }
+            this.metrics.addPolygon(state);
+        }
+        this.metrics.setRasterMisses(sampler.getMisses());
+    }
+
+    /**
+     * Builds an ensemble of surfaces from the same inputs, each drawn from
+     *   different random streams. The points, polygons, weighting surface and
+     *   splats are read and built once and shared by every realisation, and
+     *   each realisation is folded into the mean, variance and quantiles
+     *   before the next is built, so only one is held at a time (on the heap)
+     * @param points
+     * @param polygons
+     * @param weightingSurface
+     * @param relocationIterations
+     * @param fuzziness
+     * @param realisations the number of surfaces to build
+     * @param quantiles the quantiles to estimate (may be empty)
+     * @return
+     * @throws IOException 
+     */
+    public Ensemble getEnsemble(SimpleFeatureSource points, SimpleFeatureSource polygons,
+            GridCoverage2D weightingSurface, int relocationIterations, double fuzziness, int realisations,
+            double[] quantiles) throws IOException {
+        this.metrics = new RunMetrics();
+        StageEvent ingest = this.metrics.start(RunMetrics.Stage.INGEST);
+        List<Geometry> polygonList = this.getPolygons(polygons, weightingSurface);
+        PointColumns columns = this.getPoints(points, weightingSurface);
+        WeightingSampler sampler = new WeightingSampler(weightingSurface, this.precision);
+        this.metrics.stop(ingest, columns.size());
+        return this.getEnsemble(polygonList, columns, sampler, weightingSurface, relocationIterations, fuzziness,
+                realisations, quantiles);
+    }
+
+    /**
+     * As getEnsemble, but with the points read from a CSV file (they are
+     *   all held in memory, so that they can be shared by the realisations)
+     * @param points
+     * @param polygons
+     * @param weightingSurface
+     * @param relocationIterations
+     * @param fuzziness
+     * @param realisations
+     * @param quantiles
+     * @return
+     * @throws IOException 
+     */
+    public Ensemble getEnsemble(PointReader points, SimpleFeatureSource polygons,
+            GridCoverage2D weightingSurface, int relocationIterations, double fuzziness, int realisations,
+            double[] quantiles) throws IOException {
+        this.metrics = new RunMetrics();
+        StageEvent ingest = this.metrics.start(RunMetrics.Stage.INGEST);
+        List<Geometry> polygonList = this.getPolygons(polygons, weightingSurface);
+        PointColumns columns = this.getPoints(points, weightingSurface);
+        WeightingSampler sampler = new WeightingSampler(weightingSurface, this.precision);
+        this.metrics.stop(ingest, columns.size());
+        return this.getEnsemble(polygonList, columns, sampler, weightingSurface, relocationIterations, fuzziness,
+                realisations, quantiles);
+    }
+
+    private Ensemble getEnsemble(List<Geometry> polygonList, PointColumns columns, WeightingSampler sampler,
+            GridCoverage2D weightingSurface, int relocationIterations, double fuzziness, int realisations,
+            double[] quantiles) {
+        if (realisations < 1) {
+            throw new IllegalArgumentException("there must be at least 1 realisation");
+        }
+
+        //get pixel size
+        final int pxWidth = weightingSurface.getGridGeometry().getGridRange2D().getSpan(0);
+        final int mWidth = (int) weightingSurface.getEnvelope2D().getSpan(0);
+        final int pxSize = mWidth / pxWidth;
+
+        //assign each point to a polygon once, for every realisation
+        RandomStreams streams = this.getStreams();
+        PointPolygonJoin join = new PointPolygonJoin(polygonList, JTSFactoryFinder.getGeometryFactory(null));
+        PolygonState[] states = new PolygonState[polygonList.size()];
+        List<PolygonJob> jobs = this.joinPoints(join, polygonList, null, columns, fuzziness, pxSize, states);
+
+        RasterSurfaceBuffer realisation = new RasterSurfaceBuffer(this.getWritableRaster(weightingSurface, 0));
+        EnsembleAccumulator accumulator = new EnsembleAccumulator(realisation.getWidth(), realisation.getHeight(),
+                quantiles);
+        ForkJoinPool pool = this.openPool();
+        try {
+            for (int r = 0; r < realisations; r++) {
+                if (r > 0) {
+                    realisation.clear();
+                }
+                this.relocateAndRender(jobs, sampler, streams.forRealisation(r), realisation, pool,
+                        relocationIterations, pxSize);
+
+                //(folding the realisation in is timed as part of rendering)
+                StageEvent stage = this.metrics.start(RunMetrics.Stage.RENDER);
+                accumulator.add(realisation, pool);
+                this.metrics.stop(stage, 0);
+            }
+        } finally {
+            this.closePool(pool);
+        }
+        this.finishRun(states, sampler);
+        return new Ensemble(accumulator, realisation.getWidth(), realisation.getHeight(),
+                weightingSurface.getEnvelope());
+    }
+
+    /**
+     * Builds a surface for every combination of a number of relocation
+     *   iterations and fuzziness values, reading the inputs only once. Each
+     *   point is relocated once for all of the iterations (the first n
+     *   candidates it draws are the same for every n, so the best is recorded
+     *   as each n is reached), and the splats are built once for each
+     *   fuzziness. Each surface is the same as a single run with the same seed
+     *   would give. The surfaces are built one at a time (on the heap, or in
+     *   tiles if there is a tile directory) and handed to the listener
+     * @param points
+     * @param polygons
+     * @param weightingSurface
+     * @param relocationIterations
+     * @param fuzziness
+     * @param listener
+     * @throws IOException 
+     */
+    public void getSweep(SimpleFeatureSource points, SimpleFeatureSource polygons, GridCoverage2D weightingSurface,
+            int[] relocationIterations, double[] fuzziness, SweepListener listener) throws IOException {
+        this.metrics = new RunMetrics();
+        StageEvent ingest = this.metrics.start(RunMetrics.Stage.INGEST);
+        List<Geometry> polygonList = this.getPolygons(polygons, weightingSurface);
+        PointColumns columns = this.getPoints(points, weightingSurface);
+        WeightingSampler sampler = new WeightingSampler(weightingSurface, this.precision);
+        this.metrics.stop(ingest, columns.size());
+        this.getSweep(polygonList, columns, sampler, weightingSurface, relocationIterations, fuzziness, listener);
+    }
+
+    /**
+     * As getSweep, but with the points read from a CSV file (they are all
+     *   held in memory, so that they can be shared by the surfaces)
+     * @param points
+     * @param polygons
+     * @param weightingSurface
+     * @param relocationIterations
+     * @param fuzziness
+     * @param listener
+     * @throws IOException 
+     */
+    public void getSweep(PointReader points, SimpleFeatureSource polygons, GridCoverage2D weightingSurface,
+            int[] relocationIterations, double[] fuzziness, SweepListener listener) throws IOException {
+        this.metrics = new RunMetrics();
+        StageEvent ingest = this.metrics.start(RunMetrics.Stage.INGEST);
+        List<Geometry> polygonList = this.getPolygons(polygons, weightingSurface);
+        PointColumns columns = this.getPoints(points, weightingSurface);
+        WeightingSampler sampler = new WeightingSampler(weightingSurface, this.precision);
+        this.metrics.stop(ingest, columns.size());
+        this.getSweep(polygonList, columns, sampler, weightingSurface, relocationIterations, fuzziness, listener);
+    }
+
+    /**
+     * Builds the surfaces of a sweep from points that have been read
+     * @param polygonList
+     * @param columns the points, not yet assigned to polygons
+     * @param sampler
+     * @param weightingSurface
+     * @param relocationIterations
+     * @param fuzziness
+     * @param listener
+     * @throws IOException 
+     */
+    void getSweep(List<Geometry> polygonList, PointColumns columns, WeightingSampler sampler,
+            GridCoverage2D weightingSurface, int[] relocationIterations, double[] fuzziness, SweepListener listener)
+            throws IOException {
+        if (relocationIterations.length == 0 || fuzziness.length == 0) {
+            throw new IllegalArgumentException("a sweep needs at least one n and one f");
+        }
+        int[] iterations = relocationIterations.clone();
+        Arrays.sort(iterations);
+
+        //get pixel size
+        final int pxWidth = weightingSurface.getGridGeometry().getGridRange2D().getSpan(0);
+        final int mWidth = (int) weightingSurface.getEnvelope2D().getSpan(0);
+        final int pxSize = mWidth / pxWidth;
+
+        //assign each point to a polygon once (the splats of these jobs are replaced for each fuzziness)
+        RandomStreams streams = this.getStreams();
+        PointPolygonJoin join = new PointPolygonJoin(polygonList, JTSFactoryFinder.getGeometryFactory(null));
+        PolygonState[] states = new PolygonState[polygonList.size()];
+        List<PolygonJob> jobs = this.joinPoints(join, polygonList, null, columns, fuzziness[0], pxSize, states);
+        long points = 0;
+        for (PolygonJob job : jobs) {
+            job.sweepX = new double[iterations.length][job.size()];
+            job.sweepY = new double[iterations.length][job.size()];
+            points += job.size();
+        }
+
+        SurfaceBuffer outputSurface = this.getOutputSurface(weightingSurface);
+        ForkJoinPool pool = this.openPool();
+        try {
+
+            //relocate every point for all of the iterations at once (unless the alias tables depend on n)
+            StageEvent stage = this.metrics.start(RunMetrics.Stage.RELOCATE);
+            if (this.relocationMode == RelocationMode.ALIAS && Double.isNaN(this.sharpness)) {
+                for (int l = 0; l < iterations.length; l++) {
+                    pool.invoke(new RelocationTask(this, jobs, sampler, streams, new int[] { iterations[l] }, l));
+                }
+            } else {
+                pool.invoke(new RelocationTask(this, jobs, sampler, streams, iterations, 0));
+            }
+            this.metrics.stop(stage, points);
+
+            boolean first = true;
+            int[] topLeft = new int[2];
+            for (double f : fuzziness) {
+
+                //swap in the splats for this fuzziness
+                List<PolygonJob> fJobs = new ArrayList<PolygonJob>(jobs.size());
+                for (PolygonJob job : jobs) {
+                    Kernel kernel = this.getKernel(Math.sqrt((job.polygon.getArea() * f) / Math.PI), pxSize);
+                    fJobs.add(new PolygonJob(job, kernel));
+                }
+                for (int l = 0; l < iterations.length; l++) {
+                    stage = this.metrics.start(RunMetrics.Stage.RENDER);
+                    for (PolygonJob job : fJobs) {
+                        for (int i = 0; i < job.size(); i++) {
+                            this.getPatchOrigin(job.sweepX[l][i], job.sweepY[l][i], job.kernel.span, pxSize,
+                                    sampler, topLeft);
+                            job.patchX[i] = topLeft[0];
+                            job.patchY[i] = topLeft[1];
+                        }
+                    }
+                    if (!first) {
+                        outputSurface.clear();
+                    }
+                    first = false;
+                    int stripeRows = outputSurface.getHeight() / (this.threads * 4);
+                    if (this.renderMode == RenderMode.COUNT_GRID) {
+                        new CountGridRenderer().render(fJobs, outputSurface, pool, stripeRows);
+                    } else {
+                        pool.invoke(new SplatTask(fJobs, outputSurface, 0, outputSurface.getHeight(), stripeRows));
+                    }
+                    this.metrics.stop(stage, points);
+                    GridCoverage2D coverage = this.getCoverage(outputSurface, weightingSurface);
+                    try {
+                        listener.surface(iterations[l], f, coverage);
+                    } finally {
+                        this.tiledCoverages.remove(coverage);
+                    }
+                }
+            }
+        } finally {
+            this.closePool(pool);
+
+            //(the surface is reused for every combination, so its scratch file is only deleted once they are done)
+            if (outputSurface instanceof TiledSurface) {
+                ((TiledSurface) outputSurface).dispose();
+            }
+        }
+        this.finishRun(states, sampler);
+    }
+
     /**
-     * 
+     * Adds new points to a surface that was built earlier, and subtracts the
+     *   splats of retracted ones. The ledger records the parameters of the
+     *   surface and every point seen (it is updated, and should be committed
+     *   with the new surface, see SurfaceLedger.commit). Points that are
+     *   already in the ledger, including those outside every polygon and
+     *   those that have been retracted, are skipped, so the whole of a
+     *   growing points file can be passed each time. Every point with a
+     *   retracted id is retracted. The parameters (and seed) must match those the
+     *   surface was built with
+     * @param previous the surface to add to (null for a new surface, with an empty ledger)
+     * @param ledger
+     * @param points
+     * @param polygons
+     * @param weightingSurface
+     * @param relocationIterations
+     * @param fuzziness
+     * @param retractions the ids of points to remove from the surface (may be empty)
+     * @return the updated surface
+     * @throws IOException 
+     */
+    public GridCoverage2D updateSurface(GridCoverage2D previous, SurfaceLedger ledger, SimpleFeatureSource points,
+            SimpleFeatureSource polygons, GridCoverage2D weightingSurface, int relocationIterations,
+            double fuzziness, long[] retractions) throws IOException {
+        this.metrics = new RunMetrics();
+        StageEvent ingest = this.metrics.start(RunMetrics.Stage.INGEST);
+        List<Geometry> polygonList = this.getPolygons(polygons, weightingSurface);
+        PointColumns columns = this.getPoints(points, weightingSurface);
+        WeightingSampler sampler = new WeightingSampler(weightingSurface, this.precision);
+        this.metrics.stop(ingest, columns.size());
+        return this.updateSurface(previous, ledger, polygonList, columns, sampler, weightingSurface,
+                relocationIterations, fuzziness, retractions);
+    }
+
+    /**
+     * As updateSurface, but with the points read from a CSV file
+     * @param previous
+     * @param ledger
      * @param points
      * @param polygons
      * @param weightingSurface
      * @param relocationIterations
      * @param fuzziness
+     * @param retractions
      * @return
-     * @throws IOException
-     * @throws NoSuchAuthorityCodeException
-     * @throws FactoryException
-     * @throws InvalidGridGeometryException
-     * @throws TransformException 
+     * @throws IOException 
      */
-    public GridCoverage2D getFuzzyRelocatedSurface(SimpleFeatureSource points, SimpleFeatureSource polygons,
-            GridCoverage2D weightingSurface, int relocationIterations, double fuzziness) throws IOException,
-            NoSuchAuthorityCodeException, FactoryException, InvalidGridGeometryException, TransformException {
+    public GridCoverage2D updateSurface(GridCoverage2D previous, SurfaceLedger ledger, PointReader points,
+            SimpleFeatureSource polygons, GridCoverage2D weightingSurface, int relocationIterations,
+            double fuzziness, long[] retractions) throws IOException {
+        this.metrics = new RunMetrics();
+        StageEvent ingest = this.metrics.start(RunMetrics.Stage.INGEST);
+        List<Geometry> polygonList = this.getPolygons(polygons, weightingSurface);
+        PointColumns columns = this.getPoints(points, weightingSurface);
+        WeightingSampler sampler = new WeightingSampler(weightingSurface, this.precision);
+        this.metrics.stop(ingest, columns.size());
+        return this.updateSurface(previous, ledger, polygonList, columns, sampler, weightingSurface,
+                relocationIterations, fuzziness, retractions);
+    }
 
-        //get an output surface
-        WritableRaster outputSurface = this.getWritableRaster(weightingSurface, 0);
+    /**
+     * As updateSurface, but with points that have been read
+     * @param previous
+     * @param ledger
+     * @param polygonList
+     * @param columns the points, not yet assigned to polygons
+     * @param sampler
+     * @param weightingSurface
+     * @param relocationIterations
+     * @param fuzziness
+     * @param retractions
+     * @return 
+     */
+    GridCoverage2D updateSurface(GridCoverage2D previous, SurfaceLedger ledger, List<Geometry> polygonList,
+            PointColumns columns, WeightingSampler sampler, GridCoverage2D weightingSurface,
+            int relocationIterations, double fuzziness, long[] retractions) {
 
         //get pixel size
-        final int pxWidth = (int) weightingSurface.getGridGeometry().getGridRange2D().getSpan(0);
+        final int pxWidth = weightingSurface.getGridGeometry().getGridRange2D().getSpan(0);
         final int mWidth = (int) weightingSurface.getEnvelope2D().getSpan(0);
         final int pxSize = mWidth / pxWidth;
 
-        //loop through the polygons
-        SimpleFeatureIterator polygonIterator = polygons.getFeatures().features();
+        //check that the surface was built in the same way, and carry on with its seed
+        Properties parameters = this.getParameters(relocationIterations, fuzziness, sampler, pxSize);
+        RandomStreams streams;
+        if (previous == null) {
+            if (ledger.size() > 0) {
+                throw new IllegalArgumentException("the ledger is for an existing surface");
+            }
+            streams = this.getStreams();
+            parameters.setProperty("seed", Long.toString(this.lastSeed));
+            ledger.setParameters(parameters);
+        } else {
+            final long seed = Long.parseLong(ledger.getParameters().getProperty("seed", "0"));
+            parameters.setProperty("seed", Long.toString(seed));
+            if (!parameters.equals(ledger.getParameters())) {
+                throw new IllegalArgumentException("the surface was built with " + ledger.getParameters()
+                        + ", not " + parameters);
+            }
+            if (this.seed != null && this.seed.longValue() != seed) {
+                throw new IllegalArgumentException("the surface was built with seed " + seed);
+            }
+            this.lastSeed = seed;
+            streams = new RandomStreams(seed);
+        }
+
+        //start from the previous surface
+        RasterSurfaceBuffer outputSurface = new RasterSurfaceBuffer(this.getWritableRaster(weightingSurface, 0));
+        if (previous != null) {
+            outputSurface.getRaster().setRect(previous.getRenderedImage().getData());
+        }
+
+        //subtract the splats of retracted points (every point with the id), leaving them in the ledger so
+        //  that later runs skip them too
+        long[] sortedRetractions = retractions.clone();
+        Arrays.sort(sortedRetractions);
+        int retracted = 0;
+        long[] unseen = new long[sortedRetractions.length];
+        int nUnseen = 0;
+        for (int k = 0; k < sortedRetractions.length; k++) {
+            final long id = sortedRetractions[k];
+            if (k > 0 && sortedRetractions[k - 1] == id) {
+                continue;
+            }
+            int r = ledger.indexOf(id);
+            if (r < 0) {
+                unseen[nUnseen++] = id;
+                continue;
+            }
+            for (; r < ledger.size() && ledger.getId(r) == id; r++) {
+                if (ledger.hasSplat(r)) {
+                    Kernel kernel = this.getKernel((ledger.getSpan(r) - 1) / 2, 1);
+                    outputSurface.add(kernel, ledger.getPatchX(r), ledger.getPatchY(r), -1, 0,
+                            outputSurface.getHeight());
+                    ledger.retract(r);
+                    retracted++;
+                }
+            }
+        }
+        this.retracted = retracted;
+
+        //keep only the points that have not been seen yet (or are being retracted)
+        PointColumns added = new PointColumns(columns.size());
+        for (int i = 0; i < columns.size(); i++) {
+            final long id = columns.getId(i);
+            if (!ledger.contains(id) && Arrays.binarySearch(sortedRetractions, id) < 0) {
+                added.add(columns.getX(i), columns.getY(i), id, -1);
+            }
+        }
+        for (int i = 0; i < nUnseen; i++) {
+            ledger.add(unseen[i], SurfaceLedger.RETRACTED);
+        }
+
+        //add the new points, recording those outside every polygon so that they are not joined again
+        PointPolygonJoin join = new PointPolygonJoin(polygonList, JTSFactoryFinder.getGeometryFactory(null));
+        PolygonState[] states = new PolygonState[polygonList.size()];
+        List<PolygonJob> jobs = this.joinPoints(join, polygonList, null, added, fuzziness, pxSize, states);
+        ForkJoinPool pool = this.openPool();
         try {
-            //populate the new feature collection with offset points
-            while (polygonIterator.hasNext()) {
+            this.relocateAndRender(jobs, sampler, streams, outputSurface, pool, relocationIterations, pxSize);
+        } finally {
+            this.closePool(pool);
+        }
+        for (PolygonJob job : jobs) {
+            ledger.add(job);
+        }
+        for (int i = 0; i < added.size(); i++) {
+            if (added.getPolygon(i) < 0) {
+                ledger.add(added.getId(i), SurfaceLedger.UNASSIGNED);
+            }
+        }
+        ledger.sort();
+        this.finishRun(states, sampler);
+        return this.getCoverage(outputSurface, weightingSurface);
+    }
 
-                //get next polygon
-                SimpleFeature polygonFeature = polygonIterator.next();
-                Geometry polygon = (Geometry) polygonFeature.getDefaultGeometry();
+    /**
+     * @param relocationIterations
+     * @param fuzziness
+     * @param sampler
+     * @param pxSize
+     * @return the parameters that a surface is built with (which must be the same to add to it)
+     */
+    private Properties getParameters(int relocationIterations, double fuzziness, WeightingSampler sampler,
+            int pxSize) {
+        Properties parameters = new Properties();
+        parameters.setProperty("n", Integer.toString(relocationIterations));
+        parameters.setProperty("f", Double.toString(fuzziness));
+        parameters.setProperty("mode", this.relocationMode.name());
+        parameters.setProperty("candidates", this.candidateDistribution.name());
+        parameters.setProperty("sharpness", Double.toString(this.sharpness));
+        parameters.setProperty("precision", this.precision.name());
+        parameters.setProperty("width", Integer.toString(sampler.getWidth()));
+        parameters.setProperty("height", Integer.toString(sampler.getHeight()));
+        parameters.setProperty("pixelSize", Integer.toString(pxSize));
+        return parameters;
+    }
 
-                //get the splat radius for this polygon
-                double splatRadius = Math.sqrt((polygon.getArea() * fuzziness) / Math.PI);
+    /**
+     * Starts saving the progress of a run, carrying on from the last
+     *   checkpoint (adding its surface to the empty output surface, and
+     *   taking its seed as the last seed) if resuming and there is one
+     * @param outputSurface
+     * @param relocationIterations
+     * @param fuzziness
+     * @param sampler
+     * @param pxSize
+     * @param polygons the number of polygons
+     * @return null if progress is not saved
+     * @throws IOException 
+     */
+    private Checkpoint openCheckpoint(SurfaceBuffer outputSurface, int relocationIterations, double fuzziness,
+            WeightingSampler sampler, int pxSize, int polygons) throws IOException {
+        if (this.checkpoint == null) {
+            return null;
+        }
+        Properties parameters = this.getParameters(relocationIterations, fuzziness, sampler, pxSize);
+        parameters.setProperty("render", this.renderMode.name());
+        parameters.setProperty("polygons", Integer.toString(polygons));
+        parameters.setProperty("batch", Integer.toString(this.pointBatch));
+        String[] inputs = { "points", "polygons", "weighting" };
+        for (int i = 0; this.checkpointInputs != null && i < inputs.length; i++) {
+            if (this.checkpointInputs[i] != null) {
+                parameters.setProperty(inputs[i] + ".file", this.checkpointInputs[i].getCanonicalPath() + "|"
+                        + PointCache.getState(this.checkpointInputs[i]));
+            }
+        }
+        if (!this.resume || !this.checkpoint.exists()) {
+            parameters.setProperty("seed", Long.toString(this.lastSeed));
+            return new Checkpoint(this.checkpoint, this.checkpointInterval, parameters);
+        }
 
-                //build the 2D matrix to represent each 'splat', then 'flatten' to 1D array
-                double[][] splat2D = this.getFuzzyMatrix(splatRadius, pxSize);
-                int nCells = (int) Math.pow(splat2D[0].length, 2);
-                double[] splat1D = new double[nCells];
-                int j, k;
-                for (int i = 0; i < nCells; i++) {
-                    j = (int) i / splat2D[0].length;
-                    k = i % splat2D[0].length;
-                    splat1D[i] = splat2D[j][k];
-                }
+        //check that the checkpoint was taken from the same run
+        Checkpoint checkpoint = Checkpoint.read(this.checkpoint, this.checkpointInterval, outputSurface);
+        final long seed = Long.parseLong(checkpoint.getParameters().getProperty("seed", "0"));
+        parameters.setProperty("seed", Long.toString(seed));
+        for (String input : inputs) {
+            final String saved = checkpoint.getParameters().getProperty(input + ".file");
+            if (saved != null && !saved.equals(parameters.getProperty(input + ".file"))) {
+                throw new IllegalArgumentException("the checkpoint was taken with the " + input + " file " + saved
+                        + ", which is now " + parameters.getProperty(input + ".file"));
+            }
+        }
+        if (!parameters.equals(checkpoint.getParameters())) {
+            throw new IllegalArgumentException("the checkpoint was taken with " + checkpoint.getParameters()
+                    + ", not " + parameters);
+        }
+        if (this.seed != null && this.seed.longValue() != seed) {
+            throw new IllegalArgumentException("the checkpoint was taken with seed " + seed);
+        }
+        this.lastSeed = seed;
+        return checkpoint;
+    }
 
-                //get the max offset distance
-                double maxOffsetDistance = this.getBoundingRadius(polygon); //Math.sqrt(polygon.getArea() / Math.PI);
+    /**
+     * @return the number of points removed from the surface by the last call to updateSurface
+     */
+    public int getRetracted() {
+        return this.retracted;
+    }
+
+    /**
+     * Gets an output surface the size of the weighting surface, either on the
+     *   heap or in tiles that are only created where there are splats
+     * @param weightingSurface
+     * @return
+     * @throws IOException 
+     */
+    private SurfaceBuffer getOutputSurface(GridCoverage2D weightingSurface) throws IOException {
+        if (this.tileDirectory == null) {
+            return new RasterSurfaceBuffer(this.getWritableRaster(weightingSurface, 0));
+        }
+        final GridEnvelope2D range = weightingSurface.getGridGeometry().getGridRange2D();
+        return new TiledSurface(range.getSpan(0), range.getSpan(1), this.precision, this.tileDirectory);
+    }
+
+    /**
+     * Relocates every point, then adds the splats to the surface one stripe per worker
+     * @param jobs
+     * @param sampler
+     * @param streams
+     * @param outputSurface
+     * @param pool
+     * @param relocationIterations
+     * @param pxSize 
+     */
+    private void relocateAndRender(List<PolygonJob> jobs, WeightingSampler sampler, RandomStreams streams,
+            SurfaceBuffer outputSurface, ForkJoinPool pool, int relocationIterations, int pxSize) {
+        long points = 0;
+        for (PolygonJob job : jobs) {
+            points += job.patchX.length;
+        }
+        StageEvent stage = this.metrics.start(RunMetrics.Stage.RELOCATE);
+        pool.invoke(new RelocationTask(this, jobs, sampler, streams, relocationIterations, pxSize));
+        this.metrics.stop(stage, points);
 
-                //get all points within it
-                SimpleFeatureCollection pointsWithin = this.getPointsWithin(polygonFeature, points);
+        stage = this.metrics.start(RunMetrics.Stage.RENDER);
+        int stripeRows = outputSurface.getHeight() / (this.threads * 4);
+        if (this.renderMode == RenderMode.COUNT_GRID) {
+            new CountGridRenderer().render(jobs, outputSurface, pool, stripeRows);
+        } else {
+            pool.invoke(new SplatTask(jobs, outputSurface, 0, outputSurface.getHeight(), stripeRows));
+        }
+        this.metrics.stop(stage, points);
+    }
 
-                //loop through the points
-                SimpleFeatureIterator pointsIterator = pointsWithin.features();
-                try {
-                    //populate the new feature collection with offset points
-                    while (pointsIterator.hasNext()) {
+    /**
+     * As relocateAndRender, but in groups of whole polygons of about
+     *   POINT_BATCH points (see setPointBatch), saving a checkpoint after each group and skipping
+     *   the groups that were added before the checkpoint the run carries on
+     *   from. The groups do not depend on when checkpoints are taken, so the
+     *   splats are added in the same order whether or not the run was resumed
+     * @param jobs
+     * @param sampler
+     * @param streams
+     * @param outputSurface
+     * @param pool
+     * @param relocationIterations
+     * @param pxSize
+     * @param checkpoint
+     * @throws IOException 
+     */
+    private void relocateAndRender(List<PolygonJob> jobs, WeightingSampler sampler, RandomStreams streams,
+            SurfaceBuffer outputSurface, ForkJoinPool pool, int relocationIterations, int pxSize,
+            Checkpoint checkpoint) throws IOException {
+        int start = 0;
+        while (start < jobs.size()) {
 
-                        //retrieve the feature then geom (as a JTS point)
-                        SimpleFeature pointFeature = pointsIterator.next();
-                        Point point = (Point) pointFeature.getDefaultGeometry();
+            //the next group, and whether it was added before
+            int end = start;
+            long points = 0;
+            boolean done = true;
+            while (end < jobs.size() && points < this.pointBatch) {
+                points += jobs.get(end).patchX.length;
+                done &= checkpoint.isDone(jobs.get(end).index);
+                end++;
+            }
+            if (!done) {
+                List<PolygonJob> group = jobs.subList(start, end);
+                this.relocateAndRender(group, sampler, streams, outputSurface, pool, relocationIterations, pxSize);
+                for (PolygonJob job : group) {
+                    checkpoint.setDone(job.index);
+                }
+                checkpoint.save(outputSurface);
+            }
+            start = end;
+        }
+    }
 
-                        //test that a default geom was set
-                        if (point != null) {
+    /**
+     * Builds a grid coverage from the output surface (tiled surfaces are read
+     *   as they are needed)
+     * @param outputSurface
+     * @param weightingSurface
+     * @return 
+     */
+    private GridCoverage2D getCoverage(SurfaceBuffer outputSurface, GridCoverage2D weightingSurface) {
+        GridCoverageFactory factory = new GridCoverageFactory();
+        if (outputSurface instanceof TiledSurface) {
+            GridCoverage2D coverage = factory.create("output", ((TiledSurface) outputSurface).getImage(),
+                    weightingSurface.getEnvelope());
+            this.tiledCoverages.put(coverage, (TiledSurface) outputSurface);
+            return coverage;
+        }
+        return factory.create("output", ((RasterSurfaceBuffer) outputSurface).getRaster(),
+                weightingSurface.getEnvelope());
+    }
 
-                            //offset the point, then get the position of the top left of the patch
-                            Point offsetPoint = this.relocate(point, polygon, relocationIterations, maxOffsetDistance, weightingSurface);
-                            double pythag = Math.pow(splat2D[0].length * (pxSize / 2), 2);
-                            Point patchTopLeft = this.cartesianOffset(offsetPoint, Math.sqrt(pythag * 2), 315);
+    /**
+     * Deletes the scratch file of a surface that was returned in tiles (see
+     *   setTileDirectory), which would otherwise be kept until the JVM exits.
+     *   The surface can not be read after this, so it should be called once
+     *   the surface has been written (it does nothing for surfaces on the heap)
+     * @param surface
+     * @throws IOException 
+     */
+    public void dispose(GridCoverage2D surface) throws IOException {
+        TiledSurface tiles = this.tiledCoverages.remove(surface);
+        if (tiles != null) {
+            tiles.dispose();
+        }
+    }
 
-                            //The coordinates at which the patch will be applied
-                            CoordinateReferenceSystem crs = CRS.decode("EPSG:27700");
-                            DirectPosition position = new DirectPosition2D(crs, patchTopLeft.getX(), patchTopLeft.getY());
-                            GridCoordinates2D topLeft = weightingSurface.getGridGeometry().worldToGrid(position);
+    /**
+     * @return how much work drawing candidate locations took in the last run
+     */
+    public CandidateStats getCandidateStats() {
+        return this.candidateStats;
+    }
 
-                            try {
-                                //get the existing surface data to apply the patch to
-                                double[] existingData = new double[nCells];
-                                outputSurface.getPixels(topLeft.x, topLeft.y, splat2D[0].length, splat2D[0].length, existingData);
+    /**
+     * @return the timings and counters of the last run (the write stage is
+     *   timed by the caller)
+     */
+    public RunMetrics getMetrics() {
+        return this.metrics;
+    }
 
-                                //add the patch to the existing data
-                                double[] patch = new double[nCells];
-                                for (int i = 0; i < nCells; i++) {
-                                    patch[i] = existingData[i] + splat1D[i];
-                                }
+    /**
+     * Reads the points (they are assigned to polygons later), using the
+     *   position of each feature in the source as its id
+     * @param points
+     * @param weightingSurface the points are moved into its CRS
+     * @return
+     * @throws IOException 
+     */
+    PointColumns getPoints(SimpleFeatureSource points, GridCoverage2D weightingSurface) throws IOException {
+        Reprojection reprojection = this.getReprojection(points.getSchema().getCoordinateReferenceSystem(),
+                weightingSurface);
+        PointColumns columns = new PointColumns();
+        SimpleFeatureIterator pointsIterator = points.getFeatures().features();
+        try {
+            for (long id = 0; pointsIterator.hasNext(); id++) {
 
-                                //add splat to raster at the desired location
-                                outputSurface.setPixels(topLeft.x, topLeft.y, splat2D[0].length, splat2D[0].length, patch);
+                //retrieve the feature then geom (as a JTS point)
+                Point point = (Point) pointsIterator.next().getDefaultGeometry();
 
-                            } catch (ArrayIndexOutOfBoundsException e) {
-                            }
-                        }
-                    }
-                } finally {
-                    //close the iterator
-                    pointsIterator.close();
+                //test that a default geom was set
+                if (point != null) {
+                    columns.add(point.getX(), point.getY(), id, -1);
                 }
             }
+        } finally {
+            //close the iterator
+            pointsIterator.close();
+        }
+
+        //move them into the CRS of the weighting surface all at once
+        try {
+            columns.transform(reprojection);
+        } catch (TransformException e) {
+            throw new IOException("could not reproject the points: " + e.getMessage(), e);
+        }
+        return columns;
+    }
+
+    /**
+     * Reads all of the points from a CSV file (they are assigned to polygons
+     *   later), using the row of each as its id
+     * @param points
+     * @param weightingSurface the points are moved into its CRS
+     * @return
+     * @throws IOException 
+     */
+    PointColumns getPoints(PointReader points, GridCoverage2D weightingSurface) throws IOException {
+        this.reproject(points, weightingSurface);
+        PointColumns columns = new PointColumns();
+        double[] x = new double[POINT_BATCH];
+        double[] y = new double[POINT_BATCH];
+        long[] ids = new long[POINT_BATCH];
+        int count;
+        while ((count = points.read(x, y, ids)) > 0) {
+            for (int i = 0; i < count; i++) {
+                columns.add(x[i], y[i], ids[i], -1);
+            }
+        }
+        return columns;
+    }
+
+    /**
+     * @param polygons
+     * @param weightingSurface the polygons are moved into its CRS
+     * @return the geometry of every polygon
+     * @throws IOException 
+     */
+    List<Geometry> getPolygons(SimpleFeatureSource polygons, GridCoverage2D weightingSurface) throws IOException {
+        Reprojection reprojection = this.getReprojection(polygons.getSchema().getCoordinateReferenceSystem(),
+                weightingSurface);
+        List<Geometry> polygonList = new ArrayList<Geometry>();
+        SimpleFeatureIterator polygonIterator = polygons.getFeatures().features();
+        try {
+            while (polygonIterator.hasNext()) {
+                polygonList.add(reprojection.transform((Geometry) polygonIterator.next().getDefaultGeometry()));
+            }
+        } catch (TransformException e) {
+            throw new IOException("could not reproject the polygons: " + e.getMessage(), e);
         } finally {
             polygonIterator.close();
         }
+        return polygonList;
+    }
 
-        //build a grid coverage from the writable raster
-        GridCoverageFactory factory = new GridCoverageFactory();
-        GridCoverage2D output = factory.create("output", outputSurface, weightingSurface.getEnvelope());
-        return output;
+    /**
+     * Gets the reprojection from the CRS of an input to that of the weighting surface
+     * @param crs the CRS of the input (null if unknown, in which case it is
+     *   taken to be that of the weighting surface)
+     * @param weightingSurface
+     * @return
+     * @throws IOException if there is no transform between them
+     */
+    private Reprojection getReprojection(CoordinateReferenceSystem crs, GridCoverage2D weightingSurface)
+            throws IOException {
+        try {
+            return Reprojection.get(crs, weightingSurface.getCoordinateReferenceSystem2D());
+        } catch (FactoryException e) {
+            throw new IOException("could not reproject the inputs: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Sets a point reader to move its points into the CRS of the weighting surface as they are read
+     * @param points
+     * @param weightingSurface
+     * @throws IOException 
+     */
+    private void reproject(PointReader points, GridCoverage2D weightingSurface) throws IOException {
+        points.setReprojection(this.getReprojection(points.getCoordinateReferenceSystem(), weightingSurface));
+    }
+
+    /**
+     * Builds a job for each polygon that contains points
+     * @param polygonList
+     * @param columns the points, already assigned to polygons
+     * @param fuzziness
+     * @param pxSize
+     * @param states the state of each polygon (null if it has had no points
+     *   yet), which the jobs for every batch of its points share
+     * @return 
+     */
+    private List<PolygonJob> getPolygonJobs(List<Geometry> polygonList, PointColumns columns,
+            double fuzziness, int pxSize, PolygonState[] states) {
+
+        List<PolygonJob> jobs = new ArrayList<PolygonJob>();
+        int[][] groups = columns.groupByPolygon(polygonList.size());
+        for (int p = 0; p < groups.length; p++) {
+            if (groups[p].length == 0) {
+                continue;
+            }
+            Geometry polygon = polygonList.get(p);
+
+            //copy out the coordinates of the points
+            double[] x = new double[groups[p].length];
+            double[] y = new double[groups[p].length];
+            long[] ids = new long[groups[p].length];
+            for (int i = 0; i < x.length; i++) {
+                x[i] = columns.getX(groups[p][i]);
+                y[i] = columns.getY(groups[p][i]);
+                ids[i] = columns.getId(groups[p][i]);
+            }
+            if (states[p] == null) {
+
+                //get the splat radius for this polygon, and the 'splat' itself
+                double splatRadius = Math.sqrt((polygon.getArea() * fuzziness) / Math.PI);
+                Kernel kernel = this.getKernel(splatRadius, pxSize);
+
+                //get the max offset distance
+                double maxOffsetDistance = this.getBoundingRadius(polygon); //Math.sqrt(polygon.getArea() / Math.PI);
+
+                states[p] = new PolygonState(p, polygon, maxOffsetDistance, kernel);
+            }
+            jobs.add(new PolygonJob(states[p], x, y, ids));
+        }
+        return jobs;
+    }
+
+    /**
+     * Gets the grid position of the top left of a splat centred on a point
+     * @param x
+     * @param y
+     * @param span the width of the splat in pixels
+     * @param pxSize
+     * @param sampler
+     * @param topLeft receives the column and row at which the patch will be applied
+     */
+    void getPatchOrigin(double x, double y, int span, int pxSize, WeightingSampler sampler, int[] topLeft) {
+
+        //offset up and to the left by the width of half the patch
+        final double offset = span * (pxSize / 2);
+        topLeft[0] = (int) Math.floor(sampler.toCol(x - offset, y + offset));
+        topLeft[1] = (int) Math.floor(sampler.toRow(x - offset, y + offset));
+    }
+
+    /**
+     * Relocates a point within its polygon using the current relocation mode
+     * @param point
+     * @param job the polygon containing the point
+     * @param iterations
+     * @param sampler
+     * @param rng the random stream of the point
+     * @return a point that has been fuzzy relocated
+     */
+    Point relocate(Point point, PolygonJob job, int iterations, WeightingSampler sampler, SplittableRandom rng) {
+        if (this.relocationMode == RelocationMode.ALIAS) {
+
+            //(polygons too small to contain a pixel centre fall back to the best of n)
+            PixelDistribution pixels = job.getPixels(sampler,
+                    Double.isNaN(this.sharpness) ? iterations : this.sharpness);
+            if (!pixels.isEmpty()) {
+                double[] location = new double[2];
+                pixels.next(rng, location);
+                return point.getFactory().createPoint(new Coordinate(location[0], location[1]));
+            }
+        }
+        return this.relocate(point, job.getCandidates(), job.maxOffsetDistance, iterations, sampler, rng);
+    }
+
+    /**
+     * Relocates a point once for each of a number of iterations, as separate
+     *   runs with each of them would
+     * @param job the polygon containing the point
+     * @param i the index of the point in the job
+     * @param iterations the numbers of iterations, in ascending order
+     * @param sampler
+     * @param streams
+     * @param outX receives the x of the relocated point for each number of iterations
+     * @param outY receives the y of the relocated point for each number of iterations
+     */
+    void relocate(PolygonJob job, int i, int[] iterations, WeightingSampler sampler, RandomStreams streams,
+            double[] outX, double[] outY) {
+        if (this.relocationMode == RelocationMode.ALIAS && Double.isNaN(this.sharpness)) {
+
+            //every draw starts from the beginning of the stream of the point
+            Point point = JTSFactoryFinder.getGeometryFactory(null).createPoint(new Coordinate(job.x[i], job.y[i]));
+            for (int l = 0; l < iterations.length; l++) {
+                Point relocated = this.relocate(point, job, iterations[l], sampler,
+                        streams.forPoint(job.index, job.getId(i)));
+                outX[l] = relocated.getX();
+                outY[l] = relocated.getY();
+            }
+            return;
+        }
+        if (this.relocationMode == RelocationMode.ALIAS) {
+
+            //with a fixed sharpness the draw does not depend on n, so it is made once for all of them (polygons
+            //  too small to contain a pixel centre fall back to the best of n, below)
+            PixelDistribution pixels = job.getPixels(sampler, this.sharpness);
+            if (!pixels.isEmpty()) {
+                double[] location = new double[2];
+                pixels.next(streams.forPoint(job.index, job.getId(i)), location);
+                Arrays.fill(outX, location[0]);
+                Arrays.fill(outY, location[1]);
+                return;
+            }
+        }
+
+        //the first n candidates are the same for every n, so record the best so far as each n is reached
+        SplittableRandom rng = streams.forPoint(job.index, job.getId(i));
+        PolygonSampler candidates = job.getCandidates();
+        double[] candidate = new double[2];
+        final boolean radial = this.candidateDistribution == CandidateDistribution.RADIAL;
+        double maxVal = 0;
+        double bestX = job.x[i];
+        double bestY = job.y[i];
+        int drawn = 0;
+        boolean exhausted = false;
+        for (int l = 0; l < iterations.length; l++) {
+            while (!exhausted && drawn < iterations[l]) {
+                if (!(radial ? candidates.next(rng, job.x[i], job.y[i], job.maxOffsetDistance, candidate)
+                        : candidates.next(rng, candidate))) {
+                    exhausted = true;
+                    break;
+                }
+                drawn++;
+                double val = sampler.sample(candidate[0], candidate[1]);
+                if (val > maxVal) {
+                    maxVal = val;
+                    bestX = candidate[0];
+                    bestY = candidate[1];
+                }
+            }
+            outX[l] = bestX;
+            outY[l] = bestY;
+        }
     }
 
     /**
      * Relocates a point using the weighting surface.
      * More iterations = more weighting. Fewer iterations = more random
      * @param point
+     * @param candidates draws random locations within the polygon
+     * @param maxDistance the furthest a radial candidate may be from the point
      * @param iterations
-     * @param maxDistance
+     * @param sampler
+     * @param rng the random stream of the point
      * @return a point that has been fuzzy relocated
      */
-    private Point relocate(Point point, Geometry polygon, int iterations, double maxDistance, GridCoverage2D weightingSurface)
-            throws NoSuchAuthorityCodeException, FactoryException {
+    Point relocate(Point point, PolygonSampler candidates, double maxDistance, int iterations,
+            WeightingSampler sampler, SplittableRandom rng) {
+        final boolean radial = this.candidateDistribution == CandidateDistribution.RADIAL;
 
-        //random number generator
-        Random rng = new Random();
-        
         //holds max value
         double maxVal = 0;
-        Point out = point;
+        double[] candidate = new double[2];
+        double outX = 0;
+        double outY = 0;
+        boolean moved = false;
 
-        //create the required number of offset points
+        //create the required number of candidate locations within the polygon
         for (int i = 0; i < iterations; i++) {
-
-            //offset the point and push into an array list
-            Point relocated;
-            do {
-                //force the new point to be within the polygon
-                relocated = this.cartesianOffset(point, rng.nextDouble() * maxDistance,
-                        rng.nextDouble() * 359.9);
-            } while (!relocated.within(polygon));
+            if (!(radial ? candidates.next(rng, point.getX(), point.getY(), maxDistance, candidate)
+                    : candidates.next(rng, candidate))) {
+                break;
+            }
 
             //test the weighting surface value
-            double val = this.getValueFromRaster(relocated, weightingSurface);
+            double val = sampler.sample(candidate[0], candidate[1]);
             if (val > maxVal) {
                 maxVal = val;
-                out = relocated;
+                outX = candidate[0];
+                outY = candidate[1];
+                moved = true;
             }
         }
 
         //return the new point
-        return out;
+        if (!moved) {
+            return point;
+        }
+        return point.getFactory().createPoint(new Coordinate(outX, outY));
+    }
+
+    /**
+     * Returns the (cached) splat for a given radius, in the precision of the run
+     * @param radius
+     * @param pixelSize
+     * @return 
+     */
+    Kernel getKernel(double radius, double pixelSize) {
+        final Integer radPx = (radius / pixelSize) < 1 ? 1 : (int) (radius / pixelSize);
+        ConcurrentMap<Integer, Kernel> kernels = this.precision == Precision.FLOAT ? this.floatKernels : this.kernels;
+        Kernel kernel = kernels.get(radPx);
+        if (kernel == null) {
+            kernel = new Kernel(this.getFuzzyMatrix(radius, pixelSize), this.precision);
+            Kernel existing = kernels.putIfAbsent(radPx, kernel);
+            if (existing != null) {
+                kernel = existing;
+            }
+        }
+        return kernel;
     }
 
     /**
@@ -197,7 +1794,7 @@ public class WeightedFuzzy {
      * @param pixelSize
      * @return a matrix of values 
      */
-    private double[][] getFuzzyMatrix(double radius, double pixelSize) {
+    double[][] getFuzzyMatrix(double radius, double pixelSize) {
 
         //get the size of the radius in pixels (can't be smaller than 1!)
         final int radPx = (radius / pixelSize) < 1 ? 1 : (int) (radius / pixelSize);
@@ -239,19 +1836,17 @@ public class WeightedFuzzy {
     }
 
     /**
-     * Returns a value from a raster at a given coordinate
+     * Returns a value from a raster at a given coordinate by evaluating the
+     *   coverage directly (this is much slower than a WeightingSampler)
      * @param point
      * @param weightingSurface
      * @return value taken from the raster at the given location
-     * @throws NoSuchAuthorityCodeException
-     * @throws FactoryException 
      */
-    private double getValueFromRaster(Point point, GridCoverage2D weightingSurface)
-            throws NoSuchAuthorityCodeException, FactoryException {
+    double getValueFromRaster(Point point, GridCoverage2D weightingSurface) {
 
         //get the coverage data
-        CoordinateReferenceSystem crs = CRS.decode("EPSG:27700");
-        DirectPosition position = new DirectPosition2D(crs, point.getX(), point.getY());
+        DirectPosition position = new DirectPosition2D(weightingSurface.getCoordinateReferenceSystem2D(),
+                point.getX(), point.getY());
         double[] bands = new double[1];
         try {
             weightingSurface.evaluate(position, bands);
@@ -271,16 +1866,19 @@ public class WeightedFuzzy {
 
         //get raster dimensions
         final GridEnvelope2D envelope = template.getGridGeometry().getGridRange2D();
-        final int width = (int) envelope.getSpan(0);
-        final int height = (int) envelope.getSpan(1);
+        final int width = envelope.getSpan(0);
+        final int height = envelope.getSpan(1);
 
         //build writable raster
-        WritableRaster raster = RasterFactory.createBandedRaster(DataBuffer.TYPE_DOUBLE, width, height, 1, null);
+        WritableRaster raster = RasterFactory.createBandedRaster(
+                this.precision == Precision.FLOAT ? DataBuffer.TYPE_FLOAT : DataBuffer.TYPE_DOUBLE, width, height, 1, null);
 
-        //populate with initial value
-        for (int y = 0; y < height; y++) {
-            for (int x = 0; x < width; x++) {
-                raster.setSample(x, y, 0, initialValue);
+        //populate with initial value (a new raster is already filled with 0)
+        if (initialValue != 0) {
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    raster.setSample(x, y, 0, initialValue);
+                }
             }
         }
 
@@ -309,13 +1907,14 @@ public class WeightedFuzzy {
     }
 
     /**
-     * Gets all points within a given polygon
+     * Gets all points within a given polygon by querying the point source
+     *   (this reads the whole source, see PointPolygonJoin)
      * @param points
      * @param polygon
      * @return feature collection of points that were within the polygon
      * @throws IOException 
      */
-    private SimpleFeatureCollection getPointsWithin(SimpleFeature polygon, SimpleFeatureSource points) throws IOException {
+    SimpleFeatureCollection getPointsWithin(SimpleFeature polygon, SimpleFeatureSource points) throws IOException {
 
         //create a filter to handle the 'within' query
         FilterFactory2 ff = CommonFactoryFinder.getFilterFactory2(null);
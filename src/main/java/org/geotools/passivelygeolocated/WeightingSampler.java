@@ -0,0 +1,219 @@
+package org.geotools.passivelygeolocated;
+
+import java.awt.Rectangle;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.NoninvertibleTransformException;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.util.concurrent.atomic.LongAdder;
+import org.geotools.coverage.grid.GridCoverage2D;
+import org.opengis.geometry.Envelope;
+import org.opengis.metadata.spatial.PixelOrientation;
+import org.opengis.referencing.operation.MathTransform2D;
+
+/**
+ * Holds the first band of a weighting surface in a flat array (of doubles or
+ *   floats) so that values can be looked up by world coordinate without going
+ *   back to the coverage
+ * @author jonnyhuck
+ */
+public class WeightingSampler {
+
+    //the cached values (row by row, only one of these is used) and the size of the grid
+    private final double[] values;
+    private final float[] floatValues;
+    private final int width;
+    private final int height;
+
+    //the number of lookups that fell outside of the surface
+    private final LongAdder misses = new LongAdder();
+
+    //world to grid affine: col = m00 * x + m01 * y + m02, row = m10 * x + m11 * y + m12
+    private final double m00, m01, m02;
+    private final double m10, m11, m12;
+
+    //and grid to world: x = g00 * col + g01 * row + g02, y = g10 * col + g11 * row + g12
+    private final double g00, g01, g02;
+    private final double g10, g11, g12;
+
+    /**
+     * Reads the weighting surface into memory in double precision
+     * @param weightingSurface
+     */
+    public WeightingSampler(GridCoverage2D weightingSurface) {
+        this(weightingSurface, Precision.DOUBLE);
+    }
+
+    /**
+     * Reads the weighting surface into memory
+     * @param weightingSurface
+     * @param precision
+     */
+    public WeightingSampler(GridCoverage2D weightingSurface, Precision precision) {
+
+        //copy the first band into the array, one tile at a time
+        RenderedImage image = weightingSurface.getRenderedImage();
+        this.width = image.getWidth();
+        this.height = image.getHeight();
+        if (precision == Precision.FLOAT) {
+            this.values = null;
+            this.floatValues = new float[this.width * this.height];
+        } else {
+            this.values = new double[this.width * this.height];
+            this.floatValues = null;
+        }
+        double[] tileData = null;
+        for (int ty = image.getMinTileY(); ty < image.getMinTileY() + image.getNumYTiles(); ty++) {
+            for (int tx = image.getMinTileX(); tx < image.getMinTileX() + image.getNumXTiles(); tx++) {
+                Raster tile = image.getTile(tx, ty);
+                Rectangle r = tile.getBounds().intersection(
+                        new Rectangle(image.getMinX(), image.getMinY(), this.width, this.height));
+                if (r.isEmpty()) {
+                    continue;
+                }
+                tileData = tile.getSamples(r.x, r.y, r.width, r.height, 0, tileData);
+                for (int row = 0; row < r.height; row++) {
+                    final int start = (r.y - image.getMinY() + row) * this.width + (r.x - image.getMinX());
+                    if (this.floatValues != null) {
+                        for (int col = 0; col < r.width; col++) {
+                            this.floatValues[start + col] = (float) tileData[row * r.width + col];
+                        }
+                    } else {
+                        System.arraycopy(tileData, row * r.width, this.values, start, r.width);
+                    }
+                }
+            }
+        }
+
+        //get the world to grid affine (relative to the top left of the image)
+        AffineTransform crsToGrid = this.getCrsToGrid(weightingSurface);
+        crsToGrid.preConcatenate(AffineTransform.getTranslateInstance(-image.getMinX(), -image.getMinY()));
+        this.m00 = crsToGrid.getScaleX();
+        this.m01 = crsToGrid.getShearX();
+        this.m02 = crsToGrid.getTranslateX();
+        this.m10 = crsToGrid.getShearY();
+        this.m11 = crsToGrid.getScaleY();
+        this.m12 = crsToGrid.getTranslateY();
+        AffineTransform gridToCrs;
+        try {
+            gridToCrs = crsToGrid.createInverse();
+        } catch (NoninvertibleTransformException e) {
+            throw new IllegalArgumentException("the weighting surface has a degenerate grid geometry", e);
+        }
+        this.g00 = gridToCrs.getScaleX();
+        this.g01 = gridToCrs.getShearX();
+        this.g02 = gridToCrs.getTranslateX();
+        this.g10 = gridToCrs.getShearY();
+        this.g11 = gridToCrs.getScaleY();
+        this.g12 = gridToCrs.getTranslateY();
+    }
+
+    /**
+     * Returns the world to grid transform of the coverage, falling back to
+     *   a north-up transform built from the envelope if it is not affine
+     * @param weightingSurface
+     * @return
+     */
+    private AffineTransform getCrsToGrid(GridCoverage2D weightingSurface) {
+        MathTransform2D transform = weightingSurface.getGridGeometry().getCRSToGrid2D(PixelOrientation.UPPER_LEFT);
+        if (transform instanceof AffineTransform) {
+            return new AffineTransform((AffineTransform) transform);
+        }
+        Envelope envelope = weightingSurface.getEnvelope();
+        Rectangle grid = weightingSurface.getGridGeometry().getGridRange2D();
+        double sx = grid.width / envelope.getSpan(0);
+        double sy = grid.height / envelope.getSpan(1);
+        return new AffineTransform(sx, 0, 0, -sy, grid.x - envelope.getMinimum(0) * sx,
+                grid.y + envelope.getMaximum(1) * sy);
+    }
+
+    /**
+     * Returns the value of the weighting surface at a given coordinate
+     * @param x
+     * @param y
+     * @return the value of the cell containing the coordinate, or 0 if it is
+     *   outside of the weighting surface
+     */
+    public double sample(double x, double y) {
+        final double col = this.m00 * x + this.m01 * y + this.m02;
+        final double row = this.m10 * x + this.m11 * y + this.m12;
+
+        //negated test so that NaN coordinates also miss
+        if (!(col >= 0 && row >= 0 && col < this.width && row < this.height)) {
+            this.misses.increment();
+            return 0;
+        }
+        return this.getValue((int) col, (int) row);
+    }
+
+    /**
+     * Returns the value of a cell of the weighting surface
+     * @param col
+     * @param row
+     * @return 
+     */
+    public double getValue(int col, int row) {
+        if (this.floatValues != null) {
+            return this.floatValues[row * this.width + col];
+        }
+        return this.values[row * this.width + col];
+    }
+
+    /**
+     * @param x
+     * @param y
+     * @return the (fractional) column containing a world coordinate
+     */
+    public double toCol(double x, double y) {
+        return this.m00 * x + this.m01 * y + this.m02;
+    }
+
+    /**
+     * @param x
+     * @param y
+     * @return the (fractional) row containing a world coordinate
+     */
+    public double toRow(double x, double y) {
+        return this.m10 * x + this.m11 * y + this.m12;
+    }
+
+    /**
+     * @param col
+     * @param row
+     * @return the world x of a (fractional) grid position
+     */
+    public double toX(double col, double row) {
+        return this.g00 * col + this.g01 * row + this.g02;
+    }
+
+    /**
+     * @param col
+     * @param row
+     * @return the world y of a (fractional) grid position
+     */
+    public double toY(double col, double row) {
+        return this.g10 * col + this.g11 * row + this.g12;
+    }
+
+    /**
+     * @return the number of lookups so far that fell outside of the surface
+     *   (and so were given a value of 0)
+     */
+    public long getMisses() {
+        return this.misses.sum();
+    }
+
+    /**
+     * @return the width of the weighting surface in pixels
+     */
+    public int getWidth() {
+        return this.width;
+    }
+
+    /**
+     * @return the height of the weighting surface in pixels
+     */
+    public int getHeight() {
+        return this.height;
+    }
+}
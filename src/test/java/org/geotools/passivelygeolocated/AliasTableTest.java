@@ -0,0 +1,163 @@
+package org.geotools.passivelygeolocated;
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import java.util.SplittableRandom;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import org.geotools.coverage.grid.GridCoverage2D;
+
+/**
+ * Checks that indexes (and weighting surface pixels) are drawn in proportion
+ *   to their weights
+ */
+public class AliasTableTest
+    extends TestCase
+{
+    private static final int WIDTH = 4;
+    private static final int HEIGHT = 3;
+    private static final int DRAWS = 200000;
+
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public AliasTableTest( String testName )
+    {
+        super( testName );
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite()
+    {
+        return new TestSuite( AliasTableTest.class );
+    }
+
+    /**
+     * Uneven weights, including some of 0 (which are never drawn)
+     */
+    public void testDistribution()
+    {
+        double[] weights = { 1, 0, 7.5, 0.01, 3, 0, 12, 2, 2 };
+        AliasTable table = new AliasTable( weights );
+        assertEquals( weights.length, table.size() );
+        assertProportional( weights, draw( table, new SplittableRandom( 42 ) ) );
+    }
+
+    /**
+     * Even weights, a single index and weights that don't sum to a round number
+     */
+    public void testEdgeCases()
+    {
+        assertProportional( new double[] { 5, 5, 5 }, draw( new AliasTable( new double[] { 5, 5, 5 } ),
+                new SplittableRandom( 1 ) ) );
+        assertProportional( new double[] { 0.3 }, draw( new AliasTable( new double[] { 0.3 } ),
+                new SplittableRandom( 2 ) ) );
+        double[] thirds = { 1.0 / 3, 1.0 / 3, 1.0 / 3 + 1e-12, 1e-12 };
+        assertProportional( thirds, draw( new AliasTable( thirds ), new SplittableRandom( 3 ) ) );
+
+        try {
+            new AliasTable( new double[] { 0, 0 } );
+            fail( "weights that are all 0 can't be drawn from" );
+        } catch ( IllegalArgumentException e ) {
+            //expected
+        }
+    }
+
+    /**
+     * Pixels within a polygon are drawn in proportion to (value / max) ^ sharpness
+     */
+    public void testPixels() throws Exception
+    {
+        WeightingSampler sampler = new WeightingSampler( getWeightingSurface() );
+
+        //the middle two columns of every row
+        GeometryFactory factory = new GeometryFactory();
+        PixelDistribution pixels = new PixelDistribution( factory.toGeometry( new Envelope( 1010, 1030, 2000, 2030 ) ),
+                sampler, 2 );
+        assertEquals( 2.0, pixels.getSharpness() );
+        assertEquals( 6, pixels.size() );
+
+        double[] expected = new double[WIDTH * HEIGHT];
+        for ( int row = 0; row < HEIGHT; row++ ) {
+            for ( int col = 1; col < 3; col++ ) {
+                expected[row * WIDTH + col] = Math.pow( getWeight( col, row ), 2 );
+            }
+        }
+        long[] counts = new long[WIDTH * HEIGHT];
+        SplittableRandom rng = new SplittableRandom( 5 );
+        double[] location = new double[2];
+        for ( int i = 0; i < DRAWS; i++ ) {
+            pixels.next( rng, location );
+            double col = sampler.toCol( location[0], location[1] );
+            double row = sampler.toRow( location[0], location[1] );
+            assertEquals( 0.5, col - Math.floor( col ), 1e-9 );
+            assertEquals( 0.5, row - Math.floor( row ), 1e-9 );
+            counts[(int) row * WIDTH + (int) col]++;
+        }
+        assertProportional( expected, counts );
+
+        //no pixels (smaller than a pixel), and a sharpness of 0 (uniform)
+        assertTrue( new PixelDistribution( factory.toGeometry( new Envelope( 1001, 1004, 2001, 2004 ) ), sampler, 2 )
+                .isEmpty() );
+        PixelDistribution uniform = new PixelDistribution( factory.toGeometry( new Envelope( 1000, 1040, 2000, 2030 ) ),
+                sampler, 0 );
+        assertEquals( 11, uniform.size() );
+    }
+
+    private static long[] draw( AliasTable table, SplittableRandom rng )
+    {
+        long[] counts = new long[table.size()];
+        for ( int i = 0; i < DRAWS; i++ ) {
+            counts[table.next( rng )]++;
+        }
+        return counts;
+    }
+
+    /**
+     * Every count is within 5 standard deviations of its expected value, and
+     *   indexes of weight 0 are never drawn
+     */
+    private static void assertProportional( double[] weights, long[] counts )
+    {
+        double total = 0;
+        for ( double w : weights ) {
+            total += w;
+        }
+        for ( int i = 0; i < weights.length; i++ ) {
+            double p = weights[i] / total;
+            if ( p == 0 ) {
+                assertEquals( "index " + i, 0, counts[i] );
+                continue;
+            }
+            double sd = Math.sqrt( DRAWS * p * ( 1 - p ) );
+            assertEquals( "index " + i, DRAWS * p, counts[i], 5 * sd + 1 );
+        }
+    }
+
+    /**
+     * 0 in the top left pixel, otherwise rising across and down
+     */
+    private static float getWeight( int col, int row )
+    {
+        return col == 0 && row == 0 ? 0 : 1 + col + 10 * row;
+    }
+
+    /**
+     * 10m pixels, with the top left at (1000, 2030)
+     */
+    private static GridCoverage2D getWeightingSurface() throws Exception
+    {
+        float[][] weights = new float[HEIGHT][WIDTH];
+        for ( int y = 0; y < HEIGHT; y++ ) {
+            for ( int x = 0; x < WIDTH; x++ ) {
+                weights[y][x] = getWeight( x, y );
+            }
+        }
+        return Fixtures.getWeightingSurface( weights, 1000, 2000, 10 );
+    }
+}
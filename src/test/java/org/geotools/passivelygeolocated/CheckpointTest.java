@@ -0,0 +1,349 @@
+package org.geotools.passivelygeolocated;
+
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.Envelope;
+import java.awt.image.BandedSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import org.geotools.coverage.grid.GridCoverage2D;
+
+/**
+ * Checks that a run carried on from a checkpoint gives the same surface as
+ *   one that was not stopped
+ */
+public class CheckpointTest
+    extends TestCase
+{
+    private static final int WIDTH = 100;
+    private static final int HEIGHT = 70;
+    private static final int TILE_SIZE = 16;
+
+    //the runs: 10m pixels, 12 square polygons with 300 points in each, and batches (or groups) of 400 points
+    private static final int PIXEL = 10;
+    private static final int COLUMNS = 4;
+    private static final int ROWS = 3;
+    private static final int POINTS = 300;
+    private static final int BATCH = 400;
+
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public CheckpointTest( String testName )
+    {
+        super( testName );
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite()
+    {
+        return new TestSuite( CheckpointTest.class );
+    }
+
+    /**
+     * Saves a raster half way through, then adds the rest to both it and the
+     *   surface read back from the checkpoint
+     */
+    public void testResumeRaster() throws Exception
+    {
+        assertResumes( getRaster( DataBuffer.TYPE_DOUBLE ), getRaster( DataBuffer.TYPE_DOUBLE ) );
+        assertResumes( getRaster( DataBuffer.TYPE_FLOAT ), getRaster( DataBuffer.TYPE_FLOAT ) );
+
+        //a tile that is all 0 is not copied
+        RasterSurfaceBuffer surface = getRaster( DataBuffer.TYPE_FLOAT );
+        assertNull( surface.copyTile( 0, 0 ) );
+        surface.getRaster().setSample( WIDTH - 1, HEIGHT - 1, 0, 1 );
+        assertNotNull( surface.copyTile( 0, 0 ) );
+    }
+
+    /**
+     * The same for tiles, of which only those that were written are saved
+     */
+    public void testResumeTiles() throws Exception
+    {
+        TiledSurface surface = new TiledSurface( WIDTH, HEIGHT, TILE_SIZE, Precision.FLOAT, null );
+        TiledSurface resumed = new TiledSurface( WIDTH, HEIGHT, TILE_SIZE, Precision.FLOAT, null );
+        try {
+            assertResumes( surface, resumed );
+            assertEquals( surface.getTilesCreated(), resumed.getTilesCreated() );
+        } finally {
+            surface.dispose();
+            resumed.dispose();
+        }
+    }
+
+    /**
+     * Nothing is written until the interval has passed
+     */
+    public void testInterval() throws Exception
+    {
+        File file = File.createTempFile( "checkpoint", ".wfrc" );
+        file.delete();
+        Checkpoint checkpoint = new Checkpoint( file, 3600, new Properties() );
+        checkpoint.save( getRaster( DataBuffer.TYPE_DOUBLE ) );
+        checkpoint.close();
+        assertFalse( file.exists() );
+    }
+
+    /**
+     * Stops a run that streams points part of the way through the file (as
+     *   if it had crashed), then carries on from its checkpoint, skipping the
+     *   batches that were added, and gets the same surface as a run that was
+     *   not stopped. The checkpoint is refused once the points file changes
+     */
+    public void testResumeStreamed() throws Exception
+    {
+        GridCoverage2D weightingSurface = Fixtures.getWeightingSurface( WIDTH, HEIGHT, PIXEL );
+        List<Geometry> polygons = getPolygons();
+        String csv = getPoints();
+        File points = File.createTempFile( "points", ".csv" );
+        File file = File.createTempFile( "checkpoint", ".wfrc" );
+        file.delete();
+        try {
+            FileWriter writer = new FileWriter( points );
+            writer.write( csv );
+            writer.close();
+            PointReader reader = new CsvPointReader( points, "x", "y" );
+            SurfaceBuffer expected;
+            try {
+                expected = getRun( null, false, points ).getSurface( reader, polygons, null, weightingSurface, 10,
+                    0.2 );
+            } finally {
+                reader.close();
+            }
+
+            //fail after 5 of the 9 batches have been read
+            final int rows = 5 * BATCH;
+            int end = 0;
+            for ( int row = 0; row <= rows; row++ ) {
+                end = csv.indexOf( '\n', end ) + 1;
+            }
+            InputStream failing = new SequenceInputStream( new ByteArrayInputStream(
+                csv.substring( 0, end ).getBytes( "UTF-8" ) ), new InputStream() {
+                    @Override
+                    public int read() throws IOException
+                    {
+                        throw new IOException( "stopped" );
+                    }
+                } );
+            reader = new CsvPointReader( failing, "x", "y" );
+            try {
+                getRun( file, false, points ).getSurface( reader, polygons, null, weightingSurface, 10, 0.2 );
+                fail( "the run was not stopped" );
+            } catch ( IOException e ) {
+                assertEquals( "stopped", e.getMessage() );
+            } finally {
+                reader.close();
+            }
+            Checkpoint checkpoint = Checkpoint.read( file, 0, getRaster( DataBuffer.TYPE_DOUBLE ) );
+            assertTrue( checkpoint.getBatches() >= 1 && checkpoint.getBatches() <= 5 );
+
+            reader = new CsvPointReader( points, "x", "y" );
+            try {
+                assertSameSurface( expected, getRun( file, true, points ).getSurface( reader, polygons, null,
+                    weightingSurface, 10, 0.2 ) );
+            } finally {
+                reader.close();
+            }
+
+            //a checkpoint of another version of the points file
+            writer = new FileWriter( points, true );
+            writer.write( "1100,2100\n" );
+            writer.close();
+            reader = new CsvPointReader( points, "x", "y" );
+            try {
+                getRun( file, true, points ).getSurface( reader, polygons, null, weightingSurface, 10, 0.2 );
+                fail( "the checkpoint of a changed file was used" );
+            } catch ( IllegalArgumentException e ) {
+                assertTrue( e.getMessage(), e.getMessage().contains( "points file" ) );
+            } finally {
+                reader.close();
+            }
+        } finally {
+            points.delete();
+            file.delete();
+        }
+    }
+
+    /**
+     * Carries on from the checkpoint of a run that stopped after the first
+     *   groups of polygons (which is what a run of just their polygons
+     *   leaves), skipping those groups, and gets the same surface as a run
+     *   that was not stopped
+     */
+    public void testResumePolygons() throws Exception
+    {
+        GridCoverage2D weightingSurface = Fixtures.getWeightingSurface( WIDTH, HEIGHT, PIXEL );
+        List<Geometry> polygons = getPolygons();
+        PointReader reader = new CsvPointReader( new ByteArrayInputStream( getPoints().getBytes( "UTF-8" ) ), "x",
+            "y" );
+        PointColumns columns;
+        try {
+            columns = new WeightedFuzzy().getPoints( reader, weightingSurface );
+        } finally {
+            reader.close();
+        }
+        File file = File.createTempFile( "checkpoint", ".wfrc" );
+        file.delete();
+        try {
+            SurfaceBuffer expected = getRun( null, false, null ).getSurface( columns, polygons, null,
+                weightingSurface, 10, 0.2 );
+
+            //each group is two polygons, so the first four polygons are the first two groups
+            boolean[] include = new boolean[polygons.size()];
+            for ( int p = 0; p < 4; p++ ) {
+                include[p] = true;
+            }
+            getRun( file, false, null ).getSurface( columns, polygons, include, weightingSurface, 10, 0.2 );
+            Checkpoint checkpoint = Checkpoint.read( file, 0, getRaster( DataBuffer.TYPE_DOUBLE ) );
+            assertTrue( checkpoint.isDone( 0 ) && checkpoint.isDone( 1 ) );
+            assertFalse( checkpoint.isDone( 4 ) );
+
+            assertSameSurface( expected, getRun( file, true, null ).getSurface( columns, polygons, null,
+                weightingSurface, 10, 0.2 ) );
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static WeightedFuzzy getRun( File checkpoint, boolean resume, File points )
+    {
+        WeightedFuzzy wf = new WeightedFuzzy();
+        wf.setSeed( resume ? null : Long.valueOf( 23 ) );
+        wf.setThreads( 2 );
+        wf.setPointBatch( BATCH );
+        wf.setCheckpoint( checkpoint );
+        wf.setCheckpointInterval( 0 );
+        wf.setResume( resume );
+        wf.setCheckpointInputs( points, null, null );
+        return wf;
+    }
+
+    private static void assertSameSurface( SurfaceBuffer expected, SurfaceBuffer actual )
+    {
+        double[] a = new double[WIDTH];
+        double[] b = new double[WIDTH];
+        double total = 0;
+        for ( int row = 0; row < HEIGHT; row++ ) {
+            expected.getRow( row, a );
+            actual.getRow( row, b );
+            for ( int col = 0; col < WIDTH; col++ ) {
+                assertEquals( col + "," + row, Double.doubleToLongBits( a[col] ), Double.doubleToLongBits( b[col] ) );
+                total += a[col];
+            }
+        }
+        assertTrue( total > 0 );
+    }
+
+    /**
+     * Squares 200m across that do not overlap, so each gets exactly its own points
+     */
+    private static List<Geometry> getPolygons()
+    {
+        GeometryFactory factory = new GeometryFactory();
+        List<Geometry> polygons = new ArrayList<Geometry>();
+        for ( int row = 0; row < ROWS; row++ ) {
+            for ( int col = 0; col < COLUMNS; col++ ) {
+                polygons.add( factory.toGeometry( new Envelope( 1050 + col * 220, 1250 + col * 220,
+                    2050 + row * 200, 2230 + row * 200 ) ) );
+            }
+        }
+        return polygons;
+    }
+
+    /**
+     * The points of each square in turn, well inside it
+     */
+    private static String getPoints()
+    {
+        StringBuilder csv = new StringBuilder( "x,y\n" );
+        Random random = new Random( 6 );
+        for ( int row = 0; row < ROWS; row++ ) {
+            for ( int col = 0; col < COLUMNS; col++ ) {
+                for ( int i = 0; i < POINTS; i++ ) {
+                    csv.append( 1060 + col * 220 + random.nextDouble() * 180 ).append( ',' )
+                        .append( 2060 + row * 200 + random.nextDouble() * 160 ).append( '\n' );
+                }
+            }
+        }
+        return csv.toString();
+    }
+
+    private void assertResumes( SurfaceBuffer surface, SurfaceBuffer resumed ) throws Exception
+    {
+        File file = File.createTempFile( "checkpoint", ".wfrc" );
+        try {
+            Kernel kernel = new WeightedFuzzy().getKernel( 7, 1 );
+            Random rng = new Random( 42 );
+            Properties parameters = new Properties();
+            parameters.setProperty( "seed", "42" );
+            Checkpoint checkpoint = new Checkpoint( file, 0, parameters );
+            addSplats( surface, kernel, rng );
+            checkpoint.setBatches( 3 );
+            checkpoint.setDone( 2 );
+            checkpoint.setDone( 130 );
+            checkpoint.save( surface );
+            checkpoint.close();
+
+            checkpoint = Checkpoint.read( file, 0, resumed );
+            assertEquals( parameters, checkpoint.getParameters() );
+            assertEquals( 3, checkpoint.getBatches() );
+            assertTrue( checkpoint.isDone( 2 ) );
+            assertTrue( checkpoint.isDone( 130 ) );
+            assertFalse( checkpoint.isDone( 3 ) );
+
+            //the rest of the run
+            long state = rng.nextLong();
+            addSplats( surface, kernel, new Random( state ) );
+            addSplats( resumed, kernel, new Random( state ) );
+            for ( int y = 0; y < HEIGHT; y++ ) {
+                for ( int x = 0; x < WIDTH; x++ ) {
+                    assertEquals( x + "," + y, getValue( surface, x, y ), getValue( resumed, x, y ), 0 );
+                }
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static void addSplats( SurfaceBuffer surface, Kernel kernel, Random rng )
+    {
+        for ( int i = 0; i < 100; i++ ) {
+            //keep to the left half so that some tiles are never touched
+            int x = rng.nextInt( WIDTH / 2 ) - kernel.span / 2;
+            int y = rng.nextInt( HEIGHT + kernel.span ) - kernel.span;
+            surface.add( kernel, x, y, 1 + rng.nextInt( 3 ), 0, HEIGHT );
+        }
+    }
+
+    private static RasterSurfaceBuffer getRaster( int dataType )
+    {
+        return new RasterSurfaceBuffer( Raster.createWritableRaster(
+            new BandedSampleModel( dataType, WIDTH, HEIGHT, 1 ), null ) );
+    }
+
+    private static double getValue( SurfaceBuffer surface, int x, int y )
+    {
+        if ( surface instanceof TiledSurface ) {
+            return ( (TiledSurface) surface ).getValue( x, y );
+        }
+        return ( (RasterSurfaceBuffer) surface ).getRaster().getSampleDouble( x, y, 0 );
+    }
+}
@@ -0,0 +1,440 @@
+package org.geotools.passivelygeolocated;
+
+import java.awt.Transparency;
+import java.awt.color.ColorSpace;
+import java.awt.image.BandedSampleModel;
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.Inflater;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Checks that Cloud Optimized GeoTIFFs hold the surface and its overviews,
+ *   with the directories first and the smallest overview's tiles next
+ */
+public class CogWriterTest
+    extends TestCase
+{
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public CogWriterTest( String testName )
+    {
+        super( testName );
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite()
+    {
+        return new TestSuite( CogWriterTest.class );
+    }
+
+    /**
+     * Reads files written without the predictor back with the JDK's own TIFF
+     *   reader (Java 9 and later), which checks the tiling, LZW and DEFLATE
+     */
+    public void testReadByImageIO() throws IOException
+    {
+        Iterator<ImageReader> readers = ImageIO.getImageReadersByFormatName( "tiff" );
+        if ( !readers.hasNext() ) {
+            return;
+        }
+        ImageReader reader = readers.next();
+
+        //random values, so that LZW fills its table many times
+        BufferedImage image = getImage( DataBuffer.TYPE_FLOAT, 300, 200 );
+        for ( Compression compression : Compression.values() ) {
+            File file = File.createTempFile( "cog", ".tif" );
+            try {
+                CogWriter writer = new CogWriter( compression, 3 );
+                writer.setPredictor( false );
+                writer.write( image, 1000, 2000, 10, 10, 27700, false, file );
+                ImageInputStream in = ImageIO.createImageInputStream( file );
+                try {
+                    reader.setInput( in );
+                    assertEquals( compression.toString(), 2, reader.getNumImages( true ) );
+                    Raster full = reader.read( 0 ).getRaster();
+                    Raster overview = reader.read( 1 ).getRaster();
+                    assertEquals( 300, full.getWidth() );
+                    assertEquals( 150, overview.getWidth() );
+                    assertEquals( 100, overview.getHeight() );
+                    for ( int y = 0; y < 200; y++ ) {
+                        for ( int x = 0; x < 300; x++ ) {
+                            assertEquals( compression.toString(), image.getRaster().getSampleFloat( x, y, 0 ),
+                                full.getSampleFloat( x, y, 0 ), 0 );
+                        }
+                    }
+                    Raster source = image.getRaster();
+                    double mean = ( source.getSampleDouble( 40, 60, 0 ) + source.getSampleDouble( 41, 60, 0 )
+                        + source.getSampleDouble( 40, 61, 0 ) + source.getSampleDouble( 41, 61, 0 ) ) / 4;
+                    assertEquals( mean, overview.getSampleFloat( 20, 30, 0 ), 1e-6 );
+                } finally {
+                    in.close();
+                }
+            } finally {
+                reader.setInput( null );
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * Reads the directories and a tile written with DEFLATE and the floating
+     *   point predictor
+     */
+    public void testLayout() throws Exception
+    {
+        final int width = 600;
+        final int height = 300;
+        BufferedImage image = getImage( DataBuffer.TYPE_DOUBLE, width, height );
+        File file = File.createTempFile( "cog", ".tif" );
+        RandomAccessFile in = null;
+        try {
+            new CogWriter( Compression.DEFLATE, 2 ).write( image, 0, 0, 1, 1, null, false, file );
+            in = new RandomAccessFile( file, "r" );
+            ByteBuffer bytes = ByteBuffer.allocate( (int) in.length() ).order( ByteOrder.LITTLE_ENDIAN );
+            in.getChannel().read( bytes );
+            assertEquals( 42, bytes.getShort( 2 ) );
+
+            //600 x 300, 300 x 150 and 150 x 75, each directory before any of the tiles
+            List<long[]> offsets = new ArrayList<long[]>();
+            List<long[]> counts = new ArrayList<long[]>();
+            long directory = bytes.getInt( 4 );
+            int[] widths = { width, width / 2, width / 4 };
+            while ( directory != 0 ) {
+                final int level = offsets.size();
+                final int fields = bytes.getShort( (int) directory );
+                for ( int f = 0; f < fields; f++ ) {
+                    final int entry = (int) directory + 2 + f * 12;
+                    final int tag = bytes.getShort( entry ) & 0xffff;
+                    final int count = bytes.getInt( entry + 4 );
+                    if ( tag == 256 ) {
+                        assertEquals( widths[level], bytes.getInt( entry + 8 ) );
+                    } else if ( tag == 317 ) {
+                        assertEquals( 3, bytes.getShort( entry + 8 ) );
+                    } else if ( tag == 324 || tag == 325 ) {
+                        long[] values = new long[count];
+                        final int start = count == 1 ? entry + 8 : bytes.getInt( entry + 8 );
+                        for ( int i = 0; i < count; i++ ) {
+                            values[i] = bytes.getInt( start + 4 * i );
+                        }
+                        ( tag == 324 ? offsets : counts ).add( values );
+                    }
+                }
+                directory = bytes.getInt( (int) directory + 2 + fields * 12 );
+            }
+            assertEquals( 3, offsets.size() );
+            assertEquals( 6, offsets.get( 0 ).length );
+            assertEquals( 2, offsets.get( 1 ).length );
+            assertEquals( 1, offsets.get( 2 ).length );
+            assertTrue( offsets.get( 2 )[0] < offsets.get( 1 )[0] );
+            assertTrue( offsets.get( 1 )[1] < offsets.get( 0 )[0] );
+
+            //the last tile, which hangs off the right and bottom of the image
+            byte[] tile = new byte[(int) counts.get( 0 )[5]];
+            bytes.position( (int) offsets.get( 0 )[5] );
+            bytes.get( tile );
+            Inflater inflater = new Inflater();
+            byte[] data = new byte[CogWriter.TILE * CogWriter.TILE * 8];
+            inflater.setInput( tile );
+            assertEquals( data.length, inflater.inflate( data ) );
+            inflater.end();
+
+            //undo the predictor
+            final int rowBytes = CogWriter.TILE * 8;
+            ByteBuffer values = ByteBuffer.allocate( data.length );
+            for ( int start = 0; start < data.length; start += rowBytes ) {
+                for ( int i = 1; i < rowBytes; i++ ) {
+                    data[start + i] += data[start + i - 1];
+                }
+                for ( int i = 0; i < CogWriter.TILE; i++ ) {
+                    for ( int b = 0; b < 8; b++ ) {
+                        values.put( data[start + b * CogWriter.TILE + i] );
+                    }
+                }
+            }
+            values.flip();
+            for ( int y = 0; y < CogWriter.TILE; y++ ) {
+                for ( int x = 0; x < CogWriter.TILE; x++ ) {
+                    final int col = 2 * CogWriter.TILE + x;
+                    final int row = CogWriter.TILE + y;
+                    final double expected = col < width && row < height
+                        ? image.getRaster().getSampleDouble( col, row, 0 ) : 0;
+                    assertEquals( col + "," + row, expected, values.getDouble(), 0 );
+                }
+            }
+        } finally {
+            if ( in != null ) {
+                in.close();
+            }
+            file.delete();
+        }
+    }
+
+    /**
+     * Reads whole files written with the floating point predictor, with a
+     *   decoder written here from the TIFF 6.0 specification and Technical
+     *   Note 3 rather than from the writer
+     */
+    public void testReadPredictor() throws Exception
+    {
+        int[] dataTypes = { DataBuffer.TYPE_FLOAT, DataBuffer.TYPE_DOUBLE };
+        Compression[] compressions = { Compression.DEFLATE, Compression.LZW };
+        for ( int dataType : dataTypes ) {
+            BufferedImage image = getImage( dataType, 300, 200 );
+            for ( Compression compression : compressions ) {
+                File file = File.createTempFile( "cog", ".tif" );
+                try {
+                    new CogWriter( compression, 2 ).write( image, 1000, 2000, 10, 10, 27700, false, file );
+                    ByteBuffer bytes = readFile( file );
+                    Map<Integer, long[]> fields = readDirectory( bytes, bytes.getInt( 4 ) );
+                    assertEquals( 3, fields.get( 317 )[0] );
+                    assertEquals( compression.code, fields.get( 259 )[0] );
+                    final int sample = (int) fields.get( 258 )[0] / 8;
+                    final int tileWidth = (int) fields.get( 322 )[0];
+                    final int tileHeight = (int) fields.get( 323 )[0];
+                    final int tilesX = ( 300 + tileWidth - 1 ) / tileWidth;
+                    long[] offsets = fields.get( 324 );
+                    long[] counts = fields.get( 325 );
+                    for ( int t = 0; t < offsets.length; t++ ) {
+                        byte[] tile = new byte[(int) counts[t]];
+                        bytes.position( (int) offsets[t] );
+                        bytes.get( tile );
+                        byte[] data = compression == Compression.LZW ? decodeLzw( tile )
+                            : inflate( tile, tileWidth * tileHeight * sample );
+                        assertEquals( tileWidth * tileHeight * sample, data.length );
+                        ByteBuffer values = undoPredictor( data, tileWidth, sample );
+                        for ( int y = 0; y < tileHeight; y++ ) {
+                            for ( int x = 0; x < tileWidth; x++ ) {
+                                final int col = ( t % tilesX ) * tileWidth + x;
+                                final int row = ( t / tilesX ) * tileHeight + y;
+                                final double value = sample == 4 ? values.getFloat() : values.getDouble();
+                                if ( col < 300 && row < 200 ) {
+                                    assertEquals( compression + " " + col + "," + row,
+                                        image.getRaster().getSampleDouble( col, row, 0 ), value, 0 );
+                                }
+                            }
+                        }
+                    }
+                } finally {
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks that a CRS without an EPSG code is written as its model type
+     *   and a citation rather than not at all
+     */
+    public void testCitation() throws Exception
+    {
+        BufferedImage image = getImage( DataBuffer.TYPE_FLOAT, 20, 10 );
+        File file = File.createTempFile( "cog", ".tif" );
+        try {
+            String citation = "ESRI PE String = PROJCS[\"Local\",GEOGCS[\"WGS 84\"]]";
+            new CogWriter( Compression.DEFLATE, 1 ).write( image, 0, 0, 1, 1, null, citation, false, file );
+            ByteBuffer bytes = readFile( file );
+            Map<Integer, long[]> fields = readDirectory( bytes, bytes.getInt( 4 ) );
+
+            //the directory header and three keys: projected, pixel is area, and the citation
+            long[] keys = fields.get( 34735 );
+            assertEquals( 16, keys.length );
+            assertEquals( 3, keys[3] );
+            assertEquals( 1024, keys[4] );
+            assertEquals( 1, keys[7] );
+            assertEquals( 1026, keys[12] );
+            assertEquals( 34737, keys[13] );
+            long[] ascii = fields.get( 34737 );
+            StringBuilder text = new StringBuilder();
+            for ( int i = (int) keys[15]; i < keys[15] + keys[14]; i++ ) {
+                text.append( (char) ascii[i] );
+            }
+            assertEquals( citation + "|", text.toString() );
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static ByteBuffer readFile( File file ) throws IOException
+    {
+        RandomAccessFile in = new RandomAccessFile( file, "r" );
+        try {
+            ByteBuffer bytes = ByteBuffer.allocate( (int) in.length() ).order( ByteOrder.LITTLE_ENDIAN );
+            in.getChannel().read( bytes );
+            assertEquals( 'I', bytes.get( 0 ) );
+            assertEquals( 42, bytes.getShort( 2 ) );
+            return bytes;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Reads the fields of a (classic TIFF) image file directory
+     */
+    private static Map<Integer, long[]> readDirectory( ByteBuffer bytes, long directory )
+    {
+        Map<Integer, long[]> fields = new HashMap<Integer, long[]>();
+        final int count = bytes.getShort( (int) directory );
+        for ( int f = 0; f < count; f++ ) {
+            final int entry = (int) directory + 2 + f * 12;
+            final int tag = bytes.getShort( entry ) & 0xffff;
+            final int type = bytes.getShort( entry + 2 );
+            final int n = bytes.getInt( entry + 4 );
+            final int size = type == 2 ? 1 : type == 3 ? 2 : type == 4 ? 4 : 8;
+            final int start = n * size <= 4 ? entry + 8 : bytes.getInt( entry + 8 );
+            long[] values = new long[n];
+            for ( int i = 0; i < n; i++ ) {
+                if ( type == 2 ) {
+                    values[i] = bytes.get( start + i );
+                } else if ( type == 3 ) {
+                    values[i] = bytes.getShort( start + 2 * i ) & 0xffff;
+                } else if ( type == 4 ) {
+                    values[i] = bytes.getInt( start + 4 * i ) & 0xffffffffL;
+                } else {
+                    values[i] = Double.doubleToLongBits( bytes.getDouble( start + 8 * i ) );
+                }
+            }
+            fields.put( tag, values );
+        }
+        return fields;
+    }
+
+    private static byte[] inflate( byte[] tile, int length ) throws Exception
+    {
+        Inflater inflater = new Inflater();
+        byte[] data = new byte[length];
+        inflater.setInput( tile );
+        final int read = inflater.inflate( data );
+        inflater.end();
+        return read == length ? data : Arrays.copyOf( data, read );
+    }
+
+    /**
+     * Decodes TIFF LZW: codes of 9 to 12 bits, most significant bit first,
+     *   that grow a bit once the next code is one less than a power of two
+     */
+    private static byte[] decodeLzw( byte[] tile )
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        List<byte[]> table = new ArrayList<byte[]>();
+        int width = 9;
+        long bits = 0;
+        int buffered = 0;
+        int position = 0;
+        byte[] previous = null;
+        while ( true ) {
+            while ( buffered < width && position < tile.length ) {
+                bits = ( bits << 8 ) | ( tile[position++] & 0xff );
+                buffered += 8;
+            }
+            if ( buffered < width ) {
+                break;
+            }
+            final int code = (int) ( ( bits >>> ( buffered - width ) ) & ( ( 1 << width ) - 1 ) );
+            buffered -= width;
+            if ( code == 257 ) {
+                break;
+            }
+            if ( code == 256 ) {
+                table.clear();
+                for ( int i = 0; i < 256; i++ ) {
+                    table.add( new byte[] { (byte) i } );
+                }
+                table.add( null );
+                table.add( null );
+                width = 9;
+                previous = null;
+                continue;
+            }
+            byte[] entry;
+            if ( code < table.size() ) {
+                entry = table.get( code );
+                if ( previous != null ) {
+                    table.add( append( previous, entry[0] ) );
+                }
+            } else {
+                assertEquals( table.size(), code );
+                entry = append( previous, previous[0] );
+                table.add( entry );
+            }
+            out.write( entry, 0, entry.length );
+            previous = entry;
+            if ( table.size() + 1 == 1 << width && width < 12 ) {
+                width++;
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] append( byte[] bytes, byte b )
+    {
+        byte[] appended = Arrays.copyOf( bytes, bytes.length + 1 );
+        appended[bytes.length] = b;
+        return appended;
+    }
+
+    /**
+     * Undoes the floating point predictor: each row holds the first (most
+     *   significant) bytes of its values, then the second bytes and so on,
+     *   each stored as the difference from the byte before it
+     */
+    private static ByteBuffer undoPredictor( byte[] data, int width, int sample )
+    {
+        final int rowBytes = width * sample;
+        ByteBuffer values = ByteBuffer.allocate( data.length ).order( ByteOrder.BIG_ENDIAN );
+        for ( int start = 0; start < data.length; start += rowBytes ) {
+            for ( int i = 1; i < rowBytes; i++ ) {
+                data[start + i] += data[start + i - 1];
+            }
+            for ( int i = 0; i < width; i++ ) {
+                for ( int b = 0; b < sample; b++ ) {
+                    values.put( data[start + b * width + i] );
+                }
+            }
+        }
+        values.flip();
+        return values;
+    }
+
+    private static BufferedImage getImage( int dataType, int width, int height )
+    {
+        WritableRaster raster = Raster.createWritableRaster(
+            new BandedSampleModel( dataType, width, height, 1 ), null );
+        Random rng = new Random( 42 );
+        for ( int y = 0; y < height; y++ ) {
+            for ( int x = 0; x < width; x++ ) {
+                raster.setSample( x, y, 0, rng.nextDouble() * 100 );
+            }
+        }
+        ComponentColorModel colorModel = new ComponentColorModel( ColorSpace.getInstance( ColorSpace.CS_GRAY ),
+            false, false, Transparency.OPAQUE, dataType );
+        return new BufferedImage( colorModel, raster, false, null );
+    }
+}
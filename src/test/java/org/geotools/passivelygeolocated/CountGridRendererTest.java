@@ -0,0 +1,113 @@
+package org.geotools.passivelygeolocated;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import java.awt.image.BandedSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Checks that rendering through count grids gives the same surface as adding
+ *   a splat for every point
+ */
+public class CountGridRendererTest
+    extends TestCase
+{
+    private static final int WIDTH = 120;
+    private static final int HEIGHT = 90;
+
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public CountGridRendererTest( String testName )
+    {
+        super( testName );
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite()
+    {
+        return new TestSuite( CountGridRendererTest.class );
+    }
+
+    /**
+     * Per-kernel counts applied once per occupied origin
+     */
+    public void testCountsMatchSplats()
+    {
+        assertSameSurface( Boolean.FALSE );
+    }
+
+    /**
+     * Per-kernel counts convolved with an FFT
+     */
+    public void testConvolutionMatchesSplats()
+    {
+        assertSameSurface( Boolean.TRUE );
+    }
+
+    private void assertSameSurface( Boolean useFft )
+    {
+        List<PolygonJob> jobs = getJobs( new Random( 42 ) );
+        ForkJoinPool pool = new ForkJoinPool( 3 );
+        try {
+            WritableRaster expected = getRaster();
+            pool.invoke( new SplatTask( jobs, new RasterSurfaceBuffer( expected ), 0, HEIGHT, 7 ) );
+
+            WritableRaster actual = getRaster();
+            new CountGridRenderer( useFft ).render( jobs, new RasterSurfaceBuffer( actual ), pool, 7 );
+
+            for ( int y = 0; y < HEIGHT; y++ ) {
+                for ( int x = 0; x < WIDTH; x++ ) {
+                    double e = expected.getSampleDouble( x, y, 0 );
+                    assertEquals( "pixel " + x + ", " + y, e, actual.getSampleDouble( x, y, 0 ), 1e-9 * Math.max( 1, e ) );
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Builds polygons with a few different kernels and lots of points, some
+     *   sharing a location and some overlapping the edges of the surface
+     */
+    private static List<PolygonJob> getJobs( Random rng )
+    {
+        WeightedFuzzy wf = new WeightedFuzzy();
+        GeometryFactory gf = new GeometryFactory();
+        Geometry polygon = gf.createPoint( new Coordinate( 0, 0 ) ).buffer( 1 );
+        List<PolygonJob> jobs = new ArrayList<PolygonJob>();
+        int[] radii = { 1, 4, 1, 9, 4 };
+        for ( int r : radii ) {
+            Kernel kernel = wf.getKernel( r, 1 );
+            int n = 50 + rng.nextInt( 400 );
+            PolygonJob job = new PolygonJob( jobs.size(), polygon, 1, kernel, new double[n], new double[n] );
+            for ( int i = 0; i < n; i++ ) {
+                //clustered so that many points share an origin
+                job.patchX[i] = rng.nextInt( 12 ) * 11 - kernel.span / 2;
+                job.patchY[i] = rng.nextInt( 10 ) * 10 - kernel.span / 2;
+            }
+            jobs.add( job );
+        }
+        return jobs;
+    }
+
+    private static WritableRaster getRaster()
+    {
+        return Raster.createWritableRaster( new BandedSampleModel( DataBuffer.TYPE_DOUBLE, WIDTH, HEIGHT, 1 ), null );
+    }
+}
@@ -0,0 +1,212 @@
+package org.geotools.passivelygeolocated;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Checks that points are streamed from a CSV file in batches, and read
+ *   ahead of the thread that takes them
+ */
+public class CsvPointReaderTest
+    extends TestCase
+{
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public CsvPointReaderTest( String testName )
+    {
+        super( testName );
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite()
+    {
+        return new TestSuite( CsvPointReaderTest.class );
+    }
+
+    /**
+     * Reads a file with the coordinates in any columns, a few bad rows and
+     *   more points than fit in one batch
+     */
+    public void testReadsInBatches() throws IOException
+    {
+        File file = File.createTempFile( "points", ".csv" );
+        try {
+            FileWriter writer = new FileWriter( file );
+            writer.write( "id,northing,easting\n" );
+            for ( int i = 0; i < 10; i++ ) {
+                writer.write( i + "," + ( 1000 + i ) + "," + ( 2000.5 + i ) + "\n" );
+                if ( i == 3 ) {
+                    writer.write( "bad,,2000\n" );
+                    writer.write( "bad,abc,2000\n" );
+                }
+            }
+            writer.close();
+
+            CsvPointReader reader = new CsvPointReader( file, "easting", "northing" );
+            double[] x = new double[4];
+            double[] y = new double[4];
+            long[] ids = new long[4];
+            int total = 0;
+            int count;
+            try {
+                while ( ( count = reader.read( x, y, ids ) ) > 0 ) {
+                    for ( int i = 0; i < count; i++ ) {
+                        assertEquals( 2000.5 + total, x[i], 0 );
+                        assertEquals( 1000 + total, y[i], 0 );
+                        //ids are rows, so the skipped rows are not reused
+                        assertEquals( total > 3 ? total + 2 : total, ids[i] );
+                        total++;
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+            assertEquals( 10, total );
+            assertEquals( 12, reader.getRows() );
+            assertEquals( 2, reader.getSkipped() );
+        } finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * A missing coordinate column is reported when the file is opened
+     */
+    public void testMissingColumn() throws IOException
+    {
+        File file = File.createTempFile( "points", ".csv" );
+        try {
+            FileWriter writer = new FileWriter( file );
+            writer.write( "x,z\n1,2\n" );
+            writer.close();
+            try {
+                new CsvPointReader( file, "x", "y" );
+                fail( "expected the missing y column to be reported" );
+            } catch ( IllegalArgumentException e ) {
+                assertTrue( e.getMessage().endsWith( "no y column" ) );
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * Batches come in order whether they are read ahead or not, with up to
+     *   depth of them waiting
+     */
+    public void testPrefetch() throws IOException
+    {
+        for ( int depth = 0; depth <= 2; depth++ ) {
+            CsvPointReader reader = new CsvPointReader( getCsv( 10 ), "x", "y" );
+            BatchPrefetcher batches = new BatchPrefetcher( reader, 3, depth );
+            int total = 0;
+            try {
+                PointColumns batch;
+                while ( ( batch = batches.take() ) != null ) {
+                    assertEquals( total < 9 ? 3 : 1, batch.size() );
+                    for ( int i = 0; i < batch.size(); i++ ) {
+                        assertEquals( total, batch.getX( i ), 0 );
+                        assertEquals( total, batch.getId( i ) );
+                        total++;
+                    }
+                }
+                assertNull( batches.take() );
+            } finally {
+                batches.close();
+                reader.close();
+            }
+            assertEquals( 10, total );
+            assertEquals( 10, reader.getRows() );
+        }
+    }
+
+    /**
+     * A failure to read is thrown by take, after the batches read before it,
+     *   and closing early stops the reader
+     */
+    public void testPrefetchFailure() throws IOException
+    {
+        InputStream failing = new SequenceInputStream( getCsv( 5 ), new InputStream() {
+            @Override
+            public int read() throws IOException
+            {
+                throw new IOException( "disk gone" );
+            }
+        } );
+        CsvPointReader reader = new CsvPointReader( failing, "x", "y" );
+        BatchPrefetcher batches = new BatchPrefetcher( reader, 2, 1 );
+        try {
+            int total = 0;
+            try {
+                PointColumns batch;
+                while ( ( batch = batches.take() ) != null ) {
+                    total += batch.size();
+                }
+                fail( "the failure was not thrown" );
+            } catch ( IOException e ) {
+                assertEquals( "disk gone", e.getMessage() );
+            }
+            assertTrue( total <= 5 );
+        } finally {
+            batches.close();
+            reader.close();
+        }
+
+        //a reader blocked on a full queue
+        reader = new CsvPointReader( getCsv( 100 ), "x", "y" );
+        batches = new BatchPrefetcher( reader, 2, 1 );
+        assertEquals( 2, batches.take().size() );
+        batches.close();
+        reader.close();
+    }
+
+    /**
+     * An error on the reader thread (such as running out of memory) is
+     *   thrown by take rather than leaving it waiting for ever
+     */
+    public void testPrefetchError() throws IOException
+    {
+        PointReader reader = new PointReader() {
+            @Override
+            protected int readPoints( double[] x, double[] y, long[] ids, int capacity )
+            {
+                throw new OutOfMemoryError( "no room" );
+            }
+
+            @Override
+            public void close()
+            {
+            }
+        };
+        BatchPrefetcher batches = new BatchPrefetcher( reader, 2, 1 );
+        try {
+            batches.take();
+            fail( "the error was not thrown" );
+        } catch ( IOException e ) {
+            assertTrue( e.getCause() instanceof OutOfMemoryError );
+        } finally {
+            batches.close();
+        }
+    }
+
+    private static InputStream getCsv( int points ) throws IOException
+    {
+        StringBuilder csv = new StringBuilder( "x,y\n" );
+        for ( int i = 0; i < points; i++ ) {
+            csv.append( i ).append( ',' ).append( -i ).append( '\n' );
+        }
+        return new ByteArrayInputStream( csv.toString().getBytes( "UTF-8" ) );
+    }
+}
@@ -0,0 +1,161 @@
+package org.geotools.passivelygeolocated;
+
+import java.awt.image.BandedSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Checks the streaming ensemble statistics against those worked out from
+ *   every realisation
+ */
+public class EnsembleAccumulatorTest
+    extends TestCase
+{
+    private static final int WIDTH = 13;
+    private static final int HEIGHT = 9;
+
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public EnsembleAccumulatorTest( String testName )
+    {
+        super( testName );
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite()
+    {
+        return new TestSuite( EnsembleAccumulatorTest.class );
+    }
+
+    /**
+     * Enough realisations for the quantiles to be estimated
+     */
+    public void testManyRealisations()
+    {
+        assertMatches( 400, 0.06 );
+    }
+
+    /**
+     * With five realisations or fewer the quantiles are exact
+     */
+    public void testFewRealisations()
+    {
+        assertMatches( 3, 0 );
+    }
+
+    /**
+     * Ensembles whose arrays would overflow are refused before anything is allocated
+     */
+    public void testTooLarge()
+    {
+        try {
+            new EnsembleAccumulator( 40000, 20000, new double[] { 0.5 } );
+            fail( "5 markers for each of 8e8 pixels don't fit in an array" );
+        } catch ( IllegalArgumentException e ) {
+            assertTrue( e.getMessage(), e.getMessage().indexOf( "40000 x 20000" ) >= 0 );
+        }
+        try {
+            new EnsembleAccumulator( 100000, 100000, new double[0] );
+            fail( "1e10 pixels don't fit in an array" );
+        } catch ( IllegalArgumentException e ) {
+            //expected
+        }
+    }
+
+    /**
+     * Checks the mean and variance, and the quantiles against the exact ones
+     * @param quantileTolerance how far the estimated quantiles may be from
+     *   the exact ones, as a fraction of the realisations (0 for exact)
+     */
+    private void assertMatches( int realisations, double quantileTolerance )
+    {
+        Random rng = new Random( 42 );
+        double[][] values = new double[realisations][WIDTH * HEIGHT];
+        for ( int r = 0; r < realisations; r++ ) {
+            for ( int i = 0; i < WIDTH * HEIGHT; i++ ) {
+                //a skewed distribution, with a different scale in each pixel
+                values[r][i] = ( i + 1 ) * -Math.log( 1 - rng.nextDouble() );
+            }
+        }
+        EnsembleAccumulator accumulator = getAccumulator( values );
+        assertEquals( realisations, accumulator.getCount() );
+        double[] mean = accumulator.getMean();
+        double[] variance = accumulator.getVariance();
+        double[] qs = accumulator.getQuantiles();
+        double[][] estimates = new double[qs.length][];
+        for ( int q = 0; q < qs.length; q++ ) {
+            estimates[q] = accumulator.getQuantile( q );
+        }
+        for ( int i = 0; i < WIDTH * HEIGHT; i++ ) {
+            double[] pixel = getPixel( values, i );
+            double sum = 0;
+            for ( double v : pixel ) {
+                sum += v;
+            }
+            double m = sum / realisations;
+            double squares = 0;
+            for ( double v : pixel ) {
+                squares += ( v - m ) * ( v - m );
+            }
+            assertEquals( "pixel " + i, m, mean[i], 1e-9 * m );
+            assertEquals( "pixel " + i, squares / ( realisations - 1 ), variance[i], 1e-9 * squares );
+
+            //the estimates are held as floats
+            for ( int q = 0; q < qs.length; q++ ) {
+                double lower = getExact( pixel, Math.max( 0, qs[q] - quantileTolerance ) );
+                double upper = getExact( pixel, Math.min( 1, qs[q] + quantileTolerance ) );
+                assertTrue( "pixel " + i + " quantile " + qs[q],
+                    estimates[q][i] >= lower * ( 1 - 1e-6 ) && estimates[q][i] <= upper * ( 1 + 1e-6 ) );
+            }
+        }
+    }
+
+    private static EnsembleAccumulator getAccumulator( double[][] values )
+    {
+        EnsembleAccumulator accumulator = new EnsembleAccumulator( WIDTH, HEIGHT, new double[] { 0.1, 0.5, 0.9 } );
+        ForkJoinPool pool = new ForkJoinPool( 3 );
+        try {
+            WritableRaster raster = Raster.createWritableRaster(
+                new BandedSampleModel( DataBuffer.TYPE_DOUBLE, WIDTH, HEIGHT, 1 ), null );
+            RasterSurfaceBuffer surface = new RasterSurfaceBuffer( raster );
+            for ( double[] realisation : values ) {
+                surface.clear();
+                raster.setSamples( 0, 0, WIDTH, HEIGHT, 0, realisation );
+                accumulator.add( surface, pool );
+            }
+        } finally {
+            pool.shutdown();
+        }
+        return accumulator;
+    }
+
+    private static double[] getPixel( double[][] values, int i )
+    {
+        double[] pixel = new double[values.length];
+        for ( int r = 0; r < values.length; r++ ) {
+            pixel[r] = values[r][i];
+        }
+        Arrays.sort( pixel );
+        return pixel;
+    }
+
+    private static double getExact( double[] sorted, double q )
+    {
+        double rank = q * ( sorted.length - 1 );
+        int below = (int) Math.floor( rank );
+        int above = Math.min( below + 1, sorted.length - 1 );
+        return sorted[below] + ( rank - below ) * ( sorted[above] - sorted[below] );
+    }
+}
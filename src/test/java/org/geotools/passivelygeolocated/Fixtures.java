@@ -0,0 +1,109 @@
+package org.geotools.passivelygeolocated;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.geotools.coverage.grid.GridCoverage2D;
+import org.geotools.coverage.grid.GridCoverageFactory;
+import org.geotools.geometry.Envelope2D;
+import org.geotools.referencing.CRS;
+
+/**
+ * Inputs shared by the tests: weighting surfaces in the British National
+ *   Grid (EPSG:27700), circular polygons and CSV points around them
+ */
+final class Fixtures
+{
+    private Fixtures()
+    {
+    }
+
+    /**
+     * Random weights, with the bottom left at (1000, 2000)
+     *
+     * @param width the width in pixels
+     * @param height the height in pixels
+     * @param pixel the size of a pixel (m)
+     */
+    static GridCoverage2D getWeightingSurface( int width, int height, int pixel ) throws Exception
+    {
+        return getWeightingSurface( getWeights( width, height, 9 ), 1000, 2000, pixel );
+    }
+
+    /**
+     * @param weights the weights, by row from the top
+     * @param minX the x of the left of the surface
+     * @param minY the y of the bottom of the surface
+     * @param pixel the size of a pixel (m)
+     */
+    static GridCoverage2D getWeightingSurface( float[][] weights, double minX, double minY, double pixel )
+        throws Exception
+    {
+        Envelope2D envelope = new Envelope2D( CRS.decode( "EPSG:27700" ), minX, minY, weights[0].length * pixel,
+            weights.length * pixel );
+        return new GridCoverageFactory().create( "weights", weights, envelope );
+    }
+
+    /**
+     * @return weights drawn uniformly from [0, 1)
+     */
+    static float[][] getWeights( int width, int height, long seed )
+    {
+        float[][] weights = new float[height][width];
+        Random random = new Random( seed );
+        for ( int y = 0; y < height; y++ ) {
+            for ( int x = 0; x < width; x++ ) {
+                weights[y][x] = random.nextFloat();
+            }
+        }
+        return weights;
+    }
+
+    /**
+     * Circles of different sizes (so there are several kernels), which may overlap
+     *
+     * @param count the number of circles
+     * @param minX the left of the area their centres are in
+     * @param minY the bottom of that area
+     * @param width the width of that area
+     * @param height the height of that area
+     * @param minRadius
+     * @param maxRadius
+     */
+    static List<Geometry> getCircles( int count, double minX, double minY, double width, double height,
+        double minRadius, double maxRadius )
+    {
+        GeometryFactory factory = new GeometryFactory();
+        Random random = new Random( 5 );
+        List<Geometry> polygons = new ArrayList<Geometry>();
+        for ( int p = 0; p < count; p++ ) {
+            polygons.add( factory.createPoint( new Coordinate( minX + random.nextDouble() * width,
+                minY + random.nextDouble() * height ) ).buffer( minRadius
+                + random.nextDouble() * ( maxRadius - minRadius ) ) );
+        }
+        return polygons;
+    }
+
+    /**
+     * A CSV file (x and y columns) of points scattered around the centres of
+     *   polygons, one polygon after another in turn
+     *
+     * @param polygons
+     * @param count the number of points
+     * @param spread the standard deviation of their distance from the centre in x and y
+     */
+    static String getPoints( List<Geometry> polygons, int count, double spread )
+    {
+        StringBuilder csv = new StringBuilder( "x,y\n" );
+        Random random = new Random( 6 );
+        for ( int i = 0; i < count; i++ ) {
+            Coordinate centre = polygons.get( i % polygons.size() ).getCentroid().getCoordinate();
+            csv.append( centre.x + random.nextGaussian() * spread ).append( ',' )
+                .append( centre.y + random.nextGaussian() * spread ).append( '\n' );
+        }
+        return csv.toString();
+    }
+}
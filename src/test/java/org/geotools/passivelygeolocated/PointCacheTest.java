@@ -0,0 +1,194 @@
+package org.geotools.passivelygeolocated;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Checks that points written to a cache are read back in batches that
+ *   cross its blocks, and that a cache is only used while it is current
+ */
+public class PointCacheTest
+    extends TestCase
+{
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public PointCacheTest( String testName )
+    {
+        super( testName );
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite()
+    {
+        return new TestSuite( PointCacheTest.class );
+    }
+
+    /**
+     * Writes blocks of 3 points and reads them back 4 at a time
+     */
+    public void testReadsAcrossBlocks() throws IOException
+    {
+        File points = File.createTempFile( "points", ".csv" );
+        File cache = File.createTempFile( "points", PointCache.EXTENSION );
+        try {
+            //a reader that gives at most 3 points at a time, so each block holds 3
+            PointReader source = new PointReader() {
+                private int next = 0;
+
+                @Override
+                protected int readPoints( double[] x, double[] y, long[] ids, int capacity )
+                {
+                    int n = 0;
+                    while ( n < Math.min( capacity, 3 ) && this.next < 10 ) {
+                        x[n] = 2000.5 + this.next;
+                        y[n] = 1000 + this.next;
+                        ids[n] = 100 + this.next;
+                        n++;
+                        this.next++;
+                    }
+                    return n;
+                }
+
+                @Override
+                public void close()
+                {
+                }
+            };
+            assertEquals( 10, PointCache.write( cache, points, "key", source ) );
+
+            PointCache reader = new PointCache( cache );
+            double[] x = new double[4];
+            double[] y = new double[4];
+            long[] ids = new long[4];
+            int total = 0;
+            int count;
+            try {
+                assertEquals( 10, reader.size() );
+                assertNull( reader.getCoordinateReferenceSystem() );
+                while ( ( count = reader.read( x, y, ids ) ) > 0 ) {
+                    for ( int i = 0; i < count; i++ ) {
+                        assertEquals( 2000.5 + total, x[i], 0 );
+                        assertEquals( 1000 + total, y[i], 0 );
+                        assertEquals( 100 + total, ids[i] );
+                        total++;
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+            assertEquals( 10, total );
+            assertEquals( 10, reader.getRows() );
+        } finally {
+            points.delete();
+            cache.delete();
+        }
+    }
+
+    /**
+     * Writes the cache of a CSV file, then uses it until the file or how it
+     *   is read changes
+     */
+    public void testUpdate() throws Exception
+    {
+        File points = File.createTempFile( "points", ".csv" );
+        File directory = points.getParentFile();
+        File cache = PointCache.getCache( directory, points );
+        try {
+            FileWriter writer = new FileWriter( points );
+            writer.write( "x,y\n1,2\n3,4\nbad,\n" );
+            writer.close();
+            String[] xy = { "x", "y" };
+            assertEquals( cache, PointCache.update( directory, points, xy, null, null ) );
+            final long written = cache.lastModified();
+            final String key = points.getCanonicalPath() + "|x,y||";
+            assertTrue( PointCache.isCurrent( cache, points, key ) );
+            assertFalse( PointCache.isCurrent( cache, points, points.getCanonicalPath() + "|y,x||" ) );
+
+            //current, so it is not written again
+            PointCache.update( directory, points, xy, null, null );
+            assertEquals( written, cache.lastModified() );
+
+            writer = new FileWriter( points, true );
+            writer.write( "5,6\n" );
+            writer.close();
+            assertFalse( PointCache.isCurrent( cache, points, key ) );
+            PointCache.update( directory, points, xy, null, null );
+            PointCache reader = new PointCache( cache );
+            try {
+                assertEquals( 3, reader.size() );
+                double[] x = new double[8];
+                double[] y = new double[8];
+                assertEquals( 3, reader.read( x, y ) );
+                assertEquals( 5, x[2], 0 );
+                assertEquals( 6, y[2], 0 );
+                assertEquals( 0, reader.read( x, y ) );
+
+                //the row without coordinates is counted once all of the points have been read
+                assertEquals( 4, reader.getRows() );
+                assertEquals( 1, reader.getSkipped() );
+            } finally {
+                reader.close();
+            }
+        } finally {
+            points.delete();
+            cache.delete();
+        }
+    }
+
+    /**
+     * Checks that a cache is named after the path of its points file, and
+     *   that a change to any file of a shapefile makes it out of date
+     */
+    public void testShapefileState() throws Exception
+    {
+        File directory = Files.createTempDirectory( "points" ).toFile();
+        File other = Files.createTempDirectory( "points" ).toFile();
+        File points = new File( directory, "points.shp" );
+        try {
+            assertFalse( PointCache.getCache( directory, points ).equals(
+                PointCache.getCache( directory, new File( other, "points.shp" ) ) ) );
+            assertEquals( PointCache.getCache( directory, points ),
+                PointCache.getCache( directory, new File( other, "../" + directory.getName() + "/points.shp" ) ) );
+
+            write( points, "shapes" );
+            write( new File( directory, "points.dbf" ), "attributes" );
+            String state = PointCache.getState( points );
+            assertEquals( state, PointCache.getState( points ) );
+
+            //a .prj added, then changed
+            write( new File( directory, "points.prj" ), "GEOGCS[]" );
+            String withPrj = PointCache.getState( points );
+            assertFalse( state.equals( withPrj ) );
+            write( new File( directory, "points.prj" ), "PROJCS[1]" );
+            assertFalse( withPrj.equals( PointCache.getState( points ) ) );
+
+            //(but not a file of another shapefile)
+            withPrj = PointCache.getState( points );
+            write( new File( directory, "other.dbf" ), "attributes" );
+            assertEquals( withPrj, PointCache.getState( points ) );
+        } finally {
+            for ( File file : directory.listFiles() ) {
+                file.delete();
+            }
+            directory.delete();
+            other.delete();
+        }
+    }
+
+    private static void write( File file, String text ) throws IOException
+    {
+        FileWriter writer = new FileWriter( file );
+        writer.write( text );
+        writer.close();
+    }
+}
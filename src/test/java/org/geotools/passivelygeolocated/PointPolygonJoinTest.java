@@ -0,0 +1,92 @@
+package org.geotools.passivelygeolocated;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Checks that every point is assigned to exactly one polygon, and that it
+ *   is the one a test against every polygon in turn would give
+ */
+public class PointPolygonJoinTest
+    extends TestCase
+{
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public PointPolygonJoinTest( String testName )
+    {
+        super( testName );
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite()
+    {
+        return new TestSuite( PointPolygonJoinTest.class );
+    }
+
+    /**
+     * Points on shared edges and corners go to the first polygon, and points
+     *   outside every polygon (or in a hole) go to none
+     */
+    public void testBoundaries()
+    {
+        GeometryFactory factory = new GeometryFactory();
+        List<Geometry> polygons = new ArrayList<Geometry>();
+        polygons.add( factory.toGeometry( new Envelope( 10, 20, 0, 10 ) ) );
+        polygons.add( factory.toGeometry( new Envelope( 0, 10, 0, 10 ) ) );
+        polygons.add( null );
+        polygons.add( factory.toGeometry( new Envelope( 0, 20, 10, 20 ) )
+            .difference( factory.toGeometry( new Envelope( 5, 8, 12, 15 ) ) ) );
+        PointPolygonJoin join = new PointPolygonJoin( polygons, factory );
+        assertEquals( 4, join.size() );
+
+        assertEquals( 1, join.find( 5, 5 ) );
+        assertEquals( 0, join.find( 15, 5 ) );
+        assertEquals( 0, join.find( 10, 5 ) );
+        assertEquals( 0, join.find( 10, 10 ) );
+        assertEquals( 1, join.find( 5, 10 ) );
+        assertEquals( 3, join.find( 2, 18 ) );
+        assertEquals( 3, join.find( 5, 12 ) );
+        assertEquals( -1, join.find( 6, 13 ) );
+        assertEquals( -1, join.find( 25, 5 ) );
+        assertEquals( -1, join.find( 5, -0.001 ) );
+    }
+
+    /**
+     * Random points in overlapping circles
+     */
+    public void testMatchesLinearScan()
+    {
+        GeometryFactory factory = new GeometryFactory();
+        Random rng = new Random( 42 );
+        List<Geometry> polygons = new ArrayList<Geometry>();
+        for ( int i = 0; i < 40; i++ ) {
+            polygons.add( factory.createPoint( new Coordinate( rng.nextDouble() * 100, rng.nextDouble() * 100 ) )
+                .buffer( 2 + rng.nextDouble() * 10 ) );
+        }
+        PointPolygonJoin join = new PointPolygonJoin( polygons, factory );
+        for ( int i = 0; i < 2000; i++ ) {
+            double x = rng.nextDouble() * 110 - 5;
+            double y = rng.nextDouble() * 110 - 5;
+            int expected = -1;
+            for ( int p = 0; p < polygons.size() && expected < 0; p++ ) {
+                if ( polygons.get( p ).covers( factory.createPoint( new Coordinate( x, y ) ) ) ) {
+                    expected = p;
+                }
+            }
+            assertEquals( x + "," + y, expected, join.find( x, y ) );
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package org.geotools.passivelygeolocated;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.LinearRing;
+import java.util.SplittableRandom;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Checks that candidates are drawn from the same distribution as the
+ *   original rejection loop, stay within awkward polygons, are drawn
+ *   uniformly when out of reach, and are given up on for polygons with no area
+ */
+public class PolygonSamplerTest
+    extends TestCase
+{
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public PolygonSamplerTest( String testName )
+    {
+        super( testName );
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite()
+    {
+        return new TestSuite( PolygonSamplerTest.class );
+    }
+
+    /**
+     * Radial candidates (the default) are the ones the original loop draws
+     *   from the same random numbers: a uniform distance and bearing from the
+     *   point, drawn again until within the polygon
+     */
+    public void testRadialMatchesRejectionLoop()
+    {
+        assertEquals( CandidateDistribution.RADIAL, new WeightedFuzzy().getCandidateDistribution() );
+
+        GeometryFactory factory = new GeometryFactory();
+        Geometry polygon = getConcave( factory );
+        WeightedFuzzy wf = new WeightedFuzzy();
+        double radius = wf.getBoundingRadius( polygon );
+        PolygonSampler candidates = new PolygonSampler( polygon, factory );
+        double[] candidate = new double[2];
+        for ( int p = 0; p < 50; p++ ) {
+            SplittableRandom rng = new SplittableRandom( p );
+            SplittableRandom loop = new SplittableRandom( p );
+            double x = 10 + p % 7 * 3;
+            double y = 5 + p % 5;
+            for ( int i = 0; i < 20; i++ ) {
+                assertTrue( candidates.next( rng, x, y, radius, candidate ) );
+                double cx;
+                double cy;
+                do {
+                    double distance = loop.nextDouble() * radius;
+                    double azimuth = loop.nextDouble() * 2 * Math.PI;
+                    cx = x + Math.sin( azimuth ) * distance;
+                    cy = y + Math.cos( azimuth ) * distance;
+                } while ( !polygon.covers( factory.createPoint( new Coordinate( cx, cy ) ) ) );
+                assertEquals( cx, candidate[0], 0 );
+                assertEquals( cy, candidate[1], 0 );
+            }
+        }
+        assertTrue( candidates.getRejections() > 0 );
+        assertTrue( candidates.getGeometryTests() < candidates.getCandidates() + candidates.getRejections() );
+    }
+
+    /**
+     * Radial candidates are denser nearer the point: with the whole circle in
+     *   the polygon, half are within half the radius (a quarter would be if
+     *   they were uniform), and wherever the polygon is the relocated
+     *   weighting follows 1/r
+     */
+    public void testRadialDensity()
+    {
+        GeometryFactory factory = new GeometryFactory();
+        Geometry polygon = factory.createPoint( new Coordinate( 0, 0 ) ).buffer( 100, 32 );
+        PolygonSampler candidates = new PolygonSampler( polygon, factory );
+        SplittableRandom rng = new SplittableRandom( 7 );
+        double[] candidate = new double[2];
+        int near = 0;
+        int uniformNear = 0;
+        final int draws = 20000;
+        for ( int i = 0; i < draws; i++ ) {
+            assertTrue( candidates.next( rng, 0, 0, 50, candidate ) );
+            if ( Math.hypot( candidate[0], candidate[1] ) < 25 ) {
+                near++;
+            }
+            assertTrue( candidates.next( rng, candidate ) );
+            if ( Math.hypot( candidate[0], candidate[1] ) < 50 ) {
+                uniformNear++;
+            }
+        }
+        assertEquals( 0.5, near / (double) draws, 0.02 );
+        assertEquals( 0.25, uniformNear / (double) draws, 0.02 );
+    }
+
+    /**
+     * Both kinds of candidate stay within a concave polygon with a hole, and
+     *   a long thin diagonal one
+     */
+    public void testStaysInside()
+    {
+        GeometryFactory factory = new GeometryFactory();
+        Geometry thin = factory.createPolygon( factory.createLinearRing( new Coordinate[] {
+                new Coordinate( 0, 0 ), new Coordinate( 1000, 999 ), new Coordinate( 1000, 1000.5 ),
+                new Coordinate( -0.5, 0.5 ), new Coordinate( 0, 0 ) } ), null );
+        for ( Geometry polygon : new Geometry[] { getConcave( factory ), thin } ) {
+            PolygonSampler candidates = new PolygonSampler( polygon, factory );
+            double radius = new WeightedFuzzy().getBoundingRadius( polygon );
+            Coordinate start = polygon.getInteriorPoint().getCoordinate();
+            SplittableRandom rng = new SplittableRandom( 3 );
+            double[] candidate = new double[2];
+            for ( int i = 0; i < 5000; i++ ) {
+                assertTrue( candidates.next( rng, candidate ) );
+                assertTrue( polygon.covers( factory.createPoint( new Coordinate( candidate[0], candidate[1] ) ) ) );
+                if ( candidates.next( rng, start.x, start.y, radius, candidate ) ) {
+                    assertTrue( polygon.covers( factory.createPoint( new Coordinate( candidate[0], candidate[1] ) ) ) );
+                }
+            }
+        }
+    }
+
+    /**
+     * Polygons with no area have nothing to draw from, so the point is left
+     *   where it was rather than looping for ever
+     */
+    public void testDegenerate()
+    {
+        GeometryFactory factory = new GeometryFactory();
+        Geometry line = factory.createPolygon( factory.createLinearRing( new Coordinate[] {
+                new Coordinate( 0, 0 ), new Coordinate( 10, 10 ), new Coordinate( 20, 20 ),
+                new Coordinate( 0, 0 ) } ), null );
+        SplittableRandom rng = new SplittableRandom( 1 );
+        double[] candidate = new double[2];
+        for ( Geometry polygon : new Geometry[] { line, factory.createPolygon( null, null ) } ) {
+            PolygonSampler candidates = new PolygonSampler( polygon, factory );
+            assertFalse( candidates.next( rng, candidate ) );
+            assertFalse( candidates.next( rng, 5, 5, 10, candidate ) );
+            assertEquals( 0, candidates.getCandidates() );
+            assertEquals( 2, candidates.getExhausted() );
+        }
+    }
+
+    /**
+     * @return a U shape with a hole in its base
+     */
+    /**
+     * A radial candidate around a point far from the polygon is drawn
+     *   uniformly over the polygon rather than given up on, and counted
+     */
+    public void testOutOfReach()
+    {
+        GeometryFactory factory = new GeometryFactory();
+        Geometry polygon = factory.toGeometry( new Envelope( 1000, 1010, 0, 10 ) );
+        PolygonSampler candidates = new PolygonSampler( polygon, factory );
+        SplittableRandom rng = new SplittableRandom( 5 );
+        double[] candidate = new double[2];
+        for ( int i = 0; i < 10; i++ ) {
+            assertTrue( candidates.next( rng, 0, 0, 50, candidate ) );
+            assertTrue( polygon.covers( factory.createPoint( new Coordinate( candidate[0], candidate[1] ) ) ) );
+        }
+        assertEquals( 10, candidates.getFallbacks() );
+        assertEquals( 10, candidates.getCandidates() );
+        assertEquals( 0, candidates.getExhausted() );
+    }
+
+    private static Geometry getConcave( GeometryFactory factory )
+    {
+        return factory.createPolygon( factory.createLinearRing( new Coordinate[] {
+                new Coordinate( 0, 0 ), new Coordinate( 40, 0 ), new Coordinate( 40, 40 ),
+                new Coordinate( 30, 40 ), new Coordinate( 30, 10 ), new Coordinate( 10, 10 ),
+                new Coordinate( 10, 40 ), new Coordinate( 0, 40 ), new Coordinate( 0, 0 ) } ),
+                new LinearRing[] { factory.createLinearRing( new Coordinate[] {
+                        new Coordinate( 18, 3 ), new Coordinate( 22, 3 ), new Coordinate( 22, 7 ),
+                        new Coordinate( 18, 7 ), new Coordinate( 18, 3 ) } ) } );
+    }
+}
@@ -0,0 +1,112 @@
+package org.geotools.passivelygeolocated;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.Point;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import org.geotools.coverage.grid.GridCoverage2D;
+
+/**
+ * Checks that relocating on the fork-join pool gives the same patches as
+ *   relocating every point in turn on one thread
+ */
+public class RelocationTaskTest
+    extends TestCase
+{
+    private static final int WIDTH = 40;
+    private static final int HEIGHT = 30;
+    private static final int PIXEL = 10;
+
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public RelocationTaskTest( String testName )
+    {
+        super( testName );
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite()
+    {
+        return new TestSuite( RelocationTaskTest.class );
+    }
+
+    /**
+     * Polygons with more points than a task relocates at once, so that both
+     *   the polygons and their points are split between workers
+     */
+    public void testMatchesSerial() throws Exception
+    {
+        WeightedFuzzy wf = new WeightedFuzzy();
+        WeightingSampler sampler = new WeightingSampler( getWeightingSurface() );
+        RandomStreams streams = new RandomStreams( 42 );
+        List<PolygonJob> jobs = getJobs( wf, new int[] { 600, 5, 300, 1 } );
+
+        ForkJoinPool pool = new ForkJoinPool( 4 );
+        try {
+            pool.invoke( new RelocationTask( wf, jobs, sampler, streams, 10, PIXEL ) );
+        } finally {
+            pool.shutdown();
+        }
+
+        GeometryFactory factory = new GeometryFactory();
+        int[] topLeft = new int[2];
+        for ( PolygonJob job : jobs ) {
+            assertEquals( job.size(), job.getRelocated() );
+            for ( int i = 0; i < job.size(); i++ ) {
+                Point point = factory.createPoint( new Coordinate( job.x[i], job.y[i] ) );
+                Point relocated = wf.relocate( point, job, 10, sampler, streams.forPoint( job.index, job.getId( i ) ) );
+                wf.getPatchOrigin( relocated.getX(), relocated.getY(), job.kernel.span, PIXEL, sampler, topLeft );
+                assertEquals( "polygon " + job.index + " point " + i, topLeft[0], job.patchX[i] );
+                assertEquals( "polygon " + job.index + " point " + i, topLeft[1], job.patchY[i] );
+            }
+        }
+    }
+
+    /**
+     * Squares spread over the surface, each with the given number of points
+     */
+    private static List<PolygonJob> getJobs( WeightedFuzzy wf, int[] counts )
+    {
+        Random rng = new Random( 7 );
+        GeometryFactory factory = new GeometryFactory();
+        List<PolygonJob> jobs = new ArrayList<PolygonJob>();
+        for ( int p = 0; p < counts.length; p++ ) {
+            double minX = 1000 + p * 90;
+            double minY = 2000 - 250;
+            Geometry square = factory.toGeometry( new Envelope( minX, minX + 80, minY, minY + 80 ) );
+            double[] x = new double[counts[p]];
+            double[] y = new double[counts[p]];
+            long[] ids = new long[counts[p]];
+            for ( int i = 0; i < x.length; i++ ) {
+                x[i] = minX + rng.nextDouble() * 80;
+                y[i] = minY + rng.nextDouble() * 80;
+                ids[i] = 1000 * p + i;
+            }
+            jobs.add( new PolygonJob( p, square, wf.getBoundingRadius( square ), wf.getKernel( 15, PIXEL ), x, y,
+                ids ) );
+        }
+        return jobs;
+    }
+
+    /**
+     * Random weights, with 10m pixels and the top left at (1000, 2000)
+     */
+    private static GridCoverage2D getWeightingSurface() throws Exception
+    {
+        return Fixtures.getWeightingSurface( Fixtures.getWeights( WIDTH, HEIGHT, 42 ), 1000, 2000 - HEIGHT * PIXEL,
+            PIXEL );
+    }
+}
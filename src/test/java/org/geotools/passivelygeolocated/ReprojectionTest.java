@@ -0,0 +1,162 @@
+package org.geotools.passivelygeolocated;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.util.Arrays;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import org.geotools.coverage.grid.GridCoverage2D;
+import org.geotools.referencing.CRS;
+
+/**
+ * Checks that points in longitude and latitude (EPSG:4326) read from a CSV
+ *   file or a shapefile end up where they should in a British National Grid
+ *   (EPSG:27700) weighting surface, datum shift included
+ */
+public class ReprojectionTest
+    extends TestCase
+{
+    //a point in WGS84, and where it is in the National Grid (worked out with the OSGB36 Helmert transformation
+    //  and the National Grid projection, rather than with GeoTools)
+    private static final double LON = -2;
+    private static final double LAT = 53;
+    private static final double EASTING = 400097.2;
+    private static final double NORTHING = 344742.1;
+
+    //a Helmert transformation is good to a few metres (without the datum shift the point is about 100m out)
+    private static final double TOLERANCE = 10;
+
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public ReprojectionTest( String testName )
+    {
+        super( testName );
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite()
+    {
+        return new TestSuite( ReprojectionTest.class );
+    }
+
+    public void testCsv() throws Exception
+    {
+        CsvPointReader points = new CsvPointReader( new ByteArrayInputStream(
+            ( "lon,lat\n" + LON + "," + LAT + "\n" ).getBytes( "UTF-8" ) ), "lon", "lat" );
+        try {
+            points.setCoordinateReferenceSystem( CRS.decode( "EPSG:4326", true ) );
+            PointColumns columns = new WeightedFuzzy().getPoints( points, getWeightingSurface() );
+            assertEquals( 1, columns.size() );
+            assertEquals( EASTING, columns.getX( 0 ), TOLERANCE );
+            assertEquals( NORTHING, columns.getY( 0 ), TOLERANCE );
+        } finally {
+            points.close();
+        }
+    }
+
+    public void testShapefile() throws Exception
+    {
+        File directory = Files.createTempDirectory( "points" ).toFile();
+        File file = new File( directory, "points.shp" );
+        try {
+            writePoint( file, LON, LAT );
+            PointColumns columns = new WeightedFuzzy().getPoints( FileHandler.openShapefile( file ),
+                getWeightingSurface() );
+            assertEquals( 1, columns.size() );
+            assertEquals( EASTING, columns.getX( 0 ), TOLERANCE );
+            assertEquals( NORTHING, columns.getY( 0 ), TOLERANCE );
+        } finally {
+            for ( File f : directory.listFiles() ) {
+                f.delete();
+            }
+            directory.delete();
+        }
+    }
+
+    /**
+     * A weighting surface in the National Grid around the point
+     */
+    private static GridCoverage2D getWeightingSurface() throws Exception
+    {
+        float[][] weights = new float[10][10];
+        for ( float[] row : weights ) {
+            Arrays.fill( row, 1 );
+        }
+        return Fixtures.getWeightingSurface( weights, 399500, 344200, 100 );
+    }
+
+    /**
+     * Writes a shapefile (with its index, attributes and a WGS84 .prj) holding one point
+     */
+    private static void writePoint( File shp, double x, double y ) throws IOException
+    {
+        String base = shp.getPath().substring( 0, shp.getPath().length() - 4 );
+
+        //the geometry, and the index of the one record in it
+        ByteBuffer shape = getHeader( 100 + 28, x, y );
+        shape.order( ByteOrder.BIG_ENDIAN ).putInt( 1 ).putInt( 10 );
+        shape.order( ByteOrder.LITTLE_ENDIAN ).putInt( 1 ).putDouble( x ).putDouble( y );
+        write( new File( base + ".shp" ), shape.array() );
+        ByteBuffer index = getHeader( 100 + 8, x, y );
+        index.order( ByteOrder.BIG_ENDIAN ).putInt( 50 ).putInt( 10 );
+        write( new File( base + ".shx" ), index.array() );
+
+        //an id attribute (a 10 digit number)
+        ByteBuffer dbf = ByteBuffer.allocate( 32 + 32 + 1 + 11 + 1 ).order( ByteOrder.LITTLE_ENDIAN );
+        dbf.put( (byte) 3 ).put( (byte) 112 ).put( (byte) 1 ).put( (byte) 1 );
+        dbf.putInt( 1 ).putShort( (short) ( 32 + 32 + 1 ) ).putShort( (short) 11 );
+        dbf.position( 32 );
+        dbf.put( "id".getBytes( "US-ASCII" ) );
+        dbf.position( 32 + 11 );
+        dbf.put( (byte) 'N' );
+        dbf.position( 32 + 16 );
+        dbf.put( (byte) 10 ).put( (byte) 0 );
+        dbf.position( 64 );
+        dbf.put( (byte) 0x0d );
+        dbf.put( "          1".getBytes( "US-ASCII" ) );
+        dbf.put( (byte) 0x1a );
+        write( new File( base + ".dbf" ), dbf.array() );
+
+        write( new File( base + ".prj" ), ( "GEOGCS[\"WGS 84\",DATUM[\"WGS_1984\","
+            + "SPHEROID[\"WGS 84\",6378137,298.257223563],AUTHORITY[\"EPSG\",\"6326\"]],"
+            + "PRIMEM[\"Greenwich\",0],UNIT[\"degree\",0.0174532925199433],AUTHORITY[\"EPSG\",\"4326\"]]" )
+            .getBytes( "US-ASCII" ) );
+    }
+
+    /**
+     * The 100 byte header shared by the .shp and .shx files of points
+     */
+    private static ByteBuffer getHeader( int length, double x, double y )
+    {
+        ByteBuffer header = ByteBuffer.allocate( length );
+        header.order( ByteOrder.BIG_ENDIAN ).putInt( 9994 );
+        header.position( 24 );
+        header.putInt( length / 2 );
+        header.order( ByteOrder.LITTLE_ENDIAN ).putInt( 1000 ).putInt( 1 );
+        header.putDouble( x ).putDouble( y ).putDouble( x ).putDouble( y );
+        header.position( 100 );
+        return header;
+    }
+
+    private static void write( File file, byte[] bytes ) throws IOException
+    {
+        OutputStream out = new FileOutputStream( file );
+        try {
+            out.write( bytes );
+        } finally {
+            out.close();
+        }
+    }
+}
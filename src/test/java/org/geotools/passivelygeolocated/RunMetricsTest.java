@@ -0,0 +1,242 @@
+package org.geotools.passivelygeolocated;
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Checks the JSON report of a small run: that it parses, and that the
+ *   stages, counters and slowest polygons add up
+ */
+public class RunMetricsTest
+    extends TestCase
+{
+    private static final int WIDTH = 40;
+    private static final int HEIGHT = 30;
+    private static final int PIXEL = 10;
+    private static final int N = 5;
+
+    //the points in each polygon, and those outside every polygon
+    private static final int POLYGONS = 12;
+    private static final int UNASSIGNED = 7;
+
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public RunMetricsTest( String testName )
+    {
+        super( testName );
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite()
+    {
+        return new TestSuite( RunMetricsTest.class );
+    }
+
+    /**
+     * Twelve polygons (so only the slowest ten are listed) and some points
+     *   outside all of them
+     */
+    @SuppressWarnings( "unchecked" )
+    public void testJson() throws Exception
+    {
+        WeightedFuzzy wf = new WeightedFuzzy();
+        wf.setSeed( 1L );
+        wf.setThreads( 2 );
+
+        //a 4 x 3 grid of squares, with 3 + 2p points in square p, and some points in the gaps between them
+        GeometryFactory factory = new GeometryFactory();
+        List<Geometry> polygons = new ArrayList<Geometry>();
+        StringBuilder csv = new StringBuilder( "x,y\n" );
+        Random random = new Random( 3 );
+        int assigned = 0;
+        for ( int p = 0; p < POLYGONS; p++ ) {
+            double minX = 1000 + p % 4 * 100 + 10;
+            double minY = 2000 + p / 4 * 100 + 10;
+            polygons.add( factory.toGeometry( new Envelope( minX, minX + 80, minY, minY + 80 ) ) );
+            for ( int i = 0; i < getPoints( p ); i++ ) {
+                csv.append( minX + 1 + random.nextDouble() * 78 ).append( ',' )
+                    .append( minY + 1 + random.nextDouble() * 78 ).append( '\n' );
+                assigned++;
+            }
+        }
+        for ( int i = 0; i < UNASSIGNED; i++ ) {
+            csv.append( 1005 + i * 50 ).append( ',' ).append( 2005 ).append( '\n' );
+        }
+        PointReader points = new CsvPointReader( new ByteArrayInputStream( csv.toString().getBytes( "UTF-8" ) ),
+            "x", "y" );
+        try {
+            wf.getSurface( points, polygons, null, Fixtures.getWeightingSurface( WIDTH, HEIGHT, PIXEL ), N, 0.1 );
+        } finally {
+            points.close();
+        }
+
+        Map<String, Object> json = (Map<String, Object>) new JsonParser( wf.getMetrics().toJson() ).parse();
+
+        //every stage, in order, with the points through each
+        Map<String, Object> stages = (Map<String, Object>) json.get( "stages" );
+        assertEquals( "[ingest, join, relocate, render, write]", stages.keySet().toString() );
+        for ( Object stage : stages.values() ) {
+            Map<String, Object> s = (Map<String, Object>) stage;
+            assertTrue( getNumber( s, "seconds" ) >= 0 );
+            assertTrue( getNumber( s, "perSecond" ) >= 0 );
+        }
+        assertEquals( assigned + UNASSIGNED, getNumber( (Map<String, Object>) stages.get( "join" ), "items" ), 0 );
+        assertEquals( assigned, getNumber( (Map<String, Object>) stages.get( "relocate" ), "items" ), 0 );
+        assertEquals( assigned, getNumber( (Map<String, Object>) stages.get( "render" ), "items" ), 0 );
+
+        //the counters
+        assertEquals( assigned + UNASSIGNED, getNumber( json, "points" ), 0 );
+        assertEquals( UNASSIGNED, getNumber( json, "unassignedPoints" ), 0 );
+        assertEquals( POLYGONS, getNumber( json, "polygons" ), 0 );
+        assertEquals( 0, getNumber( json, "rasterMisses" ), 0 );
+        Map<String, Object> candidates = (Map<String, Object>) json.get( "candidates" );
+        assertEquals( (double) assigned * N, getNumber( candidates, "accepted" ), 0 );
+        assertEquals( getNumber( candidates, "accepted" ) + getNumber( candidates, "rejected" ),
+            getNumber( candidates, "drawn" ), 0 );
+
+        //the ten slowest polygons, slowest first, each with its own points and candidates
+        List<Object> slowest = (List<Object>) json.get( "slowestPolygons" );
+        assertEquals( RunMetrics.OUTLIERS, slowest.size() );
+        Set<Integer> seen = new HashSet<Integer>();
+        double last = Double.POSITIVE_INFINITY;
+        for ( Object record : slowest ) {
+            Map<String, Object> r = (Map<String, Object>) record;
+            int polygon = (int) getNumber( r, "polygon" );
+            assertTrue( seen.add( polygon ) );
+            assertEquals( getPoints( polygon ), getNumber( r, "points" ), 0 );
+            assertEquals( getPoints( polygon ) * N, getNumber( r, "candidates" ), 0 );
+            assertTrue( getNumber( r, "seconds" ) <= last );
+            last = getNumber( r, "seconds" );
+        }
+    }
+
+    private static int getPoints( int polygon )
+    {
+        return 3 + 2 * polygon;
+    }
+
+    private static double getNumber( Map<String, Object> object, String key )
+    {
+        assertTrue( key, object.containsKey( key ) );
+        return ( (Double) object.get( key ) ).doubleValue();
+    }
+
+    /**
+     * Just enough of a JSON parser for the report: objects (in order),
+     *   arrays, strings without escapes and numbers
+     */
+    private static class JsonParser
+    {
+        private final String text;
+        private int at = 0;
+
+        JsonParser( String text )
+        {
+            this.text = text;
+        }
+
+        Object parse()
+        {
+            Object value = this.value();
+            this.skip();
+            assertEquals( "trailing text", this.text.length(), this.at );
+            return value;
+        }
+
+        private Object value()
+        {
+            this.skip();
+            char c = this.text.charAt( this.at );
+            if ( c == '{' ) {
+                Map<String, Object> object = new LinkedHashMap<String, Object>();
+                this.at++;
+                this.skip();
+                if ( this.text.charAt( this.at ) == '}' ) {
+                    this.at++;
+                    return object;
+                }
+                do {
+                    this.skip();
+                    String key = this.string();
+                    this.expect( ':' );
+                    assertNull( "duplicate key " + key, object.put( key, this.value() ) );
+                } while ( this.next( ',', '}' ) );
+                return object;
+            }
+            if ( c == '[' ) {
+                List<Object> array = new ArrayList<Object>();
+                this.at++;
+                this.skip();
+                if ( this.text.charAt( this.at ) == ']' ) {
+                    this.at++;
+                    return array;
+                }
+                do {
+                    array.add( this.value() );
+                } while ( this.next( ',', ']' ) );
+                return array;
+            }
+            if ( c == '"' ) {
+                return this.string();
+            }
+            int start = this.at;
+            while ( this.at < this.text.length() && "+-.0123456789eE".indexOf( this.text.charAt( this.at ) ) >= 0 ) {
+                this.at++;
+            }
+            return Double.valueOf( this.text.substring( start, this.at ) );
+        }
+
+        private String string()
+        {
+            this.expect( '"' );
+            int end = this.text.indexOf( '"', this.at );
+            String s = this.text.substring( this.at, end );
+            assertEquals( -1, s.indexOf( '\\' ) );
+            this.at = end + 1;
+            return s;
+        }
+
+        /**
+         * @return true if the next character is the separator, false if it is the end
+         */
+        private boolean next( char separator, char end )
+        {
+            this.skip();
+            char c = this.text.charAt( this.at++ );
+            if ( c != separator && c != end ) {
+                fail( "expected " + separator + " or " + end + " at " + ( this.at - 1 ) );
+            }
+            return c == separator;
+        }
+
+        private void expect( char c )
+        {
+            this.skip();
+            assertEquals( "at " + this.at, c, this.text.charAt( this.at++ ) );
+        }
+
+        private void skip()
+        {
+            while ( this.at < this.text.length() && Character.isWhitespace( this.text.charAt( this.at ) ) ) {
+                this.at++;
+            }
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package org.geotools.passivelygeolocated;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import java.awt.Rectangle;
+import java.awt.image.BandedSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Checks that shards cover the splats of their polygons, and that shards
+ *   built in several worker JVMs are summed into the output surface
+ */
+public class ShardRunnerTest
+    extends TestCase
+{
+    private static final int WIDTH = 60;
+    private static final int HEIGHT = 40;
+
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public ShardRunnerTest( String testName )
+    {
+        super( testName );
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite()
+    {
+        return new TestSuite( ShardRunnerTest.class );
+    }
+
+    public void testWindowsHoldTheSplats()
+    {
+        //squares of various sizes on a surface with 10m pixels, whose top left is at (1000, 2000)
+        Random rng = new Random( 42 );
+        GeometryFactory factory = new GeometryFactory();
+        List<Geometry> polygons = new ArrayList<Geometry>();
+        for ( int i = 0; i < 50; i++ ) {
+            double x = 1000 + rng.nextDouble() * WIDTH * 10;
+            double y = 2000 - rng.nextDouble() * HEIGHT * 10;
+            polygons.add( factory.createPoint( new Coordinate( x, y ) ).buffer( 5 + rng.nextDouble() * 40 ) );
+        }
+        final double fuzziness = 0.3;
+        ShardPlan plan = new ShardPlan( polygons, 1000, 2000, WIDTH, HEIGHT, 10, 3, 2, fuzziness );
+        assertEquals( 6, plan.getShardCount() );
+
+        WeightedFuzzy wf = new WeightedFuzzy();
+        Rectangle surface = new Rectangle( 0, 0, WIDTH, HEIGHT );
+        for ( int p = 0; p < polygons.size(); p++ ) {
+            int shard = plan.getShard( p );
+            assertTrue( plan.getPolygons( shard )[p] );
+
+            //every pixel a splat centred in the polygon can touch is in the window of its shard
+            Geometry polygon = polygons.get( p );
+            Kernel kernel = wf.getKernel( Math.sqrt( polygon.getArea() * fuzziness / Math.PI ), 10 );
+            Envelope e = polygon.getEnvelopeInternal();
+            int half = kernel.span / 2 + 1;
+            Rectangle reach = new Rectangle( (int) Math.floor( ( e.getMinX() - 1000 ) / 10 ) - half,
+                (int) Math.floor( ( 2000 - e.getMaxY() ) / 10 ) - half,
+                (int) Math.ceil( e.getWidth() / 10 ) + 2 * half, (int) Math.ceil( e.getHeight() / 10 ) + 2 * half );
+            assertTrue( "polygon " + p, plan.getWindow( shard ).contains( reach.intersection( surface ) ) );
+            assertTrue( kernel.span / 2 <= plan.getHalo() );
+        }
+    }
+
+    public void testWorkerJvmsAreMerged() throws IOException
+    {
+        //overlapping windows, one of them hanging off the bottom right of the surface
+        Rectangle[] windows = {
+            new Rectangle( 0, 0, 35, 25 ), new Rectangle( 25, 0, 35, 25 ),
+            new Rectangle( 0, 15, 35, 25 ), new Rectangle( 25, 15, 40, 30 ) };
+        File directory = createDirectory();
+        try {
+            File job = writeJob( directory, windows, -1 );
+            ShardRunner runner = new ShardRunner( directory, 2 );
+            runner.setWorkerClass( Worker.class.getName() );
+            int[] shards = { 0, 1, 2, 3 };
+            assertEquals( 1 + 2 + 3 + 4, runner.run( job, shards ) );
+
+            WritableRaster raster = Raster.createWritableRaster(
+                new BandedSampleModel( DataBuffer.TYPE_DOUBLE, WIDTH, HEIGHT, 1 ), null );
+            runner.merge( new RasterSurfaceBuffer( raster ), shards );
+            for ( int y = 0; y < HEIGHT; y++ ) {
+                for ( int x = 0; x < WIDTH; x++ ) {
+                    double expected = 0;
+                    for ( int s = 0; s < windows.length; s++ ) {
+                        if ( windows[s].contains( x, y ) ) {
+                            expected += Worker.getValue( s, x, y );
+                        }
+                    }
+                    assertEquals( "pixel " + x + "," + y, expected, raster.getSampleDouble( x, y, 0 ), 0 );
+                }
+            }
+        } finally {
+            delete( directory );
+        }
+    }
+
+    public void testFailedWorkerFailsTheRun() throws IOException
+    {
+        Rectangle[] windows = { new Rectangle( 0, 0, 10, 10 ), new Rectangle( 10, 10, 10, 10 ) };
+        File directory = createDirectory();
+        try {
+            ShardRunner runner = new ShardRunner( directory, 2 );
+            runner.setWorkerClass( Worker.class.getName() );
+            try {
+                runner.run( writeJob( directory, windows, 1 ), new int[] { 0, 1 } );
+                fail( "the failed worker was not noticed" );
+            } catch ( IOException e ) {
+                assertTrue( e.getMessage(), e.getMessage().contains( "shard worker 1 exited with 3" ) );
+            }
+        } finally {
+            delete( directory );
+        }
+    }
+
+    /**
+     * Stands in for ShardWorker: fills the window it is given with values
+     *   that depend on the shard and the pixel
+     */
+    public static class Worker
+    {
+        public static void main( String[] args ) throws IOException
+        {
+            Properties job = new Properties();
+            InputStream in = new FileInputStream( args[0] );
+            try {
+                job.load( in );
+            } finally {
+                in.close();
+            }
+            int shard = Integer.parseInt( args[1] );
+            if ( shard == Integer.parseInt( job.getProperty( "fail" ) ) ) {
+                System.exit( 3 );
+            }
+            String[] window = job.getProperty( "shard." + shard ).split( "," );
+            int x = Integer.parseInt( window[0] );
+            int y = Integer.parseInt( window[1] );
+            int w = Integer.parseInt( window[2] );
+            int h = Integer.parseInt( window[3] );
+            WritableRaster raster = Raster.createWritableRaster(
+                new BandedSampleModel( DataBuffer.TYPE_DOUBLE, w, h, 1 ), null );
+            for ( int row = 0; row < h; row++ ) {
+                for ( int col = 0; col < w; col++ ) {
+                    raster.setSample( col, row, 0, getValue( shard, x + col, y + row ) );
+                }
+            }
+            ShardRunner.writeShard( new File( args[2] ), new RasterSurfaceBuffer( raster ), x, y, shard + 1 );
+        }
+
+        static double getValue( int shard, int x, int y )
+        {
+            return ( shard + 1 ) * 1000 + y * 0.5 + x * 0.25;
+        }
+    }
+
+    private static File writeJob( File directory, Rectangle[] windows, int fail ) throws IOException
+    {
+        Properties job = new Properties();
+        job.setProperty( "fail", Integer.toString( fail ) );
+        for ( int s = 0; s < windows.length; s++ ) {
+            Rectangle w = windows[s];
+            job.setProperty( "shard." + s, w.x + "," + w.y + "," + w.width + "," + w.height );
+        }
+        File file = new File( directory, "job.properties" );
+        OutputStream out = new FileOutputStream( file );
+        try {
+            job.store( out, null );
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    private static File createDirectory() throws IOException
+    {
+        File directory = File.createTempFile( "shards", "" );
+        directory.delete();
+        directory.mkdir();
+        return directory;
+    }
+
+    private static void delete( File directory )
+    {
+        for ( File file : directory.listFiles() ) {
+            file.delete();
+        }
+        directory.delete();
+    }
+}
@@ -0,0 +1,221 @@
+package org.geotools.passivelygeolocated;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import java.awt.image.Raster;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import org.geotools.coverage.grid.GridCoverage2D;
+
+/**
+ * Checks that the ledger of an incrementally built surface finds, retracts
+ *   and stores its records, and is replaced together with its surface
+ */
+public class SurfaceLedgerTest
+    extends TestCase
+{
+    private static final int WIDTH = 30;
+    private static final int HEIGHT = 20;
+    private static final int PIXEL = 10;
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public SurfaceLedgerTest( String testName )
+    {
+        super( testName );
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite()
+    {
+        return new TestSuite( SurfaceLedgerTest.class );
+    }
+
+    public void testRecordsSurviveRemovalAndWriting() throws IOException
+    {
+        WeightedFuzzy wf = new WeightedFuzzy();
+        Geometry polygon = new GeometryFactory().createPoint( new Coordinate( 0, 0 ) ).buffer( 1 );
+        SurfaceLedger ledger = new SurfaceLedger();
+        ledger.getParameters().setProperty( "n", "10" );
+
+        //two batches, with ids out of order
+        long[][] ids = { { 50, 3, 17 }, { 9, 1000000000000L } };
+        for ( int b = 0; b < ids.length; b++ ) {
+            int n = ids[b].length;
+            PolygonJob job = new PolygonJob( b, polygon, 1, wf.getKernel( b + 1, 1 ), new double[n], new double[n], ids[b] );
+            for ( int i = 0; i < n; i++ ) {
+                job.patchX[i] = (int) ( ids[b][i] % 1000 );
+                job.patchY[i] = -i;
+            }
+            ledger.add( job );
+        }
+        ledger.sort();
+        assertEquals( 5, ledger.size() );
+        assertTrue( ledger.contains( 1000000000000L ) );
+        assertFalse( ledger.contains( 4 ) );
+
+        //retract 17, then check the others are where they were
+        ledger.retract( ledger.indexOf( 17 ) );
+
+        File file = File.createTempFile( "surface", ".wfr" );
+        try {
+            ledger.write( file );
+            SurfaceLedger read = SurfaceLedger.read( file );
+            assertEquals( "10", read.getParameters().getProperty( "n" ) );
+            assertEquals( 5, read.size() );
+            assertEquals( 4, read.getSplats() );
+            assertTrue( read.contains( 17 ) );
+            assertFalse( read.hasSplat( read.indexOf( 17 ) ) );
+            long[] expected = { 3, 9, 17, 50, 1000000000000L };
+            int[] spans = { 3, 5, 0, 3, 5 };
+            for ( int i = 0; i < expected.length; i++ ) {
+                assertEquals( i, read.indexOf( expected[i] ) );
+                assertEquals( spans[i], read.getSpan( i ) );
+                assertEquals( i == 2 ? 0 : (int) ( expected[i] % 1000 ), read.getPatchX( i ) );
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * Points outside every polygon and retracted points (including every
+     *   point that shares a retracted id, and ids that had not been seen)
+     *   are recorded, so later runs skip them
+     */
+    public void testUpdates() throws Exception
+    {
+        GridCoverage2D weightingSurface = Fixtures.getWeightingSurface( WIDTH, HEIGHT, PIXEL );
+        GeometryFactory factory = new GeometryFactory();
+        List<Geometry> polygons = new ArrayList<Geometry>();
+        polygons.add( factory.toGeometry( new Envelope( 1020, 1120, 2020, 2180 ) ) );
+        polygons.add( factory.toGeometry( new Envelope( 1150, 1280, 2040, 2160 ) ) );
+
+        //ids 2 are in both polygons, 3 is outside both
+        long[] ids = { 1, 2, 2, 3, 4, 5 };
+        double[][] xy = { { 1050, 2100 }, { 1060, 2050 }, { 1200, 2100 }, { 1005, 2005 }, { 1250, 2150 },
+            { 1100, 2170 } };
+        SurfaceLedger ledger = new SurfaceLedger();
+        GridCoverage2D first = update( null, ledger, polygons, ids, xy, weightingSurface, new long[0] );
+        assertEquals( 6, ledger.size() );
+        assertEquals( 5, ledger.getSplats() );
+        assertTrue( ledger.contains( 3 ) );
+        assertFalse( ledger.hasSplat( ledger.indexOf( 3 ) ) );
+
+        //retract both 2s (and 7, which hasn't been seen yet)
+        WeightedFuzzy wf = getWeightedFuzzy();
+        GridCoverage2D second = wf.updateSurface( first, ledger, polygons, getColumns( ids, xy ),
+            new WeightingSampler( weightingSurface ), weightingSurface, 5, 0.1, new long[] { 2, 7, 2 } );
+        assertEquals( 2, wf.getRetracted() );
+        assertEquals( 0, wf.getMetrics().getPoints() );
+        assertEquals( 7, ledger.size() );
+        assertEquals( 3, ledger.getSplats() );
+        assertTrue( ledger.contains( 7 ) );
+
+        //the same as a surface that never had them
+        long[] kept = { 1, 3, 4, 5 };
+        double[][] keptXY = { xy[0], xy[3], xy[4], xy[5] };
+        GridCoverage2D expected = update( null, new SurfaceLedger(), polygons, kept, keptXY, weightingSurface,
+            new long[0] );
+        assertSimilar( expected.getRenderedImage().getData(), second.getRenderedImage().getData(), 1e-12 );
+
+        //later runs add none of them again, even with 7 in the points
+        long[] later = { 1, 2, 2, 3, 4, 5, 7 };
+        double[][] laterXY = Arrays.copyOf( xy, 7 );
+        laterXY[6] = new double[] { 1060, 2060 };
+        wf = getWeightedFuzzy();
+        GridCoverage2D third = wf.updateSurface( second, ledger, polygons, getColumns( later, laterXY ),
+            new WeightingSampler( weightingSurface ), weightingSurface, 5, 0.1, new long[0] );
+        assertEquals( 0, wf.getMetrics().getPoints() );
+        assertEquals( 7, ledger.size() );
+        assertSimilar( second.getRenderedImage().getData(), third.getRenderedImage().getData(), 0 );
+    }
+
+    /**
+     * The surface only replaces the old one after the ledger does, and a run
+     *   stopped in between is finished when the ledger is next read
+     */
+    public void testCommit() throws IOException
+    {
+        File directory = Files.createTempDirectory( "ledger" ).toFile();
+        File surface = new File( directory, "surface.tif" );
+        File file = new File( directory, "surface.wfr" );
+        Charset utf8 = Charset.forName( "UTF-8" );
+        try {
+            SurfaceLedger ledger = new SurfaceLedger();
+            Files.write( ledger.startSurface( surface ).toPath(), "first".getBytes( utf8 ) );
+            ledger.commit( file, surface );
+            assertEquals( "first", new String( Files.readAllBytes( surface.toPath() ), utf8 ) );
+            assertEquals( 2, directory.list().length );
+
+            //stopped before the ledger was replaced: the old pair is kept (and the scratch surface ignored)
+            ledger = SurfaceLedger.read( file );
+            Files.write( ledger.startSurface( surface ).toPath(), "second".getBytes( utf8 ) );
+            SurfaceLedger.read( file ).recover( surface );
+            assertEquals( "first", new String( Files.readAllBytes( surface.toPath() ), utf8 ) );
+
+            //stopped after the ledger was replaced: the new surface is moved into place
+            ledger.write( file );
+            assertEquals( "first", new String( Files.readAllBytes( surface.toPath() ), utf8 ) );
+            SurfaceLedger.read( file ).recover( surface );
+            assertEquals( "second", new String( Files.readAllBytes( surface.toPath() ), utf8 ) );
+            assertEquals( 2, directory.list().length );
+        } finally {
+            for ( File f : directory.listFiles() ) {
+                f.delete();
+            }
+            directory.delete();
+        }
+    }
+
+    private static GridCoverage2D update( GridCoverage2D previous, SurfaceLedger ledger, List<Geometry> polygons,
+        long[] ids, double[][] xy, GridCoverage2D weightingSurface, long[] retractions )
+    {
+        return getWeightedFuzzy().updateSurface( previous, ledger, polygons, getColumns( ids, xy ),
+            new WeightingSampler( weightingSurface ), weightingSurface, 5, 0.1, retractions );
+    }
+
+    private static WeightedFuzzy getWeightedFuzzy()
+    {
+        WeightedFuzzy wf = new WeightedFuzzy();
+        wf.setSeed( 23L );
+        wf.setThreads( 2 );
+        return wf;
+    }
+
+    private static PointColumns getColumns( long[] ids, double[][] xy )
+    {
+        PointColumns columns = new PointColumns();
+        for ( int i = 0; i < ids.length; i++ ) {
+            columns.add( xy[i][0], xy[i][1], ids[i], -1 );
+        }
+        return columns;
+    }
+
+    private static void assertSimilar( Raster expected, Raster actual, double tolerance )
+    {
+        double total = 0;
+        for ( int y = 0; y < HEIGHT; y++ ) {
+            for ( int x = 0; x < WIDTH; x++ ) {
+                assertEquals( x + "," + y, expected.getSampleDouble( x, y, 0 ), actual.getSampleDouble( x, y, 0 ),
+                    tolerance );
+                total += expected.getSampleDouble( x, y, 0 );
+            }
+        }
+        assertTrue( total > 0 );
+    }
+}
@@ -0,0 +1,170 @@
+package org.geotools.passivelygeolocated;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.file.Files;
+import java.util.Map;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Checks that the server parses requests, rejects bad ones (including
+ *   those without the token, from a web page, or naming files outside its
+ *   directory) and shuts down when asked
+ */
+public class SurfaceServerTest
+    extends TestCase
+{
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public SurfaceServerTest( String testName )
+    {
+        super( testName );
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite()
+    {
+        return new TestSuite( SurfaceServerTest.class );
+    }
+
+    public void testParameters() throws IOException
+    {
+        Map<String, String> parameters = SurfaceServer.getParameters( "n=10&f=0.1&weighting=%2Fdata%2Fa+b.tif&seed" );
+        assertEquals( "10", parameters.get( "n" ) );
+        assertEquals( "0.1", parameters.get( "f" ) );
+        assertEquals( "/data/a b.tif", parameters.get( "weighting" ) );
+        assertEquals( "", parameters.get( "seed" ) );
+        assertTrue( SurfaceServer.getParameters( null ).isEmpty() );
+    }
+
+    public void testHosts()
+    {
+        assertTrue( SurfaceServer.isLoopback( "localhost" ) );
+        assertTrue( SurfaceServer.isLoopback( "localhost:8080" ) );
+        assertTrue( SurfaceServer.isLoopback( "127.0.0.1:8080" ) );
+        assertTrue( SurfaceServer.isLoopback( "[::1]:8080" ) );
+        assertFalse( SurfaceServer.isLoopback( null ) );
+        assertFalse( SurfaceServer.isLoopback( "example.com:8080" ) );
+        assertFalse( SurfaceServer.isLoopback( "localhost.example.com" ) );
+        assertFalse( SurfaceServer.isLoopback( "127.0.0.1.example.com:8080" ) );
+    }
+
+    public void testFiles() throws Exception
+    {
+        File directory = Files.createTempDirectory( "wfr" ).toFile();
+        SurfaceServer server = new SurfaceServer( new WeightedFuzzy(), 0, directory );
+        try {
+            assertEquals( new File( directory.getCanonicalFile(), "out.tif" ), server.getFile( "out.tif" ) );
+            assertEquals( new File( directory.getCanonicalFile(), "out.tif" ),
+                server.getFile( new File( directory, "a/../out.tif" ).getPath() ) );
+            String[] outside = { "../out.tif", "a/../../out.tif", "/tmp/out.tif", "." };
+            for ( String path : outside ) {
+                try {
+                    server.getFile( path );
+                    fail( path + " should be refused" );
+                } catch ( IllegalArgumentException e ) {
+                    //expected
+                }
+            }
+        } finally {
+            server.stop();
+            directory.delete();
+        }
+    }
+
+    public void testRequests() throws Exception
+    {
+        File directory = Files.createTempDirectory( "wfr" ).toFile();
+        SurfaceServer server = new SurfaceServer( new WeightedFuzzy(), 0, directory );
+        server.start();
+        try {
+            String base = "http://localhost:" + server.getPort();
+            String token = server.getToken();
+            assertEquals( 401, request( base + "/status", "GET", null, null ) );
+            assertEquals( 401, request( base + "/status", "GET", null, "0" + token.substring( 1 ) ) );
+            assertEquals( 401, request( base + "/shutdown", "POST", "", null ) );
+            assertEquals( 200, request( base + "/status", "GET", null, token ) );
+            assertEquals( 403, request( server.getPort(), "Host: example.com:" + server.getPort(), token ) );
+            assertEquals( 403, request( server.getPort(), "Host: localhost:" + server.getPort()
+                + "\r\nOrigin: http://example.com", token ) );
+            assertEquals( 200, request( server.getPort(), "Host: localhost:" + server.getPort(), token ) );
+            assertEquals( 405, request( base + "/surface", "GET", null, token ) );
+            assertEquals( 400, request( base + "/surface?n=10&f=0.1", "POST", "x,y\n1,2\n", token ) );
+            assertEquals( 400, request( base + "/surface?n=10&f=0.1&weighting=no.tif&polygons=no.shp",
+                "POST", "x,y\n1,2\n", token ) );
+            assertEquals( 400, request( base + "/surface?n=10&f=0.1&weighting=%2Fetc%2Fpasswd&polygons=no.shp",
+                "POST", "x,y\n1,2\n", token ) );
+            assertEquals( 400, request( base + "/surface?n=10&f=0.1&weighting=no.tif&polygons=no.shp"
+                + "&output=..%2Fout.tif", "POST", "x,y\n1,2\n", token ) );
+            assertEquals( 200, request( base + "/shutdown", "POST", "", token ) );
+            server.awaitShutdown();
+        } finally {
+            server.stop();
+            directory.delete();
+        }
+    }
+
+    /**
+     * Sends a GET /status request with the given headers over a socket (as
+     *   HttpURLConnection will not set the Host or Origin headers)
+     */
+    private static int request( int port, String headers, String token ) throws IOException
+    {
+        Socket socket = new Socket( InetAddress.getLoopbackAddress(), port );
+        try {
+            OutputStream out = socket.getOutputStream();
+            out.write( ( "GET /status HTTP/1.1\r\n" + headers + "\r\n" + SurfaceServer.TOKEN_HEADER + ": " + token
+                + "\r\nConnection: close\r\n\r\n" ).getBytes( "UTF-8" ) );
+            out.flush();
+            String status = new BufferedReader( new InputStreamReader( socket.getInputStream(), "UTF-8" ) ).readLine();
+            return Integer.parseInt( status.split( " " )[1] );
+        } finally {
+            socket.close();
+        }
+    }
+
+    private static int request( String url, String method, String body, String token ) throws IOException
+    {
+        HttpURLConnection connection = (HttpURLConnection) new URL( url ).openConnection();
+        connection.setRequestMethod( method );
+        if ( token != null ) {
+            connection.setRequestProperty( SurfaceServer.TOKEN_HEADER, token );
+        }
+        if ( body != null ) {
+            connection.setDoOutput( true );
+            OutputStream out = connection.getOutputStream();
+            out.write( body.getBytes( "UTF-8" ) );
+            out.close();
+        }
+        final int code = connection.getResponseCode();
+
+        //read the whole response, so that the connection can be reused
+        InputStream in = code < 400 ? connection.getInputStream() : connection.getErrorStream();
+        ByteArrayOutputStream response = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int read;
+        while ( in != null && ( read = in.read( buffer ) ) > 0 ) {
+            response.write( buffer, 0, read );
+        }
+        if ( in != null ) {
+            in.close();
+        }
+        return code;
+    }
+}
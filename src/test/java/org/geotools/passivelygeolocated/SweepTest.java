@@ -0,0 +1,177 @@
+package org.geotools.passivelygeolocated;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import java.awt.image.Raster;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import org.geotools.coverage.grid.GridCoverage2D;
+
+/**
+ * Checks that every surface of a sweep is the same as a separate run with
+ *   the same seed would give
+ */
+public class SweepTest
+    extends TestCase
+{
+    private static final int WIDTH = 50;
+    private static final int HEIGHT = 40;
+    private static final int PIXEL = 10;
+    private static final int POINTS = 1500;
+
+    private static final int[] N = { 25, 3, 10 };
+    private static final double[] F = { 0.05, 0.2 };
+
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public SweepTest( String testName )
+    {
+        super( testName );
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite()
+    {
+        return new TestSuite( SweepTest.class );
+    }
+
+    /**
+     * The best of n, rendered both ways
+     */
+    public void testBestOfN() throws Exception
+    {
+        assertMatchesRuns( RelocationMode.BEST_OF_N, Double.NaN, RenderMode.SPLAT, false );
+        assertMatchesRuns( RelocationMode.BEST_OF_N, Double.NaN, RenderMode.COUNT_GRID, false );
+    }
+
+    /**
+     * Alias tables whose sharpness is n (so each n is drawn separately), and
+     *   with a fixed sharpness (so each point is drawn once for every n)
+     */
+    public void testAlias() throws Exception
+    {
+        assertMatchesRuns( RelocationMode.ALIAS, Double.NaN, RenderMode.SPLAT, false );
+        assertMatchesRuns( RelocationMode.ALIAS, 4, RenderMode.SPLAT, false );
+    }
+
+    /**
+     * Each surface built in the same tiles in turn, which are deleted at the end
+     */
+    public void testTiles() throws Exception
+    {
+        assertMatchesRuns( RelocationMode.BEST_OF_N, Double.NaN, RenderMode.SPLAT, true );
+    }
+
+    private static void assertMatchesRuns( RelocationMode relocationMode, double sharpness, RenderMode renderMode,
+        boolean tiles ) throws Exception
+    {
+        final GridCoverage2D weightingSurface = Fixtures.getWeightingSurface( WIDTH, HEIGHT, PIXEL );
+        final List<Geometry> polygons = getPolygons();
+        final String csv = Fixtures.getPoints( polygons, POINTS, 1 );
+        File directory = tiles ? Files.createTempDirectory( "sweep" ).toFile() : null;
+
+        //build the sweep, checking each surface against a run as it is handed over
+        final WeightedFuzzy wf = getWeightedFuzzy( relocationMode, sharpness, renderMode, directory );
+        final WeightedFuzzy single = getWeightedFuzzy( relocationMode, sharpness, renderMode, null );
+        final List<String> built = new ArrayList<String>();
+        PointColumns columns = new PointColumns();
+        PointReader points = getReader( csv );
+        try {
+            double[] x = new double[POINTS];
+            double[] y = new double[POINTS];
+            long[] ids = new long[POINTS];
+            int count = points.read( x, y, ids );
+            for ( int i = 0; i < count; i++ ) {
+                columns.add( x[i], y[i], ids[i], -1 );
+            }
+        } finally {
+            points.close();
+        }
+        wf.getSweep( polygons, columns, new WeightingSampler( weightingSurface ), weightingSurface, N, F,
+            new SweepListener() {
+                public void surface( int relocationIterations, double fuzziness, GridCoverage2D surface )
+                    throws IOException
+                {
+                    String label = relocationMode + " " + sharpness + " " + renderMode + " n" + relocationIterations
+                        + " f" + fuzziness;
+                    built.add( label );
+                    PointReader points = getReader( csv );
+                    try {
+                        SurfaceBuffer expected = single.getSurface( points, polygons, null, weightingSurface,
+                            relocationIterations, fuzziness );
+                        assertSame( label, expected, surface.getRenderedImage().getData() );
+                    } finally {
+                        points.close();
+                    }
+                }
+            } );
+        assertEquals( N.length * F.length, built.size() );
+        if ( directory != null ) {
+
+            //the scratch file of the tiles is deleted once the sweep is done
+            assertEquals( 0, directory.listFiles().length );
+            for ( File file : directory.listFiles() ) {
+                file.delete();
+            }
+            directory.delete();
+        }
+    }
+
+    private static void assertSame( String label, SurfaceBuffer expected, Raster actual )
+    {
+        double[] row = new double[WIDTH];
+        double total = 0;
+        for ( int y = 0; y < HEIGHT; y++ ) {
+            expected.getRow( y, row );
+            for ( int x = 0; x < WIDTH; x++ ) {
+                assertEquals( label + " at " + x + "," + y, Double.doubleToLongBits( row[x] ),
+                    Double.doubleToLongBits( actual.getSampleDouble( x, y, 0 ) ) );
+                total += row[x];
+            }
+        }
+        assertTrue( label, total > 0 );
+    }
+
+    private static WeightedFuzzy getWeightedFuzzy( RelocationMode relocationMode, double sharpness,
+        RenderMode renderMode, File tiles )
+    {
+        WeightedFuzzy wf = new WeightedFuzzy();
+        wf.setSeed( 17L );
+        wf.setThreads( 3 );
+        wf.setRelocationMode( relocationMode );
+        wf.setSharpness( sharpness );
+        wf.setRenderMode( renderMode );
+        wf.setTileDirectory( tiles );
+        return wf;
+    }
+
+    private static PointReader getReader( String csv ) throws IOException
+    {
+        return new CsvPointReader( new ByteArrayInputStream( csv.getBytes( "UTF-8" ) ), "x", "y" );
+    }
+
+    /**
+     * Circles of different sizes, including one smaller than a pixel (which
+     *   falls back to the best of n in alias mode)
+     */
+    private static List<Geometry> getPolygons()
+    {
+        List<Geometry> polygons = Fixtures.getCircles( 10, 1050, 2050, ( WIDTH - 10 ) * PIXEL, ( HEIGHT - 10 ) * PIXEL,
+            15, 55 );
+        polygons.add( new GeometryFactory().createPoint( new Coordinate( 1003, 2003 ) ).buffer( 2 ) );
+        return polygons;
+    }
+}
@@ -0,0 +1,94 @@
+package org.geotools.passivelygeolocated;
+
+import com.vividsolutions.jts.geom.Geometry;
+import java.io.ByteArrayInputStream;
+import java.util.List;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import org.geotools.coverage.grid.GridCoverage2D;
+
+/**
+ * Checks that the surface of a seeded run does not depend on the number of
+ *   threads it is built with
+ */
+public class ThreadsTest
+    extends TestCase
+{
+    private static final int WIDTH = 60;
+    private static final int HEIGHT = 50;
+    private static final int PIXEL = 10;
+
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public ThreadsTest( String testName )
+    {
+        super( testName );
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite()
+    {
+        return new TestSuite( ThreadsTest.class );
+    }
+
+    /**
+     * Splatting each point in turn
+     */
+    public void testSplat() throws Exception
+    {
+        assertSameSurfaces( RenderMode.SPLAT );
+    }
+
+    /**
+     * Counting the points at each pixel, then applying each splat once
+     */
+    public void testCountGrid() throws Exception
+    {
+        assertSameSurfaces( RenderMode.COUNT_GRID );
+    }
+
+    private static void assertSameSurfaces( RenderMode renderMode ) throws Exception
+    {
+        //overlapping circles (so there are several kernels), with many points in each so that their relocation
+        //  and splats are split between workers
+        GridCoverage2D weightingSurface = Fixtures.getWeightingSurface( WIDTH, HEIGHT, PIXEL );
+        List<Geometry> polygons = Fixtures.getCircles( 15, 1000, 2000, WIDTH * PIXEL, HEIGHT * PIXEL, 20, 100 );
+        String csv = Fixtures.getPoints( polygons, polygons.size() * 400, 10 );
+        SurfaceBuffer one = getSurface( renderMode, 1, weightingSurface, polygons, csv );
+        SurfaceBuffer four = getSurface( renderMode, 4, weightingSurface, polygons, csv );
+        double[] a = new double[WIDTH];
+        double[] b = new double[WIDTH];
+        double total = 0;
+        for ( int row = 0; row < HEIGHT; row++ ) {
+            one.getRow( row, a );
+            four.getRow( row, b );
+            for ( int col = 0; col < WIDTH; col++ ) {
+                assertEquals( renderMode + " at " + col + "," + row, Double.doubleToLongBits( a[col] ),
+                    Double.doubleToLongBits( b[col] ) );
+                total += a[col];
+            }
+        }
+        assertTrue( total > 0 );
+    }
+
+    private static SurfaceBuffer getSurface( RenderMode renderMode, int threads, GridCoverage2D weightingSurface,
+        List<Geometry> polygons, String csv ) throws Exception
+    {
+        WeightedFuzzy wf = new WeightedFuzzy();
+        wf.setSeed( 11L );
+        wf.setThreads( threads );
+        wf.setRenderMode( renderMode );
+        PointReader points = new CsvPointReader( new ByteArrayInputStream( csv.getBytes( "UTF-8" ) ), "x", "y" );
+        try {
+            return wf.getSurface( points, polygons, null, weightingSurface, 10, 0.2 );
+        } finally {
+            points.close();
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package org.geotools.passivelygeolocated;
+
+import java.awt.Rectangle;
+import java.awt.image.BandedSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.WritableRaster;
+import java.util.Random;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Checks that the memory mapped tiled surface gives the same values as a
+ *   raster on the heap
+ */
+public class TiledSurfaceTest
+    extends TestCase
+{
+    private static final int WIDTH = 100;
+    private static final int HEIGHT = 70;
+    private static final int TILE_SIZE = 16;
+
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public TiledSurfaceTest( String testName )
+    {
+        super( testName );
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite()
+    {
+        return new TestSuite( TiledSurfaceTest.class );
+    }
+
+    /**
+     * Splats across tile boundaries and the edges of the surface
+     */
+    public void testMatchesRaster() throws Exception
+    {
+        assertMatchesRaster( DataBuffer.TYPE_DOUBLE, Precision.DOUBLE );
+    }
+
+    /**
+     * The same in single precision (the additions are done in the same order,
+     *   so these should also be identical)
+     */
+    public void testMatchesFloatRaster() throws Exception
+    {
+        assertMatchesRaster( DataBuffer.TYPE_FLOAT, Precision.FLOAT );
+    }
+
+    private void assertMatchesRaster( int dataType, Precision precision ) throws Exception
+    {
+        WritableRaster raster = Raster.createWritableRaster(
+            new BandedSampleModel( dataType, WIDTH, HEIGHT, 1 ), null );
+        RasterSurfaceBuffer expected = new RasterSurfaceBuffer( raster );
+        TiledSurface actual = new TiledSurface( WIDTH, HEIGHT, TILE_SIZE, precision, null );
+        try {
+            //(the kernel holds its values in the precision of the run, and only in that precision)
+            WeightedFuzzy wf = new WeightedFuzzy();
+            wf.setPrecision( precision );
+            Kernel kernel = wf.getKernel( 7, 1 );
+            assertEquals( precision == Precision.FLOAT, kernel.values == null );
+            assertEquals( precision == Precision.FLOAT, kernel.floatValues != null );
+            Random rng = new Random( 42 );
+            for ( int i = 0; i < 200; i++ ) {
+                //keep to the left half so that some tiles are never touched
+                int x = rng.nextInt( WIDTH / 2 ) - kernel.span / 2;
+                int y = rng.nextInt( HEIGHT + kernel.span ) - kernel.span;
+                double scale = 1 + rng.nextInt( 3 );
+                assertEquals( expected.add( kernel, x, y, scale, 0, HEIGHT ), actual.add( kernel, x, y, scale, 0, HEIGHT ) );
+            }
+            assertTrue( actual.getTilesCreated() < ( ( WIDTH + TILE_SIZE - 1 ) / TILE_SIZE ) * ( ( HEIGHT + TILE_SIZE - 1 ) / TILE_SIZE ) );
+
+            RenderedImage image = actual.getImage();
+            Raster copy = image.getData( new Rectangle( 0, 0, WIDTH, HEIGHT ) );
+            for ( int y = 0; y < HEIGHT; y++ ) {
+                for ( int x = 0; x < WIDTH; x++ ) {
+                    double e = raster.getSampleDouble( x, y, 0 );
+                    assertEquals( "pixel " + x + ", " + y, e, actual.getValue( x, y ), 0 );
+                    assertEquals( "pixel " + x + ", " + y, e, copy.getSampleDouble( x, y, 0 ), 0 );
+                    Raster tile = image.getTile( x / TILE_SIZE, y / TILE_SIZE );
+                    assertEquals( "pixel " + x + ", " + y, e, tile.getSampleDouble( x, y, 0 ), 0 );
+                }
+            }
+        } finally {
+            actual.dispose();
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package org.geotools.passivelygeolocated;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import org.geotools.coverage.grid.GridCoverage2D;
+
+/**
+ * Checks lookups in the cached weighting surface at its edges and outside it
+ */
+public class WeightingSamplerTest
+    extends TestCase
+{
+    private static final int WIDTH = 4;
+    private static final int HEIGHT = 3;
+
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public WeightingSamplerTest( String testName )
+    {
+        super( testName );
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite()
+    {
+        return new TestSuite( WeightingSamplerTest.class );
+    }
+
+    public void testEdges() throws Exception
+    {
+        assertEdges( new WeightingSampler( getWeightingSurface(), Precision.DOUBLE ) );
+        assertEdges( new WeightingSampler( getWeightingSurface(), Precision.FLOAT ) );
+    }
+
+    /**
+     * Coordinates off each side of the surface, and NaN, give 0 and are counted
+     */
+    public void testOutside() throws Exception
+    {
+        WeightingSampler sampler = new WeightingSampler( getWeightingSurface() );
+        double[][] outside = { { 999.9, 1995 }, { 1040, 1995 }, { 1005, 2000 }, { 1005, 1969.9 },
+            { Double.NaN, 1995 }, { 1005, Double.NaN } };
+        for ( double[] xy : outside ) {
+            assertEquals( xy[0] + "," + xy[1], 0, sampler.sample( xy[0], xy[1] ), 0 );
+        }
+        assertEquals( outside.length, sampler.getMisses() );
+    }
+
+    private static void assertEdges( WeightingSampler sampler )
+    {
+        assertEquals( WIDTH, sampler.getWidth() );
+        assertEquals( HEIGHT, sampler.getHeight() );
+
+        //the corners of the first and last pixels (the top left belongs to the pixel, the bottom right does not)
+        assertEquals( getWeight( 0, 0 ), sampler.sample( 1000, 2030 ), 0 );
+        assertEquals( getWeight( 0, 0 ), sampler.sample( 1009.999, 2020.001 ), 0 );
+        assertEquals( getWeight( 1, 1 ), sampler.sample( 1010, 2020 ), 0 );
+        assertEquals( getWeight( 3, 2 ), sampler.sample( 1039.999, 2000.001 ), 0 );
+        assertEquals( getWeight( 3, 0 ), sampler.sample( 1039.999, 2029.999 ), 0 );
+        assertEquals( getWeight( 0, 2 ), sampler.sample( 1000, 2000.001 ), 0 );
+        assertEquals( 0, sampler.getMisses() );
+
+        //grid positions and world coordinates go both ways
+        assertEquals( 1.5, sampler.toCol( 1015, 2015 ), 1e-9 );
+        assertEquals( 1.5, sampler.toRow( 1015, 2015 ), 1e-9 );
+        assertEquals( 1040, sampler.toX( WIDTH, HEIGHT ), 1e-9 );
+        assertEquals( 2000, sampler.toY( WIDTH, HEIGHT ), 1e-9 );
+    }
+
+    private static float getWeight( int col, int row )
+    {
+        return 1 + col + 10 * row + 0.25f;
+    }
+
+    /**
+     * 10m pixels, with the top left at (1000, 2030)
+     */
+    private static GridCoverage2D getWeightingSurface() throws Exception
+    {
+        float[][] weights = new float[HEIGHT][WIDTH];
+        for ( int y = 0; y < HEIGHT; y++ ) {
+            for ( int x = 0; x < WIDTH; x++ ) {
+                weights[y][x] = getWeight( x, y );
+            }
+        }
+        return Fixtures.getWeightingSurface( weights, 1000, 2000, 10 );
+    }
+}